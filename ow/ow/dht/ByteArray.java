@@ -25,14 +25,17 @@ import java.security.NoSuchAlgorithmException;
  */
 public final class ByteArray implements java.io.Externalizable {
 	// for message digest
-	private static MessageDigest md = null;
 	private final static String mdAlgoName = "SHA1";
-	static {
-		try {
-			md = MessageDigest.getInstance(mdAlgoName);
+	private final static ThreadLocal<MessageDigest> md = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(mdAlgoName);
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new Error(e);	// NOTREACHED
+			}
 		}
-		catch (NoSuchAlgorithmException e) { /* NOTREACHED */ }
-	}
+	};
 
 	private byte[] barray;
 	private volatile int hashCode;
@@ -66,12 +69,7 @@ public final class ByteArray implements java.io.Externalizable {
 	 * with the hashed value of the original instance.
 	 */
 	public ByteArray hashWithSHA1() {
-		byte[] hashed;
-		synchronized (md) {
-			hashed = md.digest(this.barray);
-		}
-
-		return new ByteArray(hashed);
+		return new ByteArray(md.get().digest(this.barray));
 	}
 
 	public boolean equals(Object o) {
@@ -18,6 +18,7 @@
 package ow.dht;
 
 import java.io.Serializable;
+import java.util.Map;
 import java.util.Set;
 
 import ow.id.ID;
@@ -126,6 +127,11 @@ public interface DHT<V extends Serializable> extends HighLevelService {
 	 */
 	long setTTLForPut(long ttl);
 
+	/**
+	 * Returns TTL (in millisecond) for following put operations.
+	 */
+	long getTTLForPut();
+
 	//
 	// Utilities
 	//
@@ -200,4 +206,10 @@ public interface DHT<V extends Serializable> extends HighLevelService {
 	}
 
 	void removeGlobalValue(ID key, ValueInfo<V> value) throws Exception;
+
+	/**
+	 * Removes the specified values from the global directory at once.
+	 * The directory is locked only once for all of the values.
+	 */
+	void removeGlobalValues(Map<ID,Set<ValueInfo<V>>> values) throws Exception;
 }
@@ -37,6 +37,7 @@ public class DHTConfiguration extends HighLevelServiceConfiguration {
 	// for DHT
 	public final static boolean DEFAULT_MULTIPLE_VALUES_FOR_A_SINGLE_KEY = true;
 	public final static int DEFAULT_NUM_SPARE_ROOT_CANDIDATES = 3;
+	public final static int DEFAULT_MAX_PUT_REQUESTS_IN_FLIGHT = 16;
 
 	public final static int DEFAULT_NUM_REPLICA = 1;
 	public final static boolean DEFAULT_ROOT_DOES_REPLICATION = true;
@@ -125,6 +126,18 @@ public class DHTConfiguration extends HighLevelServiceConfiguration {
 		return old;
 	}
 
+	private int maxPutRequestsInFlight = DEFAULT_MAX_PUT_REQUESTS_IN_FLIGHT;
+	/**
+	 * Maximum number of put/remove messages sent concurrently to root candidates.
+	 * 1 means that root candidates are requested one by one.
+	 */
+	public int getMaxPutRequestsInFlight() { return this.maxPutRequestsInFlight; }
+	public int setMaxPutRequestsInFlight(int num) {
+		int old = this.maxPutRequestsInFlight;
+		this.maxPutRequestsInFlight = num;
+		return old;
+	}
+
 	private int numReplica = DEFAULT_NUM_REPLICA;
 	public int getNumReplica() { return this.numReplica; }
 	public int setNumReplica(int num) {
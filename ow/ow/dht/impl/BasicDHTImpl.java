@@ -23,10 +23,13 @@ import java.io.Serializable;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,6 +47,7 @@ import ow.directory.SingleValueDirectory;
 import ow.id.ID;
 import ow.id.IDAddressPair;
 import ow.messaging.Message;
+import ow.messaging.MessageFuture;
 import ow.messaging.MessageHandler;
 import ow.messaging.MessageReceiver;
 import ow.messaging.MessageSender;
@@ -51,6 +55,7 @@ import ow.messaging.MessagingAddress;
 import ow.messaging.MessagingConfiguration;
 import ow.messaging.MessagingFactory;
 import ow.messaging.MessagingProvider;
+import ow.messaging.ReplyCallback;
 import ow.messaging.Signature;
 import ow.messaging.Tag;
 import ow.routing.CallbackOnRoute;
@@ -60,7 +65,9 @@ import ow.routing.RoutingAlgorithmFactory;
 import ow.routing.RoutingAlgorithmProvider;
 import ow.routing.RoutingException;
 import ow.routing.RoutingResult;
+import ow.routing.RoutingResultCache;
 import ow.routing.RoutingService;
+import ow.routing.RoutingServiceConfiguration;
 import ow.routing.RoutingServiceFactory;
 import ow.routing.RoutingServiceProvider;
 
@@ -118,8 +125,12 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 		RoutingAlgorithmConfiguration algoConfig = algoProvider.getDefaultConfiguration();
 
 		RoutingServiceProvider svcProvider = RoutingServiceFactory.getProvider(config.getRoutingStyle());
+		RoutingServiceConfiguration svcConfig = svcProvider.getDefaultConfiguration();
+		svcConfig.setRoutingCacheSize(config.getRoutingCacheSize());
+		svcConfig.setRoutingCacheTTL(config.getRoutingCacheTTL());
+
 		RoutingService routingSvc = svcProvider.getService(
-				svcProvider.getDefaultConfiguration(),
+				svcConfig,
 				msgProvider, receiver,
 				algoProvider, algoConfig, selfID);
 
@@ -393,50 +404,95 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 
 		int[] succeed = new int[requests.length];
 
-		retryPut:
+		int maxInFlight = Math.max(1, config.getMaxPutRequestsInFlight());
+
+		RoutingResultCache routingCache = this.routingSvc.getRoutingResultCache();
+		boolean rerouted = (routingCache == null);
+		Set<MessagingAddress> failedTargets = new HashSet<MessagingAddress>();
+
 		while (true) {
-			Set<MessagingAddress> targetSet = new HashSet<MessagingAddress>();
+			// assign each request to as many root candidates as replicas still required.
+			// requests to a target are packed into a message.
+			Map<MessagingAddress,List<Integer>> targetTable =
+				new LinkedHashMap<MessagingAddress,List<Integer>>();
+
 			for (int i = 0; i < rootCands.length; i++) {
-				if (rootCands[i] == null) {
-					continue;
-				}
+				if (rootCands[i] == null) continue;
 
-				IDAddressPair p = null;
+				int required = repeat - succeed[i];
+				while (required > 0) {
+					IDAddressPair p = rootCands[i].poll();
+					if (p == null) break;
 
-				do {
-					p = rootCands[i].peek();
-					if (excludeSelf && getSelfIDAddressPair().equals(p)) {
-						rootCands[i].poll();
-						continue;
-					}
+					if (excludeSelf && getSelfIDAddressPair().equals(p)) continue;
 
-					break;
-				} while (true);
+					List<Integer> indexList = targetTable.get(p.getAddress());
+					if (indexList == null) {
+						indexList = new ArrayList<Integer>();
+						targetTable.put(p.getAddress(), indexList);
+					}
+					indexList.add(i);
 
-				if (p != null) {
-					targetSet.add(p.getAddress());
+					required--;
 				}
 			}
 
-			if (targetSet.isEmpty()) break;
+			if (targetTable.isEmpty()) {
+				if (rerouted) break;
+				rerouted = true;
 
-			for (MessagingAddress target: targetSet) {
+				// root candidates taken from the routing cache can be stale.
+				// route again for the requests which none of them accepted.
 				List<Integer> indexList = new ArrayList<Integer>();
-				for (int i = 0; i < rootCands.length; i++) {
-					if (rootCands[i] != null) {
-						IDAddressPair p = rootCands[i].peek();
-						if (p != null && target.equals(p.getAddress())) {
-							rootCands[i].poll();
-							indexList.add(i);
+				for (int i = 0; i < requests.length; i++) {
+					if (routingRes[i] != null && succeed[i] == 0
+							&& routingCache.reject(keys[i])) {
+						indexList.add(i);
+					}
+				}
+				if (indexList.isEmpty()) break;
+
+				ID[] rerouteKeys = new ID[indexList.size()];
+				for (int i = 0; i < rerouteKeys.length; i++) {
+					rerouteKeys[i] = keys[indexList.get(i)];
+				}
+
+				RoutingResult[] rerouteRes =
+					this.routingSvc.routeToRootNode(rerouteKeys, numRootCands);
+
+				for (int i = 0; i < rerouteKeys.length; i++) {
+					int index = indexList.get(i);
+					routingRes[index] = rerouteRes[i];
+					rootCands[index] = null;
+
+					if (rerouteRes[i] != null) {
+						rootCands[index] = new LinkedList<IDAddressPair>();
+						for (IDAddressPair p: rerouteRes[i].getRootCandidates()) {
+							rootCands[index].offer(p);
 						}
 					}
 				}
 
-				int size= indexList.size();
+				continue;
+			}
+
+			// send messages to the targets concurrently
+			int numTargets = targetTable.size();
+			MessagingAddress[] targets = new MessagingAddress[numTargets];
+			MessageFuture[] futures = new MessageFuture[numTargets];
+			final Semaphore inFlight = new Semaphore(maxInFlight);
+			ReplyCallback releaser = new ReplyCallback() {
+				public void replied(Message reply) { inFlight.release(); }
+				public void failed(IOException e) { inFlight.release(); }
+			};
+
+			int t = 0;
+			for (Map.Entry<MessagingAddress,List<Integer>> entry: targetTable.entrySet()) {
+				List<Integer> indexList = entry.getValue();
+
+				int size = indexList.size();
 				DHT.PutRequest<V>[] packedRequests =
 					(doesRemove ? new DHT.RemoveRequest/*<V>*/[size] : new DHT.PutRequest/*<V>*/[size]);
-				ID[] packedKeys = new ID[size];
-				Serializable[][] packedValues = new Serializable[size][];
 				for (int i = 0; i < size; i++) {
 					packedRequests[i] = requests[indexList.get(i)];
 				}
@@ -456,17 +512,27 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 				else {
 					request = DHTMessageFactory.getRemoveMessage(
 							getSelfIDAddressPair(),
-							(DHT.RemoveRequest[])requests, hashedSecret, numReplica);
+							(DHT.RemoveRequest[])packedRequests, hashedSecret, numReplica);
 				}
 
-				Message reply;
-				try {
-					reply = this.requestPutOrRemove(target, request);
-				}
-				catch (IOException e) {
-					continue retryPut;
+				inFlight.acquireUninterruptibly();
+
+				targets[t] = entry.getKey();
+				futures[t] = sender.sendAndReceiveAsync(targets[t], request, releaser);
+				t++;
+			}
+
+			// collect replies.
+			// requests to a failed target are retried on the next root candidates.
+			for (t = 0; t < numTargets; t++) {
+				Message reply = this.receivePutOrRemoveReply(targets[t], futures[t]);
+				if (reply == null) {
+					failedTargets.add(targets[t]);
+					continue;
 				}
 
+				List<Integer> indexList = targetTable.get(targets[t]);
+
 				Serializable[] contents = reply.getContents();
 				Set<ValueInfo<V>>[] existedValues = (Set<ValueInfo<V>>[])contents[0];
 				if (existedValues != null) {
@@ -480,9 +546,16 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 						rootCands[index] = null;
 					}
 				}
-			}	// for (MessagingAddress target: targetSet)
+			}
 		}	// while (true)
 
+		// not to take the failed targets from the routing cache again
+		if (routingCache != null) {
+			for (MessagingAddress target: failedTargets) {
+				routingCache.fail(target);
+			}
+		}
+
 		// null in requests indicates that routing failure
 		for (int i = 0; i < requests.length; i++) {
 			if (routingRes[i] == null) requests[i] = null;
@@ -501,15 +574,19 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 		return results;
 	}
 
-	private Message requestPutOrRemove(MessagingAddress target, Message request)
-			throws IOException {
+	/**
+	 * Waits for the reply to a put/remove message.
+	 *
+	 * @return the reply, or null if the request failed.
+	 */
+	private Message receivePutOrRemoveReply(MessagingAddress target, MessageFuture future) {
 		Message reply = null;
 
 		try {
-			reply = sender.sendAndReceive(target, request);
+			reply = future.getReply();
 				// throws IOException
 
-			if (reply.getTag() == Tag.DHT_REPLY.getNumber()) {
+			if (reply != null && reply.getTag() == Tag.DHT_REPLY.getNumber()) {
 				logger.log(Level.INFO, "put/remove succeeded on " + target);
 			}
 			else {
@@ -518,7 +595,6 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 		}
 		catch (IOException e) {
 			logger.log(Level.WARNING, "Failed to send a put/remove message to " + target, e);
-			throw e;
 		}
 
 		return reply;
@@ -544,6 +620,10 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 		return old;
 	}
 
+	public long getTTLForPut() {
+		return this.ttlForPut;
+	}
+
 	public synchronized void stop() {
 		logger.log(Level.INFO, "DHT#stop() called.");
 
@@ -848,4 +928,15 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
     public void removeGlobalValue(ID key, ValueInfo<V> value) throws Exception {
         this.globalDir.remove(key, value);
     }
+
+	@Override
+	public void removeGlobalValues(Map<ID,Set<ValueInfo<V>>> values) throws Exception {
+		synchronized (this.globalDir) {
+			for (Map.Entry<ID,Set<ValueInfo<V>>> e: values.entrySet()) {
+				for (ValueInfo<V> v: e.getValue()) {
+					this.globalDir.remove(e.getKey(), v);
+				}
+			}
+		}
+	}
 }
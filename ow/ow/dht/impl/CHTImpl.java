@@ -21,6 +21,7 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.UnknownHostException;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -303,6 +304,10 @@ public final class CHTImpl<V extends Serializable> implements DHT<V> {
 		return old;
 	}
 
+	public long getTTLForPut() {
+		return this.ttlForPut;
+	}
+
 	public void stop() {}
 	public void suspend() {}
 	public void resume() {}
@@ -367,4 +372,15 @@ public final class CHTImpl<V extends Serializable> implements DHT<V> {
 	public void removeGlobalValue(ID key, ValueInfo<V> value) throws Exception {
 		this.globalDir.remove(key, value);
 	}
+
+	@Override
+	public void removeGlobalValues(Map<ID,Set<ValueInfo<V>>> values) throws Exception {
+		synchronized (this.globalDir) {
+			for (Map.Entry<ID,Set<ValueInfo<V>>> e: values.entrySet()) {
+				for (ValueInfo<V> v: e.getValue()) {
+					this.globalDir.remove(e.getKey(), v);
+				}
+			}
+		}
+	}
 }
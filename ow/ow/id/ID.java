@@ -27,6 +27,8 @@ import java.util.logging.Logger;
 /**
  * An ID with arbitrary length.
  * Note that internal representation is big endian.
+ * The value is also kept in 64 bit limbs, on which comparison and distance
+ * calculation are done without creating objects.
  */
 public final class ID implements java.io.Externalizable, Comparable<ID> {
 	public final static boolean USE_INT_ARRAY = false;
@@ -38,22 +40,28 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 //	private final static Map<ID,ID> canonicalizingMap = new WeakHashMap<ID,ID>();
 
 	// for message digest
-	private static MessageDigest md = null;
+	// a MessageDigest is not thread-safe, and sharing one serializes the callers
 	private final static String mdAlgoName = "SHA1";
-	static {
-		try {
-			md = MessageDigest.getInstance(mdAlgoName);
+	private final static ThreadLocal<MessageDigest> md = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(mdAlgoName);
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new Error(e);	// NOTREACHED
+			}
 		}
-		catch (NoSuchAlgorithmException e) { /* NOTREACHED */ }
-	}
+	};
 
 	private int size;	// size in byte: 20 means 160 bit
 	private byte[] value;
+	private long[] limbs;
+		// big endian, the value is aligned to the end of the last limb
 //	private volatile int intSize;
 //	private volatile int[] intValue;
 		// big endian
 	private volatile BigInteger bigInteger;
-		// can keep a BigInteger because it is immutable
+		// can keep a BigInteger because it is immutable, created lazily
 	private volatile int hashCode;
 
 	/**
@@ -103,8 +111,13 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 //			}
 //		}
 
-		// create a BigInteger
-		this.bigInteger = new BigInteger(1 /*positive*/, this.value);
+		// fill limbs
+		int numLimbs = (this.size + 7) / 8;
+		this.limbs = new long[numLimbs];
+		int pos = numLimbs * 8 - this.size;
+		for (int i = 0; i < this.size; i++, pos++) {
+			this.limbs[pos >>> 3] |= (0xffL & this.value[i]) << ((7 - (pos & 7)) * 8);
+		}
 
 		// calculate the hashed value
 		int hashedvalue = 0;
@@ -115,7 +128,7 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 //			}
 //		}
 //		else {
-			int pos = 24;
+			pos = 24;
 			for (int i = 0; i < this.size; i++) {
 				hashedvalue ^= (this.value[i] << pos);
 
@@ -221,16 +234,39 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 	 * @param sizeInByte the size of generated ID in byte (<= 20).
 	 */
 	public static ID getSHA1BasedID(byte[] bytes, int sizeInByte) {
-		byte[] value;
-		synchronized (md) {
-			value = md.digest(bytes);
+		MessageDigest digest = md.get();
+		if (sizeInByte > digest.getDigestLength()) {
+			throw new IllegalArgumentException("size is too large: " + sizeInByte + " > " + digest.getDigestLength());
 		}
 
-		if (sizeInByte > value.length) {
-			throw new IllegalArgumentException("size is too large: " + sizeInByte + " > " + value.length);
+		return canonicalize(new ID(digest.digest(bytes), sizeInByte));
+	}
+
+	/**
+	 * Returns newly generated IDs with hashed values of the specified byte arrays.
+	 * The size of IDs is 20.
+	 */
+	public static ID[] getSHA1BasedIDs(byte[][] bytes) {
+		return getSHA1BasedIDs(bytes, 20);
+	}
+
+	/**
+	 * Returns newly generated IDs with hashed values of the specified byte arrays,
+	 * in the same order.
+	 *
+	 * @param sizeInByte the size of generated IDs in byte (<= 20).
+	 */
+	public static ID[] getSHA1BasedIDs(byte[][] bytes, int sizeInByte) {
+		MessageDigest digest = md.get();
+		if (sizeInByte > digest.getDigestLength()) {
+			throw new IllegalArgumentException("size is too large: " + sizeInByte + " > " + digest.getDigestLength());
 		}
 
-		return canonicalize(new ID(value, sizeInByte));
+		ID[] ids = new ID[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			ids[i] = canonicalize(new ID(digest.digest(bytes[i]), sizeInByte));
+		}
+		return ids;
 	}
 
 	/**
@@ -266,30 +302,57 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 		int result = 0;
 
 		for (int i = 0; i < len; i++) {
-			int index = from + i;
-
-			if (index >= 0) {
-				if (this.bigInteger.testBit(from + i)) {
-					result |= (1 << i);
-				}
+			if (this.testBit(from + i)) {
+				result |= (1 << i);
 			}
 		}
 
 		return result;
 	}
 
+	/**
+	 * Returns true if the designated bit is set.
+	 *
+	 * @param n index from LSB.
+	 */
+	public boolean testBit(int n) {
+		if (n < 0 || n >= this.size * 8) return false;
+
+		return ((this.value[this.size - 1 - (n >>> 3)] >>> (n & 7)) & 1) != 0;
+	}
+
 	/**
 	 * Returns an ID whose value is (this << n).
 	 */
 	public ID shiftLeft(int n) {
-		return getID(this.toBigInteger().shiftLeft(n), this.size);
+		if (n < 0) return this.shiftRight(-n);
+
+		byte[] v = new byte[this.size];
+		int byteShift = n >>> 3, bitShift = n & 7;
+		for (int i = 0; i + byteShift < this.size; i++) {
+			int b = (0xff & this.value[i + byteShift]) << bitShift;
+			if (bitShift > 0 && i + byteShift + 1 < this.size)
+				b |= (0xff & this.value[i + byteShift + 1]) >>> (8 - bitShift);
+			v[i] = (byte)b;
+		}
+		return canonicalize(new ID(v, this.size));
 	}
 
 	/**
 	 * Returns an ID whose value is (this >> n).
 	 */
 	public ID shiftRight(int n) {
-		return getID(this.toBigInteger().shiftRight(n), this.size);
+		if (n < 0) return this.shiftLeft(-n);
+
+		byte[] v = new byte[this.size];
+		int byteShift = n >>> 3, bitShift = n & 7;
+		for (int i = this.size - 1; i - byteShift >= 0; i--) {
+			int b = (0xff & this.value[i - byteShift]) >>> bitShift;
+			if (bitShift > 0 && i - byteShift - 1 >= 0)
+				b |= (0xff & this.value[i - byteShift - 1]) << (8 - bitShift);
+			v[i] = (byte)b;
+		}
+		return canonicalize(new ID(v, this.size));
 	}
 
 	/**
@@ -297,7 +360,7 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 	 * with the designated bit set.
 	 */
 	public ID setBit(int n) {
-		return getID(this.toBigInteger().setBit(n), this.size);
+		return this.changeBit(n, true);
 	}
 
 	/**
@@ -305,10 +368,35 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 	 * with the designated bit cleared.
 	 */
 	public ID clearBit(int n) {
-		return getID(this.toBigInteger().clearBit(n), this.size);
+		return this.changeBit(n, false);
+	}
+
+	private ID changeBit(int n, boolean set) {
+		if (n < 0) throw new ArithmeticException("Negative bit address");
+
+		byte[] v = new byte[this.size];
+		System.arraycopy(this.value, 0, v, 0, this.size);
+		if (n < this.size * 8) {	// higher bits are out of this ID
+			int idx = this.size - 1 - (n >>> 3);
+			if (set)
+				v[idx] |= (1 << (n & 7));
+			else
+				v[idx] &= ~(1 << (n & 7));
+		}
+		return canonicalize(new ID(v, this.size));
 	}
 
 	public static int matchLengthFromMSB(ID a, ID b) {
+		if (a.size == b.size) {
+			int padding = a.limbs.length * 64 - a.size * 8;
+			for (int i = 0; i < a.limbs.length; i++) {
+				long x = a.limbs[i] ^ b.limbs[i];
+				if (x != 0L)
+					return i * 64 + Long.numberOfLeadingZeros(x) - padding;
+			}
+			return a.size * 8;
+		}
+
 		int aRemainingSize = a.getSize();
 		int bRemainingSize = b.getSize();
 
@@ -355,7 +443,87 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 	}
 
 	public BigInteger toBigInteger() {
-		return this.bigInteger;
+		BigInteger b = this.bigInteger;
+		if (b == null) {
+			this.bigInteger = b = new BigInteger(1 /*positive*/, this.value);
+		}
+		return b;
+	}
+
+	/**
+	 * Returns true if all of the given IDs have the same size.
+	 */
+	public static boolean isSameSize(ID a, ID b, ID c, ID d) {
+		return a.size == b.size && a.size == c.size && a.size == d.size;
+	}
+
+	/**
+	 * Compares (a1 XOR b1) with (a2 XOR b2).
+	 * All of the IDs have to be in the same size.
+	 */
+	public static int compareXorDistance(ID a1, ID b1, ID a2, ID b2) {
+		for (int i = 0; i < a1.limbs.length; i++) {
+			long d1 = a1.limbs[i] ^ b1.limbs[i];
+			long d2 = a2.limbs[i] ^ b2.limbs[i];
+			if (d1 != d2)
+				return compareUnsigned(d1, d2);
+		}
+		return 0;
+	}
+
+	/**
+	 * Compares ((to1 - from1) mod 2^bits) with ((to2 - from2) mod 2^bits),
+	 * where bits is the size of the IDs in bit.
+	 * All of the IDs have to be in the same size.
+	 *
+	 * @param zeroAsSpaceSize regards the distance 0 as 2^bits.
+	 */
+	public static int compareRingDistance(ID to1, ID from1, ID to2, ID from2,
+			boolean zeroAsSpaceSize) {
+		int n = to1.limbs.length;
+		int topBits = to1.size * 8 - (n - 1) * 64;
+		long topMask = (topBits >= 64 ? -1L : (1L << topBits) - 1);
+
+		// subtract from the least significant limb,
+		// and the higher limb which differs decides the result
+		int cmp = 0;
+		long borrow1 = 0L, borrow2 = 0L;
+		boolean zero1 = true, zero2 = true;
+		for (int i = n - 1; i >= 0; i--) {
+			long t1 = to1.limbs[i], f1 = from1.limbs[i];
+			long t2 = to2.limbs[i], f2 = from2.limbs[i];
+			long d1 = t1 - f1 - borrow1;
+			long d2 = t2 - f2 - borrow2;
+			borrow1 = borrowOf(t1, f1, borrow1);
+			borrow2 = borrowOf(t2, f2, borrow2);
+			if (i == 0) {
+				d1 &= topMask;
+				d2 &= topMask;
+			}
+			if (d1 != 0L) zero1 = false;
+			if (d2 != 0L) zero2 = false;
+			if (d1 != d2)
+				cmp = compareUnsigned(d1, d2);
+		}
+
+		if (zeroAsSpaceSize && (zero1 || zero2)) {
+			if (zero1 && zero2) return 0;
+			return zero1 ? 1 : -1;
+		}
+		return cmp;
+	}
+
+	private static long borrowOf(long t, long f, long borrow) {
+		// borrow out of (t - f - borrow) in unsigned arithmetic
+		long tu = t + Long.MIN_VALUE, fu = f + Long.MIN_VALUE;
+		if (tu < fu) return 1L;
+		return (tu == fu) ? borrow : 0L;
+	}
+
+	private static int compareUnsigned(long a, long b) {
+		a += Long.MIN_VALUE;
+		b += Long.MIN_VALUE;
+		return (a < b) ? -1 : ((a == b) ? 0 : 1);
 	}
 
 	public boolean equals(Object obj) {
@@ -439,6 +607,15 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 	}
 
 	public int compareTo(ID other) {
-		return this.toBigInteger().compareTo(other.toBigInteger());
+		long[] a = this.limbs, b = other.limbs;
+		int n = Math.max(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int ai = i - (n - a.length), bi = i - (n - b.length);
+			long va = (ai >= 0 ? a[ai] : 0L);
+			long vb = (bi >= 0 ? b[bi] : 0L);
+			if (va != vb)
+				return compareUnsigned(va, vb);
+		}
+		return 0;
 	}
 }
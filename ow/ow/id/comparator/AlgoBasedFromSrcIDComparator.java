@@ -17,7 +17,6 @@
 
 package ow.id.comparator;
 
-import java.math.BigInteger;
 import java.util.Comparator;
 
 import ow.id.ID;
@@ -33,9 +32,6 @@ public final class AlgoBasedFromSrcIDComparator implements Comparator<ID> {
 	}
 
 	public int compare(ID i1, ID i2) {
-		BigInteger dist1 = algo.distance(i1, this.sourceID);
-		BigInteger dist2 = algo.distance(i2, this.sourceID);
-
-		return dist1.compareTo(dist2);
+		return algo.compareDistance(i1, this.sourceID, i2, this.sourceID);
 	}
 }
@@ -17,7 +17,6 @@
 
 package ow.id.comparator;
 
-import java.math.BigInteger;
 import java.util.Comparator;
 
 import ow.id.ID;
@@ -33,9 +32,6 @@ public final class AlgoBasedTowardTargetIDComparator implements Comparator<ID> {
 	}
 
 	public int compare(ID i1, ID i2) {
-		BigInteger dist1 = algo.distance(this.targetID, i1);
-		BigInteger dist2 = algo.distance(this.targetID, i2);
-
-		return dist1.compareTo(dist2);
+		return algo.compareDistance(this.targetID, i1, this.targetID, i2);
 	}
 }
@@ -24,16 +24,25 @@ import ow.id.ID;
 import ow.id.IDAddressPair;
 
 public final class ClockwiseFromSrcIDAddrComparator implements Comparator<IDAddressPair> {
+	private final ID sourceID;
 	private BigInteger sourceIDInteger;
+	private final int idSizeInBit;
 	private final BigInteger ID_SPACE_SIZE;
 
 	public ClockwiseFromSrcIDAddrComparator(int idSizeInBit, ID sourceID) {
+		this.sourceID = sourceID;
 		this.sourceIDInteger = sourceID.toBigInteger();
+		this.idSizeInBit = idSizeInBit;
 
 		this.ID_SPACE_SIZE = BigInteger.ONE.shiftLeft(idSizeInBit);
 	}
 
 	public int compare(IDAddressPair p1, IDAddressPair p2) {
+		if (ID.isSameSize(p1.getID(), this.sourceID, p2.getID(), this.sourceID)
+				&& this.sourceID.getSize() * 8 == this.idSizeInBit) {
+			return ID.compareRingDistance(p1.getID(), this.sourceID, p2.getID(), this.sourceID, false);
+		}
+
 		BigInteger dist1 = p1.getID().toBigInteger().subtract(this.sourceIDInteger);
 		if (dist1.compareTo(BigInteger.ZERO) < 0) {
 			dist1 = dist1.add(this.ID_SPACE_SIZE);
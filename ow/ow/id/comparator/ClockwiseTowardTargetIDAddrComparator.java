@@ -24,16 +24,25 @@ import ow.id.ID;
 import ow.id.IDAddressPair;
 
 public final class ClockwiseTowardTargetIDAddrComparator implements Comparator<IDAddressPair> {
+	private final ID targetID;
 	private BigInteger targetIDInteger;
+	private final int idSizeInBit;
 	private final BigInteger ID_SPACE_SIZE;
 
 	public ClockwiseTowardTargetIDAddrComparator(int idSizeInBit, ID targetID) {
+		this.targetID = targetID;
 		this.targetIDInteger = targetID.toBigInteger();
+		this.idSizeInBit = idSizeInBit;
 
 		this.ID_SPACE_SIZE = BigInteger.ONE.shiftLeft(idSizeInBit);
 	}
 
 	public int compare(IDAddressPair p1, IDAddressPair p2) {
+		if (ID.isSameSize(this.targetID, p1.getID(), this.targetID, p2.getID())
+				&& this.targetID.getSize() * 8 == this.idSizeInBit) {
+			return ID.compareRingDistance(this.targetID, p1.getID(), this.targetID, p2.getID(), false);
+		}
+
 		BigInteger dist1 = this.targetIDInteger.subtract(p1.getID().toBigInteger());
 		if (dist1.compareTo(BigInteger.ZERO) < 0) {
 			dist1 = dist1.add(this.ID_SPACE_SIZE);
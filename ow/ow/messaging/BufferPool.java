@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct ByteBuffers shared by messaging transports.
+ * Buffers are classified by capacity into powers of two
+ * from {@link #MIN_BUFFER_SIZE MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE MAX_BUFFER_SIZE}.
+ * A request larger than the maximum is served by a heap buffer which is not pooled.
+ */
+public final class BufferPool {
+	public final static int MIN_BUFFER_SIZE = 512;
+	public final static int MAX_BUFFER_SIZE = 64 * 1024;
+	public final static int DEFAULT_BUFFERS_PER_CLASS = 64;
+
+	private final static BufferPool sharedPool = new BufferPool(DEFAULT_BUFFERS_PER_CLASS);
+
+	private final int buffersPerClass;
+	private final List<Queue<ByteBuffer>> freeLists;
+	private final AtomicInteger[] occupancy;
+
+	// statistics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong discards = new AtomicLong();
+
+	/**
+	 * Returns the pool shared by the TCP and UDP transports.
+	 */
+	public static BufferPool getSharedPool() { return sharedPool; }
+
+	public BufferPool(int buffersPerClass) {
+		this.buffersPerClass = buffersPerClass;
+
+		int numClasses = classIndex(MAX_BUFFER_SIZE) + 1;
+		this.freeLists = new ArrayList<Queue<ByteBuffer>>(numClasses);
+		this.occupancy = new AtomicInteger[numClasses];
+		for (int i = 0; i < numClasses; i++) {
+			this.freeLists.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			this.occupancy[i] = new AtomicInteger();
+		}
+	}
+
+	private static int classIndex(int size) {
+		int idx = 0;
+		for (int cap = MIN_BUFFER_SIZE; cap < size; cap <<= 1) idx++;
+		return idx;
+	}
+
+	private static int classCapacity(int idx) {
+		return MIN_BUFFER_SIZE << idx;
+	}
+
+	/**
+	 * Returns a cleared buffer whose limit is the given size.
+	 * The buffer should be returned with {@link #release(ByteBuffer) release()}.
+	 */
+	public ByteBuffer acquire(int size) {
+		if (size > MAX_BUFFER_SIZE) {
+			this.misses.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+
+		int idx = classIndex(size);
+		ByteBuffer buf = this.freeLists.get(idx).poll();
+
+		if (buf != null) {
+			this.occupancy[idx].decrementAndGet();
+			this.hits.incrementAndGet();
+			buf.clear();
+		}
+		else {
+			this.misses.incrementAndGet();
+			buf = ByteBuffer.allocateDirect(classCapacity(idx));
+		}
+
+		buf.limit(size);
+
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to this pool.
+	 * The buffer must not be used by the caller after release.
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf == null) return;
+
+		int capacity = buf.capacity();
+		if (!buf.isDirect() || capacity > MAX_BUFFER_SIZE) {
+			this.discards.incrementAndGet();
+			return;
+		}
+
+		int idx = classIndex(capacity);
+		if (classCapacity(idx) != capacity) {	// not allocated by this pool
+			this.discards.incrementAndGet();
+			return;
+		}
+
+		if (this.occupancy[idx].incrementAndGet() > this.buffersPerClass) {
+			this.occupancy[idx].decrementAndGet();
+			this.discards.incrementAndGet();
+			return;
+		}
+
+		this.freeLists.get(idx).offer(buf);
+	}
+
+	/** Number of requests served by a pooled buffer. */
+	public long getHitCount() { return this.hits.get(); }
+
+	/** Number of requests which required a new allocation. */
+	public long getMissCount() { return this.misses.get(); }
+
+	/** Number of released buffers which were not kept because the pool is full. */
+	public long getDiscardCount() { return this.discards.get(); }
+
+	/** Number of buffers currently kept in this pool. */
+	public int getOccupancy() {
+		int n = 0;
+		for (AtomicInteger o: this.occupancy) n += o.get();
+		return n;
+	}
+
+	/** Total capacity in byte of buffers currently kept in this pool. */
+	public long getPooledBytes() {
+		long bytes = 0L;
+		for (int i = 0; i < this.occupancy.length; i++) {
+			bytes += (long)this.occupancy[i].get() * classCapacity(i);
+		}
+		return bytes;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("{pooled buffers:").append(this.getOccupancy());
+		sb.append(",pooled bytes:").append(this.getPooledBytes());
+		sb.append(",hits:").append(this.getHitCount());
+		sb.append(",misses:").append(this.getMissCount());
+		sb.append(",discards:").append(this.getDiscardCount());
+		sb.append("}");
+
+		return sb.toString();
+	}
+}
@@ -17,32 +17,39 @@
 
 package ow.messaging;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import ow.id.IDAddressPair;
+import ow.messaging.codec.GrowableBuffer;
+import ow.messaging.codec.MessageCodec;
+import ow.messaging.codec.MessageCodecFactory;
 
 public class Message implements Serializable, Cloneable {
 	private final static Logger logger = Logger.getLogger("messaging");
 
-	public final static boolean GZIP_MESSAGE = true;
+	private final static int HEADER_LENGTH = Signature.getSignatureLength() + 6;
+		// signature, tag, length and # of contents
+	private final static int REQUEST_ID_LENGTH = 4;
+		// a request ID precedes the body if the signature is flagged
+	private final static int REPLY_FLAG = 0x80000000;
+
+	/**
+	 * The maximum length of the source and contents of a message.
+	 * A frame declaring a longer body is rejected before a buffer is allocated for it.
+	 */
+	public final static int MAX_BODY_LENGTH = 16 * 1024 * 1024;
 
 	private byte[] signature;
 	private final int tag;
 	private IDAddressPair src;
 	private final Serializable[] contents;	// up to 255 objects due to protocol limitation
+	private int requestID = 0;	// set by decoding, 0 if not correlated
 
 	/**
 	 * Create an instance of Message class with a given contents.
@@ -109,6 +116,28 @@ public class Message implements Serializable, Cloneable {
 		this.contents[i] = c;
 	}
 
+	/**
+	 * Returns the ID correlating a request and its reply, or 0 if the message is not correlated.
+	 * An ID is carried in a frame whose signature is flagged, and it is valid only for a received message.
+	 */
+	public int getRequestID() {
+		return this.requestID & ~REPLY_FLAG;
+	}
+
+	/**
+	 * Returns true if this message was received as a reply to a correlated request.
+	 */
+	public boolean isReply() {
+		return (this.requestID & REPLY_FLAG) != 0;
+	}
+
+	/**
+	 * Returns an ID to be put to the header of the reply to the given request.
+	 */
+	public static int getReplyID(Message request) {
+		return (request.requestID == 0 ? 0 : (request.requestID | REPLY_FLAG));
+	}
+
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 
@@ -126,143 +155,197 @@ public class Message implements Serializable, Cloneable {
 	/**
 	 * Write this Message into a byte stream.
 	 * This is an utility method implementing the wire protocol.
+	 *
+	 * @return the length of the written frame.
 	 */
-	public static ByteBuffer encode(ByteChannel out, Message msg) throws IOException {
+	public static int encode(GatheringByteChannel out, Message msg) throws IOException {
+		return encode(out, msg, MessageCodecFactory.getDefaultCodec());
+	}
+
+	/**
+	 * Write this Message into a byte stream with the specified codec.
+	 * The header and the body are put into pooled buffers and written with a gathering write.
+	 *
+	 * @return the length of the written frame.
+	 */
+	public static int encode(GatheringByteChannel out, Message msg, MessageCodec codec) throws IOException {
+		return encode(out, msg, codec, 0);
+	}
+
+	/**
+	 * Write this Message with a request ID put to the header.
+	 *
+	 * @param requestID an ID correlating a request and its reply, or 0.
+	 * @return the length of the written frame.
+	 */
+	public static int encode(GatheringByteChannel out, Message msg, MessageCodec codec, int requestID) throws IOException {
 		logger.log(Level.INFO, "tag:" + Tag.getNameByNumber(msg.tag) + " # of contents:" + msg.contents.length);
 
-		ByteBuffer buf = encode(msg);
+		BufferPool pool = BufferPool.getSharedPool();
+		GrowableBuffer body = new GrowableBuffer(BufferPool.MIN_BUFFER_SIZE, pool);
+		ByteBuffer header = pool.acquire(HEADER_LENGTH + (requestID != 0 ? REQUEST_ID_LENGTH : 0));
 
 		try {
+			encodeBody(msg, codec, body);
+
+			ByteBuffer bodyBuf = body.getBuffer();
+			bodyBuf.flip();
+			putHeader(header, msg, codec, requestID, bodyBuf.remaining());
+			header.flip();
+
+			int len = header.remaining() + bodyBuf.remaining();
+			ByteBuffer[] frame = { header, bodyBuf };
+
 			synchronized (out) {
 				do {
-					out.write(buf);
-				} while (buf.hasRemaining());
+					out.write(frame);
+				} while (bodyBuf.hasRemaining());
 			}
+
+			return len;
 		}
 		catch (IOException e) {
 			logger.log(Level.WARNING, "Could not write a message.");
 			throw e;
 		}
-
-		buf.rewind();
-
-		return buf;
+		finally {
+			body.release();
+			pool.release(header);
+		}
 	}
 
 	/**
 	 * Convert this Message to a ByteBuffer.
 	 */
 	public static ByteBuffer encode(Message msg) {
-		// serializes src and contents
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		OutputStream os = bos;
+		return encode(msg, MessageCodecFactory.getDefaultCodec());
+	}
 
-		try {
-			if (GZIP_MESSAGE) {
-				os = new GZIPOutputStream(os);
-			}
+	/**
+	 * Convert this Message to a ByteBuffer with the specified codec.
+	 * The ID of the codec is embedded to the signature.
+	 */
+	public static ByteBuffer encode(Message msg, MessageCodec codec) {
+		GrowableBuffer out = new GrowableBuffer(BufferPool.MIN_BUFFER_SIZE);
+		return encodeFrame(msg, codec, 0, out);
+	}
 
-			ObjectOutputStream oos = new ObjectOutputStream(os);
-			oos.writeObject(msg.src);
-			for (Serializable c: msg.contents) {
-				oos.writeObject(c);
-			}
-			oos.flush();
-			oos.close();
+	/**
+	 * Convert this Message to a buffer taken from the {@link BufferPool#getSharedPool() shared pool}.
+	 * The returned buffer should be returned to the pool after it is sent.
+	 */
+	public static ByteBuffer encodeIntoPooledBuffer(Message msg, MessageCodec codec) {
+		return encodeIntoPooledBuffer(msg, codec, 0);
+	}
+
+	/**
+	 * Convert this Message to a pooled buffer with a request ID put to the header.
+	 *
+	 * @param requestID an ID correlating a request and its reply, or 0.
+	 */
+	public static ByteBuffer encodeIntoPooledBuffer(Message msg, MessageCodec codec, int requestID) {
+		GrowableBuffer out = new GrowableBuffer(BufferPool.MIN_BUFFER_SIZE, BufferPool.getSharedPool());
+		return encodeFrame(msg, codec, requestID, out);
+	}
+
+	private static ByteBuffer encodeFrame(Message msg, MessageCodec codec, int requestID, GrowableBuffer out) {
+		// reserve the header and serialize src and contents
+		int headerLen = HEADER_LENGTH + (requestID != 0 ? REQUEST_ID_LENGTH : 0);
+		out.position(headerLen);
+		encodeBody(msg, codec, out);
+
+		ByteBuffer buf = out.getBuffer();
+		int srcAndContentsLen = buf.position() - headerLen;
+
+		buf.flip();
+		putHeader(buf, msg, codec, requestID, srcAndContentsLen);
+		buf.rewind();
+
+		return buf;
+	}
+
+	private static void encodeBody(Message msg, MessageCodec codec, GrowableBuffer out) {
+		try {
+			codec.encode(msg.src, msg.contents, out);
 		}
 		catch (IOException e) {
 			// NOTREACHED
 			logger.log(Level.SEVERE,
-					"Serialization failed: " + Tag.getNameByNumber(msg.getTag()));
+					"Serialization failed: " + Tag.getNameByNumber(msg.getTag()), e);
 		}
+	}
 
-		byte[] srcAndContents = bos.toByteArray();
+	/**
+	 * Puts a frame header, followed by the request ID if it is not 0.
+	 * The length in the header covers the request ID, so that older versions skip the whole frame.
+	 */
+	private static void putHeader(ByteBuffer buf, Message msg, MessageCodec codec, int requestID, int srcAndContentsLen) {
 		int signatureLen = Signature.getSignatureLength();
+		int sigPos = buf.position();
 
-		// pack all elements
-		ByteBuffer buf = ByteBuffer.allocate(
-				 signatureLen + 6 + srcAndContents.length);
 		if (msg.signature != null) {
 			buf.put(msg.signature, 0, signatureLen);
 		}
 		else {
-			buf.put(new byte[signatureLen]);
+			for (int i = 0; i < signatureLen; i++) buf.put((byte)0);
 		}
+		buf.put(sigPos + Signature.getCodecIndex(), Signature.getCodecByte(codec.getID(), requestID != 0));
 		buf.put((byte)msg.tag);
-		buf.putInt(srcAndContents.length);
+		buf.putInt(srcAndContentsLen + (requestID != 0 ? REQUEST_ID_LENGTH : 0));
 		buf.put((byte)msg.contents.length);
-		buf.put(srcAndContents);
-
-		buf.rewind();
-
-		return buf;
+		if (requestID != 0) buf.putInt(requestID);
 	}
 
 	/**
 	 * Read a Message from the given input stream.
+	 * The frame is read into pooled buffers and decoded directly from them.
 	 */
 	public static Message decode(ByteChannel in) throws IOException {
+		BufferPool pool = BufferPool.getSharedPool();
+
 		// read header
 		int signatureLen = Signature.getSignatureLength();
-
-		int toBeRead = signatureLen + 6;
-		ByteBuffer buf = ByteBuffer.allocate(toBeRead);
-		readIntoBuffer(in, buf);
-
 		byte[] signature = new byte[signatureLen];
-		buf.get(signature, 0, signatureLen);
+		int tag, len, argCount;
 
-		int tag = buf.get() & 0xff;
-		int len = buf.getInt();
-		int argCount = buf.get() & 0xff;
-
-		// read source and content
-		buf = ByteBuffer.allocate(len);
-		readIntoBuffer(in, buf);
+		ByteBuffer buf = pool.acquire(HEADER_LENGTH);
+		try {
+			readIntoBuffer(in, buf);
 
-		byte[] srcAndContent = new byte[len];
-		buf.get(srcAndContent);
+			buf.get(signature, 0, signatureLen);
 
-		InputStream is = new ByteArrayInputStream(srcAndContent);
-		if (GZIP_MESSAGE) {
-			is = new GZIPInputStream(is);
+			tag = buf.get() & 0xff;
+			len = checkBodyLength(buf.getInt());
+			argCount = buf.get() & 0xff;
+		}
+		finally {
+			pool.release(buf);
 		}
-		ObjectInputStream ois = new ObjectInputStream(is);
 
-		IDAddressPair src = null;
-		Serializable[] contents = new Serializable[argCount];
+		// read source and content
+		buf = pool.acquire(len);
 		try {
-			src = (IDAddressPair)ois.readObject();
-			for (int i = 0; i < argCount; i++) {
-				contents[i] = (Serializable)ois.readObject();
-			}
+			readIntoBuffer(in, buf);
+
+			return decode(signature, tag, argCount, buf);
 		}
-		catch (ClassNotFoundException e) {
-			// NOTREACHED
-			logger.log(Level.SEVERE, "Class not found: " + e);
-			throw new IOException("Class not found: " + e);
+		finally {
+			pool.release(buf);
 		}
-
-		ois.close();
-
-		return new Message(signature, src, tag, contents);
 	}
 
 	private static void readIntoBuffer(ByteChannel in, ByteBuffer buf)
 			throws IOException {
-		int len = buf.capacity();
-
 		try {
-			do {
+			while (buf.hasRemaining()) {
 				int r = in.read(buf);
 				if (r < 0) {
 					logger.log(Level.INFO, "Reached end-of-stream.");
 					throw new IOException("End-of-stream.");
 				}
-				len -= r;
-			} while (len > 0);
+			}
 
-			buf.rewind();
+			buf.flip();
 		}
 		catch (IOException e) {	// catch just for logging
 			logger.log(Level.WARNING, "Could not read a message.");
@@ -274,6 +357,9 @@ public class Message implements Serializable, Cloneable {
 	 * Convert a ByteBuffer to a Message.
 	 */
 	public static Message decode(ByteBuffer buf) throws IOException {
+		if (buf.remaining() < HEADER_LENGTH)
+			throw new IOException("Truncated header: " + buf.remaining() + " bytes.");
+
 		buf.mark();
 
 		int signatureLen = Signature.getSignatureLength();
@@ -281,54 +367,95 @@ public class Message implements Serializable, Cloneable {
 		buf.get(signature, 0, signatureLen);
 
 		int tag = buf.get() & 0xff;
-		int len = buf.getInt();
+		int len = checkBodyLength(buf.getInt());
 		int argCount = buf.get() & 0xff;
 
-		byte[] srcAndContent = new byte[len];
-		buf.get(srcAndContent);
+		if (len > buf.remaining()) {
+			buf.reset();
+			throw new IOException("Truncated body: " + len + " bytes declared.");
+		}
+
+		ByteBuffer body = buf.slice();
+		body.limit(len);
 
 		buf.reset();
 
-		IDAddressPair src = null;
-		Serializable[] contents = new Serializable[argCount];
+		return decode(signature, tag, argCount, body);
+	}
 
-		InputStream is = new ByteArrayInputStream(srcAndContent);
-		try {
-			if (GZIP_MESSAGE) {
-				is = new GZIPInputStream(is);
-			}
-			ObjectInputStream ois = new ObjectInputStream(is);
+	/**
+	 * Returns the length of a frame header.
+	 */
+	public static int getHeaderLength() {
+		return HEADER_LENGTH;
+	}
 
-			src = (IDAddressPair)ois.readObject();
-			for (int i = 0; i < argCount; i++) {
-				contents[i] = (Serializable)ois.readObject();
-			}
+	/**
+	 * Returns the length of the body following the given frame header.
+	 *
+	 * @throws IOException if the length is negative or over {@link #MAX_BODY_LENGTH MAX_BODY_LENGTH}.
+	 */
+	public static int getBodyLength(ByteBuffer header) throws IOException {
+		return checkBodyLength(header.getInt(header.position() + Signature.getSignatureLength() + 1));
+	}
+
+	private static int checkBodyLength(int len) throws IOException {
+		if (len < 0 || len > MAX_BODY_LENGTH)
+			throw new IOException("Illegal length: " + len);
+		return len;
+	}
+
+	/**
+	 * Convert a frame header and the body following it to a Message.
+	 * This is for transports which read a frame by themselves.
+	 */
+	public static Message decode(ByteBuffer header, ByteBuffer body) throws IOException {
+		int signatureLen = Signature.getSignatureLength();
+		byte[] signature = new byte[signatureLen];
+		header.get(signature, 0, signatureLen);
 
-			ois.close();
+		int tag = header.get() & 0xff;
+		header.getInt();	// length
+		int argCount = header.get() & 0xff;
+
+		return decode(signature, tag, argCount, body);
+	}
+
+	private static Message decode(byte[] signature, int tag, int argCount, ByteBuffer body)
+			throws IOException {
+		int requestID = 0;
+		if (Signature.hasRequestID(signature)) {
+			if (body.remaining() < REQUEST_ID_LENGTH)
+				throw new IOException("Truncated request ID.");
+			requestID = body.getInt();
+		}
+
+		MessageCodec codec = MessageCodecFactory.getCodec(Signature.getCodecID(signature));
+		if (codec == null) {
+			logger.log(Level.WARNING, "Unknown codec: " + Signature.getCodecID(signature));
+			throw new IOException("Unknown codec: " + Signature.getCodecID(signature));
+		}
+
+		Serializable[] contents = new Serializable[argCount];
+		IDAddressPair src;
+		try {
+			src = codec.decode(body, contents);
 		}
 		catch (IOException e) {
-			// NOTREACHED
-			logger.log(Level.SEVERE, "An IOException thrown.", e);
+			logger.log(Level.WARNING, "Could not decode a message with codec " + codec.getName() + ".", e);
 			throw e;
 		}
-		catch (ClassNotFoundException e) {
-			// NOTREACHED
-			logger.log(Level.SEVERE, "Class not found.", e);
-			throw new IOException("Class not found: " + e);
-		}
 
-		return new Message(signature, src, tag, contents);
+		Message msg = new Message(signature, src, tag, contents);
+		msg.requestID = requestID;
+
+		return msg;
 	}
 
 	/**
 	 * Convert a byte array to a Message.
 	 */
 	public static Message decodeFromByteArray(byte[] data) throws IOException {
-		ByteBuffer buf = ByteBuffer.allocate(data.length);
-		buf.put(data);
-
-		buf.rewind();
-
-		return decode(buf);
+		return decode(ByteBuffer.wrap(data));
 	}
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The result of {@link MessageSender#sendAndReceiveAsync(MessagingAddress, Message, ReplyCallback) an asynchronous request}.
+ * {@link #get() get()} throws an ExecutionException wrapping an IOException
+ * if the request has failed or timed out.
+ * A messaging provider completes an instance with {@link #complete(Message) complete()}
+ * or {@link #fail(IOException) fail()}.
+ */
+public final class MessageFuture implements Future<Message> {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private final ReplyCallback callback;
+
+	private boolean done = false;
+	private boolean cancelled = false;
+	private Message reply = null;
+	private IOException exception = null;
+
+	/**
+	 * @param callback notified of the result. Can be null.
+	 */
+	public MessageFuture(ReplyCallback callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * Returns a future which has already failed.
+	 */
+	public static MessageFuture failedFuture(IOException e, ReplyCallback callback) {
+		MessageFuture f = new MessageFuture(callback);
+		f.fail(e);
+		return f;
+	}
+
+	/**
+	 * Sets the reply. Called by a messaging provider.
+	 *
+	 * @return false if this future has already been done.
+	 */
+	public boolean complete(Message reply) {
+		synchronized (this) {
+			if (this.done) return false;
+
+			this.done = true;
+			this.reply = reply;
+			this.notifyAll();
+		}
+
+		if (this.callback != null) {
+			try {
+				this.callback.replied(reply);
+			}
+			catch (Throwable e) {
+				logger.log(Level.SEVERE, "A ReplyCallback#replied() threw an Exception.", e);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sets the cause of a failure. Called by a messaging provider.
+	 *
+	 * @return false if this future has already been done.
+	 */
+	public boolean fail(IOException e) {
+		synchronized (this) {
+			if (this.done) return false;
+
+			this.done = true;
+			this.exception = e;
+			this.notifyAll();
+		}
+
+		if (this.callback != null) {
+			try {
+				this.callback.failed(e);
+			}
+			catch (Throwable t) {
+				logger.log(Level.SEVERE, "A ReplyCallback#failed() threw an Exception.", t);
+			}
+		}
+
+		return true;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (this.done) return false;
+
+			this.done = true;
+			this.cancelled = true;
+			this.notifyAll();
+		}
+
+		return true;
+	}
+
+	public synchronized boolean isCancelled() { return this.cancelled; }
+	public synchronized boolean isDone() { return this.done; }
+
+	public synchronized Message get() throws InterruptedException, ExecutionException {
+		while (!this.done) this.wait();
+
+		return this.result();
+	}
+
+	public synchronized Message get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+
+		while (!this.done) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0L) throw new TimeoutException();
+
+			this.wait(wait);
+		}
+
+		return this.result();
+	}
+
+	private Message result() throws ExecutionException {
+		if (this.cancelled) throw new CancellationException();
+		if (this.exception != null) throw new ExecutionException(this.exception);
+
+		return this.reply;
+	}
+
+	/**
+	 * Waits for the reply like {@link MessageSender#sendAndReceive(MessagingAddress, Message) sendAndReceive()}.
+	 *
+	 * @throws IOException if the request has failed, timed out or been cancelled.
+	 */
+	public Message getReply() throws IOException {
+		try {
+			return this.get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			throw new IOException(String.valueOf(cause));
+		}
+		catch (CancellationException e) {
+			throw new IOException("Cancelled.");
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted.");
+		}
+	}
+}
@@ -33,4 +33,14 @@ public interface MessageSender {
 	 * @throws IOException
 	 */
 	Message sendAndReceive(MessagingAddress dest, Message msg) throws IOException;
+
+	/**
+	 * Send the given message and return without waiting for a reply.
+	 * The reply is correlated to the request by a request ID carried in the message header,
+	 * and a failure including timeout is notified through the returned future and the callback.
+	 *
+	 * @param callback notified of the reply or a failure. Can be null.
+	 * @return a future which gives the received message.
+	 */
+	MessageFuture sendAndReceiveAsync(MessagingAddress dest, Message msg, ReplyCallback callback);
 }
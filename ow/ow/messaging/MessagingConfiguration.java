@@ -28,6 +28,7 @@ public class MessagingConfiguration {
 	public final static int DEFAULT_RTT_TABLE_SIZE = 100;
 	public final static boolean DEFAULT_USE_THREAD_POOL = true;
 	public final static int DEFAULT_RECEIVER_THREAD_PRIORITY = 1;
+	public final static String DEFAULT_MESSAGE_CODEC = "Compact";
 
 	public final static boolean DO_HOSTNAME_LOOKUP = true;
 
@@ -113,4 +114,17 @@ public class MessagingConfiguration {
 		this.receiverThreadPriority = prio;
 		return old;
 	}
+
+	private String messageCodec = DEFAULT_MESSAGE_CODEC;
+	/**
+	 * The name of the codec with which messages are encoded: "Compact" or "Serialization".
+	 * Incoming messages are decoded with the codec they are encoded with,
+	 * and a reply is encoded with the codec of the request.
+	 */
+	public String getMessageCodec() { return this.messageCodec; }
+	public String setMessageCodec(String codec) {
+		String old = this.messageCodec;
+		this.messageCodec = codec;
+		return old;
+	}
 }
@@ -33,6 +33,7 @@ public final class MessagingFactory {
 	private final static Class/*<MessagingProvider>*/[] PROVIDERS = {
 		ow.messaging.udp.UDPMessagingProvider.class,				// "UDP"
 		ow.messaging.tcp.TCPMessagingProvider.class,				// "TCP"
+		ow.messaging.tcpnio.TCPNIOMessagingProvider.class,			// "TCP-NIO"
 		ow.messaging.emulator.EmuMessagingProvider.class,		// "Emulator"
 		ow.messaging.distemulator.DEmuMessagingProvider.class	// "DistributedEmulator"
 	};
@@ -69,7 +70,7 @@ public final class MessagingFactory {
 
 	/**
 	 * Return a messaging provider associated to the given name.
-	 * The name should be one of the following names: "TCP", "UDP" or "Emulator".
+	 * The name should be one of the following names: "TCP", "TCP-NIO", "UDP" or "Emulator".
 	 * There is an utility class {@link Signature Signature} to generate a signature.
 	 *
 	 * @param messagingType name of a messaging provider.
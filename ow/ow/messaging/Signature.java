@@ -30,6 +30,10 @@ public final class Signature {
 	// private constants
 	private final static byte[] SIGNATURE = { 0x4f, 0x57 };	// "OW"
 	private final static int SIGNATURE_LENGTH = 8;
+	private final static int CODEC_INDEX = 1;
+		// the 2nd byte of "OW" identifies the codec of a message body
+	private final static int REQUEST_ID_FLAG = 0x80;
+		// set to the codec byte of a frame whose body is preceded by a request ID
 
 	/**
 	 * Returns the length of a signature.
@@ -78,12 +82,50 @@ public final class Signature {
 	public static short getAllAcceptingApplicationID() { return 0; }
 	public static short getAllAcceptingApplicationVersion() { return 0; }
 
+	/**
+	 * Returns the ID of the codec with which a message was encoded.
+	 */
+	public static byte getCodecID(byte[] signature) {
+		return (byte)(signature[CODEC_INDEX] & ~REQUEST_ID_FLAG);
+	}
+
+	/**
+	 * Returns whether a frame with the signature carries a request ID.
+	 * A frame without one has the same layout as that of older versions.
+	 */
+	public static boolean hasRequestID(byte[] signature) {
+		return (signature[CODEC_INDEX] & REQUEST_ID_FLAG) != 0;
+	}
+
+	/**
+	 * Returns the byte to be put at the codec position of a signature.
+	 */
+	static byte getCodecByte(byte codecID, boolean hasRequestID) {
+		return (byte)(hasRequestID ? (codecID | REQUEST_ID_FLAG) : codecID);
+	}
+
+	/**
+	 * Returns the index of the codec byte in a signature.
+	 */
+	static int getCodecIndex() {
+		return CODEC_INDEX;
+	}
+
+	/**
+	 * Sets the ID of a codec to a signature.
+	 * {@link ow.messaging.codec.SerializingMessageCodec#ID the serializing codec} results in the original "OW" signature.
+	 */
+	public static void setCodecID(byte[] signature, byte codecID) {
+		signature[CODEC_INDEX] = codecID;
+	}
+
 	public static boolean match(byte[] signature, byte[] acceptableSignature) {
 		int len = Signature.getSignatureLength();
 
 		exactMatching:
 		{
 			for (int i = 0; i < len; i++) {
+				if (i == CODEC_INDEX) continue;	// codec is not a matter
 				if (signature[i] != acceptableSignature[i])
 					break exactMatching;
 			}
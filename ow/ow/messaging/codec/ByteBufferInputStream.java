@@ -0,0 +1,59 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.codec;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream reading from a ByteBuffer without copying it.
+ */
+public final class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer buf;
+
+	public ByteBufferInputStream(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	public int read() {
+		if (!this.buf.hasRemaining()) return -1;
+		return this.buf.get() & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) return 0;
+
+		int remaining = this.buf.remaining();
+		if (remaining <= 0) return -1;
+
+		len = Math.min(len, remaining);
+		this.buf.get(b, off, len);
+
+		return len;
+	}
+
+	public long skip(long n) {
+		int len = (int)Math.min(n, this.buf.remaining());
+		if (len <= 0) return 0;
+
+		this.buf.position(this.buf.position() + len);
+
+		return len;
+	}
+
+	public int available() { return this.buf.remaining(); }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.codec;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.dht.ByteArray;
+import ow.dht.DHT;
+import ow.dht.ValueInfo;
+import ow.id.ID;
+import ow.id.IDAddressPair;
+import ow.id.IDAddressRoutingContextTriplet;
+import ow.messaging.InetMessagingAddress;
+import ow.messaging.MessagingAddress;
+import ow.routing.RoutingContext;
+import ow.routing.RoutingHop;
+import ow.routing.RoutingResult;
+
+/**
+ * A hand-written binary codec for the types which routing and DHT messages carry.
+ * Every object is preceded by a 1 byte type code.
+ * An object of an unknown type is written with Java object serialization
+ * (without gzip) and embedded as a length-prefixed blob.
+ */
+public final class CompactMessageCodec implements MessageCodec {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	public final static byte ID = 0x43;	// 'C'
+	private final static String NAME = "Compact";
+
+	// type codes
+	private final static byte T_NULL = 0;
+	private final static byte T_ID = 1;
+	private final static byte T_ID_ADDRESS_PAIR = 2;
+	private final static byte T_ID_ADDRESS_CONTEXT = 3;
+	private final static byte T_INET_ADDRESS = 4;
+	private final static byte T_STRING = 5;
+	private final static byte T_INTEGER = 6;
+	private final static byte T_LONG = 7;
+	private final static byte T_BOOLEAN = 8;
+	private final static byte T_BYTES = 9;			// byte[]
+	private final static byte T_BYTE_ARRAY = 10;	// ow.dht.ByteArray
+	private final static byte T_VALUE_INFO = 11;
+	private final static byte T_PUT_REQUEST = 12;
+	private final static byte T_REMOVE_REQUEST = 13;
+	private final static byte T_ROUTING_HOP = 14;
+	private final static byte T_ROUTING_RESULT = 15;
+	private final static byte T_HASH_SET = 16;
+	private final static byte T_HASH_MAP = 17;
+	private final static byte T_ARRAY = 18;
+	private final static byte T_SERIALIZED = 127;
+
+	// component types of arrays, indexed by the code on the wire
+	private final static Class<?>[] COMPONENT_TYPES = {
+		Object.class,
+		Serializable.class,
+		ow.id.ID.class,
+		IDAddressPair.class,
+		IDAddressRoutingContextTriplet.class,
+		MessagingAddress.class,
+		String.class,
+		Integer.class,
+		Long.class,
+		ByteArray.class,
+		ValueInfo.class,
+		DHT.PutRequest.class,
+		DHT.RemoveRequest.class,
+		RoutingContext.class,
+		RoutingHop.class,
+		RoutingResult.class,
+		Set.class,
+		Map.class
+	};
+	private final static byte COMPONENT_ARRAY = (byte)0xff;
+
+	private final static Map<Class<?>,Byte> componentCodeTable = new HashMap<Class<?>,Byte>();
+	static {
+		for (int i = 0; i < COMPONENT_TYPES.length; i++) {
+			componentCodeTable.put(COMPONENT_TYPES[i], (byte)i);
+		}
+	}
+
+	public byte getID() { return ID; }
+	public String getName() { return NAME; }
+
+	public void encode(IDAddressPair src, Serializable[] contents, GrowableBuffer out)
+			throws IOException {
+		writeObject(src, out);
+		for (Serializable c: contents) {
+			writeObject(c, out);
+		}
+	}
+
+	public IDAddressPair decode(ByteBuffer in, Serializable[] contents) throws IOException {
+		IDAddressPair src;
+
+		try {
+			src = (IDAddressPair)readObject(in);
+			for (int i = 0; i < contents.length; i++) {
+				contents[i] = (Serializable)readObject(in);
+			}
+		}
+		catch (BufferUnderflowException e) {
+			logger.log(Level.WARNING, "A message is truncated.");
+			throw new IOException("A message is truncated.");
+		}
+		catch (RuntimeException e) {
+			// e.g. ClassCastException, or an exception from the constructor of a decoded object
+			logger.log(Level.WARNING, "A message is corrupted.", e);
+			throw new IOException("A message is corrupted: " + e);
+		}
+
+		return src;
+	}
+
+	//
+	// encoding
+	//
+
+	private static void writeObject(Object o, GrowableBuffer out) throws IOException {
+		if (o == null) {
+			out.put(T_NULL);
+			return;
+		}
+
+		Class<?> clazz = o.getClass();
+
+		if (clazz == ow.id.ID.class) {
+			out.put(T_ID);
+			writeID((ow.id.ID)o, out);
+		}
+		else if (clazz == IDAddressPair.class) {
+			IDAddressPair p = (IDAddressPair)o;
+			out.put(T_ID_ADDRESS_PAIR);
+			writeObject(p.getID(), out);
+			writeObject(p.getAddress(), out);
+		}
+		else if (clazz == IDAddressRoutingContextTriplet.class) {
+			IDAddressRoutingContextTriplet t = (IDAddressRoutingContextTriplet)o;
+			out.put(T_ID_ADDRESS_CONTEXT);
+			writeObject(t.getID(), out);
+			writeObject(t.getAddress(), out);
+			writeObject(t.getRoutingContext(), out);
+		}
+		else if (clazz == InetMessagingAddress.class) {
+			InetMessagingAddress a = (InetMessagingAddress)o;
+			byte[] addr = a.getInetAddress().getAddress();	// 4 (IPv4) or 16 (IPv6)
+			out.put(T_INET_ADDRESS);
+			out.put((byte)addr.length);
+			out.put(addr);
+			out.putChar((char)a.getPort());
+		}
+		else if (clazz == String.class) {
+			out.put(T_STRING);
+			writeBytes(((String)o).getBytes("UTF-8"), out);
+		}
+		else if (clazz == Integer.class) {
+			out.put(T_INTEGER);
+			out.putInt((Integer)o);
+		}
+		else if (clazz == Long.class) {
+			out.put(T_LONG);
+			out.putLong((Long)o);
+		}
+		else if (clazz == Boolean.class) {
+			out.put(T_BOOLEAN);
+			out.put((byte)((Boolean)o ? 1 : 0));
+		}
+		else if (clazz == byte[].class) {
+			out.put(T_BYTES);
+			writeBytes((byte[])o, out);
+		}
+		else if (clazz == ByteArray.class) {
+			out.put(T_BYTE_ARRAY);
+			writeBytes(((ByteArray)o).getBytes(), out);
+		}
+		else if (clazz == ValueInfo.class) {
+			ValueInfo<?> v = (ValueInfo<?>)o;
+			out.put(T_VALUE_INFO);
+			writeObject(v.getValue(), out);
+			out.putLong(v.getTTL());
+			writeObject(v.getHashedSecret(), out);
+		}
+		else if (clazz == DHT.PutRequest.class) {
+			DHT.PutRequest<?> r = (DHT.PutRequest<?>)o;
+			out.put(T_PUT_REQUEST);
+			writeObject(r.getKey(), out);
+			writeObject(r.getValues(), out);
+		}
+		else if (clazz == DHT.RemoveRequest.class) {
+			DHT.RemoveRequest<?> r = (DHT.RemoveRequest<?>)o;
+			out.put(T_REMOVE_REQUEST);
+			writeObject(r.getKey(), out);
+			writeObject(r.getValues(), out);
+			writeObject(r.getValueHash(), out);
+		}
+		else if (clazz == RoutingHop.class) {
+			RoutingHop h = (RoutingHop)o;
+			out.put(T_ROUTING_HOP);
+			writeObject(h.getIDAddressPair(), out);
+			out.putLong(h.getTime());
+		}
+		else if (clazz == RoutingResult.class) {
+			RoutingResult r = (RoutingResult)o;
+			out.put(T_ROUTING_RESULT);
+			writeObject(r.getRoute(), out);
+			writeObject(r.getRootCandidates(), out);
+		}
+		else if (clazz == HashSet.class) {
+			Set<?> s = (Set<?>)o;
+			out.put(T_HASH_SET);
+			writeLength(s.size(), out);
+			for (Object e: s) writeObject(e, out);
+		}
+		else if (clazz == HashMap.class) {
+			Map<?,?> m = (Map<?,?>)o;
+			out.put(T_HASH_MAP);
+			writeLength(m.size(), out);
+			for (Map.Entry<?,?> e: m.entrySet()) {
+				writeObject(e.getKey(), out);
+				writeObject(e.getValue(), out);
+			}
+		}
+		else if (clazz.isArray() && isKnownComponentType(clazz.getComponentType())) {
+			Object[] array = (Object[])o;
+			out.put(T_ARRAY);
+			writeComponentType(clazz.getComponentType(), out);
+			writeLength(array.length, out);
+			for (Object e: array) writeObject(e, out);
+		}
+		else {
+			writeSerialized(o, out);
+		}
+	}
+
+	private static void writeID(ow.id.ID id, GrowableBuffer out) {
+		int size = id.getSize();	// <= 127
+		out.put((byte)size);
+		out.put(id.getValue(), 0, size);
+	}
+
+	private static void writeLength(int len, GrowableBuffer out) {
+		if (len < 255) {
+			out.put((byte)len);
+		}
+		else {
+			out.put((byte)0xff);
+			out.putInt(len);
+		}
+	}
+
+	private static void writeBytes(byte[] b, GrowableBuffer out) {
+		writeLength(b.length, out);
+		out.put(b);
+	}
+
+	private static boolean isKnownComponentType(Class<?> clazz) {
+		while (clazz.isArray()) clazz = clazz.getComponentType();
+		return componentCodeTable.containsKey(clazz);
+	}
+
+	private static void writeComponentType(Class<?> clazz, GrowableBuffer out) {
+		while (clazz.isArray()) {
+			out.put(COMPONENT_ARRAY);
+			clazz = clazz.getComponentType();
+		}
+
+		out.put(componentCodeTable.get(clazz));
+	}
+
+	private static void writeSerialized(Object o, GrowableBuffer out) throws IOException {
+		logger.log(Level.INFO, "Fall back to serialization: " + o.getClass().getName());
+
+		out.put(T_SERIALIZED);
+
+		int lenPos = out.position();
+		out.putInt(0);	// reserved for the length
+
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(o);
+		oos.flush();
+
+		int len = out.position() - lenPos - 4;
+		out.getBuffer().putInt(lenPos, len);
+	}
+
+	//
+	// decoding
+	//
+
+	private static Object readObject(ByteBuffer in) throws IOException {
+		byte type = in.get();
+
+		switch (type) {
+		case T_NULL:
+			return null;
+		case T_ID:
+			return readID(in);
+		case T_ID_ADDRESS_PAIR: {
+			ow.id.ID id = (ow.id.ID)readObject(in);
+			MessagingAddress addr = (MessagingAddress)readObject(in);
+			return IDAddressPair.getIDAddressPair(id, addr);
+		}
+		case T_ID_ADDRESS_CONTEXT: {
+			ow.id.ID id = (ow.id.ID)readObject(in);
+			MessagingAddress addr = (MessagingAddress)readObject(in);
+			RoutingContext cxt = (RoutingContext)readObject(in);
+			return new IDAddressRoutingContextTriplet(IDAddressPair.getIDAddressPair(id, addr), cxt);
+		}
+		case T_INET_ADDRESS: {
+			byte[] addr = new byte[in.get() & 0xff];
+			in.get(addr);
+			int port = in.getChar();
+			return new InetMessagingAddress(InetAddress.getByAddress(addr), port);
+		}
+		case T_STRING:
+			return new String(readBytes(in), "UTF-8");
+		case T_INTEGER:
+			return in.getInt();
+		case T_LONG:
+			return in.getLong();
+		case T_BOOLEAN:
+			return in.get() != 0;
+		case T_BYTES:
+			return readBytes(in);
+		case T_BYTE_ARRAY:
+			return new ByteArray(readBytes(in));
+		case T_VALUE_INFO: {
+			Serializable value = (Serializable)readObject(in);
+			long ttl = in.getLong();
+			ByteArray hashedSecret = (ByteArray)readObject(in);
+			return new ValueInfo<Serializable>(value, new ValueInfo.Attributes(ttl, hashedSecret));
+		}
+		case T_PUT_REQUEST: {
+			ow.id.ID key = (ow.id.ID)readObject(in);
+			Object[] values = (Object[])readObject(in);
+			return new DHT.PutRequest<Object>(key, values);
+		}
+		case T_REMOVE_REQUEST: {
+			ow.id.ID key = (ow.id.ID)readObject(in);
+			Object[] values = (Object[])readObject(in);
+			ow.id.ID[] valueHash = (ow.id.ID[])readObject(in);
+
+			if (values != null)
+				return new DHT.RemoveRequest<Object>(key, values);
+			else if (valueHash != null)
+				return new DHT.RemoveRequest<Object>(key, valueHash);
+			else
+				return new DHT.RemoveRequest<Object>(key);
+		}
+		case T_ROUTING_HOP: {
+			IDAddressPair node = (IDAddressPair)readObject(in);
+			long time = in.getLong();
+			return RoutingHop.newInstance(node, time);
+		}
+		case T_ROUTING_RESULT: {
+			RoutingHop[] route = (RoutingHop[])readObject(in);
+			IDAddressPair[] rootCandidates = (IDAddressPair[])readObject(in);
+			return new RoutingResult(route, rootCandidates);
+		}
+		case T_HASH_SET: {
+			int size = readLength(in);
+			Set<Object> s = new HashSet<Object>();
+			for (int i = 0; i < size; i++) s.add(readObject(in));
+			return s;
+		}
+		case T_HASH_MAP: {
+			int size = readLength(in);
+			Map<Object,Object> m = new HashMap<Object,Object>();
+			for (int i = 0; i < size; i++) {
+				Object k = readObject(in);
+				m.put(k, readObject(in));
+			}
+			return m;
+		}
+		case T_ARRAY: {
+			Class<?> componentType = readComponentType(in);
+			int len = readLength(in);
+			Object[] array = (Object[])Array.newInstance(componentType, len);
+			for (int i = 0; i < len; i++) array[i] = readObject(in);
+			return array;
+		}
+		case T_SERIALIZED:
+			return readSerialized(in);
+		default:
+			throw new IOException("Unknown type code: " + type);
+		}
+	}
+
+	private static ow.id.ID readID(ByteBuffer in) throws IOException {
+		int size = in.get();
+		if (size < 0 || size > in.remaining()) {
+			throw new IOException("Illegal ID size: " + size);
+		}
+
+		byte[] value = new byte[size];
+		in.get(value);
+		return ow.id.ID.getID(value, size);
+	}
+
+	/**
+	 * Reads a length of bytes or # of elements.
+	 * It cannot exceed the remaining bytes since an element takes at least a byte.
+	 */
+	private static int readLength(ByteBuffer in) throws IOException {
+		int len = in.get() & 0xff;
+		if (len == 0xff) {
+			len = in.getInt();
+		}
+
+		return checkLength(len, in);
+	}
+
+	private static int checkLength(int len, ByteBuffer in) throws IOException {
+		if (len < 0 || len > in.remaining()) {
+			throw new IOException("Illegal length: " + len + ", " + in.remaining() + " bytes remaining");
+		}
+
+		return len;
+	}
+
+	private static byte[] readBytes(ByteBuffer in) throws IOException {
+		byte[] b = new byte[readLength(in)];
+		in.get(b);
+		return b;
+	}
+
+	private static Class<?> readComponentType(ByteBuffer in) throws IOException {
+		int dimension = 0;
+		byte code;
+		while ((code = in.get()) == COMPONENT_ARRAY) dimension++;
+
+		if (code < 0 || code >= COMPONENT_TYPES.length) {
+			throw new IOException("Unknown component type: " + code);
+		}
+
+		Class<?> clazz = COMPONENT_TYPES[code];
+		for (int i = 0; i < dimension; i++) {
+			clazz = Array.newInstance(clazz, 0).getClass();
+		}
+
+		return clazz;
+	}
+
+	private static Object readSerialized(ByteBuffer in) throws IOException {
+		int len = checkLength(in.getInt(), in);
+
+		ByteBuffer blob = in.slice();
+		blob.limit(len);
+		in.position(in.position() + len);
+
+		ObjectInputStream ois = new ObjectInputStream(new ByteBufferInputStream(blob));
+		try {
+			return ois.readObject();
+		}
+		catch (ClassNotFoundException e) {
+			// NOTREACHED
+			logger.log(Level.SEVERE, "Class not found.", e);
+			throw new IOException("Class not found: " + e);
+		}
+	}
+}
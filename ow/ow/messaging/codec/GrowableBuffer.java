@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.codec;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import ow.messaging.BufferPool;
+
+/**
+ * A ByteBuffer which grows on demand.
+ * Also an OutputStream so that the stream-based serializer can write to it.
+ */
+public final class GrowableBuffer extends OutputStream {
+	private final BufferPool pool;	// can be null
+	private ByteBuffer buf;
+
+	public GrowableBuffer(int initialCapacity) {
+		this.pool = null;
+		this.buf = ByteBuffer.allocate(initialCapacity);
+	}
+
+	/**
+	 * Create an instance whose buffers are taken from the given pool.
+	 * The buffer has to be returned by {@link #release() release()}.
+	 */
+	public GrowableBuffer(int initialCapacity, BufferPool pool) {
+		this.pool = pool;
+		this.buf = this.allocate(initialCapacity);
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		if (this.pool == null) return ByteBuffer.allocate(capacity);
+
+		ByteBuffer b = this.pool.acquire(capacity);
+		b.limit(b.capacity());
+		return b;
+	}
+
+	/**
+	 * Returns the underlying buffer to the pool.
+	 */
+	public void release() {
+		if (this.pool != null) {
+			this.pool.release(this.buf);
+		}
+		this.buf = null;
+	}
+
+	/**
+	 * Returns the underlying buffer.
+	 * Note that the buffer is substituted when this instance grows.
+	 */
+	public ByteBuffer getBuffer() { return this.buf; }
+
+	public int position() { return this.buf.position(); }
+
+	public void position(int newPosition) {
+		this.ensure(newPosition - this.buf.position());
+		this.buf.position(newPosition);
+	}
+
+	/**
+	 * Make sure that the given number of bytes can be put.
+	 */
+	public void ensure(int len) {
+		if (this.buf.remaining() >= len) return;
+
+		int newCapacity = Math.max(this.buf.capacity() * 2, this.buf.position() + len);
+		ByteBuffer newBuf = this.allocate(newCapacity);
+
+		this.buf.flip();
+		newBuf.put(this.buf);
+
+		if (this.pool != null) this.pool.release(this.buf);
+		this.buf = newBuf;
+	}
+
+	public void put(byte b) { this.ensure(1); this.buf.put(b); }
+	public void putShort(short v) { this.ensure(2); this.buf.putShort(v); }
+	public void putChar(char v) { this.ensure(2); this.buf.putChar(v); }
+	public void putInt(int v) { this.ensure(4); this.buf.putInt(v); }
+	public void putLong(long v) { this.ensure(8); this.buf.putLong(v); }
+
+	public void put(byte[] b, int off, int len) {
+		this.ensure(len);
+		this.buf.put(b, off, len);
+	}
+
+	public void put(byte[] b) { this.put(b, 0, b.length); }
+
+	//
+	// for OutputStream
+	//
+
+	public void write(int b) { this.put((byte)b); }
+
+	public void write(byte[] b, int off, int len) { this.put(b, off, len); }
+}
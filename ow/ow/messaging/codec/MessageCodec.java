@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.codec;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+import ow.id.IDAddressPair;
+
+/**
+ * A codec converting the source and the contents of a message
+ * from/to the body of a frame on the wire.
+ * The frame header (signature, tag, length and number of contents) is
+ * written by {@link ow.messaging.Message Message} itself.
+ * A codec is identified by a 1 byte ID embedded to the signature of a frame.
+ */
+public interface MessageCodec {
+	/**
+	 * Returns the ID of this codec, which is put into a frame.
+	 */
+	byte getID();
+
+	/**
+	 * Returns the name of this codec.
+	 */
+	String getName();
+
+	/**
+	 * Write the source and the contents of a message.
+	 */
+	void encode(IDAddressPair src, Serializable[] contents, GrowableBuffer out) throws IOException;
+
+	/**
+	 * Read the source and the contents of a message.
+	 * The given buffer has to hold exactly the body of a frame.
+	 *
+	 * @param contents an array to be filled with the decoded contents.
+	 * @return the source of the message.
+	 */
+	IDAddressPair decode(ByteBuffer in, Serializable[] contents) throws IOException;
+}
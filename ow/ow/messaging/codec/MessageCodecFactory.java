@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.codec;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides message codecs by name or by the ID embedded to a frame.
+ */
+public final class MessageCodecFactory {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private final static Class<?>[] CODECS = {
+		CompactMessageCodec.class,		// "Compact"
+		SerializingMessageCodec.class	// "Serialization"
+	};
+
+	public final static String DEFAULT_CODEC_NAME = "Compact";
+
+	private final static Map<String,MessageCodec> nameTable = new HashMap<String,MessageCodec>();
+	private final static MessageCodec[] idTable = new MessageCodec[256];
+
+	static {
+		// register codecs
+		for (Class<?> clazz: CODECS) {
+			Object o;
+			try {
+				o = clazz.newInstance();
+			}
+			catch (Exception e) {
+				logger.log(Level.WARNING, "Could not instantiate an object of the class: " + clazz, e);
+				continue;
+			}
+
+			if (o instanceof MessageCodec) {
+				MessageCodec codec = (MessageCodec)o;
+
+				nameTable.put(codec.getName(), codec);
+				idTable[codec.getID() & 0xff] = codec;
+			}
+		}
+
+		// frames from older nodes: replies carry an all-zero signature
+		idTable[0] = idTable[SerializingMessageCodec.ID];
+	}
+
+	/**
+	 * Returns the codec associated to the given name,
+	 * or the default codec if no such codec.
+	 */
+	public static MessageCodec getCodec(String name) {
+		MessageCodec codec = nameTable.get(name);
+		if (codec == null) {
+			logger.log(Level.WARNING, "No such codec: " + name + ". Use the default codec: " + DEFAULT_CODEC_NAME);
+			codec = nameTable.get(DEFAULT_CODEC_NAME);
+		}
+
+		return codec;
+	}
+
+	/**
+	 * Returns the codec associated to the given ID, or null if no such codec.
+	 */
+	public static MessageCodec getCodec(byte id) {
+		return idTable[id & 0xff];
+	}
+
+	public static MessageCodec getDefaultCodec() {
+		return nameTable.get(DEFAULT_CODEC_NAME);
+	}
+}
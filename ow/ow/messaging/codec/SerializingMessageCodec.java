@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ow.id.IDAddressPair;
+
+/**
+ * The original codec based on Java object serialization and gzip.
+ * Its ID is the same as the 2nd byte of the original signature ("OW")
+ * so that messages from older nodes are decoded with this codec.
+ */
+public final class SerializingMessageCodec implements MessageCodec {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	public final static byte ID = 0x57;	// 'W'
+	private final static String NAME = "Serialization";
+
+	public final static boolean GZIP_MESSAGE = true;
+
+	public byte getID() { return ID; }
+	public String getName() { return NAME; }
+
+	public void encode(IDAddressPair src, Serializable[] contents, GrowableBuffer out)
+			throws IOException {
+		OutputStream os = out;
+		GZIPOutputStream gzos = null;
+
+		if (GZIP_MESSAGE) {
+			os = gzos = new GZIPOutputStream(os);
+		}
+
+		ObjectOutputStream oos = new ObjectOutputStream(os);
+		oos.writeObject(src);
+		for (Serializable c: contents) {
+			oos.writeObject(c);
+		}
+		oos.flush();
+
+		if (gzos != null) gzos.finish();
+	}
+
+	public IDAddressPair decode(ByteBuffer in, Serializable[] contents) throws IOException {
+		InputStream is = new ByteBufferInputStream(in);
+		if (GZIP_MESSAGE) {
+			is = new GZIPInputStream(is);
+		}
+		ObjectInputStream ois = new ObjectInputStream(is);
+
+		IDAddressPair src;
+		try {
+			src = (IDAddressPair)ois.readObject();
+			for (int i = 0; i < contents.length; i++) {
+				contents[i] = (Serializable)ois.readObject();
+			}
+		}
+		catch (ClassNotFoundException e) {
+			// NOTREACHED
+			logger.log(Level.SEVERE, "Class not found.", e);
+			throw new IOException("Class not found: " + e);
+		}
+		catch (RuntimeException e) {
+			logger.log(Level.WARNING, "A message is corrupted.", e);
+			throw new IOException("A message is corrupted: " + e);
+		}
+
+		ois.close();
+
+		return src;
+	}
+}
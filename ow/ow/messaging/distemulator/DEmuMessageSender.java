@@ -25,9 +25,11 @@ import java.util.logging.Logger;
 
 import ow.id.IDAddressPair;
 import ow.messaging.Message;
+import ow.messaging.MessageFuture;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
 import ow.messaging.MessagingProvider;
+import ow.messaging.ReplyCallback;
 import ow.messaging.Tag;
 import ow.messaging.emulator.EmuMessageSender;
 import ow.messaging.emulator.EmuMessagingAddress;
@@ -153,6 +155,71 @@ public final class DEmuMessageSender implements MessageSender {
 		return ret;
 	}
 
+	public MessageFuture sendAndReceiveAsync(final MessagingAddress dest, final Message msg,
+			final ReplyCallback callback) {
+		HostAndPort netDest = this.getEmulatorHostAndPort(dest);
+
+		if (netDest == null) {
+			logger.log(Level.WARNING, "Could not find a worker: " + dest);
+
+			MessageFuture future = new MessageFuture(callback);
+			future.complete(null);
+			return future;
+		}
+
+		final MessageFuture future = new MessageFuture(callback);
+		MessagingAddress netAddress;
+
+		try {
+			if (netDest.getHostAddress().equals(selfInetAddress)) {
+				// send into emulator itself
+				return this.emuSender.sendAndReceiveAsync(dest, msg, callback);
+			}
+
+			netAddress = this.netProvider.getMessagingAddress(
+					netDest.getHostName(), netDest.getPort());
+		}
+		catch (IOException e) {
+			future.fail(e);
+			return future;
+		}
+
+		// send over network
+		// encapsulate
+		Message encapsulated = DEmuMessageFactory.getEncapsulatedMessage(
+				IDAddressPair.getIDAddressPair(null, this.selfNetAddress), dest, msg, true);
+
+		this.netSender.sendAndReceiveAsync(netAddress, encapsulated, new ReplyCallback() {
+			public void replied(Message reply) {
+				// notify statistics collector
+				if (msgReporter != null) {
+					// TODO: measures the length of the message.
+					msgReporter.notifyStatCollectorOfMessageSent(dest, msg, 0);
+				}
+
+				// decapsulate
+				Message ret = null;
+				if (reply != null && reply.getTag() == Tag.ENCAPSULATED.getNumber()) {
+					Serializable[] contents = reply.getContents();
+					ret = (Message)contents[1];
+				}
+
+				future.complete(ret);
+			}
+
+			public void failed(IOException e) {
+				// notify statistics collector
+				if (msgReporter != null) {
+					msgReporter.notifyStatCollectorOfDeletedNode(msg.getSource(), dest, msg.getTag());
+				}
+
+				future.fail(e);
+			}
+		});
+
+		return future;
+	}
+
 	private HostAndPort getEmulatorHostAndPort(MessagingAddress dest) {
 		EmuMessagingAddress emuDest = (EmuMessagingAddress)dest;
 		int destID = emuDest.getEmuHostID().getHostID();
@@ -30,9 +30,11 @@ import ow.messaging.MessageHandler;
 import ow.messaging.MessageReceiver;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
+import ow.messaging.ReplyCallback;
 import ow.stat.MessagingReporter;
 import ow.stat.StatConfiguration;
 import ow.stat.StatFactory;
+import ow.util.Timer;
 import ow.util.concurrent.SingletonThreadPoolExecutors;
 import ow.util.concurrent.ExecutorBlockingMode;
 
@@ -160,6 +162,53 @@ public final class EmuMessageReceiver implements MessageReceiver {
 			catch (InterruptedException e) {/*ignore*/}
 		}
 
+		Message ret = this.handle(msg);
+
+		// add latency
+		if (this.sleepPeriodMeasure != null) {
+			try {
+				sleepPeriodMeasure.sleep(latencyMillis, latencyNanos);
+			}
+			catch (InterruptedException e) {/*ignore*/}
+		}
+
+		// set signature
+//		ret.setSignature(acceptableSig);
+
+		return ret;
+	}
+
+	/**
+	 * Delivers a request and returns the reply to the callback without occupying a thread for latency.
+	 * Delivery and return of the reply are scheduled on the {@link Timer#getSingletonTimer() timer},
+	 * which also follows virtual time of the emulator.
+	 * A thread is used only while handlers process the request.
+	 */
+	protected void processAMessageAsync(final Message msg, final ReplyCallback callback) {
+		final long latency = this.getLatencyMillis();
+
+		Runnable deliver = new Runnable() {
+			public void run() {
+				final Message ret = EmuMessageReceiver.this.handle(msg);
+
+				Runnable reply = new Runnable() {
+					public void run() { callback.replied(ret); }
+				};
+				Timer.getSingletonTimer().schedule(reply, Timer.currentTimeMillis() + latency, true, true);
+			}
+		};
+		Timer.getSingletonTimer().schedule(deliver, Timer.currentTimeMillis() + latency, true, true);
+	}
+
+	/**
+	 * Returns the additional one-way latency rounded up to a millisecond.
+	 */
+	long getLatencyMillis() {
+		if (this.sleepPeriodMeasure == null) return 0L;
+		return this.latencyMillis + (this.latencyNanos > 0 ? 1L : 0L);
+	}
+
+	private Message handle(final Message msg) {
 		// process the received message
 		Message ret = null;
 
@@ -235,17 +284,6 @@ public final class EmuMessageReceiver implements MessageReceiver {
 			}
 		}	// if (numExtendedHandler > 0)
 
-		// add latency
-		if (this.sleepPeriodMeasure != null) {
-			try {
-				sleepPeriodMeasure.sleep(latencyMillis, latencyNanos);
-			}
-			catch (InterruptedException e) {/*ignore*/}
-		}
-
-		// set signature
-//		ret.setSignature(acceptableSig);
-
 		return ret;
 	}
 }
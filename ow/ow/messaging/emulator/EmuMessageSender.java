@@ -22,9 +22,12 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import ow.messaging.Message;
+import ow.messaging.MessageFuture;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
+import ow.messaging.ReplyCallback;
 import ow.stat.MessagingReporter;
+import ow.util.Timer;
 
 /**
  * A {@link MessageSender MessageSender} class for distributed environment emulation.
@@ -49,6 +52,74 @@ public final class EmuMessageSender implements MessageSender {
 		return this.send0(dest, msg, true);
 	}
 
+	/**
+	 * Delivers the message on the timer of the emulator and completes the future with the reply.
+	 * No thread waits for the reply, and an emulated failure fails the future after the static timeout.
+	 * A request ID is not required because the reply is returned directly by the receiver.
+	 */
+	public MessageFuture sendAndReceiveAsync(final MessagingAddress dest, final Message msg,
+			ReplyCallback callback) {
+		final MessageFuture future = new MessageFuture(callback);
+
+		// get a receiver
+		final EmuMessageReceiver receiver = EmuMessageReceiver.getReceiver(dest);
+
+		if (receiver == null) {
+			logger.log(Level.WARNING, "No such node: " + dest);
+
+			MessagingReporter msgReporter = this.receiver.getMessagingReporter();
+			if (msgReporter != null) {
+				msgReporter.notifyStatCollectorOfDeletedNode(
+						msg.getSource(), dest, msg.getTag());
+			}
+
+			future.fail(new IOException("No such node: " + dest));
+			return future;
+		}
+
+		// cause communication failure artificially in sending
+		if (receiver.communicationCanFail
+				&& random.nextDouble() < receiver.config.getCommunicationFailureRate()) {
+			this.failLater(future, receiver, new IOException("failed to send to " + dest));
+			return future;
+		}
+
+		// send
+		receiver.processAMessageAsync(msg, new ReplyCallback() {
+			public void replied(Message ret) {
+				// cause communication failure artificially in receiving
+				if (receiver.communicationCanFail
+						&& random.nextDouble() < receiver.config.getCommunicationFailureRate()) {
+					failLater(future, receiver, new IOException("failed to receive from " + dest));
+					return;
+				}
+
+				// notify statistics collector
+				MessagingReporter msgReporter = EmuMessageSender.this.receiver.getMessagingReporter();
+				if (msgReporter != null && !EmuMessageSender.this.receiver.getSelfAddress().equals(dest)) {
+					msgReporter.notifyStatCollectorOfMessageSent(dest, msg, 0);
+				}
+
+				future.complete(ret);
+			}
+
+			public void failed(IOException e) {
+				future.fail(e);
+			}
+		});
+
+		return future;
+	}
+
+	/**
+	 * Fails the future after the static timeout, as a blocking request waits for it.
+	 */
+	private void failLater(final MessageFuture future, EmuMessageReceiver receiver, final IOException e) {
+		Timer.getSingletonTimer().schedule(new Runnable() {
+			public void run() { future.fail(e); }
+		}, Timer.currentTimeMillis() + receiver.config.getStaticTimeout(), true, true);
+	}
+
 	private Message send0(MessagingAddress dest, Message msg, boolean doReceive) throws IOException {
 		// get a receiver
 		EmuMessageReceiver receiver = EmuMessageReceiver.getReceiver(dest);
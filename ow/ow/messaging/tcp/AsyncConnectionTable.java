@@ -0,0 +1,298 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.tcp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.messaging.BufferPool;
+import ow.messaging.Message;
+import ow.messaging.util.PendingRequestTable;
+
+/**
+ * Connections shared by asynchronous requests, one per destination.
+ * Replies on all the connections are read by a single selector thread,
+ * which is started with the first connection.
+ */
+final class AsyncConnectionTable implements Runnable {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private final PendingRequestTable pendingRequests;
+	private final ConcurrentMap<SocketAddress,AsyncConnection> connections =
+		new ConcurrentHashMap<SocketAddress,AsyncConnection>();
+	private final Queue<AsyncConnection> toBeRegistered = new ConcurrentLinkedQueue<AsyncConnection>();
+
+	private Selector selector = null;
+	private Thread thread = null;
+
+	AsyncConnectionTable(PendingRequestTable pendingRequests) {
+		this.pendingRequests = pendingRequests;
+	}
+
+	/**
+	 * Returns the connection to the destination, establishing it if needed.
+	 * Connecting does not block requests to other destinations.
+	 */
+	AsyncConnection get(SocketAddress dest, int connectTimeout) throws IOException {
+		AsyncConnection conn = this.connections.get(dest);
+		if (conn != null && !conn.closed.get()) return conn;
+
+		SocketChannel sock = SocketChannel.open();
+		try {
+			sock.socket().connect(dest, connectTimeout);
+			sock.configureBlocking(false);
+		}
+		catch (IOException e) {
+			try { sock.close(); } catch (IOException e1) { /* ignore */ }
+			throw e;
+		}
+
+		AsyncConnection newConn = new AsyncConnection(dest, sock);
+		while (true) {
+			conn = this.connections.putIfAbsent(dest, newConn);
+			if (conn == null) break;
+			if (!conn.closed.get()) {
+				// another thread has connected in the meantime
+				try { sock.close(); } catch (IOException e) { /* ignore */ }
+				return conn;
+			}
+			if (this.connections.replace(dest, conn, newConn)) break;
+		}
+
+		logger.log(Level.INFO, "A new connection for asynchronous requests created: " + dest);
+
+		this.toBeRegistered.offer(newConn);
+		this.wakeup();
+
+		return newConn;
+	}
+
+	void close(AsyncConnection conn) {
+		this.connections.remove(conn.dest, conn);
+
+		if (conn.close()) {
+			this.pendingRequests.failAll(conn, new IOException("Connection closed: " + conn.dest));
+		}
+	}
+
+	synchronized void stop() {
+		if (this.thread != null) {
+			this.thread.interrupt();
+			this.thread = null;
+			this.selector.wakeup();
+			this.selector = null;
+		}
+
+		for (AsyncConnection conn: this.connections.values()) this.close(conn);
+	}
+
+	private synchronized void wakeup() {
+		if (this.thread == null) {
+			try {
+				this.selector = Selector.open();
+			}
+			catch (IOException e) {
+				logger.log(Level.SEVERE, "Could not open a Selector.", e);
+				return;
+			}
+
+			this.thread = new Thread(this);
+			this.thread.setDaemon(true);
+			this.thread.setName("TCPReplyReader");
+			this.thread.start();
+		}
+		else {
+			this.selector.wakeup();
+		}
+	}
+
+	public void run() {
+		Selector sel;
+		synchronized (this) { sel = this.selector; }
+
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				AsyncConnection conn;
+				while ((conn = this.toBeRegistered.poll()) != null) {
+					try {
+						conn.sock.register(sel, SelectionKey.OP_READ, conn);
+					}
+					catch (ClosedChannelException e) {
+						this.close(conn);
+					}
+				}
+
+				sel.select();
+
+				Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					conn = (AsyncConnection)key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) conn.onReadable();
+					}
+					catch (IOException e) {
+						logger.log(Level.INFO, "A connection for asynchronous requests was closed: " + conn.dest);
+						this.close(conn);
+					}
+				}
+			}
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "Selector#select() threw an Exception and the reply reader will die.", e);
+		}
+		finally {
+			for (SelectionKey key: sel.keys()) this.close((AsyncConnection)key.attachment());
+			try { sel.close(); } catch (IOException e) { /* ignore */ }
+
+			synchronized (this) {
+				if (this.selector == sel) {
+					this.selector = null;
+					this.thread = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A non-blocking connection whose replies are read by the selector thread
+	 * and to which senders write under its lock.
+	 */
+	final class AsyncConnection {
+		private final SocketAddress dest;
+		private final SocketChannel sock;
+
+		// for reading, only by the selector thread
+		private final ByteBuffer header = ByteBuffer.allocate(Message.getHeaderLength());
+		private ByteBuffer body = null;
+
+		// for writing
+		private volatile Selector writeSelector = null;	// waits until the socket becomes writable
+
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		AsyncConnection(SocketAddress dest, SocketChannel sock) {
+			this.dest = dest;
+			this.sock = sock;
+		}
+
+		private void onReadable() throws IOException {
+			while (true) {
+				if (this.body == null) {
+					if (this.sock.read(this.header) < 0) throw new IOException("End-of-stream.");
+					if (this.header.hasRemaining()) return;
+
+					this.header.flip();
+					int len = Message.getBodyLength(this.header);
+
+					this.body = BufferPool.getSharedPool().acquire(len);
+				}
+
+				if (this.body.hasRemaining()) {
+					if (this.sock.read(this.body) < 0) throw new IOException("End-of-stream.");
+					if (this.body.hasRemaining()) return;
+				}
+
+				// a frame has been read
+				this.body.flip();
+
+				Message msg;
+				try {
+					msg = Message.decode(this.header, this.body);
+				}
+				finally {
+					BufferPool.getSharedPool().release(this.body);
+					this.body = null;
+					this.header.clear();
+				}
+
+				if (msg.isReply()) {
+					pendingRequests.complete(msg, this);
+				}
+				else {
+					logger.log(Level.INFO, "Dispose a message not waited for: " + msg);
+				}
+			}
+		}
+
+		/**
+		 * Writes a frame taken from the pool and releases it.
+		 */
+		synchronized void write(ByteBuffer frame, long timeout) throws IOException {
+			try {
+				long deadline = System.currentTimeMillis() + timeout;
+
+				while (frame.hasRemaining()) {
+					if (this.closed.get()) throw new IOException("Connection closed: " + this.dest);
+
+					if (this.sock.write(frame) > 0) continue;
+
+					// the send buffer is full
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0L) throw new IOException("Timed out in writing to " + this.dest);
+
+					if (this.writeSelector == null) {
+						this.writeSelector = Selector.open();
+						this.sock.register(this.writeSelector, SelectionKey.OP_WRITE);
+					}
+					this.writeSelector.select(wait);
+					this.writeSelector.selectedKeys().clear();
+				}
+			}
+			finally {
+				BufferPool.getSharedPool().release(frame);
+			}
+		}
+
+		/**
+		 * @return false if this connection has already been closed.
+		 */
+		private boolean close() {
+			if (!this.closed.compareAndSet(false, true)) return false;
+
+			try { this.sock.close(); } catch (IOException e) { /* ignore */ }
+
+			// let a writer waiting for the socket give up, and then close its selector
+			Selector sel = this.writeSelector;
+			if (sel != null) sel.wakeup();
+
+			synchronized (this) {
+				if (this.writeSelector != null) {
+					try { this.writeSelector.close(); } catch (IOException e) { /* ignore */ }
+					this.writeSelector = null;
+				}
+			}
+
+			return true;
+		}
+	}
+}
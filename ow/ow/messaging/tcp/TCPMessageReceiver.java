@@ -21,7 +21,6 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
@@ -41,7 +40,10 @@ import ow.messaging.MessageReceiver;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
 import ow.messaging.Signature;
+import ow.messaging.codec.MessageCodec;
+import ow.messaging.codec.MessageCodecFactory;
 import ow.messaging.upnp.Mapping;
+import ow.messaging.util.PendingRequestTable;
 import ow.messaging.util.UPnPAddressPortMapper;
 import ow.stat.MessagingReporter;
 import ow.stat.StatConfiguration;
@@ -57,6 +59,9 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 	protected TCPMessagingConfiguration config;
 	protected TCPMessagingProvider provider;
 	protected ConnectionPool connPool;
+	protected final MessageCodec codec;
+	protected final PendingRequestTable pendingRequests = new PendingRequestTable();
+	protected final AsyncConnectionTable asyncConnections = new AsyncConnectionTable(this.pendingRequests);
 	private Thread receiverThread;
 	private Set<Thread> handlerThreads = Collections.synchronizedSet(new HashSet<Thread>());
 
@@ -71,6 +76,7 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 			TCPMessagingConfiguration config, TCPMessagingProvider provider) throws IOException {
 		this.config = config;
 		this.provider = provider;
+		this.codec = MessageCodecFactory.getCodec(config.getMessageCodec());
 
 		// prepare a server socket
 		this.servSock = ServerSocketChannel.open();
@@ -198,6 +204,11 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 
 		// close all sockets in the connection pool
 		this.connPool.clear();
+
+		// close connections for asynchronous requests
+		this.asyncConnections.stop();
+
+		this.pendingRequests.failAll(null, new IOException("Receiver stopped."));
 	}
 
 	public void run() {
@@ -312,50 +323,87 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 				if (!Signature.match(sig, acceptableSig))
 					continue;
 
-				// process the received message
-				Message ret = TCPMessageReceiver.this.processMessage(msg);
-
-				// return a Message (from the last handler)
-				if (ret != null) {
-					logger.log(Level.INFO, "Return a message: " + ret);
-
-					MessagingAddress src =
-						(msg.getSource() != null ? msg.getSource().getAddress() : null);
-					try {
-						ByteBuffer buf = Message.encode(sock, ret);
-
-						// notify statistics collector
-						if (src != null) {
-							msgReporter.notifyStatCollectorOfMessageSent(src, ret, buf.remaining());
-						}
-					}
-					catch (IOException e) {
-						logger.log(Level.WARNING, "Could not return a message (or just closed).");
-
-						// close Socket
-						try { sock.close(); } catch (IOException e1) {}
-
-						// notify statistics collector
-						if (src != null) {
-							msgReporter.notifyStatCollectorOfDeletedNode(
-									ret.getSource(), src, ret.getTag());
+				if (msg.getRequestID() != 0) {
+					// an asynchronous request is processed concurrently with the following ones
+					final Message req = msg;
+					Runnable r = new Runnable() {
+						public void run() {
+							handle(req);	// closes the connection if failed
 						}
+					};
 
-						break;
+					if (TCPMessageReceiver.this.config.getUseThreadPool()) {
+						SingletonThreadPoolExecutors.getThreadPool(
+								ExecutorBlockingMode.NON_BLOCKING, false).submit(r);
+					}
+					else {
+						Thread t = new Thread(r);
+						t.setName("TCPMessageHandler: " + this.sock.socket().getInetAddress());
+						t.setDaemon(false);
+						t.start();
 					}
 				}
 				else {
-					logger.log(Level.INFO, "Return no message.");
+					if (!this.handle(msg)) break;
 				}
-
-				// post-process
-				TCPMessageReceiver.this.postProcessMessage(msg);
 			}	// while (true)
 
 			handlerThreads.remove(Thread.currentThread());
 
 			th.setName(origName);
 		}
+
+		/**
+		 * Process a message and return a reply.
+		 *
+		 * @return false if the connection has been broken.
+		 */
+		private boolean handle(Message msg) {
+			byte[] sig = msg.getSignature();
+
+			// process the received message
+			Message ret = TCPMessageReceiver.this.processMessage(msg);
+
+			// return a Message (from the last handler)
+			if (ret != null) {
+				logger.log(Level.INFO, "Return a message: " + ret);
+
+				MessagingAddress src =
+					(msg.getSource() != null ? msg.getSource().getAddress() : null);
+				try {
+					// reply with the codec of the request
+					MessageCodec replyCodec = MessageCodecFactory.getCodec(Signature.getCodecID(sig));
+					int len = Message.encode(sock, ret, replyCodec, Message.getReplyID(msg));
+
+					// notify statistics collector
+					if (src != null) {
+						msgReporter.notifyStatCollectorOfMessageSent(src, ret, len);
+					}
+				}
+				catch (IOException e) {
+					logger.log(Level.WARNING, "Could not return a message (or just closed).");
+
+					// close Socket
+					try { sock.close(); } catch (IOException e1) {}
+
+					// notify statistics collector
+					if (src != null) {
+						msgReporter.notifyStatCollectorOfDeletedNode(
+								ret.getSource(), src, ret.getTag());
+					}
+
+					return false;
+				}
+			}
+			else {
+				logger.log(Level.INFO, "Return no message.");
+			}
+
+			// post-process
+			TCPMessageReceiver.this.postProcessMessage(msg);
+
+			return true;
+		}
 	}
 
 	protected Message processMessage(Message msg) {
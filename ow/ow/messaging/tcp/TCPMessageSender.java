@@ -19,16 +19,20 @@ package ow.messaging.tcp;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import ow.messaging.BufferPool;
 import ow.messaging.InetMessagingAddress;
 import ow.messaging.Message;
+import ow.messaging.MessageFuture;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
+import ow.messaging.ReplyCallback;
 import ow.messaging.Tag;
 import ow.stat.MessagingReporter;
 import ow.util.AlarmClock;
@@ -108,12 +112,12 @@ public class TCPMessageSender implements MessageSender {
 
 		// send
 		try {
-			ByteBuffer buf = Message.encode(sock, msg);
+			int len = Message.encode(sock, msg, this.receiver.codec);
 
 			// notify statistics collector
 			MessagingReporter msgReporter = this.receiver.getMessagingReporter();
 			if (msgReporter != null) {
-				msgReporter.notifyStatCollectorOfMessageSent(dest, msg, buf.remaining());
+				msgReporter.notifyStatCollectorOfMessageSent(dest, msg, len);
 			}
 		}
 		catch (IOException e) {
@@ -190,16 +194,22 @@ public class TCPMessageSender implements MessageSender {
 			}
 
 			// receive and dispose remaining data
-			ByteBuffer buf = ByteBuffer.allocate(1024);
-			sock.configureBlocking(false);
-			while (true) {
-				int read = sock.read(buf);
-				if (read <= 0) break;
-				buf.clear();
-
-				logger.log(Level.INFO, "Data have remained in a pooled stream: " + read);
+			BufferPool bufPool = BufferPool.getSharedPool();
+			ByteBuffer buf = bufPool.acquire(BufferPool.MIN_BUFFER_SIZE);
+			try {
+				sock.configureBlocking(false);
+				while (true) {
+					int read = sock.read(buf);
+					if (read <= 0) break;
+					buf.clear();
+
+					logger.log(Level.INFO, "Data have remained in a pooled stream: " + read);
+				}
+				sock.configureBlocking(true);
+			}
+			finally {
+				bufPool.release(buf);
 			}
-			sock.configureBlocking(true);
 
 			// send
 			timeout = this.receiver.provider.getTimeoutCalculator().calculateTimeout(dest);
@@ -253,6 +263,119 @@ public class TCPMessageSender implements MessageSender {
 		return ret;
 	}
 
+	public MessageFuture sendAndReceiveAsync(final MessagingAddress dest, final Message msg,
+			final ReplyCallback callback) {
+		this.adjustLoopbackAddress((InetMessagingAddress)dest);
+
+		// destination is local
+		MessagingAddress selfAddress = this.receiver.getSelfAddress();
+		if (dest.equals(selfAddress)) {
+			final MessageFuture future = new MessageFuture(callback);
+
+			Runnable r = new Runnable () {
+				public void run() {
+					future.complete(TCPMessageSender.this.receiver.processMessage(msg));
+					TCPMessageSender.this.receiver.postProcessMessage(msg);
+				}
+			};
+
+			if (this.receiver.config.getUseThreadPool()) {
+				SingletonThreadPoolExecutors.getThreadPool(
+						ExecutorBlockingMode.NON_BLOCKING, false).submit(r);
+			}
+			else {
+				Thread t = new Thread(r);
+				t.setName("TCPMessageSender: processing thread");
+				t.setDaemon(false);
+				t.start();
+			}
+
+			return future;
+		}
+
+		// destination is remote
+		// requests share a connection and replies are read by a thread shared by such connections.
+		SocketAddress sockAddr = ((InetMessagingAddress)dest).getInetSocketAddress();
+
+		final long start = Timer.currentTimeMillis();
+		long timeout = this.receiver.provider.getTimeoutCalculator().calculateTimeout(dest);
+
+		MessageFuture future = new MessageFuture(new ReplyCallback() {
+			public void replied(Message reply) {
+				// timeout calculation
+				receiver.provider.getTimeoutCalculator().updateRTT(dest, (int)(Timer.currentTimeMillis() - start));
+
+				if (callback != null) callback.replied(reply);
+			}
+
+			public void failed(IOException e) {
+				if (e instanceof SocketTimeoutException) {
+					// notify statistics collector
+					MessagingReporter msgReporter = receiver.getMessagingReporter();
+					if (msgReporter != null) {
+						msgReporter.notifyStatCollectorOfDeletedNode(
+								msg.getSource(), dest, msg.getTag());
+					}
+				}
+
+				if (callback != null) callback.failed(e);
+			}
+		});
+
+		AsyncConnectionTable.AsyncConnection conn;
+		try {
+			conn = this.receiver.asyncConnections.get(sockAddr, (int)timeout);
+		}
+		catch (IOException e) {
+			logger.log(Level.INFO, "Failed to connect: " + dest);
+
+			// notify statistics collector
+			MessagingReporter msgReporter = this.receiver.getMessagingReporter();
+			if (msgReporter != null) {
+				msgReporter.notifyStatCollectorOfDeletedNode(
+						msg.getSource(), dest, msg.getTag());
+			}
+
+			future.fail(e);
+			return future;
+		}
+
+		int requestID = this.receiver.pendingRequests.register(future, timeout, conn);
+
+		logger.log(Level.INFO, "send(" + dest + ", " + Tag.getNameByNumber(msg.getTag()) + ")");
+
+		// set signature
+		byte[] sig = this.receiver.provider.getMessageSignature();
+		msg.setSignature(sig);
+
+		try {
+			ByteBuffer frame = Message.encodeIntoPooledBuffer(msg, this.receiver.codec, requestID);
+			int len = frame.remaining();
+			conn.write(frame, timeout);
+
+			// notify statistics collector
+			MessagingReporter msgReporter = this.receiver.getMessagingReporter();
+			if (msgReporter != null) {
+				msgReporter.notifyStatCollectorOfMessageSent(dest, msg, len);
+			}
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "Could not write a message.");
+
+			// notify statistics collector
+			MessagingReporter msgReporter = this.receiver.getMessagingReporter();
+			if (msgReporter != null) {
+				msgReporter.notifyStatCollectorOfDeletedNode(
+						msg.getSource(), dest, msg.getTag());
+			}
+
+			this.receiver.pendingRequests.fail(requestID, e);
+			this.receiver.asyncConnections.close(conn);
+		}
+
+		return future;
+	}
+
 	private void adjustLoopbackAddress(InetMessagingAddress dest) {
 		// adjust loopback address (e.g. 127.0.0.1) to a real address
 		if (dest.getInetAddress().isLoopbackAddress()) {
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.tcpnio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.messaging.BufferPool;
+import ow.messaging.Message;
+import ow.util.Timer;
+
+/**
+ * A non-blocking connection, which reads frames and writes queued frames
+ * on its selector thread.
+ * An outgoing connection is used by one sender at a time and
+ * a frame received on it is taken as the reply to the last request
+ * unless the frame replies to an asynchronous request.
+ */
+final class Connection {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private final TCPNIOMessageReceiver receiver;
+	private final SocketChannel channel;
+	private final SelectorLoop loop;
+	private final InetSocketAddress remoteAddress;
+	private final boolean outgoing;
+	private SelectionKey key;
+
+	// for reading
+	private final ByteBuffer header = ByteBuffer.allocate(Message.getHeaderLength());
+	private ByteBuffer body = null;	// taken from the pool
+
+	// for writing, guarded by the queue itself
+	private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+	private boolean closeWhenIdle = false;
+
+	// for an outgoing connection
+	private boolean waitingForReply = false;
+	private Message reply = null;
+
+	private volatile boolean closed = false;
+
+	Connection(TCPNIOMessageReceiver receiver, SocketChannel channel, SelectorLoop loop,
+			InetSocketAddress remoteAddress, boolean outgoing) throws IOException {
+		this.receiver = receiver;
+		this.channel = channel;
+		this.loop = loop;
+		this.remoteAddress = remoteAddress;
+		this.outgoing = outgoing;
+
+		this.channel.configureBlocking(false);
+		this.channel.socket().setTcpNoDelay(true);
+	}
+
+	SocketChannel getChannel() { return this.channel; }
+	InetSocketAddress getRemoteAddress() { return this.remoteAddress; }
+	boolean isClosed() { return this.closed; }
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+		if (!this.writeQueue.isEmpty()) this.enableWrite();
+	}
+
+	/**
+	 * Called by the selector thread.
+	 */
+	void onReadable() throws IOException {
+		while (true) {
+			if (this.body == null) {
+				if (this.channel.read(this.header) < 0) throw new IOException("End-of-stream.");
+				if (this.header.hasRemaining()) return;
+
+				this.header.flip();
+				int len = Message.getBodyLength(this.header);	// bounded
+
+				this.body = BufferPool.getSharedPool().acquire(len);
+			}
+
+			if (this.body.hasRemaining()) {
+				if (this.channel.read(this.body) < 0) throw new IOException("End-of-stream.");
+				if (this.body.hasRemaining()) return;
+			}
+
+			// a frame has been read
+			this.body.flip();
+
+			Message msg;
+			try {
+				msg = Message.decode(this.header, this.body);
+			}
+			finally {
+				BufferPool.getSharedPool().release(this.body);
+				this.body = null;
+				this.header.clear();
+			}
+
+			if (msg.isReply()) {
+				// a reply to an asynchronous request
+				this.receiver.pendingRequests.complete(msg, this);
+				this.closeIfIdle();
+			}
+			else if (this.outgoing) {
+				this.receiveReply(msg);
+			}
+			else {
+				this.receiver.dispatch(this, msg);
+			}
+		}
+	}
+
+	/**
+	 * Called by the selector thread.
+	 */
+	void onWritable() throws IOException {
+		while (true) {
+			synchronized (this.writeQueue) {
+				if (this.closed) return;
+
+				ByteBuffer buf = this.writeQueue.peek();
+				if (buf == null) break;
+
+				this.channel.write(buf);
+				if (buf.hasRemaining()) return;	// wait for the next chance
+
+				BufferPool.getSharedPool().release(this.writeQueue.poll());
+			}
+		}
+
+		this.key.interestOps(SelectionKey.OP_READ);
+		this.closeIfIdle();
+	}
+
+	/**
+	 * Queue a frame taken from the pool. The frame is released after written.
+	 */
+	void write(ByteBuffer frame) throws IOException {
+		synchronized (this.writeQueue) {
+			if (this.closed) {
+				BufferPool.getSharedPool().release(frame);
+				throw new IOException("Connection closed: " + this.remoteAddress);
+			}
+
+			this.writeQueue.offer(frame);
+		}
+
+		this.loop.execute(new Runnable() {
+			public void run() { enableWrite(); }
+		});
+	}
+
+	private void enableWrite() {
+		if (this.key == null || !this.key.isValid()) return;
+		this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	//
+	// for an outgoing connection
+	//
+
+	synchronized void expectReply() {
+		this.waitingForReply = true;
+		this.reply = null;
+	}
+
+	private synchronized void receiveReply(Message msg) {
+		if (!this.waitingForReply) {
+			logger.log(Level.INFO, "Dispose a message not waited for: " + msg);
+			return;
+		}
+
+		this.waitingForReply = false;
+		this.reply = msg;
+		this.notifyAll();
+	}
+
+	/**
+	 * Wait for the reply to the last request.
+	 *
+	 * @return the reply, or null in case of timeout.
+	 */
+	synchronized Message awaitReply(long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while (this.reply == null) {
+			if (this.closed) throw new IOException("Connection closed: " + this.remoteAddress);
+
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0L) {
+				this.waitingForReply = false;
+				return null;
+			}
+
+			try {
+				this.wait(wait);
+			}
+			catch (InterruptedException e) {
+				this.waitingForReply = false;
+				throw new IOException("Interrupted.");
+			}
+		}
+
+		Message ret = this.reply;
+		this.reply = null;
+
+		return ret;
+	}
+
+	/**
+	 * Closes this connection once the queued frames have been written
+	 * and no asynchronous request sent on it waits for a reply.
+	 * It is closed anyway after maxWait msec, by when such requests have timed out.
+	 */
+	void closeWhenIdle(long maxWait) {
+		synchronized (this.writeQueue) {
+			this.closeWhenIdle = true;
+		}
+
+		this.loop.execute(new Runnable() {
+			public void run() { closeIfIdle(); }
+		});
+		Timer.getSingletonTimer().schedule(new Runnable() {
+			public void run() { close(); }
+		}, Timer.currentTimeMillis() + maxWait, true /*isDaemon*/);
+	}
+
+	/**
+	 * Called by the selector thread.
+	 */
+	private void closeIfIdle() {
+		synchronized (this.writeQueue) {
+			if (!this.closeWhenIdle || !this.writeQueue.isEmpty()) return;
+		}
+		if (this.receiver.pendingRequests.hasPending(this)) return;
+
+		this.close();
+	}
+
+	void close() {
+		synchronized (this) {
+			if (this.closed) return;
+			this.closed = true;
+
+			this.notifyAll();
+		}
+
+		if (this.key != null) this.key.cancel();
+		try { this.channel.close(); } catch (IOException e) { /* ignore */ }
+
+		// the lock keeps the selector thread from writing or releasing a frame being released here
+		synchronized (this.writeQueue) {
+			ByteBuffer buf;
+			while ((buf = this.writeQueue.poll()) != null) {
+				BufferPool.getSharedPool().release(buf);
+			}
+		}
+
+		this.receiver.pendingRequests.failAll(this, new IOException("Connection closed: " + this.remoteAddress));
+
+		// the body buffer is left to GC because the selector thread may be reading into it
+	}
+
+	public String toString() {
+		return (this.outgoing ? "to " : "from ") + this.remoteAddress;
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.tcpnio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread multiplexing connections with a Selector.
+ * Other threads ask this loop to do something with {@link #execute(Runnable) execute()}
+ * because a Selector and its keys should be manipulated only by the thread selecting.
+ */
+final class SelectorLoop implements Runnable {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private final TCPNIOMessageReceiver receiver;
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private Thread thread;
+
+	SelectorLoop(TCPNIOMessageReceiver receiver) throws IOException {
+		this.receiver = receiver;
+		this.selector = Selector.open();
+	}
+
+	void start(String name, int priority) {
+		this.thread = new Thread(this);
+		this.thread.setDaemon(true);
+		this.thread.setName(name);
+		this.thread.setPriority(priority);
+		this.thread.start();
+	}
+
+	void stop() {
+		if (this.thread != null) {
+			this.thread.interrupt();
+			this.thread = null;
+		}
+		this.selector.wakeup();
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == this.thread;
+	}
+
+	/**
+	 * Have this loop run the given task.
+	 */
+	void execute(Runnable task) {
+		if (this.inLoop()) {
+			task.run();
+		}
+		else {
+			this.tasks.offer(task);
+			this.selector.wakeup();
+		}
+	}
+
+	void registerServer(final ServerSocketChannel servSock) {
+		this.execute(new Runnable() {
+			public void run() {
+				try {
+					servSock.register(selector, SelectionKey.OP_ACCEPT);
+				}
+				catch (ClosedChannelException e) {
+					logger.log(Level.WARNING, "Server socket has been closed.");
+				}
+			}
+		});
+	}
+
+	void register(final Connection conn) {
+		this.execute(new Runnable() {
+			public void run() {
+				try {
+					conn.setKey(conn.getChannel().register(selector, SelectionKey.OP_READ, conn));
+				}
+				catch (ClosedChannelException e) {
+					conn.close();
+				}
+			}
+		});
+	}
+
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				this.selector.select();
+
+				// run tasks from other threads
+				Runnable task;
+				while ((task = this.tasks.poll()) != null) {
+					try {
+						task.run();
+					}
+					catch (Throwable e) {
+						logger.log(Level.SEVERE, "A task on a selector thread threw an Exception.", e);
+					}
+				}
+
+				Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					if (!key.isValid()) continue;
+
+					if (key.isAcceptable()) {
+						this.receiver.accept();
+						continue;
+					}
+
+					Connection conn = (Connection)key.attachment();
+					try {
+						if (key.isReadable()) conn.onReadable();
+						if (key.isValid() && key.isWritable()) conn.onWritable();
+					}
+					catch (CancelledKeyException e) {
+						conn.close();
+					}
+					catch (IOException e) {
+						logger.log(Level.INFO, "A connection was closed: " + conn);
+						conn.close();
+					}
+					catch (RuntimeException e) {
+						// only the connection is lost, not the others on this selector
+						logger.log(Level.WARNING, "A connection threw an Exception and is closed: " + conn, e);
+						conn.close();
+					}
+				}
+			}
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "Selector#select() threw an Exception and the selector thread will die.", e);
+		}
+		finally {
+			// close all connections handled by this loop
+			for (SelectionKey key: this.selector.keys()) {
+				Object o = key.attachment();
+				if (o instanceof Connection) ((Connection)o).close();
+			}
+
+			try { this.selector.close(); } catch (IOException e) { /* ignore */ }
+		}
+	}
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.tcpnio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.id.IDAddressPair;
+import ow.messaging.ExtendedMessageHandler;
+import ow.messaging.InetMessagingAddress;
+import ow.messaging.Message;
+import ow.messaging.MessageHandler;
+import ow.messaging.MessageReceiver;
+import ow.messaging.MessageSender;
+import ow.messaging.MessagingAddress;
+import ow.messaging.Signature;
+import ow.messaging.Tag;
+import ow.messaging.codec.MessageCodec;
+import ow.messaging.codec.MessageCodecFactory;
+import ow.messaging.upnp.Mapping;
+import ow.messaging.util.PendingRequestTable;
+import ow.messaging.util.UPnPAddressPortMapper;
+import ow.stat.MessagingReporter;
+import ow.stat.StatConfiguration;
+import ow.stat.StatFactory;
+
+/**
+ * A message receiver multiplexing all incoming and outgoing connections
+ * on a fixed number of selector threads.
+ * Decoded messages are processed by a bounded pool of worker threads.
+ */
+public class TCPNIOMessageReceiver implements MessageReceiver {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private InetMessagingAddress selfAddr;
+	private ServerSocketChannel servSock;
+	protected TCPNIOMessagingConfiguration config;
+	protected TCPNIOMessagingProvider provider;
+	protected final MessageCodec codec;
+	protected final PendingRequestTable pendingRequests = new PendingRequestTable();
+
+	private SelectorLoop[] loops = null;
+	private int nextLoopIndex = 0;
+	private ThreadPoolExecutor workers = null;
+
+	// idle outgoing connections
+	private final Map<InetSocketAddress,LinkedList<Connection>> idleConnections =
+		new HashMap<InetSocketAddress,LinkedList<Connection>>();
+	private int numIdleConnections = 0;
+
+	private List<MessageHandler> handlerList = new ArrayList<MessageHandler>();
+	protected boolean extMessageHandlerRegistered = false;
+
+	private final MessagingReporter msgReporter;
+
+	protected TCPNIOMessageReceiver(InetAddress selfInetAddr, int port, int portRange,
+			TCPNIOMessagingConfiguration config, TCPNIOMessagingProvider provider) throws IOException {
+		this.config = config;
+		this.provider = provider;
+		this.codec = MessageCodecFactory.getCodec(config.getMessageCodec());
+
+		// prepare a server socket
+		this.servSock = ServerSocketChannel.open();
+
+		// prepare local address
+		if (selfInetAddr == null) {
+			selfInetAddr = InetAddress.getLocalHost();
+		}
+
+		// bind to the specified address, and then to a local address if failed.
+		ServerSocket s = this.servSock.socket();
+		s.setReuseAddress(true);	// for development
+
+		this.selfAddr = this.bind(s, selfInetAddr, port, portRange);
+
+		if (this.selfAddr == null && !selfInetAddr.equals(InetAddress.getLocalHost())) {
+			InetMessagingAddress boundAddr = this.bind(s, InetAddress.getLocalHost(), port, portRange);
+			if (boundAddr != null) {
+				boundAddr.setInetAddress(selfInetAddr);
+				this.selfAddr = boundAddr;
+			}
+		}
+
+		if (this.selfAddr == null) {
+			String addrPort = selfInetAddr.getHostAddress() + ":" + port + "-" + (port + portRange - 1);
+			logger.log(Level.SEVERE, "Could not bind to " + addrPort + "."
+					+ " Specify self hostname with -s option.");
+			throw new IOException("Bind failed: " + addrPort);
+		}
+
+		this.servSock.configureBlocking(false);
+
+		StatConfiguration conf = StatFactory.getDefaultConfiguration();
+		this.msgReporter = StatFactory.getMessagingReporter(conf, this.provider, this.getSender());
+
+		// for UPnP Address Port Mapping
+		if (this.config.getDoUPnPNATTraversal()) {
+			String internalAddress = this.selfAddr.getHostAddress();
+			UPnPAddressPortMapper.start(internalAddress, port, Mapping.Protocol.TCP,
+					"Overlay Weaver",
+					this.provider, config.getUPnPTimeout());
+		}
+	}
+
+	private InetMessagingAddress bind(
+			ServerSocket sock, InetAddress inetAddr, int port, int range) {
+		InetMessagingAddress addr = null;
+		boolean bound = false;
+
+		if (range <= 0) range = 1;
+		for (int i = 0; i < range; i++) {
+			addr = new InetMessagingAddress(inetAddr, port + i);
+
+			try {
+				sock.bind(addr.getInetSocketAddress());
+
+				port = port + i;
+				bound = true;
+				break;
+			}
+			catch (IOException e) { /*ignore*/ }
+		}
+
+		if (!bound) addr = null;
+
+		return addr;
+	}
+
+	public MessagingAddress getSelfAddress() { return this.selfAddr; }
+	public void setSelfAddress(String hostOrIP) {
+		try {
+			this.selfAddr = this.provider.getMessagingAddress(
+					hostOrIP, this.selfAddr.getPort());
+		}
+		catch (UnknownHostException e) {
+			logger.log(Level.WARNING, "Could not resolve a hostname: " + hostOrIP);
+		}
+	}
+
+	public int getPort() { return this.selfAddr.getPort(); }
+
+	public MessagingReporter getMessagingReporter() { return this.msgReporter; }
+
+	public MessageSender getSender() {
+		// does not share a sender
+		return new TCPNIOMessageSender(this);
+	}
+
+	public void start() {
+		synchronized (this) {
+			if (this.loops != null) return;
+
+			int prio = Thread.currentThread().getPriority()
+				+ this.config.getReceiverThreadPriority();
+			if (prio > Thread.MAX_PRIORITY) prio = Thread.MAX_PRIORITY;
+
+			int nLoops = Math.max(1, this.config.getSelectorThreads());
+			SelectorLoop[] newLoops = new SelectorLoop[nLoops];
+			try {
+				for (int i = 0; i < nLoops; i++) {
+					newLoops[i] = new SelectorLoop(this);
+				}
+			}
+			catch (IOException e) {
+				logger.log(Level.SEVERE, "Could not open a Selector.", e);
+				return;
+			}
+
+			for (int i = 0; i < nLoops; i++) {
+				newLoops[i].start("TCPNIOSelector-" + i, prio);
+			}
+			newLoops[0].registerServer(this.servSock);
+
+			int nWorkers = Math.max(1, this.config.getWorkerThreads());
+			this.workers = new ThreadPoolExecutor(nWorkers, nWorkers,
+					0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(1, this.config.getWorkerQueueSize())),
+					new ThreadFactory() {
+						private int count = 0;
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r);
+							t.setDaemon(true);
+							t.setName("TCPNIOMessageHandler-" + (this.count++));
+							return t;
+						}
+					},
+					new ThreadPoolExecutor.AbortPolicy());
+				// handlers never run on a selector thread because they may block
+
+			this.loops = newLoops;
+		}
+	}
+
+	public void stop() {
+		SelectorLoop[] oldLoops;
+		ThreadPoolExecutor oldWorkers;
+
+		synchronized (this) {
+			oldLoops = this.loops;
+			oldWorkers = this.workers;
+			this.loops = null;
+			this.workers = null;
+		}
+
+		if (oldLoops != null) {
+			// a selector thread closes connections it handles when it stops
+			for (SelectorLoop loop: oldLoops) loop.stop();
+		}
+		if (oldWorkers != null) {
+			oldWorkers.shutdownNow();
+		}
+
+		// notify statistics collector
+		this.msgReporter.notifyStatCollectorOfDeletedNode(
+				IDAddressPair.getIDAddressPair(null, this.selfAddr), this.selfAddr, -1);
+
+		// close all idle outgoing connections
+		synchronized (this.idleConnections) {
+			for (LinkedList<Connection> list: this.idleConnections.values()) {
+				for (Connection c: list) c.close();
+			}
+			this.idleConnections.clear();
+			this.numIdleConnections = 0;
+		}
+
+		this.pendingRequests.failAll(null, new IOException("Receiver stopped."));
+	}
+
+	private SelectorLoop nextLoop() throws IOException {
+		synchronized (this) {
+			if (this.loops == null) throw new IOException("Receiver has been stopped.");
+
+			SelectorLoop loop = this.loops[this.nextLoopIndex];
+			this.nextLoopIndex = (this.nextLoopIndex + 1) % this.loops.length;
+
+			return loop;
+		}
+	}
+
+	/**
+	 * Called by a selector thread when the server socket is acceptable.
+	 */
+	void accept() {
+		while (true) {
+			SocketChannel sock;
+			try {
+				sock = this.servSock.accept();
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "ServerSocketChannel#accept() threw an Exception.", e);
+				return;
+			}
+
+			if (sock == null) return;	// no more pending connection
+
+			try {
+				SelectorLoop loop = this.nextLoop();
+				Connection conn = new Connection(this, sock, loop,
+						(InetSocketAddress)sock.socket().getRemoteSocketAddress(), false);
+				loop.register(conn);
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Could not set up an accepted connection.");
+				try { sock.close(); } catch (IOException e1) { /* ignore */ }
+			}
+		}
+	}
+
+	/**
+	 * Called by a selector thread when a message has arrived on an incoming connection.
+	 */
+	void dispatch(final Connection conn, final Message msg) {
+		// check signature
+		final byte[] sig = msg.getSignature();
+		byte[] acceptableSig = this.provider.getMessageSignature();
+		if (!Signature.match(sig, acceptableSig))
+			return;
+
+		Runnable r = new Runnable() {
+			public void run() {
+				// process the received message
+				Message ret = TCPNIOMessageReceiver.this.processMessage(msg);
+
+				// return a Message (from the last handler)
+				if (ret != null) {
+					logger.log(Level.INFO, "Return a message: " + ret);
+
+					MessagingAddress src =
+						(msg.getSource() != null ? msg.getSource().getAddress() : null);
+					try {
+						// reply with the codec of the request
+						MessageCodec replyCodec = MessageCodecFactory.getCodec(Signature.getCodecID(sig));
+						ByteBuffer frame = Message.encodeIntoPooledBuffer(ret, replyCodec, Message.getReplyID(msg));
+						int len = frame.remaining();
+						conn.write(frame);
+
+						// notify statistics collector
+						if (src != null) {
+							msgReporter.notifyStatCollectorOfMessageSent(src, ret, len);
+						}
+					}
+					catch (IOException e) {
+						logger.log(Level.WARNING, "Could not return a message (or just closed).");
+
+						conn.close();
+
+						// notify statistics collector
+						if (src != null) {
+							msgReporter.notifyStatCollectorOfDeletedNode(
+									ret.getSource(), src, ret.getTag());
+						}
+					}
+				}
+				else {
+					logger.log(Level.INFO, "Return no message.");
+				}
+
+				// post-process
+				TCPNIOMessageReceiver.this.postProcessMessage(msg);
+			}
+		};
+
+		ThreadPoolExecutor ex = this.workers;
+		try {
+			if (ex != null) {
+				ex.execute(r);
+				return;
+			}
+		}
+		catch (RejectedExecutionException e) {
+			if (!ex.isShutdown()) {
+				// overloaded. close the connection so that the requester fails soon instead of waiting for a reply
+				logger.log(Level.WARNING, "Dispose a message and close the connection because handlers are overloaded: "
+						+ Tag.getNameByNumber(msg.getTag()));
+
+				conn.close();
+				return;
+			}
+		}
+
+		logger.log(Level.INFO, "Dispose a message because the receiver has been stopped: " + msg);
+	}
+
+	//
+	// outgoing connections
+	//
+
+	/**
+	 * Take an idle connection to the destination or establish a new one.
+	 * The returned connection is used exclusively by the caller
+	 * until it is returned with {@link #releaseConnection(Connection) releaseConnection()}.
+	 */
+	Connection getConnection(InetSocketAddress dest) throws IOException {
+		synchronized (this.idleConnections) {
+			LinkedList<Connection> list = this.idleConnections.get(dest);
+			while (list != null && !list.isEmpty()) {
+				Connection conn = list.removeFirst();
+				this.numIdleConnections--;
+				if (list.isEmpty()) this.idleConnections.remove(dest);
+
+				if (!conn.isClosed()) {
+					logger.log(Level.INFO, "A connection found in the pool: " + dest);
+					return conn;
+				}
+			}
+		}
+
+		// connect in the calling thread
+		SocketChannel sock;
+		try {
+			sock = SocketChannel.open(dest);
+			logger.log(Level.INFO, "A new connection created: " + dest);
+		}
+		catch (IOException e) {
+			logger.log(Level.INFO, "Could not create a connection: " + dest);
+			throw e;
+		}
+
+		SelectorLoop loop;
+		Connection conn;
+		try {
+			loop = this.nextLoop();
+			conn = new Connection(this, sock, loop, dest, true);
+		}
+		catch (IOException e) {
+			try { sock.close(); } catch (IOException e1) { /* ignore */ }
+			throw e;
+		}
+
+		loop.register(conn);
+
+		return conn;
+	}
+
+	void releaseConnection(Connection conn) {
+		if (conn.isClosed()) return;
+
+		synchronized (this.idleConnections) {
+			if (this.loops != null
+					&& this.numIdleConnections < this.config.getConnectionPoolSize()) {
+				LinkedList<Connection> list = this.idleConnections.get(conn.getRemoteAddress());
+				if (list == null) {
+					list = new LinkedList<Connection>();
+					this.idleConnections.put(conn.getRemoteAddress(), list);
+				}
+				list.addLast(conn);
+				this.numIdleConnections++;
+
+				return;
+			}
+		}
+
+		// frames queued by an asynchronous request are still to be written, and its reply to be read
+		logger.log(Level.INFO, "Connection pool is full and a connection is closed: " + conn);
+		conn.closeWhenIdle(Math.max(this.config.getTimeoutMax(), this.config.getStaticTimeout()));
+	}
+
+	//
+	// message handlers
+	//
+
+	public void addHandler(MessageHandler handler) {
+		List<MessageHandler> newHandlerList = new ArrayList<MessageHandler>();
+
+		synchronized (this) {
+			newHandlerList.addAll(this.handlerList);	// copy
+			newHandlerList.add(handler);
+
+			this.handlerList = newHandlerList;	// substitute
+		}
+
+		if (handler instanceof ExtendedMessageHandler) {
+			this.extMessageHandlerRegistered = true;
+		}
+	}
+
+	public void removeHandler(MessageHandler handler) {
+		List<MessageHandler> newHandlerList = new ArrayList<MessageHandler>();
+
+		synchronized (this) {
+			newHandlerList.addAll(this.handlerList);	// copy
+			newHandlerList.remove(handler);
+
+			this.handlerList = newHandlerList;	// substitute
+		}
+
+		boolean exists = false;
+		for (MessageHandler h: newHandlerList) {
+			if (h instanceof ExtendedMessageHandler) {
+				exists = true;
+				break;
+			}
+		}
+		this.extMessageHandlerRegistered = exists;
+	}
+
+	protected Message processMessage(Message msg) {
+		// call every handlers
+		List<MessageHandler> currentHandlerList;
+		synchronized (this) {
+			currentHandlerList = handlerList;
+		}
+
+		Message ret = null;
+
+		for (MessageHandler handler: currentHandlerList) {
+			try {
+				ret = handler.process(msg);
+			}
+			catch (Throwable e) {
+				logger.log(Level.SEVERE, "A MessageHandler#process() threw an Exception.", e);
+			}
+		}
+
+		return ret;
+	}
+
+	protected void postProcessMessage(Message msg) {
+		if (!this.extMessageHandlerRegistered) return;
+
+		// call every handlers
+		List<MessageHandler> currentHandlerList;
+		synchronized (this) {
+			currentHandlerList = handlerList;
+		}
+
+		for (MessageHandler handler: currentHandlerList) {
+			ExtendedMessageHandler extHandler;
+			try {
+				extHandler = (ExtendedMessageHandler)handler;
+			}
+			catch (ClassCastException e) { continue; }
+
+			try {
+				extHandler.postProcess(msg);
+			}
+			catch (Throwable e) {
+				logger.log(Level.SEVERE, "A MessageHandler#postProcess() threw an Exception.", e);
+			}
+		}
+	}
+}
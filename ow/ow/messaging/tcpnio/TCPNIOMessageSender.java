@@ -0,0 +1,281 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.tcpnio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.messaging.InetMessagingAddress;
+import ow.messaging.Message;
+import ow.messaging.MessageFuture;
+import ow.messaging.MessageSender;
+import ow.messaging.MessagingAddress;
+import ow.messaging.ReplyCallback;
+import ow.messaging.Tag;
+import ow.stat.MessagingReporter;
+import ow.util.Timer;
+import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.SingletonThreadPoolExecutors;
+
+public class TCPNIOMessageSender implements MessageSender {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private final TCPNIOMessageReceiver receiver;
+
+	protected TCPNIOMessageSender(TCPNIOMessageReceiver receiver) {
+		this.receiver = receiver;
+	}
+
+	public void send(MessagingAddress dest, Message msg) throws IOException {
+		this.adjustLoopbackAddress((InetMessagingAddress)dest);
+
+		// destination is local
+		MessagingAddress selfAddress = this.receiver.getSelfAddress();
+		if (dest.equals(selfAddress)) {
+			this.receiver.processMessage(msg);
+			this.receiver.postProcessMessage(msg);
+			return;
+		}
+
+		// destination is remote
+		Connection conn = this.getConnection(dest, msg);
+
+		this.send(conn, dest, msg);
+
+		this.receiver.releaseConnection(conn);
+	}
+
+	private Connection getConnection(MessagingAddress dest, Message msg) throws IOException {
+		InetSocketAddress sockAddr = ((InetMessagingAddress)dest).getInetSocketAddress();
+
+		try {
+			return this.receiver.getConnection(sockAddr);
+		}
+		catch (IOException e) {
+			logger.log(Level.INFO, "Failed to connect: " + dest);
+
+			// notify statistics collector
+			this.notifyOfFailure(dest, msg);
+
+			throw e;
+		}
+	}
+
+	private void send(Connection conn, MessagingAddress dest, Message msg) throws IOException {
+		this.send(conn, dest, msg, 0);
+	}
+
+	private void send(Connection conn, MessagingAddress dest, Message msg, int requestID) throws IOException {
+		logger.log(Level.INFO, "send(" + dest + ", " + Tag.getNameByNumber(msg.getTag()) + ")");
+
+		// set signature
+		byte[] sig = this.receiver.provider.getMessageSignature();
+		msg.setSignature(sig);
+
+		// send
+		try {
+			ByteBuffer frame = Message.encodeIntoPooledBuffer(msg, this.receiver.codec, requestID);
+			int len = frame.remaining();
+			conn.write(frame);
+
+			// notify statistics collector
+			MessagingReporter msgReporter = this.receiver.getMessagingReporter();
+			if (msgReporter != null) {
+				msgReporter.notifyStatCollectorOfMessageSent(dest, msg, len);
+			}
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "Could not write a message.");
+
+			conn.close();
+
+			// notify statistics collector
+			this.notifyOfFailure(dest, msg);
+
+			throw e;
+		}
+	}
+
+	public Message sendAndReceive(MessagingAddress dest, final Message msg)
+			throws IOException {
+		this.adjustLoopbackAddress((InetMessagingAddress)dest);
+
+		Message ret = null;
+
+		// destination is local
+		MessagingAddress selfAddress = this.receiver.getSelfAddress();
+		if (dest.equals(selfAddress)) {
+			ret = this.receiver.processMessage(msg);
+
+			if (this.receiver.extMessageHandlerRegistered) {
+				Runnable r = new Runnable () {
+					public void run() {
+						TCPNIOMessageSender.this.receiver.postProcessMessage(msg);
+					}
+				};
+
+				if (this.receiver.config.getUseThreadPool()) {
+					SingletonThreadPoolExecutors.getThreadPool(
+							ExecutorBlockingMode.NON_BLOCKING, false).submit(r);
+				}
+				else {
+					Thread t = new Thread(r);
+					t.setName("TCPNIOMessageSender: post-processing thread");
+					t.setDaemon(false);
+					t.start();
+				}
+			}
+
+			return ret;
+		}
+
+		// destination is remote
+		Connection conn = this.getConnection(dest, msg);
+
+		long timeout = this.receiver.provider.getTimeoutCalculator().calculateTimeout(dest);
+		long start = Timer.currentTimeMillis();
+
+		conn.expectReply();
+		this.send(conn, dest, msg);
+
+		// receive
+		try {
+			ret = conn.awaitReply(timeout);
+		}
+		catch (IOException e) {
+			ret = null;
+		}
+
+		if (ret == null) {
+			logger.log(Level.INFO, "Timeout: " + timeout + " msec.");
+
+			// a late reply would be taken as the reply to the next request
+			conn.close();
+
+			// notify statistics collector
+			this.notifyOfFailure(dest, msg);
+
+			throw new IOException("Timeout:" + timeout + " msec.");
+		}
+
+		this.receiver.releaseConnection(conn);
+
+		// timeout calculation
+		this.receiver.provider.getTimeoutCalculator().updateRTT(dest, (int)(Timer.currentTimeMillis() - start));
+
+		return ret;
+	}
+
+	public MessageFuture sendAndReceiveAsync(final MessagingAddress dest, final Message msg,
+			final ReplyCallback callback) {
+		this.adjustLoopbackAddress((InetMessagingAddress)dest);
+
+		// destination is local
+		MessagingAddress selfAddress = this.receiver.getSelfAddress();
+		if (dest.equals(selfAddress)) {
+			final MessageFuture future = new MessageFuture(callback);
+
+			Runnable r = new Runnable () {
+				public void run() {
+					future.complete(TCPNIOMessageSender.this.receiver.processMessage(msg));
+					TCPNIOMessageSender.this.receiver.postProcessMessage(msg);
+				}
+			};
+
+			if (this.receiver.config.getUseThreadPool()) {
+				SingletonThreadPoolExecutors.getThreadPool(
+						ExecutorBlockingMode.NON_BLOCKING, false).submit(r);
+			}
+			else {
+				Thread t = new Thread(r);
+				t.setName("TCPNIOMessageSender: processing thread");
+				t.setDaemon(false);
+				t.start();
+			}
+
+			return future;
+		}
+
+		// destination is remote
+		// a connection is returned to the pool just after writing
+		// because the reply is matched to the request by the request ID.
+		final long start = Timer.currentTimeMillis();
+		long timeout = this.receiver.provider.getTimeoutCalculator().calculateTimeout(dest);
+
+		MessageFuture future = new MessageFuture(new ReplyCallback() {
+			public void replied(Message reply) {
+				// timeout calculation
+				receiver.provider.getTimeoutCalculator().updateRTT(dest, (int)(Timer.currentTimeMillis() - start));
+
+				if (callback != null) callback.replied(reply);
+			}
+
+			public void failed(IOException e) {
+				if (e instanceof SocketTimeoutException) {
+					// notify statistics collector
+					notifyOfFailure(dest, msg);
+				}
+
+				if (callback != null) callback.failed(e);
+			}
+		});
+
+		Connection conn;
+		try {
+			conn = this.getConnection(dest, msg);
+		}
+		catch (IOException e) {
+			future.fail(e);
+			return future;
+		}
+
+		int requestID = this.receiver.pendingRequests.register(future, timeout, conn);
+
+		try {
+			this.send(conn, dest, msg, requestID);
+		}
+		catch (IOException e) {
+			this.receiver.pendingRequests.fail(requestID, e);
+			return future;
+		}
+
+		this.receiver.releaseConnection(conn);
+
+		return future;
+	}
+
+	private void notifyOfFailure(MessagingAddress dest, Message msg) {
+		MessagingReporter msgReporter = this.receiver.getMessagingReporter();
+		if (msgReporter != null) {
+			msgReporter.notifyStatCollectorOfDeletedNode(
+					msg.getSource(), dest, msg.getTag());
+		}
+	}
+
+	private void adjustLoopbackAddress(InetMessagingAddress dest) {
+		// adjust loopback address (e.g. 127.0.0.1) to a real address
+		if (dest.getInetAddress().isLoopbackAddress()) {
+			dest.setInetAddress(((InetMessagingAddress)this.receiver.getSelfAddress()).getInetAddress());
+
+			logger.log(Level.INFO, "destination is loopback address and adjusted to " + dest);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.tcpnio;
+
+import ow.messaging.MessagingConfiguration;
+
+public final class TCPNIOMessagingConfiguration extends MessagingConfiguration {
+	public final static int DEFAULT_SELECTOR_THREADS = 2;
+	public final static int DEFAULT_WORKER_THREADS = 16;
+	public final static int DEFAULT_WORKER_QUEUE_SIZE = 1024;
+	public final static int DEFAULT_CONNECTION_POOL_SIZE = 256;
+
+	private int selectorThreads = DEFAULT_SELECTOR_THREADS;
+	/**
+	 * Number of threads which multiplex all connections.
+	 */
+	public int getSelectorThreads() { return this.selectorThreads; }
+	public int setSelectorThreads(int num) {
+		int old = this.selectorThreads;
+		this.selectorThreads = num;
+		return old;
+	}
+
+	private int workerThreads = DEFAULT_WORKER_THREADS;
+	/**
+	 * Number of threads which process decoded messages.
+	 */
+	public int getWorkerThreads() { return this.workerThreads; }
+	public int setWorkerThreads(int num) {
+		int old = this.workerThreads;
+		this.workerThreads = num;
+		return old;
+	}
+
+	private int workerQueueSize = DEFAULT_WORKER_QUEUE_SIZE;
+	/**
+	 * Number of decoded messages waiting for a worker.
+	 * A message is disposed and its connection is closed if the queue is full,
+	 * so that a blocking handler never runs on a selector thread.
+	 */
+	public int getWorkerQueueSize() { return this.workerQueueSize; }
+	public int setWorkerQueueSize(int size) {
+		int old = this.workerQueueSize;
+		this.workerQueueSize = size;
+		return old;
+	}
+
+	private int connectionPoolSize = DEFAULT_CONNECTION_POOL_SIZE;
+	/**
+	 * Number of idle outgoing connections kept open.
+	 */
+	public int getConnectionPoolSize() { return this.connectionPoolSize; }
+	public int setConnectionPoolSize(int size) {
+		int old = this.connectionPoolSize;
+		this.connectionPoolSize = size;
+		return old;
+	}
+}
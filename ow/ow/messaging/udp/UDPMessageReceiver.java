@@ -34,6 +34,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import ow.id.IDAddressPair;
+import ow.messaging.BufferPool;
 import ow.messaging.ExtendedMessageHandler;
 import ow.messaging.InetMessagingAddress;
 import ow.messaging.Message;
@@ -43,7 +44,10 @@ import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
 import ow.messaging.Signature;
 import ow.messaging.Tag;
+import ow.messaging.codec.MessageCodec;
+import ow.messaging.codec.MessageCodecFactory;
 import ow.messaging.upnp.Mapping;
+import ow.messaging.util.PendingRequestTable;
 import ow.messaging.util.UPnPAddressPortMapper;
 import ow.stat.MessagingReporter;
 import ow.stat.StatConfiguration;
@@ -61,6 +65,8 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 	protected UDPMessagingProvider provider;
 	private UDPMessageSender sender;
 	protected SocketPool sockPool;
+	protected final MessageCodec codec;
+	protected final PendingRequestTable pendingRequests = new PendingRequestTable();
 	private Thread receiverThread;
 	private Set<Thread> handlerThreads = Collections.synchronizedSet(new HashSet<Thread>());
 
@@ -78,6 +84,7 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 			UDPMessagingConfiguration config, UDPMessagingProvider provider) throws IOException {
 		this.config = config;
 		this.provider = provider;
+		this.codec = MessageCodecFactory.getCodec(config.getMessageCodec());
 
 		// prepare a server socket
 		this.sock = DatagramChannel.open();
@@ -208,6 +215,9 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 
 		this.handlerThreads.clear();
 
+		// fail requests waiting for replies
+		this.pendingRequests.failAll(null, new IOException("Receiver stopped."));
+
 		// for UDP hole punching
 		synchronized (this) {
 			if (this.holePunchingDaemon != null) {
@@ -257,7 +267,10 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 	}
 
 	public void run() {
-		ByteBuffer buf = ByteBuffer.allocate(UDPMessageSender.MAX_MSG_SIZE);
+		// a direct buffer kept during the life of this thread.
+		// a message is decoded from it before the next receive.
+		BufferPool bufPool = BufferPool.getSharedPool();
+		ByteBuffer buf = bufPool.acquire(UDPMessageSender.MAX_MSG_SIZE);
 		InetSocketAddress srcAddr = null;
 
 		while (true) {
@@ -268,9 +281,10 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 			}
 			catch (IOException e) {
 				logger.log(Level.WARNING, "DatagramSocket#receive() threw an Exception and the receiver will die.");
+				bufPool.release(buf);
 				return;
 			}
-			buf.rewind();
+			buf.flip();
 
 			logger.log(Level.INFO, "Source address: " + srcAddr);
 
@@ -283,6 +297,11 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 				logger.log(Level.WARNING, "Could not decode the received message (corrupted ?).", e);
 				continue;
 			}
+			catch (RuntimeException e) {
+				// a malformed datagram must not stop this thread
+				logger.log(Level.WARNING, "Could not decode the received message from " + srcAddr + ".", e);
+				continue;
+			}
 
 			// check signature
 			byte[] acceptableSig = this.provider.getMessageSignature();
@@ -301,6 +320,12 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 			if (!Signature.match(sig, acceptableSig))
 				continue;
 
+			// a reply to an asynchronous request
+			if (msg.isReply()) {
+				this.pendingRequests.complete(msg, srcAddr);
+				continue;
+			}
+
 			// invoke a Thread handling the incoming Message
 			Runnable r = new UDPMessageHandler(srcAddr, msg);
 
@@ -411,11 +436,13 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 				MessagingAddress src =
 					(msg.getSource() != null ? msg.getSource().getAddress() : null);
 				try {
-					ByteBuffer buf = sender.send(sock, this.srcAddr, src, ret, true);
+					// reply with the codec of the request
+					MessageCodec replyCodec = MessageCodecFactory.getCodec(Signature.getCodecID(msg.getSignature()));
+					int len = sender.send(sock, this.srcAddr, src, ret, replyCodec, Message.getReplyID(msg), true);
 
 					// notify statistics collector
 					if (src != null) {
-						msgReporter.notifyStatCollectorOfMessageSent(src, ret, buf.remaining());
+						msgReporter.notifyStatCollectorOfMessageSent(src, ret, len);
 					}
 				}
 				catch (IOException e) {
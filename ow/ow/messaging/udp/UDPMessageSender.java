@@ -19,19 +19,25 @@ package ow.messaging.udp;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import ow.id.IDAddressPair;
+import ow.messaging.BufferPool;
 import ow.messaging.InetMessagingAddress;
 import ow.messaging.Message;
+import ow.messaging.MessageFuture;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
+import ow.messaging.ReplyCallback;
 import ow.messaging.Tag;
+import ow.messaging.codec.MessageCodec;
 import ow.stat.MessagingReporter;
 import ow.util.AlarmClock;
+import ow.util.Timer;
 import ow.util.concurrent.SingletonThreadPoolExecutors;
 import ow.util.concurrent.ExecutorBlockingMode;
 
@@ -84,8 +90,24 @@ public final class UDPMessageSender implements MessageSender {
 		}
 	}
 
-	protected ByteBuffer send(DatagramChannel sock, SocketAddress sockAddr /* actual destination */,
+	protected int send(DatagramChannel sock, SocketAddress sockAddr /* actual destination */,
 			MessagingAddress dest, Message msg, boolean isReply) throws IOException {
+		return send(sock, sockAddr, dest, msg, this.receiver.codec, isReply);
+	}
+
+	protected int send(DatagramChannel sock, SocketAddress sockAddr /* actual destination */,
+			MessagingAddress dest, Message msg, MessageCodec codec, boolean isReply) throws IOException {
+		return send(sock, sockAddr, dest, msg, codec, 0, isReply);
+	}
+
+	/**
+	 * Send a message.
+	 *
+	 * @param requestID an ID put to the header, or 0.
+	 * @return the length of the sent datagram.
+	 */
+	protected int send(DatagramChannel sock, SocketAddress sockAddr /* actual destination */,
+			MessagingAddress dest, Message msg, MessageCodec codec, int requestID, boolean isReply) throws IOException {
 		// UDP hole punching
 		int tag = msg.getTag();
 		if (tag != Tag.PUNCH_HOLE_REQ.getNumber()
@@ -114,17 +136,19 @@ public final class UDPMessageSender implements MessageSender {
 		msg.setSignature(sig);
 
 		// send
-		ByteBuffer buf = Message.encode(msg);
+		BufferPool bufPool = BufferPool.getSharedPool();
+		ByteBuffer buf = Message.encodeIntoPooledBuffer(msg, codec, requestID);
 		int payloadLen = buf.remaining();
 
 		if (payloadLen >= UDPMessageSender.MAX_MSG_SIZE) {
+			bufPool.release(buf);
+
 			logger.log(Level.WARNING, "message is too large: " + payloadLen);
 			throw new IOException("message is too large: " + payloadLen);
 		}
 
 		try {
 			sock.send(buf, sockAddr);
-			buf.rewind();
 
 			if (dest != null) {
 				this.receiver.setLastSend((InetMessagingAddress)dest);	// for UDP hole punching
@@ -132,7 +156,7 @@ public final class UDPMessageSender implements MessageSender {
 				// notify statistics collector
 				MessagingReporter msgReporter = this.receiver.getMessagingReporter();
 				if (msgReporter != null) {
-					msgReporter.notifyStatCollectorOfMessageSent(dest, msg, buf.remaining());
+					msgReporter.notifyStatCollectorOfMessageSent(dest, msg, payloadLen);
 				}
 			}
 		}
@@ -148,8 +172,11 @@ public final class UDPMessageSender implements MessageSender {
 
 			throw e;
 		}
+		finally {
+			bufPool.release(buf);
+		}
 
-		return buf;
+		return payloadLen;
 	}
 
 	public Message sendAndReceive(MessagingAddress dest, final Message msg) throws IOException {
@@ -188,7 +215,8 @@ public final class UDPMessageSender implements MessageSender {
 
 		// prepare socket
 		DatagramChannel sock;
-		ByteBuffer buf = ByteBuffer.allocate(UDPMessageSender.MAX_MSG_SIZE);
+		BufferPool bufPool = BufferPool.getSharedPool();
+		ByteBuffer buf = bufPool.acquire(UDPMessageSender.MAX_MSG_SIZE);
 
 		if (!this.forReceiver) {
 			sock = this.receiver.sockPool.get();
@@ -197,25 +225,29 @@ public final class UDPMessageSender implements MessageSender {
 			sock = this.receiver.sock;
 		}
 
-		// receive and dispose remaining data
-		sock.configureBlocking(false);
-		while (true) {
-			SocketAddress src = sock.receive(buf);
-			if (src == null) break;
-			buf.rewind();
+		long timeout, start;
 
-			logger.log(Level.INFO, "Data have remained in TCP/IP protocol stack.");
-		}
-		sock.configureBlocking(true);
-
-		// send
-		long timeout = this.receiver.provider.getTimeoutCalculator().calculateTimeout(dest);
-		long start = System.currentTimeMillis();
 		try {
+			// receive and dispose remaining data
+			sock.configureBlocking(false);
+			while (true) {
+				SocketAddress src = sock.receive(buf);
+				if (src == null) break;
+				buf.clear();
+
+				logger.log(Level.INFO, "Data have remained in TCP/IP protocol stack.");
+			}
+			sock.configureBlocking(true);
+
+			// send
+			timeout = this.receiver.provider.getTimeoutCalculator().calculateTimeout(dest);
+			start = System.currentTimeMillis();
+
 			send(sock, ((InetMessagingAddress)dest).getInetSocketAddress(), dest, msg, false);
 		}
 		catch (IOException e) {
 			// rethrow Exception and dispose socket
+			bufPool.release(buf);
 			throw e;
 		}
 
@@ -225,7 +257,7 @@ public final class UDPMessageSender implements MessageSender {
 
 			sock.receive(buf);
 				// should try to fill the buffer?
-			buf.rewind();
+			buf.flip();
 
 			ret = Message.decode(buf);
 
@@ -248,6 +280,9 @@ public final class UDPMessageSender implements MessageSender {
 
 			throw new IOException("Timeout:" + timeout + " msec.");
 		}
+		finally {
+			bufPool.release(buf);
+		}
 
 		if (!this.forReceiver) {
 			this.receiver.sockPool.put(sock);
@@ -256,6 +291,78 @@ public final class UDPMessageSender implements MessageSender {
 		return ret;
 	}
 
+	public MessageFuture sendAndReceiveAsync(final MessagingAddress dest, final Message msg,
+			final ReplyCallback callback) {
+		this.adjustLoopbackAddress((InetMessagingAddress)dest);
+
+		// destination is local
+		MessagingAddress selfAddress = this.receiver.getSelfAddress();
+		if (dest.equals(selfAddress)) {
+			final MessageFuture future = new MessageFuture(callback);
+
+			Runnable r = new Runnable () {
+				public void run() {
+					future.complete(UDPMessageSender.this.receiver.processMessage(msg));
+					UDPMessageSender.this.receiver.postProcessMessage(msg);
+				}
+			};
+
+			if (this.receiver.config.getUseThreadPool()) {
+				SingletonThreadPoolExecutors.getThreadPool(
+						ExecutorBlockingMode.NON_BLOCKING, false).submit(r);
+			}
+			else {
+				Thread t = new Thread(r);
+				t.setName("UDPMessageSender: processing thread");
+				t.setDaemon(false);
+				t.start();
+			}
+
+			return future;
+		}
+
+		// destination is remote
+		// a request is sent from the socket of the receiver, whose thread receives the reply.
+		final long start = Timer.currentTimeMillis();
+		long timeout = this.receiver.provider.getTimeoutCalculator().calculateTimeout(dest);
+
+		MessageFuture future = new MessageFuture(new ReplyCallback() {
+			public void replied(Message reply) {
+				// timeout calculation
+				receiver.provider.getTimeoutCalculator().updateRTT(dest, (int)(Timer.currentTimeMillis() - start));
+
+				if (callback != null) callback.replied(reply);
+			}
+
+			public void failed(IOException e) {
+				if (e instanceof SocketTimeoutException) {
+					// notify statistics collector
+					MessagingReporter msgReporter = receiver.getMessagingReporter();
+					if (msgReporter != null) {
+						msgReporter.notifyStatCollectorOfDeletedNode(
+								msg.getSource(), dest, msg.getTag());
+					}
+				}
+
+				if (callback != null) callback.failed(e);
+			}
+		});
+
+		// the reply has to come from the destination
+		SocketAddress destAddr = ((InetMessagingAddress)dest).getInetSocketAddress();
+		int requestID = this.receiver.pendingRequests.register(future, timeout, destAddr);
+
+		try {
+			send(this.receiver.sock, destAddr, dest, msg,
+					this.receiver.codec, requestID, false);
+		}
+		catch (IOException e) {
+			this.receiver.pendingRequests.fail(requestID, e);
+		}
+
+		return future;
+	}
+
 	private void adjustLoopbackAddress(InetMessagingAddress dest) {
 		// adjust loopback address (e.g. 127.0.0.1) to a real address
 		if (dest.getInetAddress().isLoopbackAddress()) {
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.util;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.messaging.Message;
+import ow.messaging.MessageFuture;
+import ow.util.Timer;
+
+/**
+ * A table of requests waiting for replies.
+ * A messaging provider puts the ID returned by {@link #register(MessageFuture, long, Object) register()}
+ * to the header of a request and passes a received reply to {@link #complete(Message, Object) complete()}
+ * with where it came from. A reply from elsewhere does not complete the request,
+ * since a sequential ID is easy to guess.
+ * A request which is not replied in time fails with a SocketTimeoutException.
+ */
+public final class PendingRequestTable {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private final ConcurrentMap<Integer,PendingRequest> table =
+		new ConcurrentHashMap<Integer,PendingRequest>();
+	private final AtomicInteger lastID;
+
+	public PendingRequestTable() {
+		this.lastID = new AtomicInteger(new Random().nextInt());
+	}
+
+	/**
+	 * Registers a request.
+	 *
+	 * @param timeout timeout in millisecond.
+	 * @param owner an object by which requests are failed together and from which the reply has to come,
+	 * 		e.g. a connection or the address of the destination. Can be null.
+	 * @return a request ID, which is positive.
+	 */
+	public int register(MessageFuture future, long timeout, Object owner) {
+		int id;
+		do {
+			id = this.lastID.incrementAndGet() & 0x7fffffff;
+		} while (id == 0 || this.table.containsKey(id));
+
+		PendingRequest req = new PendingRequest(id, future, timeout, owner);
+		this.table.put(id, req);
+
+		Timer.getSingletonTimer().schedule(req, Timer.currentTimeMillis() + timeout, true /*isDaemon*/);
+
+		return id;
+	}
+
+	/**
+	 * Completes the request to which the given message replies.
+	 *
+	 * @param source the connection or address from which the reply came.
+	 * @return false if no request from the source is waiting for the message.
+	 */
+	public boolean complete(Message reply, Object source) {
+		PendingRequest req = this.table.get(reply.getRequestID());
+		if (req != null && req.owner != null && !req.owner.equals(source)) {
+			logger.log(Level.WARNING, "Dispose a reply from an unexpected source: " + source);
+			return false;
+		}
+		if (req == null || !this.table.remove(req.id, req)) {
+			logger.log(Level.INFO, "Dispose a reply not waited for: " + reply);
+			return false;
+		}
+
+		Timer.getSingletonTimer().cancel(req);
+
+		return req.future.complete(reply);
+	}
+
+	/**
+	 * Fails the specified request, e.g. when it could not be sent.
+	 */
+	public void fail(int requestID, IOException e) {
+		PendingRequest req = this.table.remove(requestID);
+		if (req == null) return;
+
+		Timer.getSingletonTimer().cancel(req);
+
+		req.future.fail(e);
+	}
+
+	/**
+	 * Fails all requests registered with the given owner.
+	 * If owner is null, fails all requests.
+	 */
+	public void failAll(Object owner, IOException e) {
+		List<PendingRequest> failed = new ArrayList<PendingRequest>();
+
+		for (PendingRequest req: this.table.values()) {
+			if (owner == null || owner == req.owner) {
+				if (this.table.remove(req.id) != null) failed.add(req);
+			}
+		}
+
+		for (PendingRequest req: failed) {
+			Timer.getSingletonTimer().cancel(req);
+			req.future.fail(e);
+		}
+	}
+
+	/**
+	 * Returns whether a request registered with the given owner waits for a reply.
+	 */
+	public boolean hasPending(Object owner) {
+		for (PendingRequest req: this.table.values()) {
+			if (req.owner == owner) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of requests waiting for replies.
+	 */
+	public int size() { return this.table.size(); }
+
+	private final class PendingRequest implements Runnable {
+		private final int id;
+		private final MessageFuture future;
+		private final long timeout;
+		private final Object owner;
+
+		PendingRequest(int id, MessageFuture future, long timeout, Object owner) {
+			this.id = id;
+			this.future = future;
+			this.timeout = timeout;
+			this.owner = owner;
+		}
+
+		// timeout
+		public void run() {
+			if (table.remove(this.id) == null) return;
+
+			logger.log(Level.INFO, "Timeout: " + this.timeout + " msec.");
+
+			this.future.fail(new SocketTimeoutException("Timeout:" + this.timeout + " msec."));
+		}
+	}
+}
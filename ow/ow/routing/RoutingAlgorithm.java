@@ -36,6 +36,12 @@ public interface RoutingAlgorithm {
 	 */
 	BigInteger distance(ID to, ID from);
 
+	/**
+	 * Compares distance(to1, from1) with distance(to2, from2).
+	 * Algorithms override this to compare without creating BigIntegers.
+	 */
+	int compareDistance(ID to1, ID from1, ID to2, ID from2);
+
 	/**
 	 * Returns the initial routing context.
 	 */
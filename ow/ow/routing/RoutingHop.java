@@ -37,6 +37,10 @@ public final class RoutingHop implements Serializable {
 		return new RoutingHop(node, Timer.currentTimeMillis());
 	}
 
+	public static RoutingHop newInstance(IDAddressPair node, long time) {
+		return new RoutingHop(node, time);
+	}
+
 	public IDAddressPair getIDAddressPair() { return this.node; }
 	public long getTime() { return this.time; }
 
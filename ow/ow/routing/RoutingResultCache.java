@@ -0,0 +1,203 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.routing;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ow.id.ID;
+import ow.id.IDAddressPair;
+import ow.messaging.MessagingAddress;
+
+/**
+ * A cache of routing results, which maps a target ID to the result of the last lookup for it.
+ * Entries expire after a TTL and the least recently used ones are evicted beyond the capacity.
+ * An entry is invalidated when one of its root candidates is found failed.
+ *
+ * A cached result is not verified when it is returned.
+ * A user which finds the cached root candidates rejecting its request calls
+ * {@link #reject(ID) reject()} and routes again.
+ *
+ * @see ow.routing.RoutingServiceConfiguration#getRoutingCacheSize()
+ */
+public final class RoutingResultCache {
+	private final int capacity;
+	private final long ttl;
+	private final Map<ID,CachedResult> table;
+
+	// statistics
+	private long hits, misses, expired, evicted, invalidated, rejected;
+	private long hitAgeSum;
+
+	public RoutingResultCache(int capacity, long ttl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+		this.table = new LinkedHashMap<ID,CachedResult>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<ID,CachedResult> eldest) {
+				if (size() <= RoutingResultCache.this.capacity) return false;
+
+				RoutingResultCache.this.evicted++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached result for the target,
+	 * or null if it is not cached, has expired or has fewer root candidates than requested.
+	 */
+	public synchronized RoutingResult get(ID target, int numRootCandidates) {
+		CachedResult e = this.table.get(target);
+		if (e == null) {
+			this.misses++;
+			return null;
+		}
+
+		long age = System.currentTimeMillis() - e.time;
+		if (age >= this.ttl) {
+			this.table.remove(target);
+			this.expired++;
+			this.misses++;
+			return null;
+		}
+
+		if (e.numRootCandidates < numRootCandidates) {
+			this.misses++;
+			return null;
+		}
+
+		e.used = true;
+		this.hits++;
+		this.hitAgeSum += age;
+
+		IDAddressPair[] rootCands = e.result.getRootCandidates();
+		if (rootCands.length <= numRootCandidates) return e.result;
+
+		return new RoutingResult(e.result.getRoute(), Arrays.copyOf(rootCands, numRootCandidates));
+	}
+
+	/**
+	 * Caches a result of routing which requested the specified number of root candidates.
+	 */
+	public synchronized void put(ID target, int numRootCandidates, RoutingResult result) {
+		if (result == null
+				|| result.getRootCandidates() == null || result.getRootCandidates().length <= 0)
+			return;
+
+		this.table.put(target, new CachedResult(result, numRootCandidates));
+	}
+
+	/**
+	 * Discards the results which include the failed node as a root candidate.
+	 */
+	public void fail(IDAddressPair failedNode) {
+		this.fail(failedNode.getAddress());
+	}
+
+	/**
+	 * Discards the results which include the failed node as a root candidate.
+	 */
+	public synchronized void fail(MessagingAddress failedAddress) {
+		if (failedAddress == null) return;
+
+		Iterator<CachedResult> it = this.table.values().iterator();
+		while (it.hasNext()) {
+			for (IDAddressPair p: it.next().result.getRootCandidates()) {
+				if (p != null && failedAddress.equals(p.getAddress())) {
+					it.remove();
+					this.invalidated++;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Discards the result for the target because its root candidates rejected a request.
+	 *
+	 * @return true if the result had been returned from this cache,
+	 * 		which means a full lookup may find other root candidates.
+	 */
+	public synchronized boolean reject(ID target) {
+		CachedResult e = this.table.remove(target);
+		if (e == null || !e.used) return false;
+
+		this.rejected++;
+		return true;
+	}
+
+	public synchronized void clear() {
+		this.table.clear();
+	}
+
+	public synchronized int size() { return this.table.size(); }
+	public int getCapacity() { return this.capacity; }
+	public long getTTL() { return this.ttl; }
+
+	public synchronized long getHits() { return this.hits; }
+	public synchronized long getMisses() { return this.misses; }
+
+	/**
+	 * Returns the ratio of lookups served by this cache.
+	 */
+	public synchronized double getHitRate() {
+		long lookups = this.hits + this.misses;
+		return (lookups > 0 ? (double)this.hits / lookups : 0.0);
+	}
+
+	/**
+	 * Returns the number of results which had been returned and were rejected later.
+	 */
+	public synchronized long getRejected() { return this.rejected; }
+
+	/**
+	 * Returns the mean age in millisecond of the results returned from this cache.
+	 */
+	public synchronized long getMeanHitAge() {
+		return (this.hits > 0 ? this.hitAgeSum / this.hits : 0L);
+	}
+
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("size: ").append(this.table.size()).append('/').append(this.capacity);
+		sb.append(", hit rate: ").append(String.format("%.1f", getHitRate() * 100.0));
+		sb.append("% (").append(this.hits).append('/').append(this.hits + this.misses).append(')');
+		sb.append(", mean hit age: ").append(getMeanHitAge()).append(" msec");
+		sb.append(", expired: ").append(this.expired);
+		sb.append(", evicted: ").append(this.evicted);
+		sb.append(", invalidated by failure: ").append(this.invalidated);
+		sb.append(", rejected: ").append(this.rejected);
+
+		return sb.toString();
+	}
+
+	private final static class CachedResult {
+		private final RoutingResult result;
+		private final int numRootCandidates;
+		private final long time;
+		private boolean used;
+
+		CachedResult(RoutingResult result, int numRootCandidates) {
+			this.result = result;
+			this.numRootCandidates = numRootCandidates;
+			this.time = System.currentTimeMillis();
+		}
+	}
+}
@@ -149,6 +149,11 @@ public interface RoutingService {
 	 */
 	RoutingAlgorithm getRoutingAlgorithm();
 
+	/**
+	 * Returns the cache of routing results, or null if routing results are not cached.
+	 */
+	RoutingResultCache getRoutingResultCache();
+
 	/**
 	 * Sets the address of a statistics collector to which communication status is reported.
 	 */
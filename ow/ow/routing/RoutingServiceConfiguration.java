@@ -23,8 +23,11 @@ public class RoutingServiceConfiguration {
 	public final static int DEFAULT_NUM_OF_ROOT_CANDIDATES_REQUESTED_WHEN_JOINING = 4;
 	public final static int DEFAULT_NUM_OF_NODES_MAINTAINED = 20;
 	public final static int DEFAULT_QUERY_CONCURRENCY = 3;	// 3 in the Kademlia paper
+	public final static long DEFAULT_QUERY_STALL_TIMEOUT = 1000L;
 	public final static boolean DEFAULT_USE_THREAD_POOL = true;
 	public final static long DEFAULT_ROUTING_TIMEOUT = 30 * 1000L;
+	public final static int DEFAULT_ROUTING_CACHE_SIZE = 0;	// disabled
+	public final static long DEFAULT_ROUTING_CACHE_TTL = 30 * 1000L;
 
 	private int ttl = DEFAULT_TTL;
 	public int getTTL() { return this.ttl; }
@@ -79,6 +82,20 @@ public class RoutingServiceConfiguration {
 		return old;
 	}
 
+	private long queryStallTimeout = DEFAULT_QUERY_STALL_TIMEOUT;
+	/**
+	 * Time in millisecond after which an outstanding query does not occupy a slot of query concurrency.
+	 * This property is provided mainly for
+	 * {@link ow.routing.impl.AsyncIterativeRoutingDriver AsyncIterativeRoutingDriver}.
+	 * 0 disables it.
+	 */
+	public long getQueryStallTimeout() { return this.queryStallTimeout; }
+	public long setQueryStallTimeout(long timeout) {
+		long old = this.queryStallTimeout;
+		this.queryStallTimeout = timeout;
+		return old;
+	}
+
 	private boolean useThreadPool = DEFAULT_USE_THREAD_POOL;
 	public boolean getUseThreadPool() { return this.useThreadPool; }
 	public boolean setUseThreadPool(boolean use) {
@@ -98,4 +115,30 @@ public class RoutingServiceConfiguration {
 		this.routingTimeout = timeout;
 		return old;
 	}
+
+	private int routingCacheSize = DEFAULT_ROUTING_CACHE_SIZE;
+	/**
+	 * Number of targets whose routing results are cached,
+	 * so that routing to the root node for the same target does not repeat a lookup.
+	 * 0 disables the cache.
+	 *
+	 * @see ow.routing.RoutingResultCache
+	 */
+	public int getRoutingCacheSize() { return this.routingCacheSize; }
+	public int setRoutingCacheSize(int size) {
+		int old = this.routingCacheSize;
+		this.routingCacheSize = size;
+		return old;
+	}
+
+	private long routingCacheTTL = DEFAULT_ROUTING_CACHE_TTL;
+	/**
+	 * Time in millisecond for which a cached routing result is used.
+	 */
+	public long getRoutingCacheTTL() { return this.routingCacheTTL; }
+	public long setRoutingCacheTTL(long ttl) {
+		long old = this.routingCacheTTL;
+		this.routingCacheTTL = ttl;
+		return old;
+	}
 }
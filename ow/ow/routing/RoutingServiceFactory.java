@@ -28,7 +28,8 @@ public class RoutingServiceFactory {
 
 	private final static Class/*<RoutingServiceProvider>*/[] PROVIDERS = {
 		ow.routing.impl.IterativeRoutingDriverProvider.class,	// "Iterative"
-		ow.routing.impl.RecursiveRoutingDriverProvider.class		// "Recursive"
+		ow.routing.impl.RecursiveRoutingDriverProvider.class,	// "Recursive"
+		ow.routing.impl.AsyncIterativeRoutingDriverProvider.class	// "AsyncIterative"
 	};
 
 	private final static Map<String,RoutingServiceProvider> providerTable; 
@@ -66,7 +67,7 @@ public class RoutingServiceFactory {
 	/**
 	 * Return a routing service provider associated with the specified routing style.
 	 *
-	 * @param routingStyle name of a routing style, which should be "Iterative" or "Recursive".
+	 * @param routingStyle name of a routing style, which should be "Iterative", "Recursive" or "AsyncIterative".
 	 * @return a provider.
 	 * @throws NoSuchProviderException
 	 */
@@ -81,7 +82,7 @@ public class RoutingServiceFactory {
 	/**
 	 * Return the ID of the specified routing style.
 	 *
-	 * @param routingStyle name of a routing style, which should be "Iterative" or "Recursive".
+	 * @param routingStyle name of a routing style, which should be "Iterative", "Recursive" or "AsyncIterative".
 	 * @return a provider.
 	 * @throws NoSuchProviderException
 	 */
@@ -92,6 +92,15 @@ public abstract class AbstractRoutingAlgorithm implements RoutingAlgorithm {
 		return null;
 	}
 
+	/**
+	 * The default implementation of
+	 * {@link RoutingAlgorithm#compareDistance(ID, ID, ID, ID) compareDistance()},
+	 * which compares the results of {@link RoutingAlgorithm#distance(ID, ID) distance()}.
+	 */
+	public int compareDistance(ID to1, ID from1, ID to2, ID from2) {
+		return this.distance(to1, from1).compareTo(this.distance(to2, from2));
+	}
+
 	public final void fail(IDAddressPair failedNode) {
 		int numOfFailures = this.failureTable.register(failedNode);
 
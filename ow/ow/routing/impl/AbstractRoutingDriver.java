@@ -47,6 +47,7 @@ import ow.routing.RoutingAlgorithmProvider;
 import ow.routing.RoutingException;
 import ow.routing.RoutingHop;
 import ow.routing.RoutingResult;
+import ow.routing.RoutingResultCache;
 import ow.routing.RoutingRuntime;
 import ow.routing.RoutingService;
 import ow.routing.RoutingServiceConfiguration;
@@ -82,6 +83,8 @@ public abstract class AbstractRoutingDriver implements RoutingRuntime, RoutingSe
 
 	protected MessagingAddress statCollectorAddress;
 
+	private final RoutingResultCache routingCache;	// null if disabled
+
 	private final IDAddressPair selfIDAddressPair;
 	private int selfAddressHashCode;	// to check a change of self address
 
@@ -108,6 +111,13 @@ public abstract class AbstractRoutingDriver implements RoutingRuntime, RoutingSe
 
 		this.config = conf;
 
+		if (conf.getRoutingCacheSize() > 0) {
+			this.routingCache = new RoutingResultCache(conf.getRoutingCacheSize(), conf.getRoutingCacheTTL());
+		}
+		else {
+			this.routingCache = null;
+		}
+
 		// set self ID
 		MessagingAddress selfAddr = this.receiver.getSelfAddress();
 		int idSizeInByte = algoConf.getIDSizeInByte();
@@ -145,6 +155,45 @@ public abstract class AbstractRoutingDriver implements RoutingRuntime, RoutingSe
 		return res[0];
 	}
 
+	/**
+	 * Routes to the root nodes of the targets.
+	 * Results cached by a former routing are returned without a lookup if the cache is enabled.
+	 */
+	public RoutingResult[] routeToRootNode(ID[] target, int numRootCandidates) {
+		if (this.routingCache == null) {
+			return this.routeToRootNodeRemotely(target, numRootCandidates);
+		}
+
+		RoutingResult[] ret = new RoutingResult[target.length];
+		List<Integer> missed = new ArrayList<Integer>();
+		for (int i = 0; i < target.length; i++) {
+			ret[i] = this.routingCache.get(target[i], numRootCandidates);
+			if (ret[i] == null) missed.add(i);
+		}
+
+		if (missed.isEmpty()) return ret;
+
+		ID[] missedTarget = new ID[missed.size()];
+		for (int i = 0; i < missedTarget.length; i++) {
+			missedTarget[i] = target[missed.get(i)];
+		}
+
+		RoutingResult[] res = this.routeToRootNodeRemotely(missedTarget, numRootCandidates);
+		if (res == null) return null;
+
+		for (int i = 0; i < missedTarget.length; i++) {
+			ret[missed.get(i)] = res[i];
+			this.routingCache.put(missedTarget[i], numRootCandidates, res[i]);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Routes to the root nodes of the targets by looking up them on other nodes.
+	 */
+	protected abstract RoutingResult[] routeToRootNodeRemotely(ID[] target, int numRootCandidates);
+
 	public RoutingResult routeToClosestNode(ID target, int numRootCandidates)
 			throws RoutingException {
 		ID[] tgts = { target };
@@ -170,6 +219,10 @@ public abstract class AbstractRoutingDriver implements RoutingRuntime, RoutingSe
 
 	public void leave() {
 		this.algorithm.reset();
+
+		if (this.routingCache != null) {
+			this.routingCache.clear();
+		}
 	}
 
 	public synchronized void stop() {
@@ -250,9 +303,17 @@ public abstract class AbstractRoutingDriver implements RoutingRuntime, RoutingSe
 
 		this.algorithm = algo;
 
+		if (this.routingCache != null) {
+			this.routingCache.clear();
+		}
+
 		return old;
 	}
 
+	public RoutingResultCache getRoutingResultCache() {
+		return this.routingCache;
+	}
+
 	public void setStatCollectorAddress(MessagingAddress address) {
 		this.statCollectorAddress = address;
 		this.msgProvider.setMessagingCollectorAddress(address);
@@ -302,6 +363,9 @@ public abstract class AbstractRoutingDriver implements RoutingRuntime, RoutingSe
 		if (this.algorithm != null) {
 			this.algorithm.fail(target);
 		}
+		if (this.routingCache != null) {
+			this.routingCache.fail(target);
+		}
 		return false;
 	}
 
@@ -422,6 +486,10 @@ public abstract class AbstractRoutingDriver implements RoutingRuntime, RoutingSe
 			this.algorithm.fail(failedNode);
 		}
 
+		if (this.routingCache != null) {
+			this.routingCache.fail(failedNode);
+		}
+
 		for (CallbackOnNodeFailure cb: failureCallbackList) {
 			cb.fail(failedNode);
 		}
@@ -0,0 +1,907 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.routing.impl;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import ow.id.ID;
+import ow.id.IDAddressPair;
+import ow.id.IDAddressRoutingContextTriplet;
+import ow.messaging.Message;
+import ow.messaging.MessageReceiver;
+import ow.messaging.MessagingAddress;
+import ow.messaging.MessagingProvider;
+import ow.messaging.ReplyCallback;
+import ow.messaging.Tag;
+import ow.routing.CallbackResultFilter;
+import ow.routing.RoutingAlgorithmConfiguration;
+import ow.routing.RoutingAlgorithmProvider;
+import ow.routing.RoutingContext;
+import ow.routing.RoutingHop;
+import ow.routing.RoutingResult;
+import ow.routing.RoutingServiceConfiguration;
+import ow.stat.MessagingReporter;
+import ow.util.TimerWheel;
+
+/**
+ * A routing driver which performs iterative lookup as an event-driven state machine
+ * over {@link ow.messaging.MessageSender#sendAndReceiveAsync(MessagingAddress, Message, ReplyCallback) asynchronous messaging}.
+ * A lookup does not keep a thread while it waits for replies.
+ * Replies advance lookups on threads of the messaging provider,
+ * and time-outs of all lookups are handled by a single {@link TimerWheel TimerWheel}.
+ *
+ * For a routing algorithm which queries to all contacts (e.g. Kademlia),
+ * up to {@link RoutingServiceConfiguration#getQueryConcurrency() query concurrency} queries
+ * are outstanding per target.
+ * A query which has not been replied within
+ * {@link RoutingServiceConfiguration#getQueryStallTimeout() the stall time-out}
+ * does not count any more, and the reply is still accepted if it arrives.
+ *
+ * Lookups for multiple targets of a routing proceed independently,
+ * but the requests they issue on the same event to the same node are merged
+ * into a multi-target query, whose reply carries the results for each target.
+ *
+ * This driver speaks the same protocol as {@link IterativeRoutingDriver IterativeRoutingDriver}
+ * and joins an overlay in the same way.
+ *
+ * @see ow.routing.impl.IterativeRoutingDriver
+ */
+public final class AsyncIterativeRoutingDriver extends IterativeRoutingDriver {
+	private final static long TIMER_TICK = 10L;	// msec
+	private final static int TIMER_SLOTS = 1024;
+
+	private static TimerWheel timerWheel = null;
+
+	private static TimerWheel getTimerWheel() {
+		synchronized (AsyncIterativeRoutingDriver.class) {
+			if (timerWheel == null) {
+				timerWheel = new TimerWheel("Routing time-out", TIMER_TICK, TIMER_SLOTS);
+			}
+		}
+
+		return timerWheel;
+	}
+
+	// statistics
+	private final AtomicLong numLookups = new AtomicLong();
+	private final AtomicLong numQueries = new AtomicLong();
+	private final AtomicLong numRequests = new AtomicLong();
+	private final AtomicLong numFailedQueries = new AtomicLong();
+	private final AtomicLong numStalledQueries = new AtomicLong();
+	private final AtomicLong numTimedOutRoutings = new AtomicLong();
+
+	protected AsyncIterativeRoutingDriver(RoutingServiceConfiguration conf,
+			MessagingProvider provider, MessageReceiver receiver,
+			RoutingAlgorithmProvider algoProvider, RoutingAlgorithmConfiguration algoConf,
+			ID selfID)
+				throws IOException {
+		super(conf, provider, receiver, algoProvider, algoConf, selfID);
+	}
+
+	protected RoutingResult[] routeToRootNodeRemotely(ID[] target, int numRootCandidates) {
+		return this.route(
+				super.adjustLastHop,
+				Tag.ITE_ROUTE_NONE,
+				target, numRootCandidates,
+				null, null, -1, null);
+	}
+
+	public RoutingResult[] routeToClosestNode(ID[] target, int numRootCandidates) {	// for RoutingRuntime interface
+		return this.route(
+				false,
+				Tag.ITE_ROUTE_NONE,
+				target, numRootCandidates,
+				null, null, -1, null);
+	}
+
+	public RoutingResult[] invokeCallbacksOnRoute(ID[] target, int numRootCandidates,
+			Serializable[][] returnedValue,
+			CallbackResultFilter filter, int tag, Serializable[][] args) {
+		return this.route(
+				super.adjustLastHop,
+				Tag.ITE_ROUTE_INVOKE,
+				target, numRootCandidates,
+				filter, returnedValue, tag, args);
+	}
+
+	/**
+	 * Starts routing to the root nodes of the targets and returns without waiting for it.
+	 * The routing cache is not consulted.
+	 * An element of the resulting array is null if routing to the corresponding target failed.
+	 */
+	public Future<RoutingResult[]> routeToRootNodeAsync(ID[] target, int numRootCandidates) {
+		return this.start(
+				super.adjustLastHop,
+				Tag.ITE_ROUTE_NONE,
+				target, numRootCandidates,
+				null, -1, null);
+	}
+
+	private RoutingResult[] route(
+			boolean adjustLastHop,
+			Tag msgType,
+			ID[] target, int numRootCandidates,
+			CallbackResultFilter filter, Serializable[][] resultingCallbackResult, int callbackTag, Serializable[][] callbackArgs) {
+		Routing routing = this.start(adjustLastHop, msgType, target, numRootCandidates,
+				filter, callbackTag, callbackArgs);
+
+		RoutingResult[] ret;
+		try {
+			ret = routing.get();
+		}
+		catch (InterruptedException e) {
+			logger.log(Level.WARNING, "Routing interrupted on " + getSelfIDAddressPair().getAddress());
+
+			routing.cancel(true);
+			Thread.currentThread().interrupt();
+
+			return new RoutingResult[target.length];
+		}
+		catch (CancellationException e) {
+			return new RoutingResult[target.length];
+		}
+
+		if (msgType == Tag.ITE_ROUTE_INVOKE) {
+			// invoke callbacks on this node itself
+			for (int i = 0; i < target.length; i++) {
+				IDAddressPair goal = routing.lookups[i].goal;
+				boolean isFinalNode = getSelfIDAddressPair().equals(goal);
+
+				Serializable res =
+					invokeCallbacks(target[i], callbackTag, callbackArgs[i], filter, null, isFinalNode);
+
+				if (ret[i] != null && resultingCallbackResult != null && resultingCallbackResult[i] != null) {
+					resultingCallbackResult[i][0] =
+						(isFinalNode ? res : routing.lookups[i].callbackResults.get(goal.getIDAddressPair()));
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	private Routing start(
+			boolean adjustLastHop,
+			Tag msgType,
+			ID[] target, int numRootCandidates,
+			CallbackResultFilter filter, int callbackTag, Serializable[][] callbackArgs) {
+		if (numRootCandidates < 1) numRootCandidates = 1;
+
+		// calculate query concurrency
+		int queryConcurrency = this.config.getQueryConcurrency();
+		if ((!this.queryToAllContacts) || (queryConcurrency <= 0)) {
+			queryConcurrency = 1;
+		}
+
+		// notify messaging visualizer
+		MessagingReporter msgReporter = receiver.getMessagingReporter();
+
+		msgReporter.notifyStatCollectorOfEmphasizeNode(
+				this.getSelfIDAddressPair(), this.getSelfIDAddressPair().getID());
+		msgReporter.notifyStatCollectorOfMarkedID(
+				this.getSelfIDAddressPair(), target, 0);
+
+		Routing routing = new Routing(adjustLastHop, msgType, target, numRootCandidates, queryConcurrency,
+				filter, callbackTag, callbackArgs);
+		this.numLookups.addAndGet(target.length);
+
+		List<Request> toSend = new ArrayList<Request>();
+		synchronized (routing) {
+			for (Lookup l: routing.lookups) {
+				l.proceed(toSend);
+			}
+		}
+
+		routing.deadline = getTimerWheel().schedule(routing.new Expiration(), this.config.getRoutingTimeout());
+
+		this.dispatch(routing, toSend);
+
+		return routing;
+	}
+
+	/**
+	 * Sends the requests of lookups,
+	 * merging the ones to the same contact in the same phase into a multi-target query.
+	 */
+	private void dispatch(Routing routing, List<Request> requests) {
+		if (requests.isEmpty()) return;
+
+		Map<Phase,Map<IDAddressPair,Query>> queryTable = new EnumMap<Phase,Map<IDAddressPair,Query>>(Phase.class);
+		List<Query> queries = new ArrayList<Query>();
+
+		for (Request r: requests) {
+			Map<IDAddressPair,Query> queriesInPhase = queryTable.get(r.phase);
+			if (queriesInPhase == null) {
+				queriesInPhase = new HashMap<IDAddressPair,Query>();
+				queryTable.put(r.phase, queriesInPhase);
+			}
+
+			IDAddressPair key = r.contact.getIDAddressPair();
+			Query q = queriesInPhase.get(key);
+			if (q == null) {
+				q = new Query(routing, r.phase, r.contact);
+				queriesInPhase.put(key, q);
+				queries.add(q);
+			}
+			q.add(r);
+		}
+
+		long stallTimeout = config.getQueryStallTimeout();
+
+		for (Query q: queries) {
+			this.numQueries.incrementAndGet();
+			this.numRequests.addAndGet(q.requests.size());
+
+			if (q.phase == Phase.LOOKUP && routing.queryConcurrency > 1 && stallTimeout > 0L) {
+				q.stallTimer = getTimerWheel().schedule(q.new Stall(), stallTimeout);
+			}
+
+			sender.sendAndReceiveAsync(q.contact.getAddress(), q.getMessage(), q);
+		}
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("lookups: ").append(this.numLookups.get());
+		sb.append(", queries: ").append(this.numQueries.get());
+		sb.append(", targets per query: ").append(
+				String.format("%.2f", (double)this.numRequests.get() / Math.max(1L, this.numQueries.get())));
+		sb.append(", failed queries: ").append(this.numFailedQueries.get());
+		sb.append(", stalled queries: ").append(this.numStalledQueries.get());
+		sb.append(", timed-out routings: ").append(this.numTimedOutRoutings.get());
+
+		return sb.toString();
+	}
+
+	/**
+	 * A routing to multiple targets, which is done when lookups for all the targets have been done.
+	 * All the states of the lookups are guarded by this instance.
+	 */
+	private final class Routing implements Future<RoutingResult[]> {
+		private final boolean adjustLastHop;
+		private final Tag msgType;
+		private final int numRootCandidates;
+		private final int queryConcurrency;
+		private final CallbackResultFilter filter;
+		private final int callbackTag;
+
+		private final Lookup[] lookups;
+		private final Set<MessagingAddress> blackList = new HashSet<MessagingAddress>();
+		private int numRunning;
+		private TimerWheel.Timeout deadline;
+
+		private RoutingResult[] results = null;
+		private boolean cancelled = false;
+
+		Routing(boolean adjustLastHop, Tag msgType, ID[] target, int numRootCandidates, int queryConcurrency,
+				CallbackResultFilter filter, int callbackTag, Serializable[][] callbackArgs) {
+			this.adjustLastHop = adjustLastHop;
+			this.msgType = msgType;
+			this.numRootCandidates = numRootCandidates;
+			this.queryConcurrency = queryConcurrency;
+			this.filter = filter;
+			this.callbackTag = callbackTag;
+
+			this.lookups = new Lookup[target.length];
+			for (int i = 0; i < target.length; i++) {
+				this.lookups[i] = new Lookup(this, target[i], (callbackArgs != null ? callbackArgs[i] : null));
+			}
+			this.numRunning = target.length;
+		}
+
+		private boolean isDone0() { return this.results != null || this.cancelled; }
+
+		/**
+		 * Called when a lookup has converged.
+		 */
+		private void lookupDone() {
+			if (--this.numRunning > 0 || this.isDone0()) return;
+
+			RoutingResult[] ret = new RoutingResult[this.lookups.length];
+			for (int i = 0; i < this.lookups.length; i++) {
+				ret[i] = this.lookups[i].result();
+			}
+			this.complete(ret);
+		}
+
+		private void complete(RoutingResult[] ret) {
+			this.results = ret;
+			this.notifyAll();
+
+			if (this.deadline != null) this.deadline.cancel();
+		}
+
+		public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+			if (this.isDone0()) return false;
+
+			this.cancelled = true;
+			this.notifyAll();
+
+			if (this.deadline != null) this.deadline.cancel();
+
+			return true;
+		}
+
+		public synchronized boolean isCancelled() { return this.cancelled; }
+		public synchronized boolean isDone() { return this.isDone0(); }
+
+		public synchronized RoutingResult[] get() throws InterruptedException {
+			while (!this.isDone0()) this.wait();
+
+			if (this.cancelled) throw new CancellationException();
+			return this.results;
+		}
+
+		public synchronized RoutingResult[] get(long timeout, TimeUnit unit)
+				throws InterruptedException, TimeoutException {
+			long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+
+			while (!this.isDone0()) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0L) throw new TimeoutException();
+
+				this.wait(wait);
+			}
+
+			if (this.cancelled) throw new CancellationException();
+			return this.results;
+		}
+
+		/**
+		 * Gives up the routing as {@link IterativeRoutingDriver IterativeRoutingDriver} does on time-out.
+		 */
+		private final class Expiration implements Runnable {
+			public void run() {
+				synchronized (Routing.this) {
+					if (Routing.this.isDone0()) return;
+
+					logger.log(Level.WARNING, "Routing timeout on " + getSelfIDAddressPair().getAddress());
+					numTimedOutRoutings.incrementAndGet();
+
+					Routing.this.complete(new RoutingResult[Routing.this.lookups.length]);
+				}
+			}
+		}
+	}
+
+	private enum Phase { LOOKUP, ADJUST, TERMINATE, DONE }
+
+	private static boolean hasElement(Object array, Class<?> type, int index) {
+		return array == null || (type.isInstance(array) && index < ((Object[])array).length);
+	}
+
+	private static IDAddressPair[] elementAt(IDAddressPair[][] array, int index) {
+		return (array != null ? array[index] : null);
+	}
+
+	/**
+	 * A lookup for a target.
+	 * The methods are called with the lock of the Routing held,
+	 * and add requests to be sent to the given list instead of sending them.
+	 */
+	private final class Lookup {
+		private final Routing routing;
+		private final ID target;
+		private final Serializable[] callbackArgs;
+
+		private Phase phase = Phase.LOOKUP;
+		private final ContactList contactList;
+		private final List<RoutingHop> route = new ArrayList<RoutingHop>();
+		private IDAddressPair lastContact;
+		private int numQueries = 0;
+		private int numActive = 0;	// outstanding and not stalled queries
+		private int ttl;
+
+		// replies
+		private final Map<IDAddressPair,IDAddressPair[]> rootCandidates = new HashMap<IDAddressPair,IDAddressPair[]>();
+		private final Map<IDAddressPair,Serializable> callbackResults = new HashMap<IDAddressPair,Serializable>();
+
+		// last hop adjustment
+		private IDAddressPair lookupGoal;
+		private IDAddressPair adjustContact;
+		private List<IDAddressPair> adjustedLastHops;
+
+		private IDAddressPair goal;
+
+		Lookup(Routing routing, ID target, Serializable[] callbackArgs) {
+			this.routing = routing;
+			this.target = target;
+			this.callbackArgs = callbackArgs;
+			this.ttl = config.getTTL();
+
+			this.route.add(RoutingHop.newInstance(getSelfIDAddressPair()));
+			this.lastContact = getSelfIDAddressPair();
+
+			this.contactList = (queryToAllContacts ?
+					new SortedContactList(target, algorithm, config.getNumOfNodesMaintained()) :
+					new InsertedOrderContactList());
+
+			RoutingContext initialRoutingContext = algorithm.initialRoutingContext(target);
+			IDAddressPair[] closestNodes =
+				algorithm.closestTo(target, config.getNumOfClosestNodesRequested(), initialRoutingContext);
+			for (IDAddressPair elem: closestNodes) {
+				if (elem != null) this.contactList.add(elem);
+			}
+		}
+
+		/**
+		 * Sends as many queries as allowed, or finishes the lookup phase.
+		 */
+		void proceed(List<Request> toSend) {
+			if (this.phase != Phase.LOOKUP || this.routing.isDone0()) return;
+
+			if (queryToAllContacts) {
+				while (this.numActive < this.routing.queryConcurrency && this.ttl > 0) {
+					IDAddressPair contact = this.contactList.inspectExceptContactedNode();
+					if (contact == null) break;
+
+					if (this.routing.blackList.contains(contact.getAddress())) {
+						this.contactList.remove(contact);
+						continue;
+					}
+
+					this.contactList.firstExceptContactedNode();
+					toSend.add(this.query(contact));
+				}
+			}
+			else if (this.numActive <= 0) {
+				while (this.ttl > 0) {
+					IDAddressPair contact = this.contactList.inspect();
+					if (contact == null
+							|| (this.numQueries > 0 && contact.equals(this.lastContact))) break;	// also compares routing context
+
+					if (this.routing.blackList.contains(contact.getAddress())) {
+						this.contactList.remove(contact);
+						continue;
+					}
+
+					this.contactList.first();
+					toSend.add(this.query(contact));
+					break;
+				}
+			}
+
+			if (this.numActive <= 0) {
+				if (this.ttl <= 0) {
+					logger.log(Level.WARNING, "TTL expired (target " + this.target.toString(-1) + ") on "
+							+ getSelfIDAddressPair().getAddress());
+				}
+
+				this.finishLookup(toSend);
+			}
+		}
+
+		private Request query(IDAddressPair contact) {
+			this.numQueries++;
+			this.numActive++;
+			this.ttl--;
+
+			return new Request(this, Phase.LOOKUP, contact, this.lastContact);
+		}
+
+		void replied(Request r, Message reply, List<Request> toSend) {
+			if (r.phase != this.phase || this.routing.isDone0()) return;
+
+			if (this.phase != Phase.ADJUST && reply.getTag() != Tag.ITE_REPLY.getNumber()) {
+				logger.log(Level.SEVERE, "Received message is not ITE_REPLY: " + Tag.getNameByNumber(reply.getTag()));
+
+				this.failed(r, false, toSend);
+				return;
+			}
+
+			Serializable[] contents = reply.getContents();
+			if (!this.isWellFormed(r, contents)) {
+				logger.log(Level.WARNING, "Malformed reply to " + this.phase + " from " + reply.getSource().getAddress());
+
+				this.failed(r, false, toSend);
+				return;
+			}
+
+			switch (this.phase) {
+			case LOOKUP:
+				if (!r.stalled) this.numActive--;
+
+				IDAddressPair[] closestNodes = elementAt((IDAddressPair[][])contents[0], r.index);
+				this.record(r, reply, contents);
+
+				if (!(this.route.size() <= 1 && getSelfIDAddressPair().equals(r.contact)))	// 1st hop is not the node itself
+					this.route.add(RoutingHop.newInstance(r.contact));
+				this.lastContact = r.contact;
+
+				// add the nodes in the reply to contact list
+				if (closestNodes != null) {
+					if (!queryToAllContacts) {
+						// refresh contact list
+						this.contactList.clear();
+					}
+
+					for (IDAddressPair p: closestNodes) {
+						if (p == null) continue;
+						if (!this.routing.blackList.contains(p.getAddress())) {
+							this.contactList.add(p);
+						}
+					}
+				}
+
+				this.proceed(toSend);
+				break;
+
+			case ADJUST:
+				IDAddressPair[][] adjustedLastHops = (IDAddressPair[][])contents[0];
+
+				if (adjustedLastHops == null || adjustedLastHops[r.index] == null) {
+					this.complete(this.lookupGoal);
+					break;
+				}
+
+				this.adjustContact = r.contact;
+				this.adjustedLastHops = new LinkedList<IDAddressPair>();
+				for (IDAddressPair p: adjustedLastHops[r.index]) {
+					if (p != null) this.adjustedLastHops.add(p);
+				}
+				this.contactList.clear();
+
+				this.phase = Phase.TERMINATE;
+				this.terminate(toSend);
+				break;
+
+			case TERMINATE:
+				if (!this.route.get(this.route.size() - 1).getIDAddressPair().equals(r.contact))	// the last hop is not contact
+					this.route.add(RoutingHop.newInstance(r.contact));
+
+				// check if contact is the responsible node
+				IDAddressPair[] rootCands = elementAt((IDAddressPair[][])contents[1], r.index);
+				if (rootCands != null) {
+					IDAddressPair root = null;
+					for (IDAddressPair cand: rootCands) {
+						if (cand != null && !this.routing.blackList.contains(cand.getAddress())) {
+							root = cand;
+							break;
+						}
+					}
+
+					if (root != null && !r.contact.equals(root)) {
+						logger.log(Level.WARNING/*INFO*/,
+								"Target of the terminating msg is not responsible for "
+								+ this.target.toString(-1)
+								+ "... adjusted from "
+								+ r.contact.getAddress() + " (" + r.contact.getID().toString(-1) +
+								") to "
+								+ root.getAddress() + " (" + root.getID().toString(-1) + ").");
+
+						this.adjustedLastHops.remove(r.contact);
+						this.adjustedLastHops.add(0, root);
+
+						if (--this.ttl <= 0) {
+							this.complete(this.lookupGoal);
+						}
+						else {
+							this.terminate(toSend);
+						}
+						break;
+					}
+				}
+
+				this.record(r, reply, contents);
+				this.complete(r.contact);
+				break;
+
+			default:
+			}
+		}
+
+		/**
+		 * @param nodeFailed true if the contact did not reply.
+		 */
+		void failed(Request r, boolean nodeFailed, List<Request> toSend) {
+			if (r.phase != this.phase || this.routing.isDone0()) return;
+
+			switch (this.phase) {
+			case LOOKUP:
+				if (!r.stalled) this.numActive--;
+
+				if (nodeFailed) this.routing.blackList.add(r.contact.getAddress());
+				this.contactList.remove(r.contact);
+
+				this.proceed(toSend);
+				break;
+
+			case ADJUST:
+				this.adjust(toSend);
+				break;
+
+			case TERMINATE:
+				this.adjustedLastHops.remove(r.contact);
+				if (nodeFailed) this.routing.blackList.add(r.contact.getAddress());
+
+				this.terminate(toSend);
+				break;
+
+			default:
+			}
+		}
+
+		void stalled(Request r, List<Request> toSend) {
+			if (r.phase != Phase.LOOKUP || this.phase != Phase.LOOKUP || this.routing.isDone0()) return;
+
+			r.stalled = true;
+			this.numActive--;
+
+			this.proceed(toSend);
+		}
+
+		private void record(Request r, Message reply, Serializable[] contents) {
+			IDAddressPair source = reply.getSource().getIDAddressPair();
+
+			this.rootCandidates.put(source, elementAt((IDAddressPair[][])contents[1], r.index));
+
+			Serializable[] callbackResult = (Serializable[])contents[2];
+			if (callbackResult != null) this.callbackResults.put(source, callbackResult[r.index]);
+		}
+
+		/**
+		 * Returns true if the contents of a reply are the arrays this phase
+		 * expects, each of which has an element for the request.
+		 * A reply from a faulty or malicious node must not throw on the
+		 * receiver thread.
+		 */
+		private boolean isWellFormed(Request r, Serializable[] contents) {
+			if (contents == null) return false;
+
+			if (this.phase == Phase.ADJUST) {
+				return contents.length >= 1
+					&& hasElement(contents[0], IDAddressPair[][].class, r.index);
+			}
+			else {
+				return contents.length >= 3
+					&& hasElement(contents[0], IDAddressPair[][].class, r.index)
+					&& hasElement(contents[1], IDAddressPair[][].class, r.index)
+					&& hasElement(contents[2], Serializable[].class, r.index);
+			}
+		}
+
+		private void finishLookup(List<Request> toSend) {
+			if (queryToAllContacts)
+				this.lookupGoal = this.contactList.inspect();	// required for Kademlia
+			else
+				this.lookupGoal = this.route.get(this.route.size() - 1).getIDAddressPair().getIDAddressPair();
+				// The last getIDAddressPair() derives an IDAddressPair from an IDAddressRoutingContextTriplet.
+
+			if (!this.routing.adjustLastHop) {
+				this.complete(this.lookupGoal);
+				return;
+			}
+
+			this.phase = Phase.ADJUST;
+			this.adjust(toSend);
+		}
+
+		/**
+		 * Asks the closest node for the last hop.
+		 */
+		private void adjust(List<Request> toSend) {
+			IDAddressPair contact = this.contactList.first();
+			if (contact == null) {
+				logger.log(Level.WARNING, "Adjustment failed because contact is null.");
+
+				this.complete(null);
+				return;
+			}
+			this.contactList.remove(contact);	// remove from the original list
+
+			toSend.add(new Request(this, Phase.ADJUST, contact, null));
+		}
+
+		/**
+		 * Sends the terminating message to the adjusted last hop.
+		 */
+		private void terminate(List<Request> toSend) {
+			IDAddressPair contact = null;
+			while (!this.adjustedLastHops.isEmpty()) {
+				contact = this.adjustedLastHops.get(0);
+				if (!this.routing.blackList.contains(contact.getAddress())) break;
+
+				// try next contact
+				this.adjustedLastHops.remove(0);
+				contact = null;
+			}
+
+			if (contact == null) {
+				this.complete(this.lookupGoal);
+				return;
+			}
+
+			toSend.add(new Request(this, Phase.TERMINATE, contact, this.adjustContact));
+		}
+
+		private void complete(IDAddressPair goal) {
+			this.goal = goal;
+			this.phase = Phase.DONE;
+
+			this.routing.lookupDone();
+		}
+
+		/**
+		 * Returns the result, or null if the lookup failed.
+		 */
+		RoutingResult result() {
+			if (this.goal == null) return null;
+
+			IDAddressPair[] rootCands = this.rootCandidates.get(this.goal.getIDAddressPair());
+			if (rootCands == null) return null;
+
+			RoutingHop[] routeArray = new RoutingHop[this.route.size()];
+			this.route.toArray(routeArray);
+
+			return new RoutingResult(routeArray, rootCands);
+		}
+	}
+
+	/**
+	 * A request of a lookup, which is sent as a part of a {@link Query Query}.
+	 */
+	private final static class Request {
+		private final Lookup lookup;
+		private final Phase phase;
+		private final IDAddressPair contact;
+		private final IDAddressPair lastHop;
+
+		private int index;	// in the query
+		private boolean stalled = false;	// guarded by the Routing
+
+		Request(Lookup lookup, Phase phase, IDAddressPair contact, IDAddressPair lastHop) {
+			this.lookup = lookup;
+			this.phase = phase;
+			this.contact = contact;
+			this.lastHop = lastHop;
+		}
+	}
+
+	/**
+	 * A query message to a contact, which carries requests of one or more lookups
+	 * and is notified of the reply.
+	 */
+	private final class Query implements ReplyCallback {
+		private final Routing routing;
+		private final Phase phase;
+		private final IDAddressPair contact;
+		private final List<Request> requests = new ArrayList<Request>();
+
+		private TimerWheel.Timeout stallTimer;
+
+		Query(Routing routing, Phase phase, IDAddressPair contact) {
+			this.routing = routing;
+			this.phase = phase;
+			this.contact = contact;
+		}
+
+		void add(Request r) {
+			r.index = this.requests.size();
+			this.requests.add(r);
+		}
+
+		Message getMessage() {
+			int n = this.requests.size();
+
+			ID[] tgts = new ID[n];
+			Serializable[][] args = new Serializable[n][];
+			IDAddressPair[] lastHop = new IDAddressPair[n];
+			RoutingContext[] cxt = new RoutingContext[n];
+			for (int i = 0; i < n; i++) {
+				Request r = this.requests.get(i);
+				tgts[i] = r.lookup.target;
+				args[i] = r.lookup.callbackArgs;
+				lastHop[i] = r.lastHop;
+
+				if (cxt != null && r.contact instanceof IDAddressRoutingContextTriplet)
+					cxt[i] = ((IDAddressRoutingContextTriplet)r.contact).getRoutingContext();
+				else
+					cxt = null;
+			}
+
+			boolean invoke = (this.routing.msgType == Tag.ITE_ROUTE_INVOKE);
+
+			switch (this.phase) {
+			case LOOKUP:
+				if (invoke) {
+					return RoutingDriverMessageFactory.getIteRouteInvokeMessage(
+							getSelfIDAddressPair(),
+							tgts, config.getNumOfClosestNodesRequested(), this.routing.numRootCandidates, cxt,
+							this.routing.filter, this.routing.callbackTag, args, lastHop);
+				}
+				else {
+					return RoutingDriverMessageFactory.getIteRouteNoneMessage(
+							getSelfIDAddressPair(),
+							tgts, config.getNumOfClosestNodesRequested(), this.routing.numRootCandidates, cxt);
+				}
+			case ADJUST:
+				return RoutingDriverMessageFactory.getIteAdjustLastHopReq(getSelfIDAddressPair(), tgts);
+			default:	// TERMINATE
+				if (invoke) {
+					return RoutingDriverMessageFactory.getIteTerminateInvokeMessage(
+							getSelfIDAddressPair(), tgts, this.routing.numRootCandidates,
+							this.routing.filter, this.routing.callbackTag, args, lastHop);
+				}
+				else {
+					return RoutingDriverMessageFactory.getIteTerminateNoneMessage(
+							getSelfIDAddressPair(), tgts, this.routing.numRootCandidates);
+				}
+			}
+		}
+
+		public void replied(Message reply) {
+			if (this.stallTimer != null) this.stallTimer.cancel();
+
+			// notify the routing algorithm
+			algorithm.touch(reply.getSource());
+
+			List<Request> toSend = new ArrayList<Request>();
+			synchronized (this.routing) {
+				for (Request r: this.requests) r.lookup.replied(r, reply, toSend);
+			}
+			dispatch(this.routing, toSend);
+		}
+
+		public void failed(IOException e) {
+			if (this.stallTimer != null) this.stallTimer.cancel();
+
+			logger.log(Level.WARNING, "Sending or receiving failed: "
+					+ this.contact.getAddress()
+					+ " on " + getSelfIDAddressPair().getAddress());
+			numFailedQueries.incrementAndGet();
+
+			// tell the algorithm of a failure.
+			// a failed adjustment is retried without blaming the contact.
+			boolean nodeFailed = (this.phase != Phase.ADJUST);
+			if (nodeFailed) AsyncIterativeRoutingDriver.super.fail(this.contact);
+
+			List<Request> toSend = new ArrayList<Request>();
+			synchronized (this.routing) {
+				for (Request r: this.requests) r.lookup.failed(r, nodeFailed, toSend);
+			}
+			dispatch(this.routing, toSend);
+		}
+
+		private final class Stall implements Runnable {
+			public void run() {
+				numStalledQueries.incrementAndGet();
+
+				List<Request> toSend = new ArrayList<Request>();
+				synchronized (Query.this.routing) {
+					for (Request r: Query.this.requests) r.lookup.stalled(r, toSend);
+				}
+				dispatch(Query.this.routing, toSend);
+			}
+		}
+	}
+}
@@ -62,8 +62,9 @@ import ow.util.concurrent.ExecutorBlockingMode;
  *
  * @see ow.routing.RoutingServiceProvider#getService(RoutingServiceConfiguration, MessagingProvider, ID, int, long)
  * @see ow.routing.impl.RecursiveRoutingDriver
+ * @see ow.routing.impl.AsyncIterativeRoutingDriver
  */
-public final class IterativeRoutingDriver extends AbstractRoutingDriver {
+public class IterativeRoutingDriver extends AbstractRoutingDriver {
 	protected IterativeRoutingDriver(RoutingServiceConfiguration conf,
 			MessagingProvider provider, MessageReceiver receiver,
 			RoutingAlgorithmProvider algoProvider, RoutingAlgorithmConfiguration algoConf,
@@ -75,7 +76,7 @@ public final class IterativeRoutingDriver extends AbstractRoutingDriver {
 		prepareHandlers();
 	}
 
-	public RoutingResult[] routeToRootNode(ID[] target, int numRootCandidates) {
+	protected RoutingResult[] routeToRootNodeRemotely(ID[] target, int numRootCandidates) {
 		return route(
 				true & super.adjustLastHop,
 				Tag.ITE_ROUTE_NONE,
@@ -79,7 +79,7 @@ public final class RecursiveRoutingDriver extends AbstractRoutingDriver {
 		prepareHandlers();
 	}
 
-	public RoutingResult[] routeToRootNode(ID[] target, int numRootCandidates) {
+	protected RoutingResult[] routeToRootNodeRemotely(ID[] target, int numRootCandidates) {
 		return route(
 				super.adjustLastHop,
 				Tag.REC_ROUTE_NONE,
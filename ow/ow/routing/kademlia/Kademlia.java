@@ -82,11 +82,31 @@ public final class Kademlia extends AbstractRoutingAlgorithm {
 		return fromInt.xor(toInt);
 	}
 
+	public int compareDistance(ID to1, ID from1, ID to2, ID from2) {
+		if (ID.isSameSize(to1, from1, to2, from2)) {
+			return ID.compareXorDistance(to1, from1, to2, from2);
+		}
+
+		return super.compareDistance(to1, from1, to2, from2);
+	}
+
+	/**
+	 * Returns the index of the highest bit set in the XOR distance,
+	 * or -1 if the IDs are the same.
+	 */
+	private static int highestSetBit(ID a, ID b) {
+		if (a.getSize() == b.getSize()) {
+			return a.getSize() * 8 - 1 - ID.matchLengthFromMSB(a, b);
+		}
+
+		return a.toBigInteger().xor(b.toBigInteger()).bitLength() - 1;
+	}
+
 	public IDAddressPair[] closestTo(ID targetID, int maxNum, RoutingContext cxt) {
 		final IDAddressPair[] results = new IDAddressPair[maxNum];
 
-		BigInteger distance = distance(targetID, selfIDAddress.getID());
-		int highestSetBit = distance.bitLength() - 1;
+		ID selfID = selfIDAddress.getID();
+		int highestSetBit = highestSetBit(targetID, selfID);
 
 		Comparator<IDAddressPair> comparator =
 			new AlgoBasedTowardTargetIDAddrComparator(this, targetID);
@@ -104,7 +124,7 @@ public final class Kademlia extends AbstractRoutingAlgorithm {
 			}
 
 			for (int i = highestSetBit - 1; i >= 0; i--) {
-				if (distance.testBit(i)) {
+				if (targetID.testBit(i) != selfID.testBit(i)) {
 					kb = this.kBuckets[i];
 					if (kb != null) {
 						index = pickNodes(index, results, kb, comparator);
@@ -119,7 +139,7 @@ public final class Kademlia extends AbstractRoutingAlgorithm {
 
 		if (highestSetBit >= 0) {	// this node is not the target
 			for (int i = 0; i < highestSetBit; i++) {
-				if (!distance.testBit(i)) {
+				if (targetID.testBit(i) == selfID.testBit(i)) {
 					kb = this.kBuckets[i];
 					if (kb != null) {
 						index = pickNodes(index, results, kb, comparator);
@@ -204,8 +224,7 @@ public final class Kademlia extends AbstractRoutingAlgorithm {
 	}
 
 	public void touch(IDAddressPair from) {
-		BigInteger distance = distance(from.getID(), selfIDAddress.getID());
-		int highestSetBit = distance.bitLength() - 1;
+		int highestSetBit = highestSetBit(from.getID(), selfIDAddress.getID());
 
 		if (highestSetBit < 0) {
 			// from is myself, and ignore
@@ -226,8 +245,7 @@ public final class Kademlia extends AbstractRoutingAlgorithm {
 	 * Remove the specified node from k-buckets.
 	 */
 	public void forget(IDAddressPair failedNode) {
-		BigInteger distance = distance(failedNode.getID(), selfIDAddress.getID());
-		int highestSetBit = distance.bitLength() - 1;
+		int highestSetBit = highestSetBit(failedNode.getID(), selfIDAddress.getID());
 
 		if (highestSetBit < 0) {
 			// from is myself, and ignore
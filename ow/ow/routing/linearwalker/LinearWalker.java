@@ -167,6 +167,15 @@ public class LinearWalker extends AbstractRoutingAlgorithm {
 		return distance;	// 1 <= distance <= 2 ^ # of bit
 	}
 
+	public int compareDistance(ID to1, ID from1, ID to2, ID from2) {
+		if (ID.isSameSize(to1, from1, to2, from2)
+				&& to1.getSize() * 8 == this.idSizeInBit) {
+			return ID.compareRingDistance(to1, from1, to2, from2, true);
+		}
+
+		return super.compareDistance(to1, from1, to2, from2);
+	}
+
 	public void join(IDAddressPair[] neighbors /* are to be successor list */) {
 		if (config.getAggressiveJoiningMode()) {
 			boolean succeed = false;
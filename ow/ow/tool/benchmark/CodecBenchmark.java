@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.benchmark;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import ow.dht.ByteArray;
+import ow.dht.DHT;
+import ow.dht.ValueInfo;
+import ow.dht.impl.DHTMessageFactory;
+import ow.id.ID;
+import ow.id.IDAddressPair;
+import ow.messaging.InetMessagingAddress;
+import ow.messaging.Message;
+import ow.messaging.Signature;
+import ow.messaging.Tag;
+import ow.messaging.codec.MessageCodec;
+import ow.messaging.codec.MessageCodecFactory;
+import ow.routing.RoutingContext;
+import ow.routing.impl.RoutingDriverMessageFactory;
+
+/**
+ * Compares message codecs in encoding/decoding time and message size.
+ * Usage: java ow.tool.benchmark.CodecBenchmark [<iterations>]
+ */
+public class CodecBenchmark {
+	private final static int DEFAULT_ITERATIONS = 100000;
+	private final static int ID_SIZE = 20;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = DEFAULT_ITERATIONS;
+		if (args.length > 0) iterations = Integer.parseInt(args[0]);
+
+		Message[] msgs = prepareMessages();
+		String[] codecNames = { "Serialization", "Compact" };
+
+		for (int round = 0; round < 2; round++) {	// the 1st round is warm-up
+			System.out.println(round == 0 ? "# warm-up" : "# measurement");
+
+			for (Message msg: msgs) {
+				for (String name: codecNames) {
+					MessageCodec codec = MessageCodecFactory.getCodec(name);
+					measure(msg, codec, iterations);
+				}
+			}
+		}
+	}
+
+	private static void measure(Message msg, MessageCodec codec, int iterations) throws Exception {
+		int size = Message.encode(msg, codec).remaining();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			Message.encode(msg, codec);
+		}
+		long encodeTime = System.nanoTime() - start;
+
+		ByteBuffer buf = Message.encode(msg, codec);
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			Message.decode(buf);
+		}
+		long decodeTime = System.nanoTime() - start;
+
+		System.out.printf("%-12s %-14s %6d bytes  encode %8.1f ns/op  decode %8.1f ns/op%n",
+				Tag.getNameByNumber(msg.getTag()), codec.getName(), size,
+				(double)encodeTime / iterations, (double)decodeTime / iterations);
+	}
+
+	private static Message[] prepareMessages() throws Exception {
+		IDAddressPair src = IDAddressPair.getIDAddressPair(ID.getRandomID(ID_SIZE),
+				new InetMessagingAddress(InetAddress.getByName("127.0.0.1"), 3997));
+
+		IDAddressPair[][] nodes = new IDAddressPair[1][8];
+		for (int i = 0; i < nodes[0].length; i++) {
+			nodes[0][i] = IDAddressPair.getIDAddressPair(ID.getRandomID(ID_SIZE),
+					new InetMessagingAddress(InetAddress.getByName("10.0.0." + (i + 1)), 3997));
+		}
+
+		ID[] target = { ID.getRandomID(ID_SIZE) };
+		Message route = RoutingDriverMessageFactory.getIteRouteNoneMessage(
+				src, target, 8, 4, new RoutingContext[1]);
+		Message reply = RoutingDriverMessageFactory.getIteReplyMessage(
+				src, nodes, nodes, new Serializable[1]);
+
+		ByteArray secret = ByteArray.valueOf("secret", "UTF-8").hashWithSHA1();
+		DHT.PutRequest<?>[] reqs = {
+				new DHT.PutRequest<String>(target[0], new String[] { "192.168.0.1:8080" }) };
+		Message put = DHTMessageFactory.getPutMessage(src, reqs, 3600 * 1000L, secret, 3);
+
+		Set<ValueInfo<String>> values = new HashSet<ValueInfo<String>>();
+		for (int i = 0; i < 4; i++) {
+			values.add(new ValueInfo<String>("192.168.0." + i + ":8080", 3600 * 1000L, secret));
+		}
+		Message dhtReply = DHTMessageFactory.getDHTReplyMessage(src, new Set<?>[] { values });
+
+		Message[] msgs = { route, reply, put, dhtReply };
+		for (Message m: msgs) m.setSignature(Signature.getAllAcceptingSignature());
+
+		return msgs;
+	}
+}
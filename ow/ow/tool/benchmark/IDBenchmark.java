@@ -0,0 +1,170 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import ow.id.ID;
+import ow.id.IDAddressPair;
+import ow.id.comparator.AlgoBasedTowardTargetIDAddrComparator;
+import ow.id.comparator.ClockwiseTowardTargetIDAddrComparator;
+import ow.routing.RoutingAlgorithm;
+import ow.routing.RoutingAlgorithmProvider;
+import ow.routing.impl.SortedContactList;
+import ow.routing.kademlia.KademliaProvider;
+
+/**
+ * Compares sorting contacts and picking the closest ones to a target
+ * with distances calculated as BigIntegers and with the limbs of IDs.
+ * Usage: java ow.tool.benchmark.IDBenchmark [<contacts> [<iterations>]]
+ */
+public class IDBenchmark {
+	private final static int DEFAULT_CONTACTS = 10000;
+	private final static int DEFAULT_ITERATIONS = 50;
+	private final static int ID_SIZE = 20;
+	private final static int K = 20;
+
+	public static void main(String[] args) throws Exception {
+		int numContacts = DEFAULT_CONTACTS;
+		int iterations = DEFAULT_ITERATIONS;
+		if (args.length > 0) numContacts = Integer.parseInt(args[0]);
+		if (args.length > 1) iterations = Integer.parseInt(args[1]);
+
+		IDAddressPair[] contacts = new IDAddressPair[numContacts];
+		for (int i = 0; i < numContacts; i++) {
+			contacts[i] = IDAddressPair.getIDAddressPair(ID.getRandomID(ID_SIZE), null);
+		}
+		ID target = ID.getRandomID(ID_SIZE);
+
+		RoutingAlgorithmProvider provider = new KademliaProvider();
+		final RoutingAlgorithm kademlia = provider.initializeAlgorithmInstance(
+				provider.getDefaultConfiguration(), null);
+
+		Comparator<IDAddressPair> xorBigInteger = new BigIntegerComparator(kademlia, target);
+		Comparator<IDAddressPair> xorLimbs = new AlgoBasedTowardTargetIDAddrComparator(kademlia, target);
+		Comparator<IDAddressPair> ringBigInteger = new BigIntegerRingComparator(ID_SIZE * 8, target);
+		Comparator<IDAddressPair> ringLimbs = new ClockwiseTowardTargetIDAddrComparator(ID_SIZE * 8, target);
+
+		System.out.println("contacts: " + numContacts + ", iterations: " + iterations);
+		for (int round = 0; round < 2; round++) {	// the 1st round is warm-up
+			System.out.println(round == 0 ? "# warm-up" : "# measurement");
+
+			measureSort("sort xor   BigInteger", contacts, xorBigInteger, iterations);
+			measureSort("sort xor   limbs", contacts, xorLimbs, iterations);
+			measureSort("sort ring  BigInteger", contacts, ringBigInteger, iterations);
+			measureSort("sort ring  limbs", contacts, ringLimbs, iterations);
+			measureClosest("closestTo  BigInteger", contacts, xorBigInteger, iterations);
+			measureClosest("closestTo  limbs", contacts, xorLimbs, iterations);
+			measureSortedContactList("SortedContactList", contacts, target, kademlia, iterations);
+		}
+	}
+
+	private static void measureSort(String name, IDAddressPair[] contacts,
+			Comparator<IDAddressPair> comparator, int iterations) {
+		long start = System.nanoTime(), allocated = allocatedBytes();
+		for (int i = 0; i < iterations; i++) {
+			IDAddressPair[] copy = contacts.clone();
+			Arrays.sort(copy, comparator);
+		}
+		report(name, start, allocated, iterations);
+	}
+
+	private static void measureClosest(String name, IDAddressPair[] contacts,
+			Comparator<IDAddressPair> comparator, int iterations) {
+		long start = System.nanoTime(), allocated = allocatedBytes();
+		for (int i = 0; i < iterations; i++) {
+			// as SortedContactList with K nodes at most
+			SortedSet<IDAddressPair> set = new TreeSet<IDAddressPair>(comparator);
+			for (IDAddressPair p: contacts) {
+				set.add(p);
+				if (set.size() > K) set.remove(set.last());
+			}
+		}
+		report(name, start, allocated, iterations);
+	}
+
+	private static void measureSortedContactList(String name, IDAddressPair[] contacts,
+			ID target, RoutingAlgorithm algo, int iterations) {
+		long start = System.nanoTime(), allocated = allocatedBytes();
+		for (int i = 0; i < iterations; i++) {
+			SortedContactList list = new SortedContactList(target, algo, K);
+			for (IDAddressPair p: contacts) list.add(p);
+		}
+		report(name, start, allocated, iterations);
+	}
+
+	private static void report(String name, long start, long allocated, int iterations) {
+		long time = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+		System.out.printf("%-22s %10.3f ms/op  %12d bytes/op%n",
+				name, time / 1e6 / iterations, allocated / iterations);
+	}
+
+	private static long allocatedBytes() {
+		try {
+			return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		catch (Throwable e) {
+			return 0L;
+		}
+	}
+
+	/**
+	 * Compares distances as AlgoBasedTowardTargetIDAddrComparator did,
+	 * with BigIntegers returned by the algorithm.
+	 */
+	private final static class BigIntegerComparator implements Comparator<IDAddressPair> {
+		private final RoutingAlgorithm algo;
+		private final ID target;
+
+		BigIntegerComparator(RoutingAlgorithm algo, ID target) {
+			this.algo = algo;
+			this.target = target;
+		}
+
+		public int compare(IDAddressPair p1, IDAddressPair p2) {
+			return algo.distance(target, p1.getID()).compareTo(algo.distance(target, p2.getID()));
+		}
+	}
+
+	/**
+	 * Compares distances as ClockwiseTowardTargetIDAddrComparator did.
+	 */
+	private final static class BigIntegerRingComparator implements Comparator<IDAddressPair> {
+		private final BigInteger targetInteger;
+		private final BigInteger idSpaceSize;
+
+		BigIntegerRingComparator(int idSizeInBit, ID target) {
+			this.targetInteger = target.toBigInteger();
+			this.idSpaceSize = BigInteger.ONE.shiftLeft(idSizeInBit);
+		}
+
+		public int compare(IDAddressPair p1, IDAddressPair p2) {
+			BigInteger dist1 = this.targetInteger.subtract(p1.getID().toBigInteger());
+			if (dist1.signum() < 0) dist1 = dist1.add(this.idSpaceSize);
+			BigInteger dist2 = this.targetInteger.subtract(p2.getID().toBigInteger());
+			if (dist2.signum() < 0) dist2 = dist2.add(this.idSpaceSize);
+			return dist1.compareTo(dist2);
+		}
+	}
+}
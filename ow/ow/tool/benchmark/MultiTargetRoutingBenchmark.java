@@ -0,0 +1,193 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ow.dht.DHT;
+import ow.dht.DHTConfiguration;
+import ow.dht.DHTFactory;
+import ow.id.ID;
+import ow.messaging.MessageReceiver;
+import ow.messaging.MessagingAddress;
+import ow.messaging.MessagingFactory;
+import ow.messaging.MessagingProvider;
+import ow.messaging.Signature;
+import ow.messaging.Tag;
+import ow.messaging.emulator.EmuMessagingConfiguration;
+import ow.routing.RoutingAlgorithmConfiguration;
+import ow.routing.RoutingAlgorithmFactory;
+import ow.routing.RoutingAlgorithmProvider;
+import ow.routing.RoutingService;
+import ow.routing.RoutingServiceFactory;
+import ow.routing.RoutingServiceProvider;
+import ow.stat.MessagingCallback;
+import ow.stat.MessagingCollector;
+import ow.stat.StatConfiguration;
+import ow.stat.StatFactory;
+
+/**
+ * Measures the number of routing messages and the latency of multi-target gets on the emulator
+ * for each iterative routing style.
+ * Usage: java ow.tool.benchmark.MultiTargetRoutingBenchmark [<# of nodes> [<# of keys> [<latency in usec>]]]
+ */
+public class MultiTargetRoutingBenchmark {
+	private final static int DEFAULT_NUM_NODES = 64;
+	private final static int DEFAULT_NUM_KEYS = 200;
+	private final static long DEFAULT_LATENCY_MICROS = 5000L;
+	private final static String[] ROUTING_STYLES = { "Iterative", "AsyncIterative" };
+	private final static int[] KEYS_PER_GET = { 1, 10, 50 };
+
+	private final static AtomicLong numRoutingMessages = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		int numNodes = DEFAULT_NUM_NODES;
+		int numKeys = DEFAULT_NUM_KEYS;
+		long latencyMicros = DEFAULT_LATENCY_MICROS;
+		if (args.length > 0) numNodes = Integer.parseInt(args[0]);
+		if (args.length > 1) numKeys = Integer.parseInt(args[1]);
+		if (args.length > 2) latencyMicros = Long.parseLong(args[2]);
+
+		// count routing messages sent between nodes
+		StatConfiguration statConfig = StatFactory.getDefaultConfiguration();
+		statConfig.setMessagingTransport(MessagingFactory.EMULATOR_PROVIDER_NAME);
+		statConfig.setDoUPnPNATTraversal(false);
+
+		MessagingCollector collector = StatFactory.getMessagingCollector(statConfig);
+		collector.start(new MessagingCallback() {
+			public void messageSent(MessagingAddress source, MessagingAddress target, int tag, int len) {
+				if (isRoutingRequest(tag)) numRoutingMessages.incrementAndGet();
+			}
+			public void nodeFailed(MessagingAddress node) {}
+		});
+		MessagingAddress collectorAddress = collector.getMessageReceiver().getSelfAddress();
+
+		System.out.println("# nodes: " + numNodes + ", keys: " + numKeys
+				+ ", additional latency: " + latencyMicros + " usec");
+		System.out.println("# style           keys/get  msgs/key  msec/get");
+
+		for (String style: ROUTING_STYLES) {
+			DHTConfiguration config = DHTFactory.getDefaultConfiguration();
+			config.setMessagingTransport(MessagingFactory.EMULATOR_PROVIDER_NAME);
+			config.setRoutingStyle(style);
+			config.setDoUPnPNATTraversal(false);
+
+			List<DHT<String>> dhts = new ArrayList<DHT<String>>(numNodes);
+			for (int i = 0; i < numNodes; i++) {
+				DHT<String> dht = createDHT(config, latencyMicros, collectorAddress);
+				if (i > 0) dht.joinOverlay(dhts.get(0).getSelfIDAddressPair().getAddress().toString());
+				dhts.add(dht);
+			}
+
+			// stabilize routing tables
+			Thread.sleep(3000L);
+
+			for (int round = 0; round < 2; round++) {	// the 1st round is warm-up
+				for (int keysPerGet: KEYS_PER_GET) {
+					double[] res = measure(dhts, keysPerGet, numKeys);
+					if (round > 0) {
+						System.out.printf("%-16s  %8d  %8.2f  %8.2f%n", style, keysPerGet, res[0], res[1]);
+					}
+				}
+			}
+
+			for (DHT<String> dht: dhts) dht.stop();
+		}
+
+		collector.stop();
+
+		System.exit(0);
+	}
+
+	private static boolean isRoutingRequest(int tag) {
+		return tag == Tag.ITE_ROUTE_NONE.getNumber()
+			|| tag == Tag.ITE_ROUTE_INVOKE.getNumber()
+			|| tag == Tag.ITE_ADJUST_LAST_HOP_REQ.getNumber()
+			|| tag == Tag.ITE_TERMINATE_NONE.getNumber()
+			|| tag == Tag.ITE_TERMINATE_INVOKE.getNumber();
+	}
+
+	/**
+	 * Returns the number of routing messages per key and the latency per get in millisecond.
+	 */
+	private static double[] measure(List<DHT<String>> dhts, int keysPerGet, int numKeys)
+			throws Exception {
+		int numGets = Math.max(1, numKeys / keysPerGet);
+
+		ID[][] keys = new ID[numGets][keysPerGet];
+		for (ID[] k: keys) {
+			for (int i = 0; i < keysPerGet; i++) k[i] = ID.getRandomID(20);
+		}
+
+		Thread.sleep(500L);	// wait for the collector to be notified of preceding messages
+		long msgsBefore = numRoutingMessages.get();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numGets; i++) {
+			DHT<String> dht = dhts.get(i % dhts.size());
+			dht.get(keys[i]);
+		}
+		double msec = (System.nanoTime() - start) / 1000000.0 / numGets;
+
+		Thread.sleep(500L);
+		long msgs = numRoutingMessages.get() - msgsBefore;
+
+		return new double[] { (double)msgs / (numGets * keysPerGet), msec };
+	}
+
+	/**
+	 * Creates a DHT instance whose messages are delayed by the emulator and reported to the collector.
+	 */
+	private static DHT<String> createDHT(DHTConfiguration config, long latencyMicros,
+			MessagingAddress collectorAddress)
+				throws Exception {
+		byte[] messageSignature = Signature.getSignature(
+				RoutingServiceFactory.getRoutingStyleID(config.getRoutingStyle()),
+				RoutingAlgorithmFactory.getAlgorithmID(config.getRoutingAlgorithm()),
+				Signature.getAllAcceptingApplicationID(), Signature.getAllAcceptingApplicationVersion());
+
+		MessagingProvider msgProvider =
+			MessagingFactory.getProvider(config.getMessagingTransport(), messageSignature);
+		EmuMessagingConfiguration msgConfig =
+			(EmuMessagingConfiguration)msgProvider.getDefaultConfiguration();
+		msgConfig.setAdditionalLatencyMicros(latencyMicros);
+
+		MessageReceiver receiver = msgProvider.getReceiver(msgConfig,
+				config.getSelfPort(), config.getSelfPortRange());
+		msgProvider.setMessagingCollectorAddress(collectorAddress);
+
+		RoutingAlgorithmProvider algoProvider = RoutingAlgorithmFactory.getProvider(config.getRoutingAlgorithm());
+		RoutingAlgorithmConfiguration algoConfig = algoProvider.getDefaultConfiguration();
+
+		RoutingServiceProvider svcProvider = RoutingServiceFactory.getProvider(config.getRoutingStyle());
+		RoutingService routingSvc = svcProvider.getService(
+				svcProvider.getDefaultConfiguration(),
+				msgProvider, receiver,
+				algoProvider, algoConfig, null);
+		algoProvider.initializeAlgorithmInstance(algoConfig, routingSvc);
+
+		// each instance has its own copy of the configuration
+		DHTConfiguration c = DHTFactory.getDefaultConfiguration();
+		c.setMessagingTransport(config.getMessagingTransport());
+		c.setRoutingStyle(config.getRoutingStyle());
+		c.setDoUPnPNATTraversal(config.getDoUPnPNATTraversal());
+
+		return DHTFactory.getDHT(c, routingSvc);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ow.dht.DHT;
+import ow.dht.DHTConfiguration;
+import ow.dht.DHTFactory;
+import ow.id.ID;
+import ow.messaging.MessageReceiver;
+import ow.messaging.MessagingFactory;
+import ow.messaging.MessagingProvider;
+import ow.messaging.Signature;
+import ow.messaging.emulator.EmuMessagingConfiguration;
+import ow.routing.RoutingAlgorithmConfiguration;
+import ow.routing.RoutingAlgorithmFactory;
+import ow.routing.RoutingAlgorithmProvider;
+import ow.routing.RoutingService;
+import ow.routing.RoutingServiceFactory;
+import ow.routing.RoutingServiceProvider;
+
+/**
+ * Measures put latency against the number of replicas on the emulator,
+ * with and without concurrent requests to root candidates.
+ * Usage: java ow.tool.benchmark.PutLatencyBenchmark [<# of nodes> [<# of puts> [<latency in usec>]]]
+ */
+public class PutLatencyBenchmark {
+	private final static int DEFAULT_NUM_NODES = 32;
+	private final static int DEFAULT_NUM_PUTS = 50;
+	private final static long DEFAULT_LATENCY_MICROS = 5000L;
+	private final static int MAX_REPLICA = 4;
+
+	public static void main(String[] args) throws Exception {
+		int numNodes = DEFAULT_NUM_NODES;
+		int numPuts = DEFAULT_NUM_PUTS;
+		long latencyMicros = DEFAULT_LATENCY_MICROS;
+		if (args.length > 0) numNodes = Integer.parseInt(args[0]);
+		if (args.length > 1) numPuts = Integer.parseInt(args[1]);
+		if (args.length > 2) latencyMicros = Long.parseLong(args[2]);
+
+		DHTConfiguration config = DHTFactory.getDefaultConfiguration();
+		config.setMessagingTransport(MessagingFactory.EMULATOR_PROVIDER_NAME);
+		config.setDoUPnPNATTraversal(false);
+		config.setRootDoesReplication(false);	// a requester puts values on all replicas
+		config.setNumSpareRootCandidates(MAX_REPLICA);
+
+		List<DHT<String>> dhts = new ArrayList<DHT<String>>(numNodes);
+		for (int i = 0; i < numNodes; i++) {
+			DHT<String> dht = createDHT(config, latencyMicros);
+			if (i > 0) dht.joinOverlay(dhts.get(0).getSelfIDAddressPair().getAddress().toString());
+			dhts.add(dht);
+		}
+
+		// stabilize routing tables
+		Thread.sleep(3000L);
+
+		System.out.println("# nodes: " + numNodes + ", puts: " + numPuts
+				+ ", additional latency: " + latencyMicros + " usec");
+		System.out.println("# replicas  in-flight limit  msec/put");
+
+		int[] inFlightLimits = { 1, DHTConfiguration.DEFAULT_MAX_PUT_REQUESTS_IN_FLIGHT };
+
+		for (int round = 0; round < 2; round++) {	// the 1st round is warm-up
+			for (int numReplica = 1; numReplica <= MAX_REPLICA; numReplica++) {
+				for (int limit: inFlightLimits) {
+					double msec = measure(dhts, numReplica, limit, numPuts);
+					if (round > 0) {
+						System.out.printf("%10d  %15d  %8.2f%n", numReplica, limit, msec);
+					}
+				}
+			}
+		}
+
+		for (DHT<String> dht: dhts) dht.stop();
+
+		System.exit(0);
+	}
+
+	private static double measure(List<DHT<String>> dhts, int numReplica, int inFlightLimit, int numPuts)
+			throws Exception {
+		for (DHT<String> dht: dhts) {
+			dht.getConfiguration().setNumReplica(numReplica);
+			dht.getConfiguration().setMaxPutRequestsInFlight(inFlightLimit);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numPuts; i++) {
+			DHT<String> dht = dhts.get(i % dhts.size());
+			dht.put(ID.getRandomID(20), "value" + i);
+		}
+
+		return (System.nanoTime() - start) / 1000000.0 / numPuts;
+	}
+
+	/**
+	 * Creates a DHT instance whose messages are delayed by the emulator.
+	 */
+	private static DHT<String> createDHT(DHTConfiguration config, long latencyMicros)
+			throws Exception {
+		byte[] messageSignature = Signature.getSignature(
+				RoutingServiceFactory.getRoutingStyleID(config.getRoutingStyle()),
+				RoutingAlgorithmFactory.getAlgorithmID(config.getRoutingAlgorithm()),
+				Signature.getAllAcceptingApplicationID(), Signature.getAllAcceptingApplicationVersion());
+
+		MessagingProvider msgProvider =
+			MessagingFactory.getProvider(config.getMessagingTransport(), messageSignature);
+		EmuMessagingConfiguration msgConfig =
+			(EmuMessagingConfiguration)msgProvider.getDefaultConfiguration();
+		msgConfig.setAdditionalLatencyMicros(latencyMicros);
+
+		MessageReceiver receiver = msgProvider.getReceiver(msgConfig,
+				config.getSelfPort(), config.getSelfPortRange());
+
+		RoutingAlgorithmProvider algoProvider = RoutingAlgorithmFactory.getProvider(config.getRoutingAlgorithm());
+		RoutingAlgorithmConfiguration algoConfig = algoProvider.getDefaultConfiguration();
+
+		RoutingServiceProvider svcProvider = RoutingServiceFactory.getProvider(config.getRoutingStyle());
+		RoutingService routingSvc = svcProvider.getService(
+				svcProvider.getDefaultConfiguration(),
+				msgProvider, receiver,
+				algoProvider, algoConfig, null);
+		algoProvider.initializeAlgorithmInstance(algoConfig, routingSvc);
+
+		// each instance has its own copy of the configuration
+		DHTConfiguration c = DHTFactory.getDefaultConfiguration();
+		c.setMessagingTransport(config.getMessagingTransport());
+		c.setDoUPnPNATTraversal(config.getDoUPnPNATTraversal());
+		c.setRootDoesReplication(config.getRootDoesReplication());
+		c.setNumSpareRootCandidates(config.getNumSpareRootCandidates());
+
+		return DHTFactory.getDHT(c, routingSvc);
+	}
+}
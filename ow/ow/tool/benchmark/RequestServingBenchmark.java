@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.CacheRequest;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dhtweb.HTTPExecutor;
+import org.dhtweb.LocalResponseCache;
+import org.dhtweb.RequestHandler;
+import org.dhtweb.RequestServer;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.LoggerContext;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares the throughput of serving a cached object with
+ * {@link RequestHandler} on HttpServer and with {@link RequestServer}.
+ * Usage: java ow.tool.benchmark.RequestServingBenchmark [&lt;object size&gt;
+ * [&lt;client threads&gt; [&lt;seconds&gt;]]]
+ */
+public class RequestServingBenchmark {
+	private final static int DEFAULT_SIZE = 8 * 1024 * 1024;
+	private final static int DEFAULT_THREADS = 4;
+	private final static int DEFAULT_SECONDS = 10;
+
+	public static void main(String[] args) throws Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_THREADS;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SECONDS;
+
+		// no logging; every request is logged at the INFO level
+		((LoggerContext) LoggerFactory.getILoggerFactory()).reset();
+
+		URI uri = new URI("http://benchmark.invalid/object-" + size);
+		LocalResponseCache.openStore();
+		writeCache(uri, size);
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+		HTTPExecutor executor = new HTTPExecutor(threads, HTTPExecutor.DEFAULT_QUEUE_SIZE,
+				HTTPExecutor.DEFAULT_POLICY);
+		server.setExecutor(executor);
+		server.createContext(RequestServer.CONTEXT, new RequestHandler());
+		server.start();
+
+		RequestServer requestServer = new RequestServer(0);
+		requestServer.start();
+
+		try {
+			String path = RequestServer.CONTEXT + uri;
+			URL handlerUrl = new URL("http", "127.0.0.1", server.getAddress().getPort(), path);
+			URL serverUrl = new URL("http", "127.0.0.1", requestServer.getPort(), path);
+
+			System.out.println("object size: " + size + " bytes, client threads: " + threads);
+			for (int round = 0; round < 2; round++) {	// the 1st round is warm-up
+				int sec = round == 0 ? Math.max(1, seconds / 5) : seconds;
+				System.out.println(round == 0 ? "# warm-up" : "# measurement");
+				measure("RequestHandler", handlerUrl, size, threads, sec);
+				measure("RequestServer", serverUrl, size, threads, sec);
+			}
+		} finally {
+			requestServer.stop();
+			server.stop(0);
+			executor.shutdownNow();
+			LocalResponseCache.INDEX.remove(LocalResponseCache.getKey(uri));
+			LocalResponseCache.closeStore();
+		}
+	}
+
+	private static void writeCache(URI uri, int size) throws IOException {
+		Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		headers.put("Content-Length", Collections.singletonList(Integer.toString(size)));
+		headers.put("Content-Type", Collections.singletonList("application/octet-stream"));
+		CacheRequest request = LocalResponseCache.openCacheRequest(uri, headers);
+		if (request == null)
+			throw new IOException("failed to open the cache of " + uri);
+
+		byte[] buf = new byte[64 * 1024];
+		OutputStream out = request.getBody();
+		try {
+			for (int written = 0; written < size; written += buf.length)
+				out.write(buf, 0, Math.min(buf.length, size - written));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void measure(String name, final URL url, final int size,
+			int threads, int seconds) throws InterruptedException {
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final AtomicLong requests = new AtomicLong(), bytes = new AtomicLong(),
+				errors = new AtomicLong();
+
+		List<Thread> clients = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread() {
+				public void run() {
+					byte[] buf = new byte[64 * 1024];
+					while (System.nanoTime() < deadline) {
+						try {
+							HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+							InputStream in = conn.getInputStream();
+							long n = 0L;
+							int r;
+							while ((r = in.read(buf)) != -1) n += r;
+							in.close();
+
+							if (n != size) throw new IOException("short body: " + n);
+							requests.incrementAndGet();
+							bytes.addAndGet(n);
+						} catch (IOException e) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			};
+			clients.add(t);
+		}
+
+		long start = System.nanoTime();
+		for (Thread t: clients) t.start();
+		for (Thread t: clients) t.join();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf("%-15s %9.1f req/s %9.1f MB/s  errors %d%n", name,
+				requests.get() / elapsed, bytes.get() / elapsed / (1024 * 1024),
+				errors.get());
+	}
+}
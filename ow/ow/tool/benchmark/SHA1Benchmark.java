@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.benchmark;
+
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+
+import ow.id.ID;
+
+/**
+ * Measures throughput of SHA-1 based IDs with increasing number of threads,
+ * hashed with a digest shared under a lock as ID did formerly, with
+ * ID#getSHA1BasedID(byte[]) and with ID#getSHA1BasedIDs(byte[][]).
+ * Usage: java ow.tool.benchmark.SHA1Benchmark [<max threads> [<IDs per thread>]]
+ */
+public class SHA1Benchmark {
+	private final static int DEFAULT_IDS = 200000;
+	private final static int NUM_KEYS = 1024;
+	private final static int BATCH_SIZE = 64;
+
+	private final static String[] NAMES = { "synchronized", "getSHA1BasedID", "getSHA1BasedIDs" };
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		int numIDs = DEFAULT_IDS;
+		if (args.length > 0) maxThreads = Integer.parseInt(args[0]);
+		if (args.length > 1) numIDs = Integer.parseInt(args[1]);
+
+		// URL-like keys as a proxy hashes
+		final byte[][] keys = new byte[NUM_KEYS][];
+		for (int i = 0; i < NUM_KEYS; i++) {
+			keys[i] = ("http://www" + (i % 17) + ".example.org/path/to/object" + i + ".html").getBytes();
+		}
+
+		System.out.println("processors: " + Runtime.getRuntime().availableProcessors()
+				+ ", IDs per thread: " + numIDs);
+		for (int round = 0; round < 2; round++) {	// the 1st round is warm-up
+			System.out.println(round == 0 ? "# warm-up" : "# measurement");
+			System.out.printf("%-8s", "threads");
+			for (String name: NAMES) System.out.printf(" %16s", name);
+			System.out.println("   (IDs/s)");
+
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				System.out.printf("%-8d", threads);
+				for (int variant = 0; variant < NAMES.length; variant++) {
+					double rate = measure(variant, threads, numIDs, keys);
+					System.out.printf(" %16.0f", rate);
+				}
+				System.out.println();
+
+				if (threads < maxThreads && threads * 2 > maxThreads) threads = maxThreads / 2;
+			}
+		}
+	}
+
+	private static double measure(final int variant, int numThreads, final int numIDs, final byte[][] keys)
+			throws Exception {
+		final MessageDigest shared = MessageDigest.getInstance("SHA1");
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch endLatch = new CountDownLatch(numThreads);
+
+		for (int t = 0; t < numThreads; t++) {
+			Thread th = new Thread() {
+				public void run() {
+					try {
+						startLatch.await();
+					}
+					catch (InterruptedException e) { return; }
+
+					switch (variant) {
+					case 0:
+						for (int i = 0; i < numIDs; i++) {
+							byte[] value;
+							synchronized (shared) {
+								value = shared.digest(keys[i % NUM_KEYS]);
+							}
+							ID.getID(value, 20);
+						}
+						break;
+					case 1:
+						for (int i = 0; i < numIDs; i++) {
+							ID.getSHA1BasedID(keys[i % NUM_KEYS]);
+						}
+						break;
+					default:
+						byte[][] batch = new byte[BATCH_SIZE][];
+						for (int i = 0; i < numIDs; i += BATCH_SIZE) {
+							for (int j = 0; j < BATCH_SIZE; j++) batch[j] = keys[(i + j) % NUM_KEYS];
+							ID.getSHA1BasedIDs(batch);
+						}
+					}
+					endLatch.countDown();
+				}
+			};
+			th.setDaemon(true);
+			th.start();
+		}
+
+		long start = System.nanoTime();
+		startLatch.countDown();
+		endLatch.await();
+		long time = System.nanoTime() - start;
+
+		return (double)numIDs * numThreads / (time / 1e9);
+	}
+}
@@ -32,6 +32,7 @@ import ow.routing.RoutingAlgorithmConfiguration;
 import ow.routing.RoutingException;
 import ow.routing.RoutingHop;
 import ow.routing.RoutingResult;
+import ow.routing.RoutingResultCache;
 import ow.routing.RoutingRuntime;
 import ow.routing.RoutingService;
 import ow.routing.RoutingServiceConfiguration;
@@ -69,6 +70,7 @@ class RoutingRuntimeSkeleton implements RoutingService, RoutingRuntime {
 	public MessagingProvider getMessagingProvider() { return null; }
 	public MessagingReporter getMessagingReporter() { return null; }
 	public RoutingAlgorithm getRoutingAlgorithm() { return null; }
+	public RoutingResultCache getRoutingResultCache() { return null; }
 	public RoutingResult invokeCallbacksOnRoute(ID target,
 			int numRootCandidates, Serializable[] returnedValueContainer,
 			CallbackResultFilter filter, int tag, Serializable[] args)
@@ -30,6 +30,7 @@ import java.util.Set;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
+import ow.messaging.BufferPool;
 import ow.messaging.MessagingAddress;
 import ow.routing.RoutingAlgorithmConfiguration;
 import ow.routing.RoutingException;
@@ -201,6 +202,11 @@ public final class CommandUtil {
 			}
 		}
 
+		// show message buffer pool
+		if (verboseLevel > 0) {
+			sb.append("Message buffer pool: ").append(BufferPool.getSharedPool()).append(Shell.CRLF);
+		}
+
 		return sb;
 	}
 
@@ -20,7 +20,7 @@ public class HighLevelServiceConfiguration {
 	// for Routing
 	public final static String DEFAULT_ROUTING_STYLE = "Iterative";
 //	public final static String DEFAULT_ROUTING_STYLE = "Recursive";
-		// "Iterative" or "Recursive"
+		// "Iterative", "Recursive" or "AsyncIterative"
 	public final static String DEFAULT_ROUTING_ALGORITHM = "Chord";
 //	public final static String DEFAULT_ROUTING_ALGORITHM = "Kademlia";
 //	public final static String DEFAULT_ROUTING_ALGORITHM = "Koorde";
@@ -28,6 +28,8 @@ public class HighLevelServiceConfiguration {
 //	public final static String DEFAULT_ROUTING_ALGORITHM = "Pastry";
 //	public final static String DEFAULT_ROUTING_ALGORITHM = "Tapestry";
 		// "Chord", "Kademlia", "Koorde", "LinearWalker", "Tapestry" or "Pastry"
+	public final static int DEFAULT_ROUTING_CACHE_SIZE = 0;	// disabled
+	public final static long DEFAULT_ROUTING_CACHE_TTL = 30 * 1000L;
 
 	// for Messaging
 	public final static String DEFAULT_MESSAGING_TRANSPORT = "UDP";
@@ -55,6 +57,22 @@ public class HighLevelServiceConfiguration {
 		return old;
 	}
 
+	private int routingCacheSize = DEFAULT_ROUTING_CACHE_SIZE;
+	public int getRoutingCacheSize() { return this.routingCacheSize; }
+	public int setRoutingCacheSize(int size) {
+		int old = this.routingCacheSize;
+		this.routingCacheSize = size;
+		return old;
+	}
+
+	private long routingCacheTTL = DEFAULT_ROUTING_CACHE_TTL;
+	public long getRoutingCacheTTL() { return this.routingCacheTTL; }
+	public long setRoutingCacheTTL(long ttl) {
+		long old = this.routingCacheTTL;
+		this.routingCacheTTL = ttl;
+		return old;
+	}
+
 	private String messagingTransport = DEFAULT_MESSAGING_TRANSPORT;
 	public String getMessagingTransport() { return this.messagingTransport; }
 	public String setMessagingTransport(String transport) {
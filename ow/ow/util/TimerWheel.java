@@ -0,0 +1,171 @@
+/*
+ * Copyright 2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel, which runs a large number of short timeouts on a single thread.
+ * Scheduling and cancelling a timeout take constant time,
+ * and a timeout expires up to a tick later than requested.
+ * Tasks run on the thread of the wheel and should return soon.
+ */
+public final class TimerWheel {
+	private final static Logger logger = Logger.getLogger("util");
+
+	private final long tickMillis;
+	private final Timeout[] wheel;	// heads of doubly-linked lists
+	private final int mask;
+
+	private long tick = 0L;	// number of ticks elapsed
+	private long startTime;
+	private Thread thread;
+
+	/**
+	 * @param numSlots rounded up to a power of 2.
+	 */
+	public TimerWheel(String name, long tickMillis, int numSlots) {
+		int n = 1;
+		while (n < numSlots) n <<= 1;
+
+		this.tickMillis = tickMillis;
+		this.wheel = new Timeout[n];
+		this.mask = n - 1;
+
+		this.startTime = System.currentTimeMillis();
+		this.thread = new Thread(new Runnable() {
+			public void run() { TimerWheel.this.loop(); }
+		});
+		this.thread.setName(name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Schedules a task to run after the specified delay.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout t = new Timeout(task);
+
+		synchronized (this) {
+			long elapsed = System.currentTimeMillis() - this.startTime;
+			long deadlineTick = (elapsed + delayMillis + this.tickMillis - 1) / this.tickMillis;
+			if (deadlineTick <= this.tick) deadlineTick = this.tick + 1;
+
+			t.deadlineTick = deadlineTick;
+
+			int slot = (int)(deadlineTick & this.mask);
+			t.next = this.wheel[slot];
+			if (t.next != null) t.next.prev = t;
+			this.wheel[slot] = t;
+			t.slot = slot;
+		}
+
+		return t;
+	}
+
+	public synchronized void stop() {
+		if (this.thread != null) {
+			this.thread.interrupt();
+			this.thread = null;
+		}
+	}
+
+	private void loop() {
+		List<Timeout> expired = new ArrayList<Timeout>();
+
+		while (true) {
+			synchronized (this) {
+				if (this.thread == null) break;
+
+				long elapsed = System.currentTimeMillis() - this.startTime;
+				long wait = (this.tick + 1) * this.tickMillis - elapsed;
+				if (wait > 0L) {
+					try {
+						this.wait(wait);
+					}
+					catch (InterruptedException e) { break; }
+
+					continue;
+				}
+
+				// advance
+				this.tick++;
+
+				Timeout t = this.wheel[(int)(this.tick & this.mask)];
+				while (t != null) {
+					Timeout next = t.next;
+					if (t.deadlineTick <= this.tick) {
+						this.unlink(t);
+						expired.add(t);
+					}
+					t = next;
+				}
+			}
+
+			for (Timeout t: expired) {
+				try {
+					t.task.run();
+				}
+				catch (Throwable e) {
+					logger.log(Level.WARNING, "A task of TimerWheel threw an Exception.", e);
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	private void unlink(Timeout t) {
+		if (t.prev != null) t.prev.next = t.next;
+		else this.wheel[t.slot] = t.next;
+		if (t.next != null) t.next.prev = t.prev;
+
+		t.prev = t.next = null;
+		t.slot = -1;
+	}
+
+	/**
+	 * A handle of a scheduled task.
+	 */
+	public final class Timeout {
+		private final Runnable task;
+		private long deadlineTick;
+		private int slot = -1;
+		private Timeout prev, next;
+
+		private Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Cancels the task.
+		 *
+		 * @return false if the task has already run or been cancelled.
+		 */
+		public boolean cancel() {
+			synchronized (TimerWheel.this) {
+				if (this.slot < 0) return false;
+
+				TimerWheel.this.unlink(this);
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ow.id.ID;
+
+/**
+ * Records which keys this node has announced on the DHT, and with which
+ * TTL. A key is announced once until its announcement is about to expire,
+ * and {@link #refresh(CacheIndex, BulkAnnouncer)} announces again the keys
+ * of cached objects which are. Keys of objects no longer cached are
+ * dropped then, so the registry is bounded by the cache. Announcements
+ * are saved across restarts.
+ * 
+ * @author syuu
+ */
+public class AnnouncementRegistry {
+	private final static Logger logger = LoggerFactory
+			.getLogger(AnnouncementRegistry.class);
+
+	/** announcements are renewed this long before they expire at most */
+	public final static long MAX_RENEWAL_MARGIN = 5 * 60 * 1000L;
+
+	private final static int ID_SIZE = 20;
+
+	/** a key being announced */
+	private final static Announcement PENDING = new Announcement(0L, 0L);
+
+	private final File file;
+	private final Map<ID, Announcement> announcements = new ConcurrentHashMap<ID, Announcement>();
+	private long renewed = 0L;
+
+	public AnnouncementRegistry(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns whether the key has to be announced now. If so, the key is
+	 * marked as being announced, and the caller has to call
+	 * {@link #announced(ID, long)} or {@link #failed(ID)} later.
+	 */
+	public boolean begin(ID key) {
+		long now = System.currentTimeMillis();
+		while (true) {
+			Announcement a = announcements.get(key);
+			if (a == null) {
+				if (announcements.putIfAbsent(key, PENDING) == null)
+					return true;
+			} else if (a == PENDING || !a.isExpiring(now)) {
+				return false;
+			} else if (announcements.replace(key, a, PENDING)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Records that the key has been announced with the TTL.
+	 */
+	public void announced(ID key, long ttl) {
+		announcements.put(key, new Announcement(System.currentTimeMillis(),
+				ttl));
+	}
+
+	/**
+	 * Records that the key could not be announced, so that it can be tried
+	 * again.
+	 */
+	public void failed(ID key) {
+		announcements.remove(key, PENDING);
+	}
+
+	/**
+	 * Forgets the key, as when the object has been evicted.
+	 */
+	public void forget(ID key) {
+		announcements.remove(key);
+	}
+
+	/**
+	 * Queues the keys whose announcements are about to expire to the
+	 * announcer, and drops the keys of objects no longer in the index.
+	 */
+	public void refresh(CacheIndex index, BulkAnnouncer announcer) {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		for (Map.Entry<ID, Announcement> e : announcements.entrySet()) {
+			ID key = e.getKey();
+			Announcement a = e.getValue();
+			if (a == PENDING || !a.isExpiring(now))
+				continue;
+			CacheIndex.Entry entry = index.get(key);
+			if (entry == null) {
+				announcements.remove(key, a);
+				continue;
+			}
+			try {
+				if (announcer.add(key, new URI(entry.getURI())))
+					count++;
+			} catch (URISyntaxException ex) {
+				logger.warn(ex.getMessage(), ex);
+			}
+		}
+		synchronized (this) {
+			renewed += count;
+		}
+		if (count > 0)
+			logger.info("renewing {} announcements", count);
+	}
+
+	/**
+	 * Loads the announcements saved before.
+	 */
+	public void load() {
+		if (!file.exists())
+			return;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				int size = in.readInt();
+				byte[] id = new byte[ID_SIZE];
+				for (int i = 0; i < size; i++) {
+					in.readFully(id);
+					announcements.put(ID.getID(id, ID_SIZE), new Announcement(
+							in.readLong(), in.readLong()));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.warn("failed to load " + file, e);
+		}
+		logger.info("{} announcements loaded", announcements.size());
+	}
+
+	/**
+	 * Saves the announcements. Keys being announced are not saved.
+	 */
+	public synchronized void save() {
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				Map<ID, Announcement> snapshot = new HashMap<ID, Announcement>(
+						announcements);
+				while (snapshot.values().remove(PENDING))
+					;
+				out.writeInt(snapshot.size());
+				for (Map.Entry<ID, Announcement> e : snapshot.entrySet()) {
+					out.write(e.getKey().getValue());
+					out.writeLong(e.getValue().time);
+					out.writeLong(e.getValue().ttl);
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				tmp.renameTo(file);
+			}
+		} catch (IOException e) {
+			logger.warn("failed to save " + file, e);
+		}
+	}
+
+	public int size() {
+		return announcements.size();
+	}
+
+	public synchronized String toString() {
+		int pending = 0;
+		for (Announcement a : announcements.values())
+			if (a == PENDING)
+				pending++;
+		StringBuilder sb = new StringBuilder();
+		sb.append("keys:").append(announcements.size());
+		sb.append(",announcing:").append(pending);
+		sb.append(",renewed:").append(renewed);
+		return sb.toString();
+	}
+
+	private static class Announcement {
+		private final long time;
+		private final long ttl;
+
+		private Announcement(long time, long ttl) {
+			this.time = time;
+			this.ttl = ttl;
+		}
+
+		private boolean isExpiring(long now) {
+			long margin = Math.min(MAX_RENEWAL_MARGIN, ttl / 10);
+			return now >= time + ttl - margin;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ow.dht.DHT;
+import ow.dht.ValueInfo;
+import ow.id.ID;
+
+/**
+ * Announces this node as a holder of many objects, as the cached ones at
+ * startup. Keys are put in batches with {@link DHT#put(DHT.PutRequest[])},
+ * which routes the keys of a batch together, at a limited rate of keys
+ * per second. A key which failed to be put is retried with an exponential
+ * backoff. Keys are announced through an {@link AnnouncementRegistry}, so
+ * a key already announced is not queued again until it is about to expire.
+ * 
+ * @author syuu
+ */
+public class BulkAnnouncer implements Runnable {
+	private final static Logger logger = LoggerFactory
+			.getLogger(BulkAnnouncer.class);
+
+	public final static int DEFAULT_BATCH_SIZE = 64;
+	public final static int DEFAULT_RATE = 200;
+	public final static long INITIAL_BACKOFF = 1000L;
+	public final static long MAX_BACKOFF = 5 * 60 * 1000L;
+
+	private final DHT<String> dht;
+	private final AnnouncementRegistry registry;
+	private final String value;
+	private final int batchSize;
+	private final int rate;
+
+	private final DelayQueue<Item> queue = new DelayQueue<Item>();
+	private Thread thread = null;
+
+	private long added = 0L, announced = 0L, failures = 0L, batches = 0L;
+	private long startTime = 0L, lastAnnounceTime = 0L;
+
+	public BulkAnnouncer(DHT<String> dht, AnnouncementRegistry registry,
+			InetAddress selfAddress, int port, int batchSize, int rate) {
+		this.dht = dht;
+		this.registry = registry;
+		this.value = selfAddress.getHostAddress() + ":" + port;
+		this.batchSize = batchSize;
+		this.rate = rate;
+	}
+
+	/**
+	 * Queues a key to be announced, unless it has been announced or is
+	 * being announced. Returns whether it is queued.
+	 */
+	public boolean add(ID key, URI uri) {
+		if (!registry.begin(key))
+			return false;
+		synchronized (this) {
+			added++;
+		}
+		queue.offer(new Item(key, uri));
+		return true;
+	}
+
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		startTime = System.currentTimeMillis();
+		thread = new Thread(this, "BulkAnnouncer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				List<Item> batch = new ArrayList<Item>(batchSize);
+				batch.add(queue.take());
+				queue.drainTo(batch, batchSize - 1);
+				announce(batch);
+				// keeps the rate of keys per second
+				Thread.sleep(batch.size() * 1000L / Math.max(1, rate));
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+		logger.info("stopped: {}", this);
+	}
+
+	private void announce(List<Item> batch) {
+		// DHT#put(DHT.PutRequest[]) takes an array
+		@SuppressWarnings("unchecked")
+		DHT.PutRequest<String>[] requests = (DHT.PutRequest<String>[]) new DHT.PutRequest<?>[batch
+				.size()];
+		for (int i = 0; i < requests.length; i++)
+			requests[i] = new DHT.PutRequest<String>(batch.get(i).key,
+					new String[] { value });
+
+		long ttl = dht.getTTLForPut();
+		Set<ValueInfo<String>>[] results = null;
+		try {
+			results = dht.put(requests);
+		} catch (Exception e) {
+			logger.warn(e.getMessage(), e);
+		}
+
+		long now = System.currentTimeMillis();
+		int succeeded = 0;
+		for (int i = 0; i < requests.length; i++) {
+			Item item = batch.get(i);
+			item.attempts++;
+			// a null request or result means that the key was not stored
+			if (results != null && requests[i] != null && results[i] != null) {
+				succeeded++;
+				registry.announced(item.key, ttl);
+				PutTask.putLogger.info(item.uri + ","
+						+ (now - item.queuedAt) + "," + (item.attempts - 1));
+			} else {
+				item.backoff = item.backoff == 0L ? INITIAL_BACKOFF : Math.min(
+						item.backoff * 2, MAX_BACKOFF);
+				item.due = now + item.backoff;
+				queue.offer(item);
+			}
+		}
+		synchronized (this) {
+			batches++;
+			announced += succeeded;
+			failures += batch.size() - succeeded;
+			lastAnnounceTime = now;
+		}
+		logger.info("announced {} of {} keys", succeeded, batch.size());
+	}
+
+	public int getPendingCount() {
+		return queue.size();
+	}
+
+	public synchronized long getAnnouncedCount() {
+		return announced;
+	}
+
+	public synchronized String toString() {
+		long elapsed = (lastAnnounceTime > 0 ? lastAnnounceTime : System
+				.currentTimeMillis())
+				- startTime;
+		StringBuilder sb = new StringBuilder();
+		sb.append("announced:").append(announced).append('/').append(added);
+		sb.append(",pending:").append(queue.size());
+		sb.append(",failures:").append(failures);
+		sb.append(",batches:").append(batches);
+		sb.append(",throughput:").append(
+				String.format("%.1f", elapsed > 0 ? announced * 1000.0
+						/ elapsed : 0.0)).append(" keys/s");
+		return sb.toString();
+	}
+
+	private static class Item implements Delayed {
+		private final ID key;
+		private final URI uri;
+		private final long queuedAt = System.currentTimeMillis();
+		private long due = 0L;
+		private long backoff = 0L;
+		private int attempts = 0;
+
+		private Item(ID key, URI uri) {
+			this.key = key;
+			this.uri = uri;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.currentTimeMillis(),
+					TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			long d = due - ((Item) o).due;
+			return d < 0 ? -1 : (d == 0 ? 0 : 1);
+		}
+	}
+}
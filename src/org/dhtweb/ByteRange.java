@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+/**
+ * A byte range of an HTTP Range request header. Only a single range is
+ * supported, and a request for multiple ranges is served as a whole.
+ * 
+ * @author syuu
+ */
+public class ByteRange {
+	/** HTTP status code 416, which HttpURLConnection does not define */
+	public final static int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	/** a range which does not overlap the content */
+	public final static ByteRange UNSATISFIABLE = new ByteRange(0, -1);
+
+	private final long start, end;
+
+	private ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Parses the value of a Range header for content of the given length.
+	 * Returns null if the whole content should be sent, or
+	 * {@link #UNSATISFIABLE} if the range does not overlap the content.
+	 */
+	public static ByteRange parse(String header, long length) {
+		if (header == null || length < 0)
+			return null;
+		header = header.trim();
+		if (!header.startsWith("bytes="))
+			return null;
+		String spec = header.substring("bytes=".length()).trim();
+		if (spec.indexOf(',') >= 0)
+			return null;
+
+		int dash = spec.indexOf('-');
+		if (dash < 0)
+			return null;
+		try {
+			if (dash == 0) {
+				// the last n bytes
+				long n = Long.parseLong(spec.substring(1));
+				if (n <= 0 || length == 0)
+					return UNSATISFIABLE;
+				return new ByteRange(Math.max(0, length - n), length - 1);
+			}
+
+			long start = Long.parseLong(spec.substring(0, dash));
+			long end = length - 1;
+			if (dash < spec.length() - 1)
+				end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+			if (start >= length)
+				return UNSATISFIABLE;
+			if (end < start)
+				return null;
+			return new ByteRange(start, end);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	public long getLength() {
+		return end - start + 1;
+	}
+
+	/**
+	 * Returns the value of the Content-Range header of a response.
+	 */
+	public String getContentRange(long length) {
+		if (this == UNSATISFIABLE)
+			return "bytes */" + length;
+		return "bytes " + start + "-" + end + "/" + length;
+	}
+
+	public String toString() {
+		return "bytes=" + start + "-" + end;
+	}
+}
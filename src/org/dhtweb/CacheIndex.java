@@ -0,0 +1,310 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ow.id.ID;
+
+/**
+ * Index of the objects in the cache, kept in memory and persisted as an
+ * append-only log. Each record is either a put of an object, with its URI,
+ * modification time, last access time and location in the
+ * {@link SegmentStore}, or a removal. The log is rewritten into a snapshot
+ * when opened, closed, or when removed and overwritten records outnumber
+ * live ones.
+ * <p>
+ * Puts written before objects moved to the segment store have no location.
+ * Those entries are listed by {@link #getUnstoredEntries()} until they are
+ * put again.
+ * 
+ * @author syuu
+ */
+public class CacheIndex {
+	private final static Logger logger = LoggerFactory
+			.getLogger(CacheIndex.class);
+
+	/** a put of an object stored in its own files */
+	private final static byte OP_PUT_FILE = 1;
+	private final static byte OP_REMOVE = 2;
+	private final static byte OP_PUT = 3;
+	private final static int ID_SIZE = 20;
+	private final static int MIN_GARBAGE_TO_COMPACT = 1024;
+
+	private final File file;
+	private final Map<ID, Entry> entries = new ConcurrentHashMap<ID, Entry>();
+	private final Map<ID, Entry> unstored = new ConcurrentHashMap<ID, Entry>();
+	private DataOutputStream log = null;
+	/** number of records in the log which are no longer live */
+	private int garbage = 0;
+
+	public CacheIndex(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns whether the log exists, in other words, whether the cache
+	 * directory has been indexed.
+	 */
+	public boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * Reads the log and opens it for appending.
+	 */
+	public synchronized void open() throws IOException {
+		if (file.exists())
+			replay();
+		compact();
+	}
+
+	private void replay() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			byte[] id = new byte[ID_SIZE];
+			while (true) {
+				byte op;
+				try {
+					op = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				in.readFully(id);
+				ID key = ID.getID(id, ID_SIZE);
+				if (op == OP_PUT) {
+					String uri = in.readUTF();
+					long modified = in.readLong(), lastAccess = in.readLong();
+					SegmentStore.Record record = new SegmentStore.Record(in
+							.readInt(), in.readLong(), in.readInt(), in
+							.readLong());
+					entries.put(key, new Entry(uri, record, modified,
+							lastAccess));
+					unstored.remove(key);
+				} else if (op == OP_PUT_FILE) {
+					String uri = in.readUTF();
+					in.readLong(); // size
+					long modified = in.readLong(), lastAccess = in.readLong();
+					unstored.put(key, new Entry(uri, null, modified,
+							lastAccess));
+					entries.remove(key);
+				} else if (op == OP_REMOVE) {
+					entries.remove(key);
+					unstored.remove(key);
+				} else {
+					throw new IOException("broken index: " + file);
+				}
+			}
+		} catch (EOFException e) {
+			// the last record was not written completely
+			logger.warn("truncated index: {}", file);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Rewrites the log with the live entries only.
+	 */
+	private void compact() throws IOException {
+		if (log != null)
+			log.close();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			for (Map.Entry<ID, Entry> e : entries.entrySet())
+				writePut(out, e.getKey(), e.getValue());
+			for (Map.Entry<ID, Entry> e : unstored.entrySet()) {
+				Entry entry = e.getValue();
+				out.writeByte(OP_PUT_FILE);
+				out.write(e.getKey().getValue());
+				out.writeUTF(entry.getURI());
+				out.writeLong(0L);
+				out.writeLong(entry.getModified());
+				out.writeLong(entry.getLastAccess());
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("failed to rename " + tmp + " to " + file);
+		}
+		log = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file, true)));
+		garbage = 0;
+	}
+
+	private static void writePut(DataOutputStream out, ID key, Entry entry)
+			throws IOException {
+		SegmentStore.Record record = entry.getRecord();
+		out.writeByte(OP_PUT);
+		out.write(key.getValue());
+		out.writeUTF(entry.getURI());
+		out.writeLong(entry.getModified());
+		out.writeLong(entry.getLastAccess());
+		out.writeInt(record.getSegment());
+		out.writeLong(record.getOffset());
+		out.writeInt(record.getHeaderLength());
+		out.writeLong(record.getBodyLength());
+	}
+
+	public Entry get(ID key) {
+		return entries.get(key);
+	}
+
+	/**
+	 * Returns a read-only view of the entries.
+	 */
+	public Map<ID, Entry> getEntries() {
+		return Collections.unmodifiableMap(entries);
+	}
+
+	/**
+	 * Returns the entries of objects which are still stored in their own
+	 * files, by the layout before the segment store.
+	 */
+	public Map<ID, Entry> getUnstoredEntries() {
+		return Collections.unmodifiableMap(unstored);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public synchronized void put(ID key, String uri,
+			SegmentStore.Record record, long modified) throws IOException {
+		put(key, new Entry(uri, record, modified, modified));
+	}
+
+	private void put(ID key, Entry entry) throws IOException {
+		if (entries.put(key, entry) != null)
+			garbage++;
+		if (unstored.remove(key) != null)
+			garbage++;
+		if (log == null)
+			return;
+		writePut(log, key, entry);
+		flush();
+	}
+
+	/**
+	 * Moves an entry to a copy of its record, unless the entry has been
+	 * replaced or removed. Returns whether it is moved.
+	 */
+	public synchronized boolean relocate(ID key, Entry expected,
+			SegmentStore.Record record) throws IOException {
+		if (entries.get(key) != expected)
+			return false;
+		put(key, new Entry(expected.getURI(), record, expected.getModified(),
+				expected.getLastAccess()));
+		return true;
+	}
+
+	public synchronized void remove(ID key) throws IOException {
+		if (entries.remove(key) == null && unstored.remove(key) == null)
+			return;
+		garbage++;
+		if (log == null)
+			return;
+		log.writeByte(OP_REMOVE);
+		log.write(key.getValue());
+		garbage++;
+		flush();
+	}
+
+	/**
+	 * Records an access to an object. The time is written to the log when
+	 * it is compacted.
+	 */
+	public void touch(ID key, long time) {
+		Entry entry = entries.get(key);
+		if (entry != null)
+			entry.lastAccess = time;
+	}
+
+	private void flush() throws IOException {
+		log.flush();
+		if (garbage >= MIN_GARBAGE_TO_COMPACT && garbage > entries.size())
+			compact();
+	}
+
+	/**
+	 * Compacts and closes the log.
+	 */
+	public synchronized void close() throws IOException {
+		if (log == null)
+			return;
+		compact();
+		log.close();
+		log = null;
+	}
+
+	public static class Entry {
+		private final String uri;
+		private final SegmentStore.Record record;
+		private final long modified;
+		private volatile long lastAccess;
+
+		private Entry(String uri, SegmentStore.Record record, long modified,
+				long lastAccess) {
+			this.uri = uri;
+			this.record = record;
+			this.modified = modified;
+			this.lastAccess = lastAccess;
+		}
+
+		public String getURI() {
+			return uri;
+		}
+
+		public SegmentStore.Record getRecord() {
+			return record;
+		}
+
+		/**
+		 * Returns the length of the body.
+		 */
+		public long getSize() {
+			return record != null ? record.getBodyLength() : 0L;
+		}
+
+		public long getModified() {
+			return modified;
+		}
+
+		public long getLastAccess() {
+			return lastAccess;
+		}
+	}
+}
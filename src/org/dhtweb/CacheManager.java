@@ -0,0 +1,419 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ow.dht.ByteArray;
+import ow.dht.DHT;
+import ow.id.ID;
+
+/**
+ * Keeps the cache directory within a capacity. It reads the size of each
+ * object from {@link LocalResponseCache#INDEX} periodically. The capacity
+ * bounds the segment files on the disk, which hold dead records as well
+ * as live ones. When they exceed the high watermark, it has the
+ * {@link SegmentCompactor} reclaim dead records first, and then evicts
+ * objects and reclaims their records down to the low watermark. An evicted
+ * object is also removed from the DHT. Access statistics survive restarts
+ * in {@link #STATS_FILE}.
+ * <p>
+ * Objects are evicted by one of these policies:
+ * "lru" (least recently used), "lfu" (least frequently used) or
+ * "gdsf" (Greedy-Dual-Size-Frequency, which prefers to keep small and
+ * frequently used objects).
+ * 
+ * @author syuu
+ */
+public class CacheManager implements Runnable {
+	private final static Logger logger = LoggerFactory.getLogger(CacheManager.class);
+
+	public final static String POLICY_LRU = "lru";
+	public final static String POLICY_LFU = "lfu";
+	public final static String POLICY_GDSF = "gdsf";
+	public final static String DEFAULT_POLICY = POLICY_GDSF;
+
+	public final static long DEFAULT_CAPACITY = 1024L * 1024 * 1024;
+	public final static double DEFAULT_HIGH_WATERMARK = 0.95;
+	public final static double DEFAULT_LOW_WATERMARK = 0.85;
+
+	public final static File STATS_FILE = new File(System
+			.getProperty("user.home"), ".dhtfox.stats");
+
+	private final static int ID_SIZE = 20;
+
+	/** objects modified more recently than this may still be written */
+	private final static long MIN_AGE = 60 * 1000L;
+
+	private final CacheIndex index;
+	private final SegmentCompactor compactor;
+	private final DHT<String> dht;
+	private final ByteArray hashedSecret;
+	private final String selfValue;
+	private final String policy;
+	private final long capacity;
+	private double highWatermark = DEFAULT_HIGH_WATERMARK;
+	private double lowWatermark = DEFAULT_LOW_WATERMARK;
+
+	private final Map<String, Stat> stats = new HashMap<String, Stat>();
+	private long totalBytes = 0L;
+	private long hitBytes = 0L, missBytes = 0L;
+	private long evictedObjects = 0L, evictedBytes = 0L;
+	/** the priority of the last evicted object, for GDSF */
+	private double inflation = 0.0;
+	private boolean scanned = false, loaded = false;
+	private final long startTime = System.currentTimeMillis();
+
+	public CacheManager(CacheIndex index, SegmentCompactor compactor,
+			DHT<String> dht, ByteArray hashedSecret, InetAddress selfAddress,
+			int port, String policy, long capacity) {
+		if (!POLICY_LRU.equals(policy) && !POLICY_LFU.equals(policy)
+				&& !POLICY_GDSF.equals(policy))
+			throw new IllegalArgumentException("unknown eviction policy: " + policy);
+
+		this.index = index;
+		this.compactor = compactor;
+		this.dht = dht;
+		this.hashedSecret = hashedSecret;
+		this.selfValue = selfAddress.getHostAddress() + ":" + port;
+		this.policy = policy;
+		this.capacity = capacity;
+	}
+
+	public synchronized void setWatermarks(double high, double low) {
+		this.highWatermark = high;
+		this.lowWatermark = low;
+	}
+
+	/**
+	 * Returns whether a file in the flat cache directory is the body of an
+	 * object.
+	 */
+	public static boolean isCacheFile(String fileName) {
+		return !fileName.endsWith(".header") && !fileName.endsWith(".tmp");
+	}
+
+	/**
+	 * Records a hit of the object stored in the given file.
+	 */
+	public synchronized void recordHit(String key, long bytes) {
+		Stat s = stats.get(key);
+		if (s == null) {
+			s = new Stat();
+			stats.put(key, s);
+		}
+		s.hits++;
+		s.lastAccess = System.currentTimeMillis();
+		s.updatePriority(inflation);
+		hitBytes += Math.max(0L, bytes);
+	}
+
+	public void run() {
+		try {
+			scan();
+			evict();
+			save();
+		} catch (Exception e) {
+			// keep being scheduled
+			logger.warn(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Updates the size of each object from the index.
+	 */
+	private void scan() {
+		Map<String, long[]> found = new HashMap<String, long[]>();
+		for (Map.Entry<ID, CacheIndex.Entry> e : index.getEntries().entrySet())
+			found.put(e.getKey().toString(), new long[] {
+					e.getValue().getSize(), e.getValue().getModified() });
+
+		synchronized (this) {
+			Iterator<Map.Entry<String, Stat>> it = stats.entrySet().iterator();
+			while (it.hasNext())
+				if (!found.containsKey(it.next().getKey()))
+					it.remove();
+
+			long total = 0L;
+			for (Map.Entry<String, long[]> e : found.entrySet()) {
+				long size = e.getValue()[0], modified = e.getValue()[1];
+				Stat s = stats.get(e.getKey());
+				if (s == null) {
+					s = new Stat();
+					s.hits = 1;
+					s.lastAccess = modified;
+					stats.put(e.getKey(), s);
+				}
+				if (s.size < 0 && (scanned || loaded))
+					missBytes += size; // stored since the last scan
+				s.size = size;
+				s.modified = modified;
+				s.updatePriority(inflation);
+				total += size;
+			}
+			totalBytes = total;
+			scanned = true;
+		}
+	}
+
+	private void evict() throws IOException {
+		long high, target;
+		synchronized (this) {
+			high = (long) (capacity * highWatermark);
+			target = (long) (capacity * lowWatermark);
+		}
+		long stored = compactor.getStoredBytes();
+		if (capacity <= 0 || stored <= high)
+			return;
+
+		// dead records go first, and live objects only if they are not enough
+		compactor.reclaim(stored - target);
+		stored = compactor.getStoredBytes();
+		if (stored <= high)
+			return;
+		// dead records left are reclaimed once their segment is sealed
+		long live = stored - compactor.getDeadBytes();
+
+		List<Map.Entry<String, Stat>> victims = new ArrayList<Map.Entry<String, Stat>>();
+		synchronized (this) {
+			List<Map.Entry<String, Stat>> candidates = new ArrayList<Map.Entry<String, Stat>>(
+					stats.entrySet());
+			Collections.sort(candidates, getComparator());
+			long now = System.currentTimeMillis();
+			long remaining = live;
+			for (Map.Entry<String, Stat> e : candidates) {
+				if (remaining <= target)
+					break;
+				if (now - e.getValue().modified < MIN_AGE)
+					continue;
+				victims.add(e);
+				remaining -= e.getValue().size;
+			}
+		}
+
+		logger.info("evicting {} objects", victims.size());
+		for (Map.Entry<String, Stat> e : victims) {
+			if (!delete(e.getKey()))
+				continue;
+			synchronized (this) {
+				Stat s = stats.remove(e.getKey());
+				if (s == null)
+					continue;
+				totalBytes -= s.size;
+				evictedObjects++;
+				evictedBytes += s.size;
+				inflation = Math.max(inflation, s.priority);
+			}
+		}
+		compactor.reclaim(compactor.getStoredBytes() - target);
+	}
+
+	private Comparator<Map.Entry<String, Stat>> getComparator() {
+		if (POLICY_LRU.equals(policy)) {
+			return new Comparator<Map.Entry<String, Stat>>() {
+				public int compare(Map.Entry<String, Stat> a, Map.Entry<String, Stat> b) {
+					return compareLong(a.getValue().lastAccess, b.getValue().lastAccess);
+				}
+			};
+		} else if (POLICY_LFU.equals(policy)) {
+			return new Comparator<Map.Entry<String, Stat>>() {
+				public int compare(Map.Entry<String, Stat> a, Map.Entry<String, Stat> b) {
+					int c = compareLong(a.getValue().hits, b.getValue().hits);
+					if (c != 0)
+						return c;
+					return compareLong(a.getValue().lastAccess, b.getValue().lastAccess);
+				}
+			};
+		} else {
+			return new Comparator<Map.Entry<String, Stat>>() {
+				public int compare(Map.Entry<String, Stat> a, Map.Entry<String, Stat> b) {
+					return Double.compare(a.getValue().priority, b.getValue().priority);
+				}
+			};
+		}
+	}
+
+	private static int compareLong(long a, long b) {
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	/**
+	 * Removes an object from the cache, and this node from the holders of
+	 * it on the DHT.
+	 */
+	boolean delete(String name) {
+		ID key = ID.getID(name, ID_SIZE);
+		CacheIndex.Entry entry = index.get(key);
+		if (entry == null)
+			return false;
+		try {
+			index.remove(key);
+		} catch (IOException e) {
+			logger.warn(e.getMessage(), e);
+		}
+		// the record is reclaimed by the compactor
+		LocalResponseCache.MEMORY_CACHE.remove(name);
+
+		try {
+			LocalResponseCache.ANNOUNCEMENTS.forget(key);
+			dht.remove(key, new String[] { selfValue }, hashedSecret);
+			logger.info("removed {}", entry.getURI());
+		} catch (Exception e) {
+			logger.warn("failed to remove " + entry.getURI() + " from DHT", e);
+		}
+		return true;
+	}
+
+	/**
+	 * Loads access statistics saved by a previous run.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void load() {
+		if (!STATS_FILE.exists())
+			return;
+		try {
+			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
+					STATS_FILE));
+			try {
+				long[] totals = (long[]) ois.readObject();
+				Map<String, long[]> saved = (Map<String, long[]>) ois.readObject();
+				hitBytes = totals[0];
+				missBytes = totals[1];
+				evictedObjects = totals[2];
+				evictedBytes = totals[3];
+				inflation = Double.longBitsToDouble(totals[4]);
+				for (Map.Entry<String, long[]> e : saved.entrySet()) {
+					Stat s = new Stat();
+					s.hits = e.getValue()[0];
+					s.lastAccess = e.getValue()[1];
+					s.size = e.getValue()[2];
+					s.priority = Double.longBitsToDouble(e.getValue()[3]);
+					stats.put(e.getKey(), s);
+				}
+				loaded = true;
+			} finally {
+				ois.close();
+			}
+		} catch (Exception e) {
+			logger.warn("failed to load " + STATS_FILE, e);
+		}
+	}
+
+	/**
+	 * Saves access statistics.
+	 */
+	public void save() {
+		long[] totals;
+		HashMap<String, long[]> snapshot = new HashMap<String, long[]>();
+		synchronized (this) {
+			totals = new long[] { hitBytes, missBytes, evictedObjects,
+					evictedBytes, Double.doubleToLongBits(inflation) };
+			for (Map.Entry<String, Stat> e : stats.entrySet()) {
+				Stat s = e.getValue();
+				snapshot.put(e.getKey(), new long[] { s.hits, s.lastAccess,
+						s.size, Double.doubleToLongBits(s.priority) });
+			}
+		}
+
+		File tmp = new File(STATS_FILE.getPath() + ".tmp");
+		try {
+			ObjectOutputStream oos = new ObjectOutputStream(
+					new FileOutputStream(tmp));
+			try {
+				oos.writeObject(totals);
+				oos.writeObject(snapshot);
+			} finally {
+				oos.close();
+			}
+			if (!tmp.renameTo(STATS_FILE)) {
+				STATS_FILE.delete();
+				tmp.renameTo(STATS_FILE);
+			}
+		} catch (IOException e) {
+			logger.warn("failed to save " + STATS_FILE, e);
+		}
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public long getStoredBytes() {
+		return compactor.getStoredBytes();
+	}
+
+	public synchronized int getObjectCount() {
+		return stats.size();
+	}
+
+	/**
+	 * Returns the ratio of bytes served from the cache to all bytes served
+	 * or fetched into the cache.
+	 */
+	public synchronized double getByteHitRatio() {
+		long total = hitBytes + missBytes;
+		return total > 0 ? (double) hitBytes / total : 0.0;
+	}
+
+	public synchronized String toString() {
+		double hours = (System.currentTimeMillis() - startTime) / 3600000.0;
+		final long MB = 1024 * 1024;
+		StringBuilder sb = new StringBuilder();
+		sb.append("size:").append(totalBytes / MB).append(" MB");
+		sb.append(",stored:").append(compactor.getStoredBytes() / MB).append(" MB");
+		if (capacity > 0)
+			sb.append('/').append(capacity / MB).append(" MB");
+		sb.append(",objects:").append(stats.size());
+		sb.append(",policy:").append(policy);
+		sb.append(",evicted:").append(evictedObjects).append(" objects/")
+				.append(evictedBytes / MB).append(" MB");
+		sb.append(",eviction rate:").append(
+				String.format("%.1f", hours > 0 ? evictedObjects / hours : 0.0))
+				.append(" objects/hour");
+		sb.append(",byte hit ratio:").append(
+				String.format("%.1f%%", getByteHitRatio() * 100));
+		return sb.toString();
+	}
+
+	private static class Stat {
+		long size = -1L; // not scanned yet
+		long modified = 0L;
+		long lastAccess = 0L;
+		long hits = 0L;
+		double priority = 0.0;
+
+		void updatePriority(double inflation) {
+			// H = L + frequency * cost / size, with a unit cost
+			priority = inflation + (double) hits / Math.max(1L, size);
+		}
+	}
+}
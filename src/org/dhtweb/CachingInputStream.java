@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.CacheRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An InputStream which also writes the bytes read to a cache request, as
+ * HttpURLConnection does for a ResponseCache. The cache request is
+ * committed when the stream is closed after the whole body has been read,
+ * and aborted otherwise.
+ * 
+ * @author syuu
+ */
+public class CachingInputStream extends FilterInputStream {
+	private final static Logger logger = LoggerFactory
+			.getLogger(CachingInputStream.class);
+
+	private CacheRequest cache;
+	private final long length;
+	private long count = 0L;
+	private boolean eof = false;
+
+	/**
+	 * @param length the length of the body, or -1 if it is delimited by the
+	 *            end of the stream
+	 */
+	public CachingInputStream(InputStream in, CacheRequest cache, long length) {
+		super(in);
+		this.cache = cache;
+		this.length = length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n < 0) {
+			eof = true;
+			return n;
+		}
+		count += n;
+		if (cache != null) {
+			try {
+				cache.getBody().write(b, off, n);
+			} catch (IOException e) {
+				logger.warn(e.getMessage(), e);
+				cache.abort();
+				cache = null;
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// skipped bytes would be missing in the cache
+		byte[] buf = new byte[(int) Math.min(Math.max(n, 0L), 8192)];
+		int r = read(buf, 0, buf.length);
+		return r < 0 ? 0 : r;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (cache != null) {
+				if (length >= 0 ? count == length : eof)
+					cache.getBody().close();
+				else
+					cache.abort();
+				cache = null;
+			}
+		} finally {
+			super.close();
+		}
+	}
+}
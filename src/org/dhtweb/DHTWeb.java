@@ -42,6 +42,7 @@ import org.slf4j.bridge.SLF4JBridgeHandler;
 
 import ow.dht.ByteArray;
 import ow.dht.DHT;
+import ow.dht.DHTConfiguration;
 import ow.dht.DHTFactory;
 import ow.messaging.Signature;
 import ow.messaging.upnp.Mapping;
@@ -57,7 +58,6 @@ import ow.tool.dhtshell.commands.RemoveCommand;
 import ow.tool.dhtshell.commands.ResumeCommand;
 import ow.tool.dhtshell.commands.SetSecretCommand;
 import ow.tool.dhtshell.commands.SetTTLCommand;
-import ow.tool.dhtshell.commands.StatusCommand;
 import ow.tool.dhtshell.commands.SuspendCommand;
 import ow.tool.emulator.EmulatorControllable;
 import ow.tool.util.shellframework.Command;
@@ -95,15 +95,42 @@ public class DHTWeb extends AbstractDHTBasedTool<String> implements
 
 	public static final Proxy PROXY_SETTING = Proxy.NO_PROXY;
 	public static final int HTTP_REQUEST_TIMEOUT = 1000;
+	public static final int HTTP_STATISTICS_INTERVAL = 300;
+	public static final int CACHE_MANAGEMENT_INTERVAL = 60;
+	public static final int COMPACTION_INTERVAL = 600;
+	public static final int ANNOUNCEMENT_RENEWAL_INTERVAL = 60;
+	public static final int HOLDER_CHECK_INTERVAL = 60;
+	public static final int ROUTING_CACHE_SIZE = 4096;
 	private static final Logger logger = LoggerFactory.getLogger(DHTWeb.class);
 	private final ExecutorService putExecutor = Executors.newCachedThreadPool();
-	private final ExecutorService prefetchExecutor = Executors.newCachedThreadPool();
+	/** cache, store and announcement tasks, serialized on a thread */
 	private final ScheduledExecutorService maintenanceExecutor = Executors.newScheduledThreadPool(1);
+	/** short periodic tasks which must not wait for the maintenance tasks */
+	private final ScheduledExecutorService sweepExecutor = Executors.newSingleThreadScheduledExecutor();
 	private ByteArray hashedSecret;
 	private DHT<String> dht = null;
 	private HTTPServer http = null;
+	private int httpThreads = HTTPExecutor.DEFAULT_THREADS;
+	private int httpQueueSize = HTTPExecutor.DEFAULT_QUEUE_SIZE;
+	private String httpRejectionPolicy = HTTPExecutor.DEFAULT_POLICY;
+	private int fetchParallelism = ProxyHandler.DEFAULT_FETCH_PARALLELISM;
+	private int hedgeDelay = ProxyHandler.DEFAULT_HEDGE_DELAY;
+	private long swarmThreshold = SwarmDownload.DEFAULT_THRESHOLD;
+	private long cacheCapacity = CacheManager.DEFAULT_CAPACITY;
+	private String evictionPolicy = CacheManager.DEFAULT_POLICY;
+	private CacheManager cacheManager = null;
+	private SegmentCompactor compactor = null;
+	private int announceBatchSize = BulkAnnouncer.DEFAULT_BATCH_SIZE;
+	private int announceRate = BulkAnnouncer.DEFAULT_RATE;
+	private BulkAnnouncer announcer = null;
+	private LocalDataMaintenanceTask holderChecker = null;
+	private int prefetchThreads = PrefetchScheduler.DEFAULT_THREADS;
+	private int prefetchBandwidth = PrefetchScheduler.DEFAULT_BANDWIDTH;
+	private PrefetchScheduler prefetcher = null;
+	private int routingCacheSize = ROUTING_CACHE_SIZE;
 	private boolean upnpEnable = true;
 	private Mapping httpMapping = null;
+	private Mapping requestMapping = null;
 	private Thread mainThread = null;
 	private UPnP upnp = null;
 
@@ -136,6 +163,7 @@ public class DHTWeb extends AbstractDHTBasedTool<String> implements
 		String secret = null;
 		String logbackxml = "logback.xml";
 		int httpPort = HTTP_PORT;
+		int requestPort = 0;
 		InetAddress selfAddress = null;
 
 		this.mainThread = Thread.currentThread();
@@ -158,6 +186,33 @@ public class DHTWeb extends AbstractDHTBasedTool<String> implements
 		opts.addOption("x", "secret", true, "secret");
 		opts.addOption("l", "logbackxml", true, "path of logback.xml");
 		opts.addOption("H", "httport", true, "http port number");
+		opts.addOption("T", "httpthreads", true, "number of http worker threads");
+		opts.addOption("Q", "httpqueue", true, "length of http request queue");
+		opts.addOption("R", "httpreject", true,
+				"policy when http request queue is full (reject|callerruns)");
+		opts.addOption("F", "fetchparallel", true,
+				"number of holders to request an object from at a time");
+		opts.addOption("D", "hedgedelay", true,
+				"msec to wait for a holder before requesting from the next one");
+		opts.addOption("S", "swarmthreshold", true,
+				"size in MB from which objects are downloaded from several holders, 0 to disable");
+		opts.addOption("M", "memcache", true, "memory cache size in MB");
+		opts.addOption("C", "cachesize", true,
+				"disk cache size in MB, 0 for unlimited");
+		opts.addOption("E", "evictpolicy", true,
+				"disk cache eviction policy: lru, lfu or gdsf");
+		opts.addOption("B", "announcebatch", true,
+				"number of keys put together when announcing cached objects");
+		opts.addOption("A", "announcerate", true,
+				"keys per second when announcing cached objects");
+		opts.addOption("W", "prefetchthreads", true,
+				"number of threads prefetching objects in hints files");
+		opts.addOption("K", "prefetchrate", true,
+				"prefetch bandwidth in KB per second, 0 for unlimited");
+		opts.addOption("G", "routingcache", true,
+				"number of keys whose routing results are cached, 0 to disable");
+		opts.addOption("P", "requestport", true,
+				"port number to serve cached objects to peers on");
 
 		CommandLineParser parser = new PosixParser();
 		CommandLine cmd = null;
@@ -192,6 +247,53 @@ public class DHTWeb extends AbstractDHTBasedTool<String> implements
 		optVal = cmd.getOptionValue('H');
 		if (optVal != null)
 			httpPort = Integer.parseInt(optVal);
+		optVal = cmd.getOptionValue('T');
+		if (optVal != null)
+			httpThreads = Integer.parseInt(optVal);
+		optVal = cmd.getOptionValue('Q');
+		if (optVal != null)
+			httpQueueSize = Integer.parseInt(optVal);
+		optVal = cmd.getOptionValue('R');
+		if (optVal != null)
+			httpRejectionPolicy = optVal;
+		optVal = cmd.getOptionValue('F');
+		if (optVal != null)
+			fetchParallelism = Integer.parseInt(optVal);
+		optVal = cmd.getOptionValue('D');
+		if (optVal != null)
+			hedgeDelay = Integer.parseInt(optVal);
+		optVal = cmd.getOptionValue('S');
+		if (optVal != null)
+			swarmThreshold = Long.parseLong(optVal) * 1024 * 1024;
+		optVal = cmd.getOptionValue('P');
+		if (optVal != null)
+			requestPort = Integer.parseInt(optVal);
+		optVal = cmd.getOptionValue('M');
+		if (optVal != null)
+			LocalResponseCache.MEMORY_CACHE.setCapacity(
+					Long.parseLong(optVal) * 1024 * 1024,
+					MemoryCache.DEFAULT_MAX_BODY_SIZE);
+		optVal = cmd.getOptionValue('C');
+		if (optVal != null)
+			cacheCapacity = Long.parseLong(optVal) * 1024 * 1024;
+		optVal = cmd.getOptionValue('E');
+		if (optVal != null)
+			evictionPolicy = optVal;
+		optVal = cmd.getOptionValue('B');
+		if (optVal != null)
+			announceBatchSize = Integer.parseInt(optVal);
+		optVal = cmd.getOptionValue('A');
+		if (optVal != null)
+			announceRate = Integer.parseInt(optVal);
+		optVal = cmd.getOptionValue('W');
+		if (optVal != null)
+			prefetchThreads = Integer.parseInt(optVal);
+		optVal = cmd.getOptionValue('K');
+		if (optVal != null)
+			prefetchBandwidth = Integer.parseInt(optVal) * 1024;
+		optVal = cmd.getOptionValue('G');
+		if (optVal != null)
+			routingCacheSize = Integer.parseInt(optVal);
 		optVal = cmd.getOptionValue('s');
 		if (optVal != null)
 			selfAddress = InetAddress.getByName(optVal);
@@ -204,9 +306,10 @@ public class DHTWeb extends AbstractDHTBasedTool<String> implements
 
 		this.hashedSecret = new ByteArray(secret.getBytes(ENCODING))
 				.hashWithSHA1();
+		DHTConfiguration dhtConfig = DHTFactory.getDefaultConfiguration();
+		dhtConfig.setRoutingCacheSize(routingCacheSize);
 		dht = super.initialize(Signature.APPLICATION_ID_DHT_SHELL,
-				(short) 0x10000, DHTFactory.getDefaultConfiguration(), COMMAND,
-				cmd);
+				(short) 0x10000, dhtConfig, COMMAND, cmd);
 
 		cmd = null;
 
@@ -218,21 +321,93 @@ public class DHTWeb extends AbstractDHTBasedTool<String> implements
 		if (selfAddress == null)
 			selfAddress = upnp.getSelfAddress();
 
-		LocalResponseCache
-				.putAllCaches(dht, httpPort, putExecutor, selfAddress);
+		http = new HTTPServer(httpPort, dht, PROXY_SETTING,
+				HTTP_REQUEST_TIMEOUT, putExecutor, selfAddress,
+				httpThreads, httpQueueSize, httpRejectionPolicy, requestPort);
+		http.setFetchStrategy(fetchParallelism, hedgeDelay);
+		http.setSwarmThreshold(swarmThreshold);
+		int peerPort = http.getPeerPort();
+		prefetcher = new PrefetchScheduler(dht, peerPort, selfAddress,
+				http.getPeerClient(), putExecutor, prefetchThreads,
+				prefetchBandwidth, PrefetchScheduler.DEFAULT_MAX_QUEUED);
+		http.setPrefetchScheduler(prefetcher);
+		sweepExecutor.scheduleWithFixedDelay(http.getPeerClient(),
+				PeerClient.IDLE_TIMEOUT, PeerClient.IDLE_TIMEOUT,
+				TimeUnit.MILLISECONDS);
+
+		compactor = new SegmentCompactor(LocalResponseCache.STORE,
+				LocalResponseCache.INDEX, SegmentCompactor.DEFAULT_THRESHOLD);
+		cacheManager = new CacheManager(LocalResponseCache.INDEX, compactor,
+				dht, hashedSecret, selfAddress, peerPort, evictionPolicy,
+				cacheCapacity);
+		cacheManager.load();
+		LocalResponseCache.setCacheManager(cacheManager);
+		// evict before announcing, not to announce objects to be evicted
+		cacheManager.run();
+		maintenanceExecutor.scheduleWithFixedDelay(cacheManager,
+				CACHE_MANAGEMENT_INTERVAL, CACHE_MANAGEMENT_INTERVAL,
+				TimeUnit.SECONDS);
+
+		maintenanceExecutor.scheduleWithFixedDelay(compactor,
+				COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.SECONDS);
+
+		announcer = new BulkAnnouncer(dht, LocalResponseCache.ANNOUNCEMENTS,
+				selfAddress, peerPort, announceBatchSize, announceRate);
+		LocalResponseCache.putAllCaches(announcer);
+		announcer.start();
+		maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					LocalResponseCache.ANNOUNCEMENTS.refresh(
+							LocalResponseCache.INDEX, announcer);
+					LocalResponseCache.ANNOUNCEMENTS.save();
+				} catch (Exception e) {
+					logger.warn(e.getMessage(), e);
+				}
+			}
+		}, ANNOUNCEMENT_RENEWAL_INTERVAL, ANNOUNCEMENT_RENEWAL_INTERVAL,
+				TimeUnit.SECONDS);
 
-		maintenanceExecutor.scheduleAtFixedRate(new LocalDataMaintenanceTask(
-				dht, httpPort, selfAddress), 60, 60, TimeUnit.SECONDS);
+		holderChecker = new LocalDataMaintenanceTask(dht, peerPort,
+				selfAddress);
+		maintenanceExecutor.scheduleWithFixedDelay(holderChecker,
+				HOLDER_CHECK_INTERVAL, HOLDER_CHECK_INTERVAL, TimeUnit.SECONDS);
 
-		http = new HTTPServer(httpPort, dht, PROXY_SETTING,
-				HTTP_REQUEST_TIMEOUT, putExecutor, prefetchExecutor, selfAddress);
 		http.bind();
 
+		sweepExecutor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				logger.info("http executor: {}", http.getExecutor());
+				for (StatisticsHandler stat : http.getStatistics())
+					logger.info("http context: {}", stat);
+				logger.info("peer client: {}", http.getPeerClient());
+				logger.info("holder ranking: {}", http.getRanking());
+				logger.info("memory cache: {}", LocalResponseCache.MEMORY_CACHE);
+				logger.info("revalidator: {}", LocalResponseCache.REVALIDATOR);
+				logger.info("disk cache: {}", cacheManager);
+				logger.info("segment store: {}", compactor);
+				logger.info("announcer: {}", announcer);
+				logger.info("announcements: {}",
+						LocalResponseCache.ANNOUNCEMENTS);
+				logger.info("holder check: {}", holderChecker);
+				logger.info("prefetch: {}", prefetcher);
+				if (dht.getRoutingService().getRoutingResultCache() != null)
+					logger.info("routing cache: {}", dht.getRoutingService()
+							.getRoutingResultCache());
+			}
+		}, HTTP_STATISTICS_INTERVAL, HTTP_STATISTICS_INTERVAL, TimeUnit.SECONDS);
+
 		if (upnpEnable) {
 			httpMapping = new Mapping(httpPort, InetAddress.getLocalHost()
 					.getHostAddress(), httpPort, Mapping.Protocol.TCP,
 					"DHTFox httpd");
 			upnp.addMapping(httpMapping);
+			if (peerPort != httpPort) {
+				requestMapping = new Mapping(peerPort, InetAddress.getLocalHost()
+						.getHostAddress(), peerPort, Mapping.Protocol.TCP,
+						"DHTFox request server");
+				upnp.addMapping(requestMapping);
+			}
 		}
 
 		// start a ShellServer
@@ -276,16 +451,27 @@ public class DHTWeb extends AbstractDHTBasedTool<String> implements
 	}
 
 	protected void shutdown() {
+		if (announcer != null)
+			announcer.stop();
 		putExecutor.shutdownNow();
 		logger.info("shutdown putExecutor");
-		prefetchExecutor.shutdownNow();
-		logger.info("shutdown prefetchExecutor");
+		if (prefetcher != null)
+			prefetcher.shutdown();
+		logger.info("shutdown prefetcher");
 		maintenanceExecutor.shutdownNow();
 		logger.info("shutdown maintenanceExecutor");
+		sweepExecutor.shutdownNow();
+		logger.info("shutdown sweepExecutor");
 		http.stop();
 		logger.info("shutdown httpd");
+		LocalResponseCache.REVALIDATOR.shutdown();
+		if (cacheManager != null)
+			cacheManager.save();
+		LocalResponseCache.closeStore();
 		if (upnpEnable) {
 			upnp.deleteMapping(httpMapping);
+			if (requestMapping != null)
+				upnp.deleteMapping(requestMapping);
 			logger.info("delete upnp mapping");
 		}
 	}
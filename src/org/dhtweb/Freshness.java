@@ -0,0 +1,230 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Computes the freshness of cached responses from their headers, as a
+ * shared cache does in RFC 2616 section 13.
+ * 
+ * @author syuu
+ */
+public class Freshness {
+	/** lifetime of a response which has neither an expiration nor a validator */
+	public final static long DEFAULT_LIFETIME = 60 * 60 * 1000L;
+	private final static long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L;
+
+	/** headers of a 304 response which do not replace the stored ones */
+	private final static String[] NOT_UPDATED = { "Content-Length",
+			"Transfer-Encoding", "Content-Encoding", "Content-Range",
+			"Connection", "Keep-Alive" };
+
+	/** headers of a stored response which are sent with 304 Not Modified */
+	public final static String[] VALIDATORS = { "ETag", "Last-Modified",
+			"Cache-Control", "Expires", "Vary", "Content-Location" };
+
+	private Freshness() {
+		// avoid instantiation
+	}
+
+	/**
+	 * Returns the first value of the header, ignoring the case of the name.
+	 */
+	public static String getHeader(Map<String, List<String>> headers,
+			String name) {
+		for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+			if (e.getKey() != null && e.getKey().equalsIgnoreCase(name)
+					&& !e.getValue().isEmpty())
+				return e.getValue().get(0);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the time when the response stored at storedAt becomes stale.
+	 */
+	public static long getExpiration(Map<String, List<String>> headers,
+			long storedAt) {
+		long age = 0L;
+		String value = getHeader(headers, "Age");
+		if (value != null) {
+			try {
+				age = Long.parseLong(value.trim()) * 1000L;
+			} catch (NumberFormatException e) {
+			}
+		}
+		return storedAt + getLifetime(headers, storedAt) - age;
+	}
+
+	/**
+	 * Returns the freshness lifetime in msec. Cache-Control max-age is
+	 * preferred to Expires, and without either the lifetime is estimated
+	 * from Last-Modified.
+	 */
+	public static long getLifetime(Map<String, List<String>> headers,
+			long storedAt) {
+		Map<String, String> cc = getCacheControl(headers);
+		if (cc.containsKey("no-cache") || cc.containsKey("no-store"))
+			return 0L;
+
+		String maxAge = cc.get("s-maxage");
+		if (maxAge == null)
+			maxAge = cc.get("max-age");
+		if (maxAge != null) {
+			try {
+				return Long.parseLong(maxAge) * 1000L;
+			} catch (NumberFormatException e) {
+				return 0L;
+			}
+		}
+
+		long date = parseDate(getHeader(headers, "Date"));
+		if (date < 0)
+			date = storedAt;
+
+		String expires = getHeader(headers, "Expires");
+		if (expires != null)
+			return Math.max(0L, parseDate(expires) - date);
+
+		long lastModified = parseDate(getHeader(headers, "Last-Modified"));
+		if (lastModified >= 0)
+			return Math.min(Math.max(0L, (date - lastModified) / 10),
+					MAX_HEURISTIC_LIFETIME);
+
+		if (getHeader(headers, "ETag") != null)
+			return 0L;
+		return DEFAULT_LIFETIME;
+	}
+
+	/**
+	 * Returns whether a stale response must not be used before it is
+	 * revalidated.
+	 */
+	public static boolean mustRevalidate(Map<String, List<String>> headers) {
+		Map<String, String> cc = getCacheControl(headers);
+		return cc.containsKey("no-cache") || cc.containsKey("must-revalidate")
+				|| cc.containsKey("proxy-revalidate");
+	}
+
+	/**
+	 * Returns whether a shared cache may store the response.
+	 */
+	public static boolean isStorable(Map<String, List<String>> headers) {
+		Map<String, String> cc = getCacheControl(headers);
+		return !cc.containsKey("no-store") && !cc.containsKey("private");
+	}
+
+	/**
+	 * Returns whether a conditional request is satisfied by the stored
+	 * response, that is whether 304 Not Modified should be sent.
+	 */
+	public static boolean isNotModified(Map<String, List<String>> headers,
+			String ifNoneMatch, String ifModifiedSince) {
+		if (ifNoneMatch != null) {
+			String etag = getHeader(headers, "ETag");
+			if (etag == null)
+				return false;
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.equals("*") || tag.equals(etag))
+					return true;
+			}
+			return false;
+		}
+		if (ifModifiedSince != null) {
+			long since = parseDate(ifModifiedSince);
+			long lastModified = parseDate(getHeader(headers, "Last-Modified"));
+			return since >= 0 && lastModified >= 0 && lastModified <= since;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the stored headers updated with the headers of a 304 response.
+	 */
+	public static Map<String, List<String>> merge(
+			Map<String, List<String>> stored, Map<String, List<String>> fresh) {
+		Map<String, List<String>> merged = new LinkedHashMap<String, List<String>>(
+				stored);
+		loop: for (Map.Entry<String, List<String>> e : fresh.entrySet()) {
+			String name = e.getKey();
+			if (name == null)
+				continue; // status line
+			for (String n : NOT_UPDATED)
+				if (n.equalsIgnoreCase(name))
+					continue loop;
+
+			Iterator<String> it = merged.keySet().iterator();
+			while (it.hasNext()) {
+				String key = it.next();
+				if (key != null && key.equalsIgnoreCase(name))
+					it.remove();
+			}
+			merged.put(name, new ArrayList<String>(e.getValue()));
+		}
+		return merged;
+	}
+
+	private static Map<String, String> getCacheControl(
+			Map<String, List<String>> headers) {
+		Map<String, String> directives = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+			if (e.getKey() == null
+					|| !(e.getKey().equalsIgnoreCase("Cache-Control") || e
+							.getKey().equalsIgnoreCase("Pragma")))
+				continue;
+			for (String value : e.getValue()) {
+				for (String d : value.split(",")) {
+					d = d.trim().toLowerCase(Locale.US);
+					if (d.length() == 0)
+						continue;
+					int eq = d.indexOf('=');
+					if (eq < 0)
+						directives.put(d, "");
+					else
+						directives.put(d.substring(0, eq).trim(), d.substring(
+								eq + 1).trim().replace("\"", ""));
+				}
+			}
+		}
+		return directives;
+	}
+
+	/**
+	 * Parses an HTTP date. Returns -1 if it cannot be parsed.
+	 */
+	public static long parseDate(String value) {
+		if (value == null)
+			return -1L;
+		SimpleDateFormat format = new SimpleDateFormat(
+				"EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return format.parse(value.trim()).getTime();
+		} catch (ParseException e) {
+			return -1L;
+		}
+	}
+}
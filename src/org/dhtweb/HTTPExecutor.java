@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded worker pool for HttpServer. It records how long each exchange
+ * waited in the queue, and {@link StatisticsHandler} reads that time on
+ * the worker thread.
+ * When the queue is full, the exchange runs on the dispatcher thread.
+ * Under the "reject" policy, the default, it is answered with 503 Service
+ * Unavailable at once. Under the "callerruns" policy it is handled
+ * normally, which stalls the dispatcher and every connection behind it.
+ * 
+ * @author syuu
+ */
+public class HTTPExecutor extends ThreadPoolExecutor {
+	private final static Logger logger = LoggerFactory.getLogger(HTTPExecutor.class);
+
+	public final static String POLICY_CALLER_RUNS = "callerruns";
+	public final static String POLICY_REJECT = "reject";
+
+	public final static int DEFAULT_THREADS = 16;
+	public final static int DEFAULT_QUEUE_SIZE = 64;
+	public final static String DEFAULT_POLICY = POLICY_REJECT;
+
+	private final static ThreadLocal<Long> queueWait = new ThreadLocal<Long>();
+	private final static ThreadLocal<Boolean> rejected = new ThreadLocal<Boolean>();
+
+	private final String policy;
+	private final AtomicLong numRejected = new AtomicLong();
+
+	public HTTPExecutor(int threads, int queueSize, String policy) {
+		super(threads, threads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new WorkerThreadFactory());
+
+		if (!POLICY_CALLER_RUNS.equals(policy) && !POLICY_REJECT.equals(policy))
+			throw new IllegalArgumentException("unknown rejection policy: " + policy);
+		this.policy = policy;
+
+		this.setRejectedExecutionHandler(new RejectedExecutionHandler() {
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+				numRejected.incrementAndGet();
+				((QueuedTask) r).runOnDispatcher(POLICY_REJECT.equals(HTTPExecutor.this.policy));
+			}
+		});
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		super.execute(new QueuedTask(command));
+	}
+
+	public String getPolicy() {
+		return policy;
+	}
+
+	public long getRejectedCount() {
+		return numRejected.get();
+	}
+
+	public String toString() {
+		return "threads:" + getPoolSize() + "/" + getMaximumPoolSize()
+				+ ",active:" + getActiveCount()
+				+ ",queued:" + getQueue().size() + "/"
+				+ (getQueue().size() + getQueue().remainingCapacity())
+				+ ",completed:" + getCompletedTaskCount()
+				+ ",overflowed:" + numRejected.get() + "(" + policy + ")";
+	}
+
+	/**
+	 * Returns nanoseconds the current exchange waited in the queue,
+	 * or -1 if the current thread is not running an exchange.
+	 */
+	static long getQueueWaitNanos() {
+		Long wait = queueWait.get();
+		return (wait == null ? -1L : wait);
+	}
+
+	/**
+	 * Returns true if the current exchange should be answered with 503.
+	 */
+	static boolean isRejected() {
+		Boolean r = rejected.get();
+		return (r != null && r);
+	}
+
+	private static class QueuedTask implements Runnable {
+		private final Runnable task;
+		private final long enqueued = System.nanoTime();
+
+		QueuedTask(Runnable task) {
+			this.task = task;
+		}
+
+		public void run() {
+			queueWait.set(System.nanoTime() - enqueued);
+			try {
+				task.run();
+			} finally {
+				queueWait.remove();
+			}
+		}
+
+		void runOnDispatcher(boolean reject) {
+			logger.debug("worker queue is full, reject:{}", reject);
+			if (reject)
+				rejected.set(Boolean.TRUE);
+			try {
+				run();
+			} finally {
+				rejected.remove();
+			}
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "HTTPWorker-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -21,7 +21,13 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import ow.dht.DHT;
 
 /**
@@ -29,39 +35,132 @@ import ow.dht.DHT;
  * @author syuu
  */
 public class HTTPServer {
-	private final int port, httpTimeout;
+	/**
+	 * The number of threads for requests to holders, which is enough for
+	 * every HTTP worker to download with a full swarm window. A fetch
+	 * which finds them all busy goes on in the thread of its request.
+	 */
+	public final static int DEFAULT_FETCH_THREADS = 64;
+
+	private final int port, requestPort, httpTimeout;
 	private final DHT<String> dht;
 	private final Proxy proxy;
 	private final HttpServer server;
-	private final ExecutorService putExecutor, prefetchExecutor;
+	private final ExecutorService putExecutor;
 	private final InetAddress selfAddress;
-
+	private final HTTPExecutor executor;
+	private final RequestServer requestServer;
+	private final ExecutorService fetchExecutor = new ThreadPoolExecutor(0,
+			DEFAULT_FETCH_THREADS, 60L, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(),
+			new ThreadPoolExecutor.AbortPolicy());
+	private final HolderRanking ranking = new HolderRanking();
+	private final PeerClient peerClient;
+	private int fetchParallelism = ProxyHandler.DEFAULT_FETCH_PARALLELISM;
+	private int hedgeDelay = ProxyHandler.DEFAULT_HEDGE_DELAY;
+	private long swarmThreshold = SwarmDownload.DEFAULT_THRESHOLD;
+	private PrefetchScheduler prefetcher = null;
+	private final List<StatisticsHandler> statistics = new ArrayList<StatisticsHandler>();
 
 	public HTTPServer(int port, DHT<String> dht, Proxy proxy,
-			int requestTimeout, ExecutorService putExecutor, ExecutorService prefetchExecutor, 
-			InetAddress selfAddress) throws IOException {
+			int requestTimeout, ExecutorService putExecutor,
+			InetAddress selfAddress, int threads, int queueSize,
+			String rejectionPolicy, int requestPort) throws IOException {
 		this.port = port;
+		this.requestPort = requestPort;
 		this.dht = dht;
 		this.proxy = proxy;
 		this.httpTimeout = requestTimeout;
 		this.putExecutor = putExecutor;
-		this.prefetchExecutor = prefetchExecutor;
 		this.server = HttpServer.create(new InetSocketAddress(port), 0);
 		this.selfAddress = selfAddress;
+		this.executor = new HTTPExecutor(threads, queueSize, rejectionPolicy);
+		this.server.setExecutor(executor);
+		this.requestServer = requestPort > 0 ? new RequestServer(requestPort) : null;
+		this.peerClient = new PeerClient(ranking, requestTimeout,
+				PeerClient.DEFAULT_READ_TIMEOUT, PeerClient.DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * Returns the client objects are requested from peers with.
+	 */
+	public PeerClient getPeerClient() {
+		return peerClient;
+	}
+
+	public HolderRanking getRanking() {
+		return ranking;
+	}
+
+	/**
+	 * Returns the port peers request cached objects on.
+	 */
+	public int getPeerPort() {
+		return requestServer != null ? requestPort : port;
+	}
+
+	/**
+	 * Sets how many holders an object is requested from at a time, and how
+	 * long to wait for a holder before requesting from the next one.
+	 * Has to be called before {@link #bind()}.
+	 */
+	public void setFetchStrategy(int parallelism, int hedgeDelay) {
+		this.fetchParallelism = parallelism;
+		this.hedgeDelay = hedgeDelay;
+	}
+
+	/**
+	 * Sets the size from which an object is downloaded in chunks from
+	 * several holders. 0 disables it. Has to be called before
+	 * {@link #bind()}.
+	 */
+	public void setSwarmThreshold(long threshold) {
+		this.swarmThreshold = threshold;
+	}
+
+	/**
+	 * Sets the scheduler objects listed in hints files are prefetched by.
+	 * Has to be called before {@link #bind()}.
+	 */
+	public void setPrefetchScheduler(PrefetchScheduler prefetcher) {
+		this.prefetcher = prefetcher;
 	}
 
 	public void bind() {
-		HttpHandler proxyHandler = new ProxyHandler(dht, proxy, port,
-				httpTimeout, putExecutor, prefetchExecutor, selfAddress);
+		HttpHandler proxyHandler = new ProxyHandler(dht, proxy, getPeerPort(),
+				httpTimeout, putExecutor, prefetcher, selfAddress,
+				fetchExecutor, ranking, peerClient, fetchParallelism,
+				hedgeDelay, swarmThreshold);
 		HttpHandler requestHandler = new RequestHandler();
-		server.createContext("/proxy/", proxyHandler);
-		server.createContext("/dhttest/", proxyHandler);
-		server.createContext("/passthroughtest/", proxyHandler);
-		server.createContext("/request/", requestHandler);
+		createContext("/proxy/", proxyHandler);
+		createContext("/dhttest/", proxyHandler);
+		createContext("/passthroughtest/", proxyHandler);
+		createContext("/request/", requestHandler);
 		server.start();
+		if (requestServer != null)
+			requestServer.start();
+	}
+
+	private void createContext(String path, HttpHandler handler) {
+		StatisticsHandler stat = new StatisticsHandler(path, handler);
+		statistics.add(stat);
+		server.createContext(path, stat);
+	}
+
+	public HTTPExecutor getExecutor() {
+		return executor;
+	}
+
+	public List<StatisticsHandler> getStatistics() {
+		return Collections.unmodifiableList(statistics);
 	}
 
 	public void stop() {
 		server.stop(0);
+		executor.shutdownNow();
+		fetchExecutor.shutdownNow();
+		peerClient.close();
+		if (requestServer != null)
+			requestServer.stop();
 	}
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks whether holders accept connections. Connections are made
+ * non-blocking on a single {@link Selector}, so one thread probes many
+ * holders at once. The number of connections in progress and the rate of
+ * new connections are limited, and a holder which does not accept the
+ * connection within the timeout is regarded as dead.
+ * 
+ * @author syuu
+ */
+public class HolderProber {
+	private final static Logger logger = LoggerFactory
+			.getLogger(HolderProber.class);
+
+	public final static int DEFAULT_CONCURRENCY = 32;
+	public final static int DEFAULT_TIMEOUT = 3000;
+	public final static int DEFAULT_RATE = 100;
+
+	private final int concurrency;
+	private final int timeout;
+	private final int rate;
+
+	public HolderProber(int concurrency, int timeout, int rate) {
+		this.concurrency = Math.max(1, concurrency);
+		this.timeout = timeout;
+		this.rate = rate;
+	}
+
+	/**
+	 * Probes holders given as "host:port" and returns whether each of them
+	 * is alive. An address which cannot be parsed is not in the result.
+	 */
+	public Map<String, Boolean> probe(Collection<String> holders)
+			throws IOException {
+		Map<String, Boolean> results = new HashMap<String, Boolean>();
+		LinkedList<String> waiting = new LinkedList<String>(holders);
+		Map<SelectionKey, Long> deadlines = new HashMap<SelectionKey, Long>();
+		long interval = rate > 0 ? 1000000000L / rate : 0L;
+		long nextStart = System.nanoTime();
+
+		Selector selector = Selector.open();
+		try {
+			while (!waiting.isEmpty() || !deadlines.isEmpty()) {
+				if (Thread.currentThread().isInterrupted())
+					break;
+				long now = System.nanoTime();
+				while (!waiting.isEmpty() && deadlines.size() < concurrency
+						&& now >= nextStart) {
+					String holder = waiting.removeFirst();
+					SelectionKey key = connect(selector, holder, results);
+					if (key != null)
+						deadlines.put(key, now + timeout * 1000000L);
+					nextStart += interval;
+					if (nextStart < now)
+						nextStart = now;
+				}
+
+				long wait = Long.MAX_VALUE;
+				for (long deadline : deadlines.values())
+					wait = Math.min(wait, deadline - now);
+				if (!waiting.isEmpty() && deadlines.size() < concurrency)
+					wait = Math.min(wait, nextStart - now);
+				if (wait == Long.MAX_VALUE)
+					continue;
+				selector.select(Math.max(1L, wait / 1000000L));
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					String holder = (String) key.attachment();
+					boolean alive;
+					try {
+						alive = ((SocketChannel) key.channel()).finishConnect();
+					} catch (IOException e) {
+						logger.debug("{} is dead: {}", holder, e.getMessage());
+						alive = false;
+					}
+					results.put(holder, alive);
+					deadlines.remove(key);
+					close(key);
+				}
+
+				now = System.nanoTime();
+				Iterator<Map.Entry<SelectionKey, Long>> expired = deadlines
+						.entrySet().iterator();
+				while (expired.hasNext()) {
+					Map.Entry<SelectionKey, Long> e = expired.next();
+					if (e.getValue() - now > 0)
+						continue;
+					String holder = (String) e.getKey().attachment();
+					logger.debug("{} is dead: timed out", holder);
+					results.put(holder, false);
+					expired.remove();
+					close(e.getKey());
+				}
+			}
+		} finally {
+			for (SelectionKey key : deadlines.keySet())
+				close(key);
+			selector.close();
+		}
+		return results;
+	}
+
+	private SelectionKey connect(Selector selector, String holder,
+			Map<String, Boolean> results) {
+		int colon = holder.lastIndexOf(':');
+		int port;
+		try {
+			port = Integer.parseInt(holder.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			logger.warn("invalid holder: {}", holder);
+			return null;
+		}
+		SocketChannel channel = null;
+		try {
+			InetSocketAddress address = new InetSocketAddress(holder
+					.substring(0, colon), port);
+			if (address.isUnresolved())
+				throw new IOException("unresolved address: " + holder);
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			if (channel.connect(address)) {
+				results.put(holder, true);
+				channel.close();
+				return null;
+			}
+			return channel.register(selector, SelectionKey.OP_CONNECT, holder);
+		} catch (IllegalArgumentException e) {
+			logger.warn("invalid holder: {}", holder);
+			return null;
+		} catch (IOException e) {
+			logger.debug("{} is dead: {}", holder, e.getMessage());
+			results.put(holder, false);
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e1) {
+				}
+			}
+			return null;
+		}
+	}
+
+	private static void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			logger.warn(e.getMessage(), e);
+		}
+	}
+}
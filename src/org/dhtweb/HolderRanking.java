@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranks holders of cached objects by the response time, the throughput and
+ * the success rate observed by this node. All of them are exponentially
+ * weighted moving averages. A holder not seen yet is assumed to answer in
+ * {@link #DEFAULT_RTT} msec, to send {@link #DEFAULT_THROUGHPUT} bytes per
+ * second and to always succeed.
+ * 
+ * @author syuu
+ */
+public class HolderRanking {
+	public final static int DEFAULT_RTT = 300;
+	public final static int DEFAULT_THROUGHPUT = 1024 * 1024;
+	/** the size of an object holders are compared on */
+	private final static int TYPICAL_SIZE = 64 * 1024;
+	private final static double ALPHA = 0.25;
+	private final static double MIN_SUCCESS_RATE = 0.05;
+	private final static int MAX_HOLDERS = 4096;
+
+	private final Map<String, Stat> stats = new LinkedHashMap<String, Stat>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Stat> eldest) {
+			return size() > MAX_HOLDERS;
+		}
+	};
+
+	/**
+	 * Returns the holders sorted from the most promising one. Holders with
+	 * the same score are in random order to spread the load.
+	 */
+	public List<String> rank(Collection<String> holders) {
+		List<String> ranked = new ArrayList<String>(holders);
+		Collections.shuffle(ranked);
+
+		final Map<String, Double> scores = new LinkedHashMap<String, Double>();
+		synchronized (stats) {
+			for (String h : ranked)
+				scores.put(h, score(stats.get(h)));
+		}
+		Collections.sort(ranked, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return Double.compare(scores.get(a), scores.get(b));
+			}
+		});
+		return ranked;
+	}
+
+	/**
+	 * Returns the expected time in msec to get an object of a typical size,
+	 * lower is better.
+	 */
+	private static double score(Stat s) {
+		if (s == null)
+			s = new Stat();
+		return (s.rtt + TYPICAL_SIZE * 1000.0 / s.throughput)
+				/ Math.max(s.successRate, MIN_SUCCESS_RATE);
+	}
+
+	public void succeeded(String holder, long rtt) {
+		synchronized (stats) {
+			Stat s = stat(holder);
+			s.rtt += ALPHA * (rtt - s.rtt);
+			s.successRate += ALPHA * (1.0 - s.successRate);
+		}
+	}
+
+	/**
+	 * Records that bytes were received from the holder in msec.
+	 */
+	public void transferred(String holder, long bytes, long msec) {
+		double throughput = bytes * 1000.0 / Math.max(msec, 1L);
+		synchronized (stats) {
+			Stat s = stat(holder);
+			s.throughput += ALPHA * (throughput - s.throughput);
+		}
+	}
+
+	public void failed(String holder) {
+		synchronized (stats) {
+			Stat s = stat(holder);
+			s.successRate -= ALPHA * s.successRate;
+		}
+	}
+
+	private Stat stat(String holder) {
+		Stat s = stats.get(holder);
+		if (s == null) {
+			s = new Stat();
+			stats.put(holder, s);
+		}
+		return s;
+	}
+
+	/**
+	 * Returns the statistics of a holder, or null if it has not been seen.
+	 */
+	public String getStat(String holder) {
+		synchronized (stats) {
+			Stat s = stats.get(holder);
+			return s != null ? s.toString() : null;
+		}
+	}
+
+	public String toString() {
+		synchronized (stats) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("holders:").append(stats.size());
+			String best = null;
+			double bestScore = Double.MAX_VALUE;
+			for (Map.Entry<String, Stat> e : stats.entrySet()) {
+				double score = score(e.getValue());
+				if (score < bestScore) {
+					best = e.getKey();
+					bestScore = score;
+				}
+			}
+			if (best != null)
+				sb.append(",best:").append(best).append('(').append(
+						stats.get(best)).append(')');
+			return sb.toString();
+		}
+	}
+
+	private static class Stat {
+		double rtt = DEFAULT_RTT;
+		double throughput = DEFAULT_THROUGHPUT;
+		double successRate = 1.0;
+
+		public String toString() {
+			return String.format("rtt:%.0fms,throughput:%.0fKB/s,success:%.2f",
+					rtt, throughput / 1024, successRate);
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A fetch of an object in progress, which other requests for the same
+ * object attach to instead of fetching it again. The exchange of the
+ * request which started the fetch gets a response body stream which also
+ * writes to a spool file, and the attached requests stream the response
+ * from the spool file as it grows. Only a 200 OK response is shared.
+ * <p>
+ * The request which started the fetch tells whether the whole body was
+ * received when it finishes, since the length of a chunked response is not
+ * known in advance. The attached requests fail unless it was.
+ * 
+ * @author syuu
+ */
+public class InFlightFetch {
+	private final static Logger logger = LoggerFactory.getLogger(InFlightFetch.class);
+
+	private final URI uri;
+
+	private int responseCode = -1;
+	private Map<String, List<String>> responseHeaders = null;
+	private boolean finished = false;
+	private boolean failed = false;
+	private long written = 0L;
+	private int readers = 0;
+
+	private File spoolFile = null;
+	private FileChannel spool = null;
+
+	public InFlightFetch(URI uri) {
+		this.uri = uri;
+	}
+
+	/**
+	 * Makes the response body of the exchange also written to this fetch.
+	 * Has to be called by the request which started the fetch, before the
+	 * response is sent.
+	 */
+	public void lead(HttpExchange he) {
+		he.setStreams(null, new TeeOutputStream(he, he.getResponseBody()));
+	}
+
+	/**
+	 * Sends the response of this fetch to the exchange. Returns false
+	 * without sending anything if the fetch did not get a 200 OK response
+	 * in timeout msec, and then the caller has to fetch the object by
+	 * itself. Throws an IOException, leaving the response body unclosed so
+	 * that the connection is dropped, if the fetch fails or makes no
+	 * progress in timeout msec once the response has been started.
+	 */
+	public boolean follow(HttpExchange he, long timeout) throws IOException {
+		long length;
+		FileChannel ch;
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (responseCode < 0 && !finished)
+				if (!waitForUpdate(deadline))
+					return false;
+			// the spool file is gone once the fetch has finished and its
+			// last reader has left
+			if (responseCode != HttpURLConnection.HTTP_OK || spool == null)
+				return false;
+			ch = spool;
+			readers++;
+			length = getContentLength();
+		}
+
+		OutputStream out = he.getResponseBody();
+		boolean complete = false;
+		try {
+			Headers headers = he.getResponseHeaders();
+			for (Map.Entry<String, List<String>> e : responseHeaders.entrySet()) {
+				String key = e.getKey();
+				if (key.equalsIgnoreCase("Content-Length")
+						|| key.equalsIgnoreCase("Transfer-Encoding")
+						|| key.equalsIgnoreCase("Date"))
+					continue;
+				headers.put(key, new ArrayList<String>(e.getValue()));
+			}
+			he.sendResponseHeaders(HttpURLConnection.HTTP_OK, length);
+
+			ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+			long pos = 0L;
+			while (true) {
+				long available;
+				synchronized (this) {
+					long deadline = System.currentTimeMillis() + timeout;
+					while (written <= pos && !finished && !failed)
+						if (!waitForUpdate(deadline))
+							throw new IOException("fetch made no progress in "
+									+ timeout + " msec: " + uri);
+					if (failed)
+						throw new IOException("fetch failed: " + uri);
+					available = written;
+					if (available <= pos)
+						break;
+				}
+
+				buf.clear();
+				buf.limit((int) Math.min(buf.capacity(), available - pos));
+				int n = ch.read(buf, pos);
+				if (n <= 0)
+					throw new IOException("spool file is shorter than "
+							+ available + " bytes: " + spoolFile);
+				out.write(buf.array(), 0, n);
+				pos += n;
+			}
+			out.flush();
+			complete = true;
+		} finally {
+			// closing would end a chunked response as if it were complete
+			if (complete) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+			release();
+		}
+		return true;
+	}
+
+	/**
+	 * Called when the fetch is over, with whether the whole body was
+	 * received. The spool file is deleted after all attached requests have
+	 * read it.
+	 */
+	public void finish(boolean complete) {
+		synchronized (this) {
+			if (!finished && responseCode == HttpURLConnection.HTTP_OK) {
+				long length = getContentLength();
+				failed |= !complete || (length > 0 && written != length);
+			}
+			finished = true;
+			notifyAll();
+		}
+		release0();
+	}
+
+	private void release() {
+		synchronized (this) {
+			readers--;
+		}
+		release0();
+	}
+
+	private void release0() {
+		FileChannel ch;
+		File f;
+		synchronized (this) {
+			if (!finished || readers > 0 || spool == null)
+				return;
+			ch = spool;
+			f = spoolFile;
+			spool = null;
+		}
+		try {
+			ch.close();
+		} catch (IOException e) {
+		}
+		if (!f.delete())
+			logger.warn("failed to delete {}", f);
+	}
+
+	private long getContentLength() {
+		if (responseHeaders != null) {
+			for (Map.Entry<String, List<String>> e : responseHeaders
+					.entrySet()) {
+				if (e.getKey().equalsIgnoreCase("Content-Length")
+						&& !e.getValue().isEmpty()) {
+					try {
+						return Long.parseLong(e.getValue().get(0).trim());
+					} catch (NumberFormatException ex) {
+					}
+				}
+			}
+		}
+		return 0L; // chunked
+	}
+
+	/**
+	 * Waits for an update until the deadline, and returns false if it has
+	 * passed.
+	 */
+	private boolean waitForUpdate(long deadline) throws IOException {
+		long wait = deadline - System.currentTimeMillis();
+		if (wait <= 0L)
+			return false;
+		try {
+			wait(wait);
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while waiting for " + uri);
+		}
+		return true;
+	}
+
+	private synchronized void publishResponse(HttpExchange he) {
+		if (responseCode >= 0 || finished)
+			return;
+		int code = he.getResponseCode();
+		if (code < 0)
+			return;
+
+		if (code == HttpURLConnection.HTTP_OK) {
+			try {
+				spoolFile = File.createTempFile("dhtweb", ".spool");
+				spool = new RandomAccessFile(spoolFile, "rw").getChannel();
+			} catch (IOException e) {
+				logger.warn(e.getMessage(), e);
+				if (spoolFile != null)
+					spoolFile.delete();
+				code = HttpURLConnection.HTTP_INTERNAL_ERROR;
+			}
+		}
+		responseHeaders = new Headers();
+		responseHeaders.putAll(he.getResponseHeaders());
+		responseCode = code;
+		notifyAll();
+	}
+
+	private void append(byte[] b, int off, int len) {
+		FileChannel ch;
+		long pos;
+		synchronized (this) {
+			if (spool == null || failed)
+				return;
+			ch = spool;
+			pos = written;
+		}
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+			while (buf.hasRemaining())
+				pos += ch.write(buf, pos);
+		} catch (IOException e) {
+			logger.warn(e.getMessage(), e);
+			synchronized (this) {
+				failed = true;
+				notifyAll();
+			}
+			return;
+		}
+		synchronized (this) {
+			written = pos;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Writes to the client and to the spool file. Once the client has gone,
+	 * its writes are dropped so that the fetch goes on for the others.
+	 */
+	private class TeeOutputStream extends OutputStream {
+		private final HttpExchange he;
+		private final OutputStream out;
+		private boolean clientGone = false;
+
+		TeeOutputStream(HttpExchange he, OutputStream out) {
+			this.he = he;
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			publishResponse(he);
+			append(b, off, len);
+			if (clientGone)
+				return;
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				logger.info("client has gone: {}", e.getMessage());
+				clientGone = true;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			publishResponse(he);
+			if (!clientGone) {
+				try {
+					out.flush();
+				} catch (IOException e) {
+					clientGone = true;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			publishResponse(he);
+			out.close();
+		}
+	}
+}
@@ -15,12 +15,11 @@
  */
 package org.dhtweb;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.slf4j.Logger;
@@ -30,74 +29,147 @@ import ow.dht.ValueInfo;
 import ow.id.ID;
 
 /**
+ * Removes holders which are down from the global directory. Each distinct
+ * holder is probed once per run with a {@link HolderProber}, and holders
+ * found alive are not probed again until {@link #ALIVE_TTL} passes. Dead
+ * holders are always probed again, since a holder which comes back puts
+ * its keys again. Values of dead holders are removed at once.
  *
  * @author Administrator
  */
 public class LocalDataMaintenanceTask implements Runnable {
     private final static Logger logger = LoggerFactory.getLogger(LocalDataMaintenanceTask.class);
+    public final static long ALIVE_TTL = 5 * 60 * 1000L;
     private final DHT<String> dht;
     private final int port;
 	private final InetAddress selfAddress;
-	
+	private final HolderProber prober;
+	private final Map<String, Long> aliveSince = new HashMap<String, Long>();
+
+	private long runs = 0L, probed = 0L, cached = 0L, dead = 0L, removed = 0L;
+	private long lastDuration = 0L, lastHolders = 0L, lastProbed = 0L,
+			lastDead = 0L;
+
     public LocalDataMaintenanceTask(DHT<String> dht, int port, InetAddress selfAddress) {
+        this(dht, port, selfAddress, new HolderProber(
+                HolderProber.DEFAULT_CONCURRENCY, HolderProber.DEFAULT_TIMEOUT,
+                HolderProber.DEFAULT_RATE));
+    }
+
+    public LocalDataMaintenanceTask(DHT<String> dht, int port, InetAddress selfAddress,
+            HolderProber prober) {
         this.dht = dht;
         this.port = port;
         this.selfAddress = selfAddress;
+        this.prober = prober;
     }
     
     @Override
     public void run() {
-        Set<ID> keySet;
-        Set<ValueInfo<String>> values;
-        Map<String, Boolean> checkMap = new HashMap<String, Boolean>();
+        long start = System.currentTimeMillis();
+        String self = selfAddress.getHostAddress() + ":" + port;
+        Map<String, Map<ID, Set<ValueInfo<String>>>> holders =
+                new HashMap<String, Map<ID, Set<ValueInfo<String>>>>();
         // global directory
-        keySet = dht.getGlobalKeys();
+        for (ID key : dht.getGlobalKeys()) {
+            Set<ValueInfo<String>> values = dht.getGlobalValues(key);
+            if (values == null)
+                continue;
+            for (ValueInfo<String> v : values) {
+                if (v.getValue().equals(self))
+                    continue;
+                Map<ID, Set<ValueInfo<String>>> held = holders.get(v.getValue());
+                if (held == null) {
+                    held = new HashMap<ID, Set<ValueInfo<String>>>();
+                    holders.put(v.getValue(), held);
+                }
+                Set<ValueInfo<String>> s = held.get(key);
+                if (s == null) {
+                    s = new HashSet<ValueInfo<String>>();
+                    held.put(key, s);
+                }
+                s.add(v);
+            }
+        }
+
+        List<String> toProbe = new ArrayList<String>();
+        int fromCache = 0;
+        synchronized (aliveSince) {
+            aliveSince.keySet().retainAll(holders.keySet());
+            for (String holder : holders.keySet()) {
+                Long since = aliveSince.get(holder);
+                if (since != null && start - since < ALIVE_TTL)
+                    fromCache++;
+                else
+                    toProbe.add(holder);
+            }
+        }
 
-        if (!keySet.isEmpty()) {
-            for (ID key : keySet) {
-                values = dht.getGlobalValues(key);
-                if (values != null) {
-                    for (ValueInfo<String> v : values) {
-                        if (v.getValue().equals(selfAddress.getHostAddress() + ":" + port)) {
-                            logger.info("Got self url, skipping: {}", v.getValue());
-                            continue;
-                        }
+        Map<String, Boolean> results;
+        try {
+            results = prober.probe(toProbe);
+        } catch (Exception e) {
+            logger.warn(e.getMessage(), e);
+            return;
+        }
 
-                        if(checkMap.get(v.getValue()) != null) {
-                            if(!checkMap.get(v.getValue()))
-                                try {
-                                dht.removeGlobalValue(key, v);
-                            } catch (Exception ex) {
-                               logger.warn(ex.getMessage(), ex);
-                            }
-                        }
-                        HttpURLConnection connection = null;
-                        try {
-                            URL remoteUrl = new URL("http://" + v.getValue());
-                            logger.info("trying to connect {}", remoteUrl);
-                            connection = (HttpURLConnection) remoteUrl.openConnection();
-                            connection.connect();
-                            checkMap.put(v.getValue(), true);
-                        } catch (MalformedURLException ex) {
-                            logger.warn(ex.getMessage(), ex);
-                        } catch (IOException ex) {
-                            logger.warn(ex.getMessage(), ex);
-                            try {
-                                checkMap.put(v.getValue(), false);
-                                dht.removeGlobalValue(key, v);
-                            } catch (Exception ex1) {
-                               logger.warn(ex1.getMessage(), ex1);
-                            }
-                        } finally {
-                            try {
-                                connection.disconnect();
-                            } catch (Exception e) {
-                                logger.warn(e.getMessage(), e);
-                            }
-                        }
+        Map<ID, Set<ValueInfo<String>>> removal = new HashMap<ID, Set<ValueInfo<String>>>();
+        int deadHolders = 0, deadValues = 0;
+        long now = System.currentTimeMillis();
+        synchronized (aliveSince) {
+            for (Map.Entry<String, Boolean> e : results.entrySet()) {
+                if (e.getValue()) {
+                    aliveSince.put(e.getKey(), now);
+                    continue;
+                }
+                aliveSince.remove(e.getKey());
+                deadHolders++;
+                logger.info("{} is dead, removing", e.getKey());
+                for (Map.Entry<ID, Set<ValueInfo<String>>> held : holders.get(e.getKey()).entrySet()) {
+                    Set<ValueInfo<String>> s = removal.get(held.getKey());
+                    if (s == null) {
+                        s = new HashSet<ValueInfo<String>>();
+                        removal.put(held.getKey(), s);
                     }
+                    s.addAll(held.getValue());
+                    deadValues += held.getValue().size();
                 }
             }
         }
+        if (!removal.isEmpty()) {
+            try {
+                dht.removeGlobalValues(removal);
+            } catch (Exception e) {
+                logger.warn(e.getMessage(), e);
+                deadValues = 0;
+            }
+        }
+
+        long duration = System.currentTimeMillis() - start;
+        synchronized (this) {
+            runs++;
+            probed += results.size();
+            cached += fromCache;
+            dead += deadHolders;
+            removed += deadValues;
+            lastDuration = duration;
+            lastHolders = holders.size();
+            lastProbed = results.size();
+            lastDead = deadHolders;
+        }
+        logger.info("holder check: {}", this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("runs:").append(runs);
+        sb.append(",last:").append(lastDuration).append("ms");
+        sb.append(",holders:").append(lastHolders);
+        sb.append(",probed:").append(lastProbed).append('/').append(probed);
+        sb.append(",cached:").append(cached);
+        sb.append(",dead:").append(lastDead).append('/').append(dead);
+        sb.append(",removed:").append(removed);
+        return sb.toString();
     }
 }
@@ -18,32 +18,28 @@ package org.dhtweb;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.CacheRequest;
 import java.net.CacheResponse;
 import java.net.HttpURLConnection;
-import java.net.InetAddress;
+import java.net.Proxy;
 import java.net.ResponseCache;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLConnection;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
-import java.nio.channels.FileLock;
-import java.nio.channels.OverlappingFileLockException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ow.dht.DHT;
 import ow.id.ID;
 
 public class LocalResponseCache extends ResponseCache {
@@ -67,135 +63,439 @@ public class LocalResponseCache extends ResponseCache {
 		}
 	}
 
+	/**
+	 * Memory tier in front of the store.
+	 */
+	public static final MemoryCache MEMORY_CACHE = new MemoryCache(
+			MemoryCache.DEFAULT_CAPACITY, MemoryCache.DEFAULT_MAX_BODY_SIZE);
+
+	/**
+	 * Revalidates stale responses with their origin servers.
+	 */
+	public static final Revalidator REVALIDATOR = new Revalidator(
+			Proxy.NO_PROXY, Revalidator.DEFAULT_TIMEOUT,
+			Revalidator.DEFAULT_THREADS);
+
+	/**
+	 * Segment files holding the cached responses.
+	 */
+	public static final SegmentStore STORE = new SegmentStore(new File(
+			CACHE_DIR, "segments"), SegmentStore.DEFAULT_SEGMENT_SIZE);
+
+	/**
+	 * Index of the objects in the store.
+	 */
+	public static final CacheIndex INDEX = new CacheIndex(new File(CACHE_DIR,
+			"index"));
+
+	/**
+	 * Keys announced on the DHT.
+	 */
+	public static final AnnouncementRegistry ANNOUNCEMENTS = new AnnouncementRegistry(
+			new File(CACHE_DIR, "announcements"));
+
+	/**
+	 * Keeps the cache directory within its capacity, if set.
+	 */
+	private static volatile CacheManager cacheManager = null;
+
+	/**
+	 * Announces the cached objects at startup.
+	 */
+	private static volatile BulkAnnouncer announcer = null;
+
 	/**
 	 * Private constructor to prevent instantiation.
 	 */
 	private LocalResponseCache() {
 	}
 
-	public static void installResponseCache() {
+	public static void installResponseCache() throws IOException {
 		if (!IS_CACHE_DISABLED) {
+			openStore();
 			ResponseCache.setDefault(new LocalResponseCache());
 		}
 	}
 
 	/**
-	 * Returns the local File corresponding to the given remote URI.
+	 * Opens the store and its index. Objects stored in files by an older
+	 * layout are moved into the store.
 	 */
-	public static File getLocalFile(URI remoteUri) {
-		if (remoteUri.getPath().matches("^/request/")) {
-			try {
-				remoteUri = new URI(remoteUri.getPath().replaceFirst(
-						"^/request/", ""));
-			} catch (URISyntaxException ex) {
-				logger.warn(ex.getMessage(), ex);
+	public static void openStore() throws IOException {
+		STORE.open();
+		boolean indexed = INDEX.exists();
+		INDEX.open();
+		if (!indexed)
+			importFlatFiles();
+		importShardedFiles();
+		ANNOUNCEMENTS.load();
+		logger.info("{} objects in cache", INDEX.size());
+	}
+
+	public static void closeStore() {
+		ANNOUNCEMENTS.save();
+		try {
+			INDEX.close();
+		} catch (IOException e) {
+			logger.warn(e.getMessage(), e);
+		}
+		STORE.close();
+	}
+
+	/**
+	 * Moves the objects stored in the flat layout, under URL-encoded file
+	 * names, into the store.
+	 */
+	private static void importFlatFiles() throws IOException {
+		File[] files = CACHE_DIR.listFiles();
+		if (files == null)
+			return;
+		List<File> bodies = new ArrayList<File>();
+		List<String> uris = new ArrayList<String>();
+		for (File file : files) {
+			String fileName = file.getName();
+			if (!file.isFile() || !CacheManager.isCacheFile(fileName)
+					|| fileName.equals("index")) {
+				if (fileName.endsWith(".tmp"))
+					file.delete();
+				continue;
+			}
+			bodies.add(file);
+			uris.add(URLDecoder.decode(fileName, "UTF-8"));
+		}
+		byte[][] bytes = new byte[uris.size()][];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = uris.get(i).getBytes();
+		ID[] keys = ID.getSHA1BasedIDs(bytes);
+		for (int i = 0; i < keys.length; i++) {
+			File body = bodies.get(i);
+			importFiles(keys[i], uris.get(i), body, new File(CACHE_DIR,
+					body.getName() + ".header"));
+		}
+	}
+
+	/**
+	 * Moves the objects stored in the sharded layout, by their keys, into
+	 * the store.
+	 */
+	private static void importShardedFiles() throws IOException {
+		for (Map.Entry<ID, CacheIndex.Entry> e : INDEX.getUnstoredEntries()
+				.entrySet()) {
+			String name = e.getKey().toString();
+			File dir = new File(new File(CACHE_DIR, name.substring(0, 2)),
+					name.substring(2, 4));
+			importFiles(e.getKey(), e.getValue().getURI(),
+					new File(dir, name), new File(dir, name + ".header"));
+			if (INDEX.get(e.getKey()) == null)
+				INDEX.remove(e.getKey()); // failed to import
+			dir.delete();
+			dir.getParentFile().delete();
+		}
+	}
+
+	private static void importFiles(ID key, String uri, File body, File header)
+			throws IOException {
+		try {
+			if (body.exists() && header.exists()) {
+				long lastModified = body.lastModified();
+				SegmentStore.Record record = STORE.append(
+						readHeaderFile(header), body);
+				INDEX.put(key, uri, record, lastModified);
 			}
+		} catch (IOException e) {
+			logger.warn("failed to import " + uri, e);
 		}
-		String fileName = null;
+		body.delete();
+		header.delete();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, List<String>> readHeaderFile(File localHeader)
+			throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
+				localHeader));
 		try {
-			fileName = URLEncoder.encode(remoteUri.toString(), "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			logger.warn(e.getMessage(), e);
+			return (Map<String, List<String>>) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			ois.close();
 		}
-		logger.info("getLocalFile uri:{} fileName:{}", remoteUri, fileName);
-		return new File(CACHE_DIR, fileName);
 	}
 
-	public static File getLocalHeader(URI remoteUri) {
-		if (remoteUri.getPath().matches("^/requests/")) {
+	/**
+	 * Returns the key of the given remote URI, which is also its key on the
+	 * DHT.
+	 */
+	public static ID getKey(URI remoteUri) {
+		return ID.getSHA1BasedID(getKeyBytes(remoteUri));
+	}
+
+	/**
+	 * Returns the keys of the given remote URIs, in the same order.
+	 */
+	public static ID[] getKeys(List<URI> remoteUris) {
+		byte[][] bytes = new byte[remoteUris.size()][];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = getKeyBytes(remoteUris.get(i));
+		return ID.getSHA1BasedIDs(bytes);
+	}
+
+	private static byte[] getKeyBytes(URI remoteUri) {
+		String path = remoteUri.getPath();
+		if (path != null && path.startsWith(RequestServer.CONTEXT)) {
+			// the object requested from a peer is kept under its own key
+			String s = remoteUri.toString();
 			try {
-				remoteUri = new URI(remoteUri.getPath().replaceFirst(
-						"^/requests/", ""));
+				remoteUri = new URI(s.substring(s.indexOf(RequestServer.CONTEXT)
+						+ RequestServer.CONTEXT.length()));
 			} catch (URISyntaxException ex) {
 				logger.warn(ex.getMessage(), ex);
 			}
 		}
-		String fileName = null;
+		return remoteUri.toString().getBytes();
+	}
+
+	/**
+	 * Returns the cached response for the given remote URI, or null if it is
+	 * not cached. The memory tier is tried first, and on a miss the response
+	 * is read from the store and kept in the memory tier. A stale response
+	 * is returned as well, and queued for revalidation.
+	 */
+	public static MemoryCache.Entry getCachedEntry(URI remoteUri)
+			throws IOException {
+		ID id = getKey(remoteUri);
+		String key = id.toString();
+		for (int retry = 0;; retry++) {
+			CacheIndex.Entry indexed = INDEX.get(id);
+			if (indexed == null)
+				return null; // not cached
+
+			MemoryCache.Entry entry = MEMORY_CACHE.get(key, indexed
+					.getModified());
+			if (entry == null) {
+				try {
+					entry = readEntry(indexed);
+				} catch (IOException e) {
+					// the record may have been moved by the compactor
+					if (retry > 0 || INDEX.get(id) == indexed)
+						throw e;
+					continue;
+				}
+				MEMORY_CACHE.put(key, entry);
+			}
+			recordHit(id, entry);
+			scheduleIfStale(remoteUri, entry);
+			return entry;
+		}
+	}
+
+	/**
+	 * Returns the cached response for the given remote URI if it may be
+	 * served, or null. A stale response which has to be revalidated before
+	 * use is revalidated now if revalidate is true, and is not returned
+	 * otherwise, so that the caller fetches the object instead.
+	 */
+	public static MemoryCache.Entry getUsableEntry(URI remoteUri,
+			boolean revalidate) throws IOException {
+		MemoryCache.Entry entry = getCachedEntry(remoteUri);
+		if (entry == null || !isUpdateAvailable(remoteUri, entry))
+			return entry;
+		if (!revalidate)
+			return null;
+
+		REVALIDATOR.revalidate(remoteUri);
+		entry = getCachedEntry(remoteUri);
+		if (entry == null || isUpdateAvailable(remoteUri, entry))
+			return null;
+		return entry;
+	}
+
+	private static MemoryCache.Entry readEntry(CacheIndex.Entry indexed)
+			throws IOException {
+		SegmentStore.Record record = indexed.getRecord();
+		Map<String, List<String>> headerMap = STORE.readHeaders(record);
+		ByteBuffer body = STORE.readBody(record);
+
+		long contentLength = body.remaining();
+		List<String> values = headerMap.get("Content-Length");
+		if (values != null && !values.isEmpty())
+			contentLength = Long.parseLong(values.get(0));
+
+		long storedAt = indexed.getModified();
+		long expiration = Freshness.getExpiration(headerMap, storedAt);
+		boolean revalidationRequired = Freshness.mustRevalidate(headerMap);
+		if (MEMORY_CACHE.isCacheable(body.remaining())) {
+			byte[] bytes = new byte[body.remaining()];
+			body.get(bytes);
+			return new MemoryCache.Entry(headerMap, bytes, contentLength,
+					storedAt, expiration, revalidationRequired);
+		}
+		return new MemoryCache.Entry(headerMap, body, contentLength,
+				storedAt, expiration, revalidationRequired);
+	}
+
+	private static void recordHit(ID key, MemoryCache.Entry entry) {
+		INDEX.touch(key, System.currentTimeMillis());
+		CacheManager manager = cacheManager;
+		if (manager != null)
+			manager.recordHit(key.toString(), entry.getContentLength());
+	}
+
+	public static void setCacheManager(CacheManager manager) {
+		cacheManager = manager;
+	}
+
+	public static CacheManager getCacheManager() {
+		return cacheManager;
+	}
+
+	private static void scheduleIfStale(URI remoteUri, MemoryCache.Entry entry) {
+		if (entry.isStale(System.currentTimeMillis()))
+			REVALIDATOR.schedule(remoteUri);
+	}
+
+	/**
+	 * Returns the stored headers of the cached response for the given remote
+	 * URI, or null if it is not cached.
+	 */
+	public static Map<String, List<String>> readHeaders(URI remoteUri)
+			throws IOException {
+		CacheIndex.Entry indexed = INDEX.get(getKey(remoteUri));
+		if (indexed == null)
+			return null;
+		return STORE.readHeaders(indexed.getRecord());
+	}
+
+	/**
+	 * Replaces the stored headers of the cached response for the given
+	 * remote URI. It also marks the response as stored now.
+	 */
+	public static void writeHeaders(URI remoteUri,
+			Map<String, List<String>> headerFields) throws IOException {
+		ID key = getKey(remoteUri);
+		CacheIndex.Entry indexed = INDEX.get(key);
+		if (indexed == null)
+			throw new IOException("not cached: " + remoteUri);
+		SegmentStore.Record record = STORE.append(headerFields, STORE
+				.readBody(indexed.getRecord()));
+		store(key, remoteUri, record);
+	}
+
+	/**
+	 * Replaces the cached response for the given remote URI with a new one
+	 * whose body is read from in. The body is written to a temporary file
+	 * first, so that the old one can be served until it is complete.
+	 */
+	public static void replace(URI remoteUri,
+			Map<String, List<String>> headerFields, InputStream in)
+			throws IOException {
+		File tmp = File.createTempFile("body", ".tmp", CACHE_DIR);
 		try {
-			fileName = URLEncoder.encode(remoteUri.toString(), "UTF-8")
-					+ ".header";
-		} catch (UnsupportedEncodingException e) {
-			logger.warn(e.getMessage(), e);
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				byte[] buf = new byte[65535];
+				int size;
+				while ((size = in.read(buf)) != -1)
+					out.write(buf, 0, size);
+			} finally {
+				out.close();
+			}
+			store(getKey(remoteUri), remoteUri, STORE.append(headerFields,
+					tmp));
+		} finally {
+			tmp.delete();
 		}
-		logger.info("getLocalHeader: uri{} fileName:{}", remoteUri, fileName);
-		return new File(CACHE_DIR, fileName);
 	}
 
-	public static void putAllCaches(DHT<String> dht, int port,
-			ExecutorService putExecutor, InetAddress selfAddress) {
-		File[] caches = CACHE_DIR.listFiles();
-		for (int i = 0; i < caches.length; i++) {
-			String fileName = caches[i].getName();
-			if (fileName.matches("\\.header$"))
-				continue;
-			URI uri = null;
+	/**
+	 * Removes the cached response for the given remote URI, and this node
+	 * from the holders of it on the DHT if the cache is managed. The record
+	 * is reclaimed by the compactor.
+	 */
+	public static void remove(URI remoteUri) throws IOException {
+		ID key = getKey(remoteUri);
+		CacheManager manager = cacheManager;
+		if (manager != null) {
+			manager.delete(key.toString());
+			return;
+		}
+		INDEX.remove(key);
+		MEMORY_CACHE.remove(key.toString());
+	}
+
+	private static void store(ID key, URI uri, SegmentStore.Record record)
+			throws IOException {
+		INDEX.put(key, uri.toString(), record, System.currentTimeMillis());
+		MEMORY_CACHE.remove(key.toString());
+	}
+
+	/**
+	 * Queues the cached objects to be announced on the DHT, except those
+	 * whose announcements are still valid.
+	 */
+	public static void putAllCaches(BulkAnnouncer announcer) {
+		LocalResponseCache.announcer = announcer;
+		int count = 0;
+		for (Map.Entry<ID, CacheIndex.Entry> e : INDEX.getEntries().entrySet()) {
+			URI uri;
 			try {
-				String str = URLDecoder.decode(caches[i].getName(), "UTF-8");
-				uri = new URI(str);
-			} catch (UnsupportedEncodingException e) {
-				logger.warn(e.getMessage(), e);
-			} catch (URISyntaxException e) {
-				logger.warn(e.getMessage(), e);
+				uri = new URI(e.getValue().getURI());
+			} catch (URISyntaxException ex) {
+				logger.warn(ex.getMessage(), ex);
+				continue;
 			}
-			ID key = ID.getSHA1BasedID(uri.toString().getBytes());
-			logger.info("uri:{} fileName:{}", uri, fileName);
-			putExecutor.submit(new PutTask(dht, port, key, selfAddress, uri));
+			if (announcer.add(e.getKey(), uri))
+				count++;
 		}
+		logger.info("{} of {} objects to be announced", count, INDEX.size());
+	}
+
+	public static BulkAnnouncer getAnnouncer() {
+		return announcer;
 	}
 
 	/**
-	 * Returns true if the resource at the given remote URI is newer than the
-	 * resource cached locally.
+	 * Returns true if the cached response for the given remote URI must not
+	 * be used. A stale response is queued for revalidation, and is used
+	 * meanwhile unless it has to be revalidated before use.
 	 */
-	private static boolean isUpdateAvailable(URI remoteUri, File localFile) {
-		/** XXX: Need to implement following feature to keep cache coherency
-		 *  if (localCache maxage passed)
-		 *  	lastModified = original.getLastModified
-		 *  	if (localCache is older than last modified)
-		 *  		return true;
-		 *  return false;
-		 */
-		return false;
-		/*
-		 * URLConnection conn; try { conn = remoteUri.toURL().openConnection();
-		 * } catch (MalformedURLException ex) { ex.printStackTrace(); return
-		 * false; } catch (IOException ex) { ex.printStackTrace(); return false;
-		 * } if (!(conn instanceof HttpURLConnection)) { // don't bother with
-		 * non-http connections return false; }
-		 * 
-		 * long localLastMod = localFile.lastModified(); long remoteLastMod =
-		 * 0L; HttpURLConnection httpconn = (HttpURLConnection) conn; // disable
-		 * caching so we don't get in feedback loop with ResponseCache
-		 * httpconn.setUseCaches(false); try { httpconn.connect(); remoteLastMod
-		 * = httpconn.getLastModified(); } catch (IOException ex) {
-		 * //ex.printStackTrace(); return false; } finally {
-		 * httpconn.disconnect(); } logger.info("isUpdateAvaiable:{},{}",
-		 * remoteUri, (remoteLastMod > localLastMod)); return (remoteLastMod >
-		 * localLastMod);
-		 */
+	private static boolean isUpdateAvailable(URI remoteUri,
+			MemoryCache.Entry entry) {
+		return entry.isStale(System.currentTimeMillis())
+				&& entry.isRevalidationRequired();
+	}
+
+	/**
+	 * Opens a cache entry for a response of the given remote URI which is
+	 * not fetched through URLConnection. The body has to be written to the
+	 * returned request and closed, or the request aborted. Returns null if
+	 * the cache is disabled or the entry could not be opened.
+	 */
+	public static CacheRequest openCacheRequest(URI uri,
+			Map<String, List<String>> headerFields) throws IOException {
+		if (IS_CACHE_DISABLED)
+			return null;
+		CacheRequest request = new LocalResponseCache().new LocalCacheRequest(
+				uri, headerFields);
+		return request.getBody() != null ? request : null;
 	}
 
 	@Override
 	public CacheResponse get(URI uri, String rqstMethod,
 			Map<String, List<String>> rqstHeaders) throws IOException {
-		File localFile = getLocalFile(uri);
-		File localHeader = getLocalHeader(uri);
-		if (!localFile.exists() || !localHeader.exists()) {
-			// the file isn't already in our cache, return null
-			return null;
-		}
-
-		if (isUpdateAvailable(uri, localFile)) {
+		MemoryCache.Entry entry = getCachedEntry(uri);
+		if (entry == null || isUpdateAvailable(uri, entry)) {
 			// there is an update available, so don't return cached version
 			return null;
 		}
 
-		if (!localFile.exists() || !localHeader.exists()) {
-			// the file isn't already in our cache, return null
+		// the headers of the memory tier lack the status line
+		Map<String, List<String>> headers = readHeaders(uri);
+		if (headers == null)
 			return null;
-		}
 		logger.info("get:{}", uri);
-		return new LocalCacheResponse(localFile, localHeader);
+		return new LocalCacheResponse(headers, entry.getBody());
 	}
 
 	@Override
@@ -206,54 +506,21 @@ public class LocalResponseCache extends ResponseCache {
 						.equals("GET"))) {
 			return null;
 		}
+		if (!Freshness.isStorable(conn.getHeaderFields())) {
+			return null;
+		}
 		logger.info("put:{}", uri);
-		File localFile = getLocalFile(uri);
-		File localHeader = getLocalHeader(uri);
-		return new LocalCacheRequest(localFile, localHeader, conn
-				.getHeaderFields());
+		return new LocalCacheRequest(uri, conn.getHeaderFields());
 	}
 
 	private class LocalCacheResponse extends CacheResponse {
+		private final Map<String, List<String>> headers;
+		private final ByteBuffer body;
 
-		private FileInputStream fis;
-		private Map<String, List<String>> headers = null;
-		private FileLock lock = null;
-
-		@SuppressWarnings("unchecked")
-		private LocalCacheResponse(File localFile, File localHeader) {
-			FileInputStream fisHeader = null;
-			ObjectInputStream ois = null;
-			try {
-				this.fis = new FileInputStream(localFile);
-				while(true) {
-					try {
-						lock = fis.getChannel().tryLock(0, Long.MAX_VALUE, true);
-					} catch (OverlappingFileLockException e) {
-						logger.warn("{} blocked", localFile);
-					}
-					if (lock == null) {
-						try {
-							Thread.sleep(100);
-						} catch (InterruptedException e) {
-							logger.warn(e.getMessage(), e);
-						}
-					}else
-						break;
-				}
-				fisHeader = new FileInputStream(localHeader);
-				ois = new ObjectInputStream(fisHeader);
-				this.headers = (Map<String, List<String>>) ois.readObject();
-			} catch (ClassNotFoundException ex) {
-				logger.warn(ex.getMessage(), ex);
-			} catch (IOException ex) {
-				logger.warn(ex.getMessage(), ex);
-			} finally {
-				try {
-					fisHeader.close();
-					ois.close();
-				} catch (IOException e) {
-				}
-			}
+		private LocalCacheResponse(Map<String, List<String>> headers,
+				ByteBuffer body) {
+			this.headers = headers;
+			this.body = body;
 		}
 
 		@Override
@@ -263,72 +530,80 @@ public class LocalResponseCache extends ResponseCache {
 
 		@Override
 		public InputStream getBody() throws IOException {
-			return fis;
+			return new ByteBufferInputStream(body);
 		}
 	}
 
+	/**
+	 * Spools a body to a temporary file, and appends it to the store when it
+	 * has been written completely.
+	 */
 	private class LocalCacheRequest extends CacheRequest {
-		private final File localFile, localHeader;
-		private FileOutputStream fos, fosHeader;
-		private FileLock lock = null;
+		private final URI uri;
+		private final Map<String, List<String>> headerFields;
+		private File tmp = null;
+		private OutputStream body = null;
 
-		private LocalCacheRequest(File localFile, File localHeader,
+		private LocalCacheRequest(URI uri,
 				Map<String, List<String>> headerFields) {
-			this.localFile = localFile;
-			this.localHeader = localHeader;
-			{
-				ObjectOutputStream oos = null;
-				try {
-					this.fos = new FileOutputStream(localFile);
-					while(true) {
-						try {
-							lock = fos.getChannel().tryLock();
-						} catch (OverlappingFileLockException e) {
-							logger.warn("{} blocked", localFile);
-						}
-						if (lock == null) {
-							try {
-								Thread.sleep(100);
-							} catch (InterruptedException e) {
-								logger.warn(e.getMessage(), e);
-							}
-						}else
-							break;
-					}
-					this.fosHeader = new FileOutputStream(localHeader);
-					oos = new ObjectOutputStream(fosHeader);
-					oos.writeObject(headerFields);
-				} catch (IOException ex) {
-					logger.warn(ex.getMessage(), ex);
-				} finally {
-					try {
-						oos.close();
-						this.fosHeader.close();
-					} catch (IOException ex) {
-						logger.warn(ex.getMessage(), ex);
-					}
-				}
+			this.uri = uri;
+			this.headerFields = headerFields;
+			try {
+				this.tmp = File.createTempFile("body", ".tmp", CACHE_DIR);
+				this.body = new StoringOutputStream(new FileOutputStream(tmp));
+			} catch (IOException ex) {
+				logger.warn(ex.getMessage(), ex);
+				if (tmp != null)
+					tmp.delete();
 			}
 		}
 
 		@Override
 		public OutputStream getBody() throws IOException {
-			return fos;
+			return body;
 		}
 
 		@Override
 		public void abort() {
 			// abandon the cache attempt by closing the stream and deleting
-			// the local file
-			try {
-				fos.close();
-				localFile.delete();
-			} catch (IOException e) {
+			// the temporary file
+			if (body == null)
+				return;
+			((StoringOutputStream) body).discard();
+		}
+
+		private class StoringOutputStream extends FilterOutputStream {
+			private boolean closed = false;
+
+			private StoringOutputStream(OutputStream out) {
+				super(out);
 			}
-			try {
-				fosHeader.close();
-				localHeader.delete();
-			} catch (IOException e) {
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			private void discard() {
+				closed = true;
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+				tmp.delete();
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed)
+					return;
+				closed = true;
+				try {
+					super.close();
+					store(getKey(uri), uri, STORE.append(headerFields, tmp));
+				} finally {
+					tmp.delete();
+				}
 			}
 		}
 	}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * An LRU memory tier in front of the {@link SegmentStore} of
+ * {@link LocalResponseCache}. It holds parsed headers of cached responses
+ * and the bodies of small ones, within a limit on the total bytes. Larger
+ * bodies are held as buffers mapped from the store. They take no heap, but
+ * they are counted in the total as well, since each keeps its pages and
+ * the disk space of its segment for as long as it is held.
+ * The store is the source of truth. An entry is dropped when the response
+ * is stored again or its modification time no longer matches.
+ * 
+ * @author syuu
+ */
+public class MemoryCache {
+	public final static long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+	public final static int DEFAULT_MAX_BODY_SIZE = 1024 * 1024;
+
+	/** rough per-entry overhead of the map and the entry object */
+	private final static int ENTRY_OVERHEAD = 128;
+
+	private final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private long capacity;
+	private int maxBodySize;
+	private long size = 0L;
+
+	private long hits = 0L, misses = 0L, evictions = 0L;
+
+	public MemoryCache(long capacity, int maxBodySize) {
+		this.capacity = capacity;
+		this.maxBodySize = maxBodySize;
+	}
+
+	/**
+	 * Returns the entry for the key if it was read from a file with the
+	 * given modification time.
+	 */
+	public synchronized Entry get(String key, long lastModified) {
+		Entry e = map.get(key);
+		if (e != null && e.lastModified != lastModified) {
+			remove0(key);
+			e = null;
+		}
+
+		if (e != null)
+			hits++;
+		else
+			misses++;
+		return e;
+	}
+
+	public synchronized void put(String key, Entry e) {
+		remove0(key);
+		if (e.size > capacity)
+			return;
+
+		map.put(key, e);
+		size += e.size;
+
+		Iterator<Entry> it = map.values().iterator();
+		while (size > capacity && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			size -= eldest.size;
+			evictions++;
+		}
+	}
+
+	public synchronized void remove(String key) {
+		remove0(key);
+	}
+
+	private void remove0(String key) {
+		Entry e = map.remove(key);
+		if (e != null)
+			size -= e.size;
+	}
+
+	public synchronized void clear() {
+		map.clear();
+		size = 0L;
+	}
+
+	/**
+	 * Changes the limits. Entries over the new capacity are evicted when
+	 * the next entry is put.
+	 */
+	public synchronized void setCapacity(long capacity, int maxBodySize) {
+		this.capacity = capacity;
+		this.maxBodySize = maxBodySize;
+	}
+
+	/**
+	 * Returns whether a body of the given length is kept in memory.
+	 */
+	public synchronized boolean isCacheable(long length) {
+		return length >= 0 && length <= maxBodySize;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("entries:").append(map.size());
+		sb.append(",bytes:").append(size).append('/').append(capacity);
+		sb.append(",hits:").append(hits);
+		sb.append(",misses:").append(misses);
+		sb.append(",evictions:").append(evictions);
+		return sb.toString();
+	}
+
+	/**
+	 * A cached response. The body is either kept in memory or mapped from
+	 * the store, if it is too large to keep in memory.
+	 */
+	public static class Entry {
+		private final Map<String, List<String>> headers;
+		private final ByteBuffer body;
+		private final long contentLength;
+		private final long lastModified;
+		private final long expiration;
+		private final boolean revalidationRequired;
+		private final long size;
+
+		public Entry(Map<String, List<String>> headerMap, byte[] body,
+				long contentLength, long lastModified, long expiration,
+				boolean revalidationRequired) {
+			this(headerMap, ByteBuffer.wrap(body), contentLength,
+					lastModified, expiration, revalidationRequired);
+		}
+
+		public Entry(Map<String, List<String>> headerMap, ByteBuffer body,
+				long contentLength, long lastModified, long expiration,
+				boolean revalidationRequired) {
+			Map<String, List<String>> h = new LinkedHashMap<String, List<String>>();
+			long headerSize = 0L;
+			for (Map.Entry<String, List<String>> entry : headerMap.entrySet()) {
+				String key = entry.getKey();
+				if (key == null)
+					continue;
+				List<String> values = Collections
+						.unmodifiableList(new ArrayList<String>(entry.getValue()));
+				h.put(key, values);
+				headerSize += key.length();
+				for (String v : values)
+					headerSize += v.length();
+			}
+
+			this.headers = Collections.unmodifiableMap(h);
+			this.body = body;
+			this.contentLength = contentLength;
+			this.lastModified = lastModified;
+			this.expiration = expiration;
+			this.revalidationRequired = revalidationRequired;
+			this.size = ENTRY_OVERHEAD + headerSize * 2 + body.remaining();
+		}
+
+		public Map<String, List<String>> getHeaders() {
+			return headers;
+		}
+
+		/**
+		 * Copies the headers to a response. Each list is copied because
+		 * HttpServer may modify the response headers.
+		 */
+		public void copyHeadersTo(Headers responseHeaders) {
+			for (Map.Entry<String, List<String>> entry : headers.entrySet())
+				responseHeaders.put(entry.getKey(), new ArrayList<String>(entry
+						.getValue()));
+		}
+
+		/**
+		 * Returns a new buffer of the body, whose position and limit can be
+		 * changed freely.
+		 */
+		public ByteBuffer getBody() {
+			return body.duplicate();
+		}
+
+		public long getContentLength() {
+			return contentLength;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public boolean isStale(long now) {
+			return now >= expiration;
+		}
+
+		/**
+		 * Returns whether the response must not be used once it is stale.
+		 */
+		public boolean isRevalidationRequired() {
+			return revalidationRequired;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An HTTP/1.1 client for the "/request/" context of peers. Connections are
+ * kept alive and pooled per peer, so the objects of a page fetched from
+ * the same few peers do not pay the TCP setup each. The response time and
+ * the throughput of every request are reported to a {@link HolderRanking}.
+ * Idle connections are closed before the peer would close them, and by
+ * {@link #run()}.
+ * 
+ * @author syuu
+ */
+public class PeerClient implements Runnable {
+	private final static Logger logger = LoggerFactory
+			.getLogger(PeerClient.class);
+
+	public final static int DEFAULT_READ_TIMEOUT = 10 * 1000;
+	public final static int DEFAULT_MAX_IDLE = 8;
+	/** shorter than the idle timeout of {@link RequestServer} */
+	public final static int IDLE_TIMEOUT = RequestServer.IDLE_TIMEOUT / 2;
+
+	private final HolderRanking ranking;
+	private final int connectTimeout, readTimeout, maxIdle;
+	private final ConcurrentHashMap<String, LinkedList<Connection>> idle = new ConcurrentHashMap<String, LinkedList<Connection>>();
+
+	private final AtomicLong requests = new AtomicLong(),
+			opened = new AtomicLong(), reused = new AtomicLong(),
+			retried = new AtomicLong(), failures = new AtomicLong();
+
+	public PeerClient(HolderRanking ranking, int connectTimeout,
+			int readTimeout, int maxIdle) {
+		this.ranking = ranking;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * Returns a request for an object to a peer given as "host:port". The
+	 * request is sent by {@link PeerRequest#execute()}.
+	 */
+	public PeerRequest request(String holder, URI uri) {
+		requests.incrementAndGet();
+		return new PeerRequest(this, holder, uri);
+	}
+
+	HolderRanking getRanking() {
+		return ranking;
+	}
+
+	/**
+	 * Returns an idle connection to the holder, or a new one if there is
+	 * none or fresh is true.
+	 */
+	Connection acquire(String holder, boolean fresh) throws IOException {
+		if (!fresh) {
+			LinkedList<Connection> list = idle.get(holder);
+			if (list != null) {
+				long now = System.currentTimeMillis();
+				synchronized (list) {
+					while (!list.isEmpty()) {
+						Connection c = list.removeLast();
+						if (now - c.lastUsed < IDLE_TIMEOUT
+								&& !c.socket.isClosed()) {
+							reused.incrementAndGet();
+							c.reused = true;
+							return c;
+						}
+						c.close();
+					}
+				}
+			}
+		} else {
+			retried.incrementAndGet();
+		}
+
+		int colon = holder.lastIndexOf(':');
+		if (colon <= 0)
+			throw new IOException("invalid holder: " + holder);
+		InetSocketAddress address;
+		try {
+			address = new InetSocketAddress(holder.substring(0, colon),
+					Integer.parseInt(holder.substring(colon + 1)));
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid holder: " + holder);
+		}
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(readTimeout);
+			socket.connect(address, connectTimeout);
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException e1) {
+			}
+			throw e;
+		}
+		opened.incrementAndGet();
+		return new Connection(holder, socket);
+	}
+
+	/**
+	 * Returns a connection whose response has been read to the end.
+	 */
+	void release(Connection c) {
+		c.reused = false;
+		c.lastUsed = System.currentTimeMillis();
+		while (true) {
+			LinkedList<Connection> list = idle.get(c.holder);
+			if (list == null) {
+				list = new LinkedList<Connection>();
+				LinkedList<Connection> old = idle.putIfAbsent(c.holder, list);
+				if (old != null)
+					list = old;
+			}
+			synchronized (list) {
+				// the sweeper may have removed the list while it was empty
+				if (idle.get(c.holder) != list)
+					continue;
+				if (list.size() < maxIdle) {
+					list.addLast(c);
+					return;
+				}
+			}
+			break;
+		}
+		c.close();
+	}
+
+	void failed() {
+		failures.incrementAndGet();
+	}
+
+	/**
+	 * Closes the connections which have been idle for too long.
+	 */
+	public void run() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, LinkedList<Connection>> e : idle.entrySet()) {
+			LinkedList<Connection> list = e.getValue();
+			synchronized (list) {
+				Iterator<Connection> conns = list.iterator();
+				while (conns.hasNext()) {
+					Connection c = conns.next();
+					if (now - c.lastUsed >= IDLE_TIMEOUT) {
+						conns.remove();
+						c.close();
+					}
+				}
+				if (list.isEmpty())
+					idle.remove(e.getKey(), list);
+			}
+		}
+	}
+
+	/**
+	 * Closes all of the idle connections.
+	 */
+	public void close() {
+		for (LinkedList<Connection> list : idle.values()) {
+			synchronized (list) {
+				for (Connection c : list)
+					c.close();
+				list.clear();
+			}
+		}
+		idle.clear();
+	}
+
+	@Override
+	public String toString() {
+		int idleCount = 0;
+		for (LinkedList<Connection> list : idle.values()) {
+			synchronized (list) {
+				idleCount += list.size();
+			}
+		}
+		long r = requests.get();
+		StringBuilder sb = new StringBuilder();
+		sb.append("requests:").append(r);
+		sb.append(",opened:").append(opened.get());
+		sb.append(",reused:").append(reused.get());
+		sb.append(String.format("(%.1f%%)", r > 0 ? reused.get() * 100.0 / r
+				: 0.0));
+		sb.append(",retried:").append(retried.get());
+		sb.append(",failures:").append(failures.get());
+		sb.append(",idle:").append(idleCount);
+		sb.append(",peers:").append(idle.size());
+		return sb.toString();
+	}
+
+	static class Connection {
+		final String holder;
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		long lastUsed;
+		boolean reused = false;
+
+		Connection(String holder, Socket socket) throws IOException {
+			this.holder = holder;
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				logger.debug(e.getMessage(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A request to a peer made through a {@link PeerClient}. It is used like
+ * HttpURLConnection: request properties are set, the request is sent by
+ * {@link #execute()}, and the body is read from {@link #getInputStream()}.
+ * The connection goes back to the pool when the body has been read to the
+ * end and closed. {@link #abort()} may be called from another thread.
+ * 
+ * @author syuu
+ */
+public class PeerRequest {
+	private final static String ENCODING = "ISO-8859-1";
+	private final static int MAX_LINE_LENGTH = 8192;
+	/** transfers smaller than this tell more about the RTT than throughput */
+	private final static long MIN_THROUGHPUT_SAMPLE = 16 * 1024;
+
+	private final PeerClient client;
+	private final String holder;
+	private final URI uri;
+	private String method = "GET";
+	private final Map<String, String> properties = new LinkedHashMap<String, String>();
+
+	private PeerClient.Connection connection = null;
+	private volatile boolean aborted = false;
+	private int status = -1;
+	private final Map<String, List<String>> headerFields = new LinkedHashMap<String, List<String>>();
+	private volatile Body body = null;
+
+	PeerRequest(PeerClient client, String holder, URI uri) {
+		this.client = client;
+		this.holder = holder;
+		this.uri = uri;
+	}
+
+	public String getHolder() {
+		return holder;
+	}
+
+	public void setRequestMethod(String method) {
+		this.method = method;
+	}
+
+	/**
+	 * Sets a request header. Hop-by-hop headers are ignored, as the
+	 * connection is managed by the client.
+	 */
+	public void setRequestProperty(String name, String value) {
+		if (name.equalsIgnoreCase("Host")
+				|| name.equalsIgnoreCase("Connection")
+				|| name.equalsIgnoreCase("Keep-Alive")
+				|| name.equalsIgnoreCase("Proxy-Connection")
+				|| name.equalsIgnoreCase("Transfer-Encoding")
+				|| name.equalsIgnoreCase("Content-Length")
+				|| name.equalsIgnoreCase("TE")
+				|| name.equalsIgnoreCase("Upgrade"))
+			return;
+		properties.put(name, value);
+	}
+
+	/**
+	 * Sends the request and reads the response header. Returns the status
+	 * code. A request on a kept-alive connection which the peer has closed
+	 * is sent again on a new connection.
+	 */
+	public int execute() throws IOException {
+		byte[] request = encodeRequest();
+		for (boolean fresh = false;; fresh = true) {
+			PeerClient.Connection c;
+			try {
+				c = client.acquire(holder, fresh);
+			} catch (IOException e) {
+				failed();
+				throw e;
+			}
+			synchronized (this) {
+				connection = c;
+			}
+			if (aborted) {
+				c.close();
+				throw new IOException("aborted: " + holder);
+			}
+
+			long start = System.currentTimeMillis();
+			boolean started = false;
+			try {
+				c.out.write(request);
+				c.out.flush();
+				String statusLine = readLine(c.in);
+				if (statusLine == null)
+					throw new EOFException("connection closed by " + holder);
+				started = true;
+				readResponseHeader(c, statusLine);
+			} catch (IOException e) {
+				c.close();
+				if (aborted)
+					throw e;
+				if (c.reused && !started)
+					continue; // closed while idle
+				failed();
+				throw e;
+			}
+
+			long rtt = System.currentTimeMillis() - start;
+			if (status == HttpURLConnection.HTTP_OK
+					|| status == HttpURLConnection.HTTP_PARTIAL
+					|| status == HttpURLConnection.HTTP_NOT_MODIFIED)
+				client.getRanking().succeeded(holder, rtt);
+			else
+				client.getRanking().failed(holder);
+			return status;
+		}
+	}
+
+	private void failed() {
+		client.failed();
+		client.getRanking().failed(holder);
+	}
+
+	private byte[] encodeRequest() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(method).append(' ').append(RequestServer.CONTEXT).append(
+				uri.toString()).append(" HTTP/1.1\r\n");
+		sb.append("Host: ").append(holder).append("\r\n");
+		for (Map.Entry<String, String> e : properties.entrySet())
+			sb.append(e.getKey()).append(": ").append(e.getValue()).append(
+					"\r\n");
+		sb.append("Connection: keep-alive\r\n\r\n");
+		return sb.toString().getBytes(ENCODING);
+	}
+
+	private void readResponseHeader(PeerClient.Connection c, String statusLine)
+			throws IOException {
+		String[] tokens = statusLine.split(" ", 3);
+		if (tokens.length < 2 || !tokens[0].startsWith("HTTP/"))
+			throw new IOException("bad status line from " + holder + ": "
+					+ statusLine);
+		try {
+			status = Integer.parseInt(tokens[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("bad status line from " + holder + ": "
+					+ statusLine);
+		}
+		headerFields.put(null, Collections.singletonList(statusLine));
+
+		String line;
+		while ((line = readLine(c.in)) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon <= 0)
+				continue;
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			List<String> values = null;
+			for (Map.Entry<String, List<String>> e : headerFields.entrySet()) {
+				if (name.equalsIgnoreCase(e.getKey())) {
+					values = e.getValue();
+					break;
+				}
+			}
+			if (values == null) {
+				values = new ArrayList<String>(1);
+				headerFields.put(name, values);
+			}
+			values.add(value);
+		}
+		if (line == null)
+			throw new EOFException("connection closed in the response header");
+
+		String conn = getHeaderField("Connection");
+		boolean keepAlive = tokens[0].equals("HTTP/1.1") ? !"close"
+				.equalsIgnoreCase(conn) : "keep-alive".equalsIgnoreCase(conn);
+		long length = getContentLength();
+		boolean chunked = "chunked"
+				.equalsIgnoreCase(getHeaderField("Transfer-Encoding"));
+		if (method.equals("HEAD") || status == HttpURLConnection.HTTP_NO_CONTENT
+				|| status == HttpURLConnection.HTTP_NOT_MODIFIED
+				|| (status >= 100 && status < 200))
+			body = new Body(c, 0L, false, keepAlive);
+		else if (chunked)
+			body = new Body(c, -1L, true, keepAlive);
+		else if (length >= 0)
+			body = new Body(c, length, false, keepAlive);
+		else
+			body = new Body(c, -1L, false, false);
+	}
+
+	public int getResponseCode() {
+		return status;
+	}
+
+	/**
+	 * Returns the response headers. As HttpURLConnection does, the status
+	 * line is mapped from null.
+	 */
+	public Map<String, List<String>> getHeaderFields() {
+		return headerFields;
+	}
+
+	public String getHeaderField(String name) {
+		for (Map.Entry<String, List<String>> e : headerFields.entrySet()) {
+			if (e.getKey() != null && e.getKey().equalsIgnoreCase(name)) {
+				List<String> values = e.getValue();
+				return values.isEmpty() ? null : values.get(values.size() - 1);
+			}
+		}
+		return null;
+	}
+
+	public long getContentLength() {
+		String value = getHeaderField("Content-Length");
+		if (value != null) {
+			try {
+				return Long.parseLong(value.trim());
+			} catch (NumberFormatException e) {
+			}
+		}
+		return -1L;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		if (body == null)
+			throw new IOException("request not executed");
+		return body;
+	}
+
+	/**
+	 * Closes the response. The connection is closed unless the body has
+	 * been read to the end.
+	 */
+	public void disconnect() {
+		if (body != null) {
+			body.close();
+		} else {
+			synchronized (this) {
+				if (connection != null)
+					connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Abandons the request, closing its connection.
+	 */
+	public void abort() {
+		aborted = true;
+		synchronized (this) {
+			if (connection != null && (body == null || !body.released))
+				connection.close();
+		}
+	}
+
+	/**
+	 * Reads a line terminated by LF, without the trailing CR LF. Returns
+	 * null at the end of the stream.
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0)
+				return sb.length() == 0 ? null : sb.toString();
+			if (sb.length() >= MAX_LINE_LENGTH)
+				throw new IOException("too long line in the response header");
+			sb.append((char) c);
+		}
+		int len = sb.length();
+		if (len > 0 && sb.charAt(len - 1) == '\r')
+			sb.setLength(len - 1);
+		return sb.toString();
+	}
+
+	/**
+	 * The response body, delimited by Content-Length, by chunks, or by the
+	 * end of the connection.
+	 */
+	private class Body extends InputStream {
+		private final PeerClient.Connection c;
+		private final boolean chunked, keepAlive;
+		private final long start = System.currentTimeMillis();
+		private long remaining;
+		private long transferred = 0L;
+		private boolean done = false;
+		private volatile boolean released = false;
+
+		Body(PeerClient.Connection c, long length, boolean chunked,
+				boolean keepAlive) throws IOException {
+			this.c = c;
+			this.remaining = length;
+			this.chunked = chunked;
+			this.keepAlive = keepAlive;
+			if (chunked)
+				remaining = nextChunk();
+			if (remaining == 0)
+				finish();
+		}
+
+		private long nextChunk() throws IOException {
+			String line = readLine(c.in);
+			if (line == null)
+				throw new EOFException("connection closed in a chunk header");
+			int semicolon = line.indexOf(';');
+			if (semicolon >= 0)
+				line = line.substring(0, semicolon);
+			long size;
+			try {
+				size = Long.parseLong(line.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("bad chunk size: " + line);
+			}
+			if (size == 0) {
+				// trailers
+				while ((line = readLine(c.in)) != null && line.length() > 0)
+					;
+			}
+			return size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (done)
+				return -1;
+			if (len == 0)
+				return 0;
+			if (remaining >= 0 && len > remaining)
+				len = (int) remaining;
+			int n = c.in.read(b, off, len);
+			if (n < 0) {
+				if (remaining >= 0)
+					throw new EOFException("connection closed in the body: "
+							+ holder);
+				finish();
+				return -1;
+			}
+			transferred += n;
+			if (remaining >= 0) {
+				remaining -= n;
+				if (remaining == 0) {
+					if (chunked) {
+						readLine(c.in); // CRLF after the chunk
+						remaining = nextChunk();
+					}
+					if (remaining == 0)
+						finish();
+				}
+			}
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (done)
+				return 0;
+			int n = c.in.available();
+			return remaining >= 0 ? (int) Math.min(n, remaining) : n;
+		}
+
+		private void finish() {
+			done = true;
+			long elapsed = System.currentTimeMillis() - start;
+			if (transferred >= MIN_THROUGHPUT_SAMPLE)
+				client.getRanking().transferred(holder, transferred, elapsed);
+		}
+
+		@Override
+		public void close() {
+			synchronized (PeerRequest.this) {
+				if (released)
+					return;
+				released = true;
+			}
+			if (done && keepAlive && !aborted)
+				client.release(c);
+			else
+				c.close();
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ow.dht.DHT;
+import ow.id.ID;
+
+/**
+ * Prefetches the objects listed in hints files. Objects are fetched by a
+ * fixed number of workers, earlier ones in a hints file first, and the
+ * bytes read by all of the workers are limited to a budget per second.
+ * Objects already cached or already being prefetched are skipped. When a
+ * client loads another hints file, the prefetches of its previous one
+ * which are not listed again are cancelled, as the client has navigated
+ * away.
+ * 
+ * @author syuu
+ */
+public class PrefetchScheduler {
+	private final static Logger logger = LoggerFactory
+			.getLogger(PrefetchScheduler.class);
+
+	public final static int DEFAULT_THREADS = 4;
+	public final static int DEFAULT_BANDWIDTH = 512 * 1024;
+	public final static int DEFAULT_MAX_QUEUED = 1024;
+	public final static int PREFETCHED_HISTORY = 10000;
+
+	private final DHT<String> dht;
+	private final int port;
+	private final InetAddress selfAddress;
+	private final PeerClient peerClient;
+	private final ExecutorService putExecutor;
+	private final int bandwidth;
+	private final int maxQueued;
+	private final ThreadPoolExecutor executor;
+
+	private final ConcurrentHashMap<ID, PrefetchTask> inFlight = new ConcurrentHashMap<ID, PrefetchTask>();
+	private final Map<Object, List<PrefetchTask>> sessions = new ConcurrentHashMap<Object, List<PrefetchTask>>();
+	private final Map<ID, Boolean> prefetched = new LinkedHashMap<ID, Boolean>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ID, Boolean> eldest) {
+			return size() > PREFETCHED_HISTORY;
+		}
+	};
+	private long sequence = 0L;
+
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	private long hints = 0L, cached = 0L, deduped = 0L, dropped = 0L,
+			queued = 0L, completed = 0L, failed = 0L, cancelled = 0L,
+			bytes = 0L, used = 0L, late = 0L;
+
+	public PrefetchScheduler(DHT<String> dht, int port,
+			InetAddress selfAddress, PeerClient peerClient,
+			ExecutorService putExecutor, int threads, int bandwidth,
+			int maxQueued) {
+		this.dht = dht;
+		this.port = port;
+		this.selfAddress = selfAddress;
+		this.peerClient = peerClient;
+		this.putExecutor = putExecutor;
+		this.bandwidth = bandwidth;
+		this.maxQueued = maxQueued;
+		this.tokens = bandwidth;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60L,
+				TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "prefetch-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Schedules the URIs of a hints file loaded by a client, in the order
+	 * of priority. The prefetches of the previous hints file of the client
+	 * which are not listed again are cancelled.
+	 */
+	public synchronized void schedule(Object client, List<URI> uris) {
+		List<PrefetchTask> session = new ArrayList<PrefetchTask>();
+		ID[] keys = LocalResponseCache.getKeys(uris);
+		int position = 0;
+		for (int i = 0; i < keys.length; i++) {
+			hints++;
+			ID key = keys[i];
+			URI uri = uris.get(i);
+			if (LocalResponseCache.INDEX.get(key) != null) {
+				cached++;
+				continue;
+			}
+			PrefetchTask task = inFlight.get(key);
+			if (task != null) {
+				deduped++;
+				task.setClient(client);
+				session.add(task);
+				continue;
+			}
+			if (inFlight.size() >= maxQueued) {
+				dropped++;
+				continue;
+			}
+			task = new PrefetchTask(this, dht, port, selfAddress,
+					peerClient, putExecutor, key, uri, position++,
+					sequence++, client);
+			inFlight.put(key, task);
+			session.add(task);
+			queued++;
+			executor.execute(task);
+		}
+
+		List<PrefetchTask> previous = sessions.put(client, session);
+		if (previous != null) {
+			for (PrefetchTask task : previous) {
+				if (task.getClient() == client && !session.contains(task))
+					cancel(task);
+			}
+		}
+		logger.info("scheduled {} prefetches for {}", session.size(), client);
+	}
+
+	private void cancel(PrefetchTask task) {
+		if (!inFlight.remove(task.getKey(), task))
+			return; // already done
+		executor.remove(task);
+		task.cancel();
+		cancelled++;
+	}
+
+	/**
+	 * Records that a client requested a URI, to count the prefetches which
+	 * turned out to be useful.
+	 */
+	public synchronized void requested(ID key) {
+		if (prefetched.remove(key) != null)
+			used++;
+		else if (inFlight.containsKey(key))
+			late++;
+	}
+
+	synchronized void completed(PrefetchTask task, long length) {
+		inFlight.remove(task.getKey(), task);
+		prefetched.put(task.getKey(), Boolean.TRUE);
+		completed++;
+		bytes += length;
+	}
+
+	synchronized void failed(PrefetchTask task) {
+		if (inFlight.remove(task.getKey(), task))
+			failed++;
+	}
+
+	/**
+	 * Waits until the given number of bytes fits in the budget.
+	 */
+	void throttle(int n) throws InterruptedException {
+		if (bandwidth <= 0)
+			return;
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			tokens = Math.min(bandwidth, tokens + (now - lastRefill)
+					* (double) bandwidth / 1000000000L);
+			lastRefill = now;
+			tokens -= n;
+			wait = tokens < 0 ? (long) (-tokens * 1000 / bandwidth) : 0L;
+		}
+		if (wait > 0)
+			Thread.sleep(wait);
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("hints:").append(hints);
+		sb.append(",cached:").append(cached);
+		sb.append(",deduped:").append(deduped);
+		sb.append(",dropped:").append(dropped);
+		sb.append(",queued:").append(queued);
+		sb.append(",pending:").append(inFlight.size());
+		sb.append(",completed:").append(completed);
+		sb.append(",failed:").append(failed);
+		sb.append(",cancelled:").append(cancelled);
+		sb.append(",bytes:").append(bytes);
+		sb.append(",used:").append(used);
+		sb.append(",late:").append(late);
+		sb.append(",hitrate:").append(
+				String.format("%.1f%%", completed > 0 ? used * 100.0
+						/ completed : 0.0));
+		return sb.toString();
+	}
+}
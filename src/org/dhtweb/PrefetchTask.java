@@ -19,9 +19,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
-import java.net.Proxy;
 import java.net.URI;
-import java.net.URL;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 
@@ -33,85 +31,148 @@ import ow.dht.ValueInfo;
 import ow.id.ID;
 import ow.routing.RoutingException;
 
-public class PrefetchTask implements Runnable {
+/**
+ * Fetches an object listed in a hints file from one of its holders, so
+ * that it is stored in the local cache. Run by a {@link PrefetchScheduler},
+ * which orders the tasks by their position in the hints file.
+ */
+public class PrefetchTask implements Runnable, Comparable<PrefetchTask> {
 	private final static Logger logger = LoggerFactory
 			.getLogger(PrefetchTask.class);
+	private final PrefetchScheduler scheduler;
 	private final DHT<String> dht;
 	private final int port;
 	private final InetAddress selfAddress;
-	private final Proxy proxy;
+	private final PeerClient peerClient;
+	private final ID key;
 	private final URI uri;
-	private final int httpTimeout;
 	private final ExecutorService putExecutor;
+	private final int position;
+	private final long sequence;
+	private volatile Object client;
+	private volatile boolean cancelled = false;
+	private volatile PeerRequest request = null;
 
-	public PrefetchTask(DHT<String> dht, int port, InetAddress selfAddress,
-			Proxy proxy, int httpTimeout, ExecutorService putExecutor, URI uri) {
+	PrefetchTask(PrefetchScheduler scheduler, DHT<String> dht, int port,
+			InetAddress selfAddress, PeerClient peerClient,
+			ExecutorService putExecutor, ID key, URI uri, int position,
+			long sequence, Object client) {
+		this.scheduler = scheduler;
 		this.dht = dht;
 		this.port = port;
 		this.selfAddress = selfAddress;
-		this.proxy = proxy;
-		this.httpTimeout = httpTimeout;
+		this.peerClient = peerClient;
+		this.key = key;
 		this.uri = uri;
 		this.putExecutor = putExecutor;
+		this.position = position;
+		this.sequence = sequence;
+		this.client = client;
+	}
+
+	ID getKey() {
+		return key;
+	}
+
+	Object getClient() {
+		return client;
+	}
+
+	void setClient(Object client) {
+		this.client = client;
+	}
+
+	void cancel() {
+		cancelled = true;
+		PeerRequest r = request;
+		if (r != null)
+			r.abort();
+	}
+
+	public int compareTo(PrefetchTask o) {
+		if (position != o.position)
+			return position < o.position ? -1 : 1;
+		return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
 	}
 
 	@Override
 	public void run() {
+		if (cancelled)
+			return;
 		try {
-			ID key = ID.getSHA1BasedID(uri.toString().getBytes());
+			if (LocalResponseCache.INDEX.get(key) != null) {
+				scheduler.completed(this, 0L);
+				return;
+			}
 			Set<ValueInfo<String>> remoteAddrs = dht.get(key);
 
 			for (ValueInfo<String> v : remoteAddrs) {
-				HttpURLConnection connection = null;
-				try {
-					URL remoteUrl = new URL("http://" + v.getValue()
-							+ "/request/" + uri.toString());
-
-					if (v.getValue().equals(
-							selfAddress.getHostAddress() + ":" + port)) {
-						logger.info("Got self url, skipping: {}", remoteUrl);
-						continue;
-					}
-					logger.info("Got url from DHT: {}", remoteUrl);
-					connection = (HttpURLConnection) remoteUrl
-							.openConnection(proxy);
-					connection.setConnectTimeout(httpTimeout);
-					connection.setRequestProperty("Host", remoteUrl.getHost());
-					connection.connect();
-					int response = connection.getResponseCode();
-					logger.info("HTTP response: {}", response);
-					if (response == HttpURLConnection.HTTP_OK) {
-						InputStream in = null;
-						try {
-							in = connection.getInputStream();
-							HttpUtil.sendBodyToNull(in, connection
-									.getContentLength());
-						} catch (IOException e) {
-							logger.warn(e.getMessage(), e);
-						} finally {
-							try {
-								in.close();
-							} catch (Exception e) {
-							}
-							try {
-								connection.disconnect();
-							} catch (Exception e) {
-							}
-						}
-						putExecutor.submit(new PutTask(dht, port, key, selfAddress, uri));
-					}
-				} catch (IOException e) {
-					logger.warn(e.getMessage(), e);
-				} finally {
-					try {
-						connection.disconnect();
-					} catch (Exception e) {
-					}
+				if (cancelled)
+					break;
+				if (v.getValue().equals(
+						selfAddress.getHostAddress() + ":" + port)) {
+					logger.info("Got self url, skipping: {}", v.getValue());
+					continue;
+				}
+				long length = fetch(v.getValue());
+				if (length >= 0) {
+					scheduler.completed(this, length);
+					putExecutor.submit(new PutTask(dht, port, key, selfAddress, uri));
+					return;
 				}
 			}
 		} catch (RoutingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			logger.warn(e.getMessage(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		scheduler.failed(this);
+	}
+
+	/**
+	 * Reads the object from a holder into the cache within the bandwidth
+	 * budget, and returns its length, or -1 if it could not be read.
+	 */
+	private long fetch(String holder) throws InterruptedException {
+		PeerRequest r = peerClient.request(holder, uri);
+		request = r;
+		InputStream in = null;
+		try {
+			if (cancelled)
+				return -1;
+			logger.info("Got holder from DHT: {} for {}", holder, uri);
+			int response = r.execute();
+			logger.info("HTTP response: {}", response);
+			if (response != HttpURLConnection.HTTP_OK)
+				return -1;
+			long contentLength = r.getContentLength();
+			in = r.getInputStream();
+			if (Freshness.isStorable(r.getHeaderFields()))
+				in = new CachingInputStream(in, LocalResponseCache
+						.openCacheRequest(uri, r.getHeaderFields()),
+						contentLength);
+			byte[] buf = new byte[8192];
+			long length = 0L;
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				if (cancelled)
+					return -1;
+				length += n;
+				scheduler.throttle(n);
+			}
+			return length;
+		} catch (IOException e) {
+			if (!cancelled)
+				logger.warn(e.getMessage(), e);
+			return -1;
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (Exception e) {
+			}
+			r.disconnect();
+			request = null;
 		}
 	}
 }
@@ -18,29 +18,33 @@ package org.dhtweb;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.Proxy;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,75 +62,65 @@ public class ProxyHandler implements HttpHandler {
 			.getLogger(ProxyHandler.class);
 	private final static Logger proxyLogger = LoggerFactory
 			.getLogger("proxylog");
+	public final static int DEFAULT_FETCH_PARALLELISM = 2;
+	public final static int DEFAULT_HEDGE_DELAY = 200;
+
 	private final DHT<String> dht;
 	private final int port, httpTimeout;
 	private final Proxy proxy;
 	private final ExecutorService putExecutor;
-	private final ExecutorService prefetchExecutor;
+	private final PrefetchScheduler prefetcher;
 	private final InetAddress selfAddress;
+	private final ExecutorService fetchExecutor;
+	private final HolderRanking ranking;
+	private final PeerClient peerClient;
+	private final int fetchParallelism, hedgeDelay;
+	private final long swarmThreshold;
+	private final ConcurrentHashMap<ID, InFlightFetch> inFlight = new ConcurrentHashMap<ID, InFlightFetch>();
 
 	ProxyHandler(DHT<String> dht, Proxy proxy, int port, int httpTimeout,
-			ExecutorService putExecutor, ExecutorService prefetchExecutor,
-			InetAddress selfAddress) {
+			ExecutorService putExecutor, PrefetchScheduler prefetcher,
+			InetAddress selfAddress, ExecutorService fetchExecutor,
+			HolderRanking ranking, PeerClient peerClient,
+			int fetchParallelism, int hedgeDelay,
+			long swarmThreshold) {
 		this.dht = dht;
 		this.proxy = proxy;
 		this.port = port;
 		this.httpTimeout = httpTimeout;
 		this.putExecutor = putExecutor;
-		this.prefetchExecutor = prefetchExecutor;
+		this.prefetcher = prefetcher;
 		this.selfAddress = selfAddress;
+		this.fetchExecutor = fetchExecutor;
+		this.ranking = ranking;
+		this.peerClient = peerClient;
+		this.fetchParallelism = fetchParallelism;
+		this.hedgeDelay = hedgeDelay;
+		this.swarmThreshold = swarmThreshold;
 	}
 
-	@SuppressWarnings("unchecked")
 	private boolean proxyToLocalCache(HttpExchange he, URI uri) {
-		File file = LocalResponseCache.getLocalFile(uri);
-		File headerFile = LocalResponseCache.getLocalHeader(uri);
-		FileInputStream fisHeader = null;
-		ObjectInputStream ois = null;
-
-		if (!file.exists() || !headerFile.exists()) {
-			return false;
-		}
-
+		MemoryCache.Entry entry;
 		try {
-			fisHeader = new FileInputStream(headerFile);
-			ois = new ObjectInputStream(fisHeader);
-			Headers headers = he.getResponseHeaders();
-			Map<String, List<String>> headerMap = (Map<String, List<String>>) ois
-					.readObject();
-			Map<String, List<String>> tmp = new HashMap<String, List<String>>();
-			for (String key : headerMap.keySet())
-				if (key != null)
-					tmp.put(key, headerMap.get(key));
-			headers.putAll(tmp);
-
-			he.sendResponseHeaders(HttpURLConnection.HTTP_OK, Integer
-					.parseInt(headerMap.get("Content-Length").get(0)));
+			entry = LocalResponseCache.getUsableEntry(uri, true);
 		} catch (Exception e) {
 			logger.warn(e.getMessage(), e);
-			try {
-				he.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, 0);
-			} catch (IOException ex) {
-			}
+			return false;
 		}
+		if (entry == null) {
+			return false;
+		}
+
 		try {
-			BufferedInputStream in = new BufferedInputStream(
-					new FileInputStream(file));
+			entry.copyHeadersTo(he.getResponseHeaders());
+			he.sendResponseHeaders(HttpURLConnection.HTTP_OK, entry
+					.getContentLength());
 			OutputStream out = he.getResponseBody();
-			byte[] buf = new byte[65535];
-			int size = -1;
-			while ((size = in.read(buf)) != -1) {
-				out.write(buf, 0, size);
-			}
+			HttpUtil.sendBody(out, entry.getBody());
 			out.flush();
 		} catch (IOException e) {
 			logger.warn(e.getMessage(), e);
 		} finally {
-			try {
-				fisHeader.close();
-				ois.close();
-			} catch (IOException e) {
-			}
 
 			try {
 				he.getRequestBody().close();
@@ -140,8 +134,12 @@ public class ProxyHandler implements HttpHandler {
 		return true;
 	}
 
+	/**
+	 * Returns false if no holder could send the object. An IOException in
+	 * sending the body is thrown after the response is closed.
+	 */
 	private boolean proxyToDHT(HttpExchange he, ID key, URI uri)
-			throws RoutingException {
+			throws RoutingException, IOException {
 		logger.info("request key to DHT:{}", key);
 		long currentTime = System.currentTimeMillis();
 		Set<ValueInfo<String>> remoteAddrs = dht.get(key);
@@ -154,73 +152,177 @@ public class ProxyHandler implements HttpHandler {
 					.currentTimeMillis()
 					- currentTime);
 		logger.info("got {} entries", remoteAddrs.size());
+
+		String self = selfAddress.getHostAddress() + ":" + port;
+		Set<String> holders = new HashSet<String>();
 		for (ValueInfo<String> v : remoteAddrs) {
-			HttpURLConnection connection = null;
+			if (v.getValue().equals(self)) {
+				logger.info("Got self url, skipping: {}", v.getValue());
+				continue;
+			}
+			holders.add(v.getValue());
+		}
+
+		currentTime = System.currentTimeMillis();
+		List<String> ranked = ranking.rank(holders);
+		FetchAttempt attempt = fetchFromHolders(he, uri, ranked);
+		if (attempt == null) {
+			logger.info("Request not handled by DHT");
+			return false;
+		}
+
+		PeerRequest request = attempt.request;
+		InputStream in = null;
+		OutputStream out = null;
+		try {
+			long length = request.getContentLength();
+			setResponseHeaders(he.getResponseHeaders(), request
+					.getHeaderFields());
+			he.sendResponseHeaders(attempt.response, length >= 0 ? length : 0);
+			in = request.getInputStream();
+			out = he.getResponseBody();
+			boolean get = he.getRequestMethod().equals("GET");
+			boolean storable = attempt.response == HttpURLConnection.HTTP_OK
+					&& get && Freshness.isStorable(request.getHeaderFields());
+			if (attempt.response == HttpURLConnection.HTTP_OK
+					&& swarmThreshold > 0 && length >= swarmThreshold
+					&& holders.size() > 1 && get) {
+				logger.info("swarming {} bytes from {} holders", length,
+						holders.size());
+				new SwarmDownload(fetchExecutor, peerClient, uri, ranked,
+						length, SwarmDownload.DEFAULT_CHUNK_SIZE,
+						SwarmDownload.DEFAULT_WINDOW).transfer(in, out,
+						storable ? LocalResponseCache.openCacheRequest(uri,
+								request.getHeaderFields()) : null);
+			} else {
+				if (storable)
+					in = new CachingInputStream(in, LocalResponseCache
+							.openCacheRequest(uri, request.getHeaderFields()),
+							length);
+				HttpUtil.sendBody(out, in, length);
+			}
+		} catch (IOException e) {
+			logger.warn(e.getMessage(), e);
+			throw e;
+		} finally {
+			try {
+				out.close();
+			} catch (Exception e) {
+			}
 			try {
-				URL remoteUrl = new URL("http://" + v.getValue() + "/request/"
-						+ uri.toString());
+				in.close();
+			} catch (Exception e) {
+			}
+			request.disconnect();
+		}
+		logger.info("Request handled by DHT: {}", attempt.holder);
+		proxyLogger.info("DHT-Http,true,{},{}", uri, System
+				.currentTimeMillis()
+				- currentTime);
+		return true;
+	}
 
-				if (v.getValue().equals(
-						selfAddress.getHostAddress() + ":" + port)) {
-					logger.info("Got self url, skipping: {}", remoteUrl);
-					continue;
+	/**
+	 * Requests the object from the ranked holders and returns the first
+	 * attempt answered with 200 OK or 206 Partial Content, or null if all of
+	 * them failed. Up to
+	 * fetchParallelism holders are tried at a time. The next holder is
+	 * tried when an attempt fails or has not been answered in hedgeDelay
+	 * msec. The other attempts are abandoned. If fetchExecutor is
+	 * saturated, a holder is requested on the calling thread instead.
+	 */
+	private FetchAttempt fetchFromHolders(HttpExchange he, URI uri,
+			List<String> holders) {
+		CompletionService<FetchAttempt> cs = new ExecutorCompletionService<FetchAttempt>(
+				fetchExecutor);
+		List<FetchAttempt> attempts = new ArrayList<FetchAttempt>();
+		FetchAttempt winner = null;
+		int next = 0, running = 0;
+		try {
+			while (winner == null && (running > 0 || next < holders.size())) {
+				Future<FetchAttempt> f = null;
+				if (running > 0) {
+					if (next < holders.size() && running < fetchParallelism)
+						f = cs.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+					else
+						f = cs.take();
 				}
-				logger.info("Got url from DHT: {}", remoteUrl);
-				currentTime = System.currentTimeMillis();
-				connection = (HttpURLConnection) remoteUrl
-						.openConnection(proxy);
-				connection.setConnectTimeout(httpTimeout);
-				connection.setRequestMethod(he.getRequestMethod());
-				setRequestProperties(connection, he.getRequestHeaders());
-				connection.setRequestProperty("Host", remoteUrl.getHost());
-				connection.connect();
-				int response = connection.getResponseCode();
-				logger.info("HTTP response: {}", response);
-				if (response == HttpURLConnection.HTTP_OK) {
-					InputStream in = null;
-					OutputStream out = null;
+
+				if (f == null) {
+					FetchAttempt attempt = new FetchAttempt(he, uri, holders
+							.get(next++));
+					attempts.add(attempt);
 					try {
-						setResponseHeaders(he.getResponseHeaders(), connection
-								.getHeaderFields());
-						he.sendResponseHeaders(HttpURLConnection.HTTP_OK,
-								connection.getContentLength());
-						in = connection.getInputStream();
-						out = he.getResponseBody();
-						HttpUtil.sendBody(out, in, connection
-								.getContentLength());
-					} catch (IOException e) {
-						logger.warn(e.getMessage(), e);
-					} finally {
-						try {
-							out.close();
-						} catch (Exception e) {
-						}
+						cs.submit(attempt);
+						running++;
+					} catch (RejectedExecutionException e) {
+						// no thread to hedge with, so wait for this one
 						try {
-							in.close();
-						} catch (Exception e) {
-						}
-						try {
-							connection.disconnect();
-						} catch (Exception e) {
+							winner = attempt.call();
+						} catch (IOException e1) {
+							logger.info("fetch failed: {}", e1.toString());
 						}
 					}
-					logger.info("Request handled by DHT");
-					proxyLogger.info("DHT-Http,true,{},{}", uri, System
-							.currentTimeMillis()
-							- currentTime);
-					return true;
+					continue;
 				}
-			} catch (IOException e) {
-				logger.warn(e.getMessage(), e);
-			} finally {
+
+				running--;
 				try {
-					connection.disconnect();
-				} catch (Exception e) {
+					winner = f.get();
+				} catch (ExecutionException e) {
+					logger.info("fetch failed: {}", e.getCause().toString());
 				}
 			}
+		} catch (InterruptedException e) {
+			logger.warn(e.getMessage(), e);
+		} finally {
+			for (FetchAttempt attempt : attempts)
+				if (attempt != winner)
+					attempt.abandon();
+		}
+		return winner;
+	}
+
+	/**
+	 * Requests an object from a holder and waits for the response header.
+	 */
+	private class FetchAttempt implements Callable<FetchAttempt> {
+		private final HttpExchange he;
+		private final URI uri;
+		private final String holder;
+		private final PeerRequest request;
+		private int response;
+
+		FetchAttempt(HttpExchange he, URI uri, String holder) {
+			this.he = he;
+			this.uri = uri;
+			this.holder = holder;
+			this.request = peerClient.request(holder, uri);
+		}
+
+		public FetchAttempt call() throws IOException {
+			logger.info("Got holder from DHT: {} for {}", holder, uri);
+			request.setRequestMethod(he.getRequestMethod());
+			setRequestProperties(request, he.getRequestHeaders());
+			try {
+				response = request.execute();
+			} catch (IOException e) {
+				request.disconnect();
+				throw e;
+			}
+			logger.info("HTTP response: {} from {}", response, holder);
+			if (response != HttpURLConnection.HTTP_OK
+					&& response != HttpURLConnection.HTTP_PARTIAL) {
+				request.disconnect();
+				throw new IOException("HTTP response " + response
+						+ " from " + holder);
+			}
+			return this;
+		}
+
+		void abandon() {
+			request.abort();
 		}
-		logger.info("Request not handled by DHT");
-		return false;
 	}
 
 	private boolean proxyToOriginalServer(HttpExchange he, URI uri) {
@@ -325,26 +427,83 @@ public class ProxyHandler implements HttpHandler {
 			return;
 		}
 
-		if (!passthroughtest) {
-			if (!dhttest) {
-				if (uri.getPath().matches(".*/dht.hints$")) {
-					handleHints(he, uri);
-					return;
-				}
+		if (!passthroughtest && !dhttest) {
+			if (uri.getPath().matches(".*/dht.hints$")) {
+				handleHints(he, uri);
+				return;
+			}
 
-				long currentTime = System.currentTimeMillis();
-				boolean result = proxyToLocalCache(he, uri);
-				if (result) {
-					proxyLogger.info("LocalCache,true,{},{}", uri, System
-							.currentTimeMillis()
-							- currentTime);
-					return;
-				} else {
-					proxyLogger.info("LocalCache,false,{},{}", uri, System
-							.currentTimeMillis()
-							- currentTime);
-				}
+			prefetcher.requested(key);
+			long currentTime = System.currentTimeMillis();
+			boolean result = proxyToLocalCache(he, uri);
+			if (result) {
+				proxyLogger.info("LocalCache,true,{},{}", uri, System
+						.currentTimeMillis()
+						- currentTime);
+				return;
+			} else {
+				proxyLogger.info("LocalCache,false,{},{}", uri, System
+						.currentTimeMillis()
+						- currentTime);
+			}
+
+			if (isCoalescible(he)) {
+				fetchCoalesced(he, key, uri);
+				return;
 			}
+		}
+		fetch(he, key, uri, dhttest, passthroughtest);
+	}
+
+	/**
+	 * Only a plain GET is shared with other requests, since responses to
+	 * them do not depend on the request.
+	 */
+	private static boolean isCoalescible(HttpExchange he) {
+		return he.getRequestMethod().equals("GET")
+				&& he.getRequestHeaders().getFirst("Range") == null;
+	}
+
+	/**
+	 * Fetches the object unless a fetch of it is already in progress, in
+	 * which case the response of that fetch is sent.
+	 */
+	private void fetchCoalesced(HttpExchange he, ID key, URI uri)
+			throws IOException {
+		InFlightFetch flight = new InFlightFetch(uri);
+		InFlightFetch leader = inFlight.putIfAbsent(key, flight);
+		if (leader != null) {
+			long currentTime = System.currentTimeMillis();
+			if (leader.follow(he, httpTimeout)) {
+				proxyLogger.info("Coalesced,true,{},{}", uri, System
+						.currentTimeMillis()
+						- currentTime);
+				return;
+			}
+			proxyLogger.info("Coalesced,false,{},{}", uri, System
+					.currentTimeMillis()
+					- currentTime);
+			fetch(he, key, uri, false, false);
+			return;
+		}
+
+		flight.lead(he);
+		boolean complete = false;
+		try {
+			complete = fetch(he, key, uri, false, false);
+		} finally {
+			inFlight.remove(key, flight);
+			flight.finish(complete);
+		}
+	}
+
+	/**
+	 * Returns whether a whole response was sent, from a holder or from the
+	 * original server.
+	 */
+	private boolean fetch(HttpExchange he, ID key, URI uri, boolean dhttest,
+			boolean passthroughtest) throws IOException {
+		if (!passthroughtest) {
 			try {
 				long currentTime = System.currentTimeMillis();
 				boolean result = proxyToDHT(he, key, uri);
@@ -353,7 +512,7 @@ public class ProxyHandler implements HttpHandler {
 							.currentTimeMillis()
 							- currentTime);
 					putCache(key, uri);
-					return;
+					return true;
 				} else {
 					proxyLogger.info("DHT,false,{},{}", uri, System
 							.currentTimeMillis()
@@ -369,7 +528,7 @@ public class ProxyHandler implements HttpHandler {
 						he.getResponseBody().close();
 					} catch (Exception e1) {
 					}
-					return;
+					return false;
 				}
 			} catch (RoutingException e) {
 				logger.info(e.getMessage());
@@ -387,6 +546,7 @@ public class ProxyHandler implements HttpHandler {
 					.currentTimeMillis()
 					- currentTime);
 		}
+		return result;
 	}
 
 	private void handleHints(HttpExchange he, URI uri) {
@@ -439,26 +599,26 @@ public class ProxyHandler implements HttpHandler {
 		}
 		logger.info("Request done");
 		if (result) {
-			File file = LocalResponseCache.getLocalFile(uri);
 			try {
-				FileReader fr = new FileReader(file);
-				BufferedReader br = new BufferedReader(fr);
+				MemoryCache.Entry entry = LocalResponseCache.getCachedEntry(uri);
+				if (entry == null)
+					return;
+				BufferedReader br = new BufferedReader(new InputStreamReader(
+						new ByteBufferInputStream(entry.getBody())));
+				List<URI> uris = new ArrayList<URI>();
 				String line;
 				while ((line = br.readLine()) != null) {
-					if (line.startsWith("/*") || line.startsWith("*/"))
+					line = line.trim();
+					if (line.length() == 0 || line.startsWith("/*")
+							|| line.startsWith("*/"))
 						continue;
 					try {
-						URI requestUri = new URI(line);
-						prefetchExecutor.execute(new PrefetchTask(dht, port,
-								selfAddress, proxy, httpTimeout, putExecutor, requestUri));
+						uris.add(new URI(line));
 					} catch (URISyntaxException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+						logger.warn(e.getMessage(), e);
 					}
 				}
-			} catch (FileNotFoundException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				prefetcher.schedule(he.getRemoteAddress().getAddress(), uris);
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -483,6 +643,42 @@ public class ProxyHandler implements HttpHandler {
 		}
 	}
 
+	/**
+	 * Headers which are not copied to a request to a peer. Hop-by-hop
+	 * headers belong to the connection from the client, and conditional
+	 * headers would make a peer answer 304 or a partial body, which is not a
+	 * usable copy of the resource.
+	 */
+	private final static Set<String> PEER_EXCLUDED_HEADERS = new HashSet<String>(
+			Arrays.asList("host", "connection", "keep-alive",
+					"proxy-connection", "proxy-authorization", "te", "trailer",
+					"transfer-encoding", "upgrade", "if-none-match",
+					"if-modified-since", "if-match", "if-unmodified-since",
+					"if-range", "range"));
+
+	private void setRequestProperties(PeerRequest request,
+			Headers requestHeaders) {
+		// headers named in Connection are hop-by-hop too
+		Set<String> excluded = new HashSet<String>(PEER_EXCLUDED_HEADERS);
+		List<String> connection = requestHeaders.get("Connection");
+		if (connection != null) {
+			for (String val : connection) {
+				for (String name : val.split(",")) {
+					excluded.add(name.trim().toLowerCase());
+				}
+			}
+		}
+
+		for (Entry<String, List<String>> entry : requestHeaders.entrySet()) {
+			String key = entry.getKey();
+			if (key == null || excluded.contains(key.toLowerCase())) {
+				continue;
+			}
+			for (String val : entry.getValue())
+				request.setRequestProperty(key, val);
+		}
+	}
+
 	private void setRequestProperties(HttpURLConnection connection,
 			Headers requestHeaders) {
 		for (Entry<String, List<String>> entry : requestHeaders.entrySet()) {
@@ -17,8 +17,6 @@ package org.dhtweb;
 
 import java.net.InetAddress;
 import java.net.URI;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,7 +30,6 @@ import ow.id.ID;
 public class PutTask implements Runnable {
     public static final Logger logger = LoggerFactory.getLogger(PutTask.class);
     public static final Logger putLogger = LoggerFactory.getLogger("putlog");
-	private static final List<ID> puttedList = new ArrayList<ID>();
     private final ID key;
     private final DHT<String> dht;
     private final int port;
@@ -49,15 +46,17 @@ public class PutTask implements Runnable {
 
     @Override
     public void run() {
-    	if (puttedList.contains(key))
+    	AnnouncementRegistry registry = LocalResponseCache.ANNOUNCEMENTS;
+    	if (!registry.begin(key))
     		return;
-    	puttedList.add(key);
         logger.info("key:{} selfAddress:{}", key, selfAddress.getHostAddress());
 		long currentTime = System.currentTimeMillis();
 		int i = 0;
         while(true) {
             try {
+                long ttl = dht.getTTLForPut();
                 dht.put(key, selfAddress.getHostAddress() + ":" + port);
+                registry.announced(key, ttl);
                 logger.info("putted key:{} selfAddress:{}", key, selfAddress.getHostAddress());
                 break;
             } catch (Exception e) {
@@ -66,6 +65,8 @@ public class PutTask implements Runnable {
                 try {
                     Thread.sleep(1000);
                 } catch (InterruptedException ex) {
+                    registry.failed(key);
+                    return;
                 }
             }
         }
@@ -18,18 +18,12 @@ package org.dhtweb;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,7 +36,6 @@ public class RequestHandler implements HttpHandler {
 	private final static Logger logger = LoggerFactory.getLogger(RequestHandler.class);
 	private final static Logger requestLogger = LoggerFactory.getLogger("requestlog");
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public void handle(HttpExchange he) throws IOException {
 		logger.info("request handling");
@@ -68,13 +61,10 @@ public class RequestHandler implements HttpHandler {
 
 		long currentTime = System.currentTimeMillis();
 		
-		File file = LocalResponseCache.getLocalFile(uri);
-		File headerFile = LocalResponseCache.getLocalHeader(uri);
-		FileInputStream fisHeader = null;
-		ObjectInputStream ois = null;
 		boolean headerSent = false;
 		try {
-			if (!file.exists()) {
+			MemoryCache.Entry entry = LocalResponseCache.getUsableEntry(uri, false);
+			if (entry == null) {
 				he.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, 0);
 				try {
 					he.getRequestBody().close();
@@ -91,40 +81,54 @@ public class RequestHandler implements HttpHandler {
 				return;
 			}
 
-			fisHeader = new FileInputStream(headerFile);
-			ois = new ObjectInputStream(fisHeader);
+			Headers requestHeaders = he.getRequestHeaders();
 			Headers headers = he.getResponseHeaders();
-			Map<String, List<String>> headerMap = (Map<String, List<String>>) ois
-					.readObject();
-			Map<String, List<String>> tmp = new HashMap<String, List<String>>();
-			for (String key : headerMap.keySet())
-				if (key != null)
-					tmp.put(key, headerMap.get(key));
-			headers.putAll(tmp);
+			if (Freshness.isNotModified(entry.getHeaders(), requestHeaders
+					.getFirst("If-None-Match"), requestHeaders
+					.getFirst("If-Modified-Since"))) {
+				for (String name : Freshness.VALIDATORS) {
+					String value = Freshness.getHeader(entry.getHeaders(), name);
+					if (value != null)
+						headers.set(name, value);
+				}
+				he.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+				headerSent = true;
+				return;
+			}
+
+			long length = entry.getContentLength();
+			ByteRange range = ByteRange.parse(requestHeaders.getFirst("Range"),
+					length);
+			entry.copyHeadersTo(headers);
+			headers.set("Accept-Ranges", "bytes");
+			if (range == ByteRange.UNSATISFIABLE) {
+				headers.set("Content-Range", range.getContentRange(length));
+				he.sendResponseHeaders(ByteRange.HTTP_RANGE_NOT_SATISFIABLE, -1);
+				headerSent = true;
+				return;
+			}
 
-			BufferedInputStream in = new BufferedInputStream(
-					new FileInputStream(file));
-			he.sendResponseHeaders(HttpURLConnection.HTTP_OK, Integer
-					.parseInt(headerMap.get("Content-Length").get(0)));
+			long start = 0L, count = length;
+			if (range != null) {
+				headers.set("Content-Range", range.getContentRange(length));
+				he.sendResponseHeaders(HttpURLConnection.HTTP_PARTIAL, range
+						.getLength());
+				start = range.getStart();
+				count = range.getLength();
+			} else {
+				he.sendResponseHeaders(HttpURLConnection.HTTP_OK, length);
+			}
 			headerSent = true;
 			OutputStream out = he.getResponseBody();
-			byte[] buf = new byte[65535];
-			int size = -1;
-			while ((size = in.read(buf)) != -1) {
-				out.write(buf, 0, size);
-			}
+			ByteBuffer body = entry.getBody();
+			body.limit((int) (start + count)).position((int) start);
+			HttpUtil.sendBody(out, body);
 			out.flush();
 		} catch (Exception e) {
 			logger.warn(e.getMessage(), e);
 			if(!headerSent)
 				he.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, 0);
 		} finally {
-			try {
-				fisHeader.close();
-				ois.close();
-			} catch (IOException e) {
-			}
-
 			try {
 				he.getRequestBody().close();
 			} catch (Exception e1) {
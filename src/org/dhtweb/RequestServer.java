@@ -0,0 +1,427 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small HTTP/1.1 server which serves the "/request/" context to peers.
+ * Unlike {@link RequestHandler} on HttpServer, it writes bodies straight to
+ * the socket channel. A body is sent together with the header in a
+ * gathering write, from the memory tier or from a buffer mapped from the
+ * {@link SegmentStore}.
+ * Only GET and HEAD are supported, with a single byte range.
+ * A connection holds a worker thread while it is kept alive. When all
+ * workers are busy and the queue is full, new connections are closed, and
+ * a connection is closed if a write makes no progress in WRITE_TIMEOUT
+ * msec.
+ * 
+ * @author syuu
+ */
+public class RequestServer {
+	private final static Logger logger = LoggerFactory.getLogger(RequestServer.class);
+	private final static Logger requestLogger = LoggerFactory.getLogger("requestlog");
+
+	public final static String CONTEXT = "/request/";
+	public final static int IDLE_TIMEOUT = 10 * 1000;
+	public final static int WRITE_TIMEOUT = 10 * 1000;
+	public final static int DEFAULT_THREADS = 64;
+	public final static int DEFAULT_QUEUE_SIZE = 64;
+	private final static int MAX_LINE_LENGTH = 8192;
+	private final static String ENCODING = "ISO-8859-1";
+
+	private final ServerSocketChannel serverChannel;
+	private final ThreadPoolExecutor executor;
+	private final ScheduledThreadPoolExecutor watchdog;
+	private Thread acceptor = null;
+	private volatile boolean running = false;
+
+	public RequestServer(int port) throws IOException {
+		this(port, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+	}
+
+	public RequestServer(int port, int threads, int queueSize)
+			throws IOException {
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.socket().setReuseAddress(true);
+		this.serverChannel.socket().bind(new InetSocketAddress(port));
+		this.executor = new ThreadPoolExecutor(threads, threads, 60L,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "RequestServer-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r,
+							ThreadPoolExecutor executor) {
+						logger.debug("worker queue is full, closing a connection");
+						((Connection) r).close();
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+		this.watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RequestServer watchdog");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.watchdog.setRemoveOnCancelPolicy(true);
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+
+		acceptor = new Thread("RequestServer acceptor") {
+			public void run() {
+				while (running) {
+					try {
+						SocketChannel ch = serverChannel.accept();
+						executor.execute(new Connection(ch, watchdog));
+					} catch (IOException e) {
+						if (running)
+							logger.warn(e.getMessage(), e);
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+		}
+		executor.shutdownNow();
+		watchdog.shutdownNow();
+		acceptor = null;
+	}
+
+	private static class Connection implements Runnable {
+		private final SocketChannel ch;
+		private final ScheduledThreadPoolExecutor watchdog;
+
+		Connection(SocketChannel ch, ScheduledThreadPoolExecutor watchdog) {
+			this.ch = ch;
+			this.watchdog = watchdog;
+		}
+
+		public void run() {
+			try {
+				Socket sock = ch.socket();
+				sock.setTcpNoDelay(true);
+				sock.setSoTimeout(IDLE_TIMEOUT);
+				// reads through the socket adaptor to honor the timeout
+				InputStream in = new BufferedInputStream(sock.getInputStream());
+				while (serve(in))
+					;
+			} catch (SocketTimeoutException e) {
+				// idle connection
+			} catch (IOException e) {
+				logger.debug(e.getMessage(), e);
+			} finally {
+				close();
+			}
+		}
+
+		void close() {
+			try {
+				ch.close();
+			} catch (IOException e) {
+			}
+		}
+
+		/**
+		 * Serves a request. Returns true if the connection is kept alive.
+		 */
+		private boolean serve(InputStream in) throws IOException {
+			String requestLine = readLine(in);
+			if (requestLine == null)
+				return false;
+
+			String[] tokens = requestLine.split(" ");
+			if (tokens.length != 3) {
+				sendStatus(400, "Bad Request", false);
+				return false;
+			}
+			String method = tokens[0], target = tokens[1], version = tokens[2];
+
+			String connection = null, rangeHeader = null;
+			String ifNoneMatch = null, ifModifiedSince = null;
+			long requestLength = 0L;
+			String line;
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon <= 0)
+					continue;
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Connection"))
+					connection = value;
+				else if (name.equalsIgnoreCase("Content-Length")) {
+					try {
+						requestLength = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						requestLength = -1L;
+					}
+					if (requestLength < 0L) {
+						sendStatus(400, "Bad Request", false);
+						return false;
+					}
+				}
+				else if (name.equalsIgnoreCase("Range"))
+					rangeHeader = value;
+				else if (name.equalsIgnoreCase("If-None-Match"))
+					ifNoneMatch = value;
+				else if (name.equalsIgnoreCase("If-Modified-Since"))
+					ifModifiedSince = value;
+			}
+			if (line == null)
+				throw new EOFException("connection closed in the request header");
+			for (long n = 0; n < requestLength; n++)
+				if (in.read() < 0)
+					throw new EOFException("connection closed in the request body");
+
+			boolean keepAlive = "HTTP/1.1".equals(version) ? !"close"
+					.equalsIgnoreCase(connection) : "keep-alive"
+					.equalsIgnoreCase(connection);
+
+			boolean head = method.equals("HEAD");
+			if (!head && !method.equals("GET")) {
+				sendStatus(405, "Method Not Allowed", keepAlive);
+				return keepAlive;
+			}
+
+			URI uri;
+			try {
+				String path = new URI(target).getPath();
+				if (path == null || !path.startsWith(CONTEXT)) {
+					sendStatus(404, "Not Found", keepAlive);
+					return keepAlive;
+				}
+				uri = new URI(path.substring(CONTEXT.length()));
+			} catch (URISyntaxException e) {
+				logger.warn(e.getMessage(), e);
+				sendStatus(400, "Bad Request", keepAlive);
+				return keepAlive;
+			}
+			logger.info("url:{}", uri);
+
+			long currentTime = System.currentTimeMillis();
+			MemoryCache.Entry entry = LocalResponseCache.getUsableEntry(uri, false);
+			if (entry == null) {
+				sendStatus(404, "Not Found", keepAlive);
+				requestLogger.info("false.{}.{}", uri,
+						System.currentTimeMillis() - currentTime);
+				return keepAlive;
+			}
+
+			if (Freshness.isNotModified(entry.getHeaders(), ifNoneMatch,
+					ifModifiedSince)) {
+				StringBuilder sb = new StringBuilder(
+						"HTTP/1.1 304 Not Modified\r\n");
+				for (String name : Freshness.VALIDATORS) {
+					String value = Freshness.getHeader(entry.getHeaders(), name);
+					if (value != null)
+						sb.append(name).append(": ").append(value).append("\r\n");
+				}
+				sb.append("Connection: ").append(
+						keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+				write(ByteBuffer.wrap(sb.toString().getBytes(ENCODING)));
+				requestLogger.info("true,{},{}", uri,
+						System.currentTimeMillis() - currentTime);
+				return keepAlive;
+			}
+
+			long length = entry.getContentLength();
+			ByteRange range = ByteRange.parse(rangeHeader, length);
+			if (range == ByteRange.UNSATISFIABLE) {
+				write(ByteBuffer.wrap(("HTTP/1.1 "
+						+ ByteRange.HTTP_RANGE_NOT_SATISFIABLE
+						+ " Requested Range Not Satisfiable\r\nContent-Range: "
+						+ range.getContentRange(length)
+						+ "\r\nContent-Length: 0\r\nConnection: "
+						+ (keepAlive ? "keep-alive" : "close") + "\r\n\r\n")
+						.getBytes(ENCODING)));
+				return keepAlive;
+			}
+
+			long start = range != null ? range.getStart() : 0L;
+			long count = range != null ? range.getLength() : length;
+			ByteBuffer header = encodeHeader(entry, range, keepAlive);
+			if (head) {
+				write(header);
+			} else {
+				ByteBuffer body = entry.getBody();
+				body.limit((int) (start + count)).position((int) start);
+				write(header, body);
+			}
+			requestLogger.info("true,{},{}", uri,
+					System.currentTimeMillis() - currentTime);
+			return keepAlive;
+		}
+
+		private ByteBuffer encodeHeader(MemoryCache.Entry entry,
+				ByteRange range, boolean keepAlive)
+				throws UnsupportedEncodingException {
+			long length = entry.getContentLength();
+			StringBuilder sb = new StringBuilder();
+			if (range != null)
+				sb.append("HTTP/1.1 206 Partial Content\r\n");
+			else
+				sb.append("HTTP/1.1 200 OK\r\n");
+			for (Map.Entry<String, List<String>> e : entry.getHeaders()
+					.entrySet()) {
+				String name = e.getKey();
+				if (name.equalsIgnoreCase("Content-Length")
+						|| name.equalsIgnoreCase("Transfer-Encoding")
+						|| name.equalsIgnoreCase("Connection")
+						|| name.equalsIgnoreCase("Keep-Alive")
+						|| name.equalsIgnoreCase("Accept-Ranges")
+						|| name.equalsIgnoreCase("Content-Range"))
+					continue;
+				for (String value : e.getValue())
+					sb.append(name).append(": ").append(value).append("\r\n");
+			}
+			sb.append("Accept-Ranges: bytes\r\n");
+			if (range != null) {
+				sb.append("Content-Range: ").append(range.getContentRange(length))
+						.append("\r\n");
+				length = range.getLength();
+			}
+			sb.append("Content-Length: ").append(length).append("\r\n");
+			sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close")
+					.append("\r\n\r\n");
+			return ByteBuffer.wrap(sb.toString().getBytes(ENCODING));
+		}
+
+		private void sendStatus(int code, String reason, boolean keepAlive)
+				throws IOException {
+			String s = "HTTP/1.1 " + code + " " + reason
+					+ "\r\nContent-Length: 0\r\nConnection: "
+					+ (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+			write(ByteBuffer.wrap(s.getBytes(ENCODING)));
+		}
+
+		/**
+		 * Writes the buffers, closing the channel if a write makes no
+		 * progress in WRITE_TIMEOUT msec.
+		 */
+		private void write(ByteBuffer... bufs) throws IOException {
+			WriteTimeout timeout = new WriteTimeout();
+			try {
+				ByteBuffer last = bufs[bufs.length - 1];
+				while (last.hasRemaining()) {
+					ch.write(bufs);
+					timeout.lastProgress = System.currentTimeMillis();
+				}
+			} finally {
+				timeout.cancel();
+			}
+		}
+
+		private class WriteTimeout implements Runnable {
+			volatile long lastProgress = System.currentTimeMillis();
+			private ScheduledFuture<?> future;
+
+			WriteTimeout() {
+				schedule(WRITE_TIMEOUT);
+			}
+
+			public synchronized void run() {
+				if (future == null)
+					return; // cancelled
+				long left = lastProgress + WRITE_TIMEOUT
+						- System.currentTimeMillis();
+				if (left > 0L) {
+					schedule(left);
+					return;
+				}
+				logger.info("write timed out: {}", ch.socket()
+						.getRemoteSocketAddress());
+				close();
+			}
+
+			private synchronized void schedule(long delay) {
+				future = watchdog.schedule(this, delay, TimeUnit.MILLISECONDS);
+			}
+
+			synchronized void cancel() {
+				future.cancel(false);
+				future = null;
+			}
+		}
+
+		/**
+		 * Reads a line terminated by LF, without the trailing CR LF.
+		 * Returns null at the end of the stream.
+		 */
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = in.read()) != '\n') {
+				if (c < 0)
+					return sb.length() == 0 ? null : sb.toString();
+				if (sb.length() >= MAX_LINE_LENGTH)
+					throw new IOException("too long line in the request header");
+				sb.append((char) c);
+			}
+			int len = sb.length();
+			if (len > 0 && sb.charAt(len - 1) == '\r')
+				sb.setLength(len - 1);
+			return sb.toString();
+		}
+	}
+}
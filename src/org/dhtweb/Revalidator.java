@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Revalidates stale cached responses in the background. Stale URIs are
+ * queued when they are hit, and the queue is processed in batches on a
+ * few threads. A response is revalidated with a conditional GET, and
+ * a 304 Not Modified only refreshes the stored headers. A URI is not
+ * retried for {@link #RETRY_INTERVAL} msec after an attempt.
+ * 
+ * @author syuu
+ */
+public class Revalidator {
+	private final static Logger logger = LoggerFactory.getLogger(Revalidator.class);
+
+	public final static int DEFAULT_THREADS = 4;
+	public final static int DEFAULT_TIMEOUT = 10 * 1000;
+	public final static long BATCH_INTERVAL = 1000L;
+	public final static long RETRY_INTERVAL = 60 * 1000L;
+	private final static int MAX_ATTEMPTS_KEPT = 4096;
+
+	private final Proxy proxy;
+	private final int timeout;
+	private final int threads;
+
+	private final Set<URI> queue = new LinkedHashSet<URI>();
+	private final Map<URI, Long> lastAttempts = new LinkedHashMap<URI, Long>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<URI, Long> eldest) {
+			return size() > MAX_ATTEMPTS_KEPT;
+		}
+	};
+	private ScheduledExecutorService scheduler = null;
+	private ExecutorService workers = null;
+
+	private final AtomicLong notModified = new AtomicLong(),
+			updated = new AtomicLong(), failed = new AtomicLong();
+
+	public Revalidator(Proxy proxy, int timeout, int threads) {
+		this.proxy = proxy;
+		this.timeout = timeout;
+		this.threads = threads;
+	}
+
+	/**
+	 * Queues the URI for revalidation unless it is queued or was attempted
+	 * recently.
+	 */
+	public synchronized void schedule(URI uri) {
+		Long last = lastAttempts.get(uri);
+		if (last != null
+				&& System.currentTimeMillis() - last < RETRY_INTERVAL)
+			return;
+		lastAttempts.put(uri, System.currentTimeMillis());
+		queue.add(uri);
+
+		if (scheduler == null) {
+			ThreadFactory factory = new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Revalidator");
+					t.setDaemon(true);
+					return t;
+				}
+			};
+			scheduler = Executors.newSingleThreadScheduledExecutor(factory);
+			workers = Executors.newFixedThreadPool(threads, factory);
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					processBatch();
+				}
+			}, BATCH_INTERVAL, BATCH_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			workers.shutdownNow();
+			scheduler = null;
+			workers = null;
+		}
+	}
+
+	private void processBatch() {
+		List<URI> batch;
+		ExecutorService w;
+		synchronized (this) {
+			if (queue.isEmpty())
+				return;
+			batch = new ArrayList<URI>(queue);
+			queue.clear();
+			w = workers;
+		}
+
+		Collection<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final URI uri : batch) {
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					revalidate(uri);
+					return null;
+				}
+			});
+		}
+		try {
+			w.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		logger.info("revalidated {} entries: {}", batch.size(), this);
+	}
+
+	/**
+	 * Revalidates the cached response of the URI with its origin server.
+	 */
+	public void revalidate(URI uri) {
+		HttpURLConnection connection = null;
+		try {
+			Map<String, List<String>> stored = LocalResponseCache
+					.readHeaders(uri);
+			if (stored == null)
+				return; // removed meanwhile
+
+			connection = (HttpURLConnection) uri.toURL().openConnection(proxy);
+			connection.setUseCaches(false);
+			connection.setConnectTimeout(timeout);
+			connection.setReadTimeout(timeout);
+			String etag = Freshness.getHeader(stored, "ETag");
+			if (etag != null)
+				connection.setRequestProperty("If-None-Match", etag);
+			String lastModified = Freshness.getHeader(stored, "Last-Modified");
+			if (lastModified != null)
+				connection.setRequestProperty("If-Modified-Since", lastModified);
+
+			int response = connection.getResponseCode();
+			logger.info("revalidation of {}: {}", uri, response);
+			if (response == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				LocalResponseCache.writeHeaders(uri, Freshness.merge(stored,
+						connection.getHeaderFields()));
+				notModified.incrementAndGet();
+			} else if (response == HttpURLConnection.HTTP_OK) {
+				if (Freshness.isStorable(connection.getHeaderFields())) {
+					LocalResponseCache.replace(uri, connection
+							.getHeaderFields(), connection.getInputStream());
+				} else {
+					logger.info("{} is no longer storable", uri);
+					LocalResponseCache.remove(uri);
+				}
+				updated.incrementAndGet();
+			} else {
+				failed.incrementAndGet();
+			}
+		} catch (IOException e) {
+			logger.info("revalidation of {} failed: {}", uri, e.toString());
+			failed.incrementAndGet();
+		} finally {
+			if (connection != null)
+				connection.disconnect();
+		}
+	}
+
+	public String toString() {
+		int queued;
+		synchronized (this) {
+			queued = queue.size();
+		}
+		return "queued:" + queued + ",not modified:" + notModified.get()
+				+ ",updated:" + updated.get() + ",failed:" + failed.get();
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ow.id.ID;
+
+/**
+ * Reclaims the dead space of a {@link SegmentStore}. Each sealed segment
+ * whose live records take less than a threshold of it has the live records
+ * copied to the active segment, and is deleted. {@link CacheManager} also
+ * asks it to reclaim dead space before evicting live objects.
+ * 
+ * @author syuu
+ */
+public class SegmentCompactor implements Runnable {
+	private final static Logger logger = LoggerFactory
+			.getLogger(SegmentCompactor.class);
+
+	public final static double DEFAULT_THRESHOLD = 0.5;
+
+	private final SegmentStore store;
+	private final CacheIndex index;
+	private final double threshold;
+	private final Object compactLock = new Object();
+	private long compactedSegments = 0L, reclaimedBytes = 0L;
+
+	public SegmentCompactor(SegmentStore store, CacheIndex index,
+			double threshold) {
+		this.store = store;
+		this.index = index;
+		this.threshold = threshold;
+	}
+
+	public void run() {
+		try {
+			compact();
+		} catch (Exception e) {
+			// keep being scheduled
+			logger.warn(e.getMessage(), e);
+		}
+	}
+
+	private void compact() throws IOException {
+		synchronized (compactLock) {
+			Map<Integer, Long> sealed = store.getSealedSegments();
+			if (sealed.isEmpty())
+				return;
+
+			Map<Integer, Long> live = getLiveBytesBySegment();
+			for (Map.Entry<Integer, Long> s : sealed.entrySet()) {
+				long liveBytes = getLiveBytes(live, s.getKey());
+				if (liveBytes < s.getValue() * threshold)
+					compact(s.getKey(), s.getValue(), liveBytes);
+			}
+		}
+	}
+
+	/**
+	 * Compacts sealed segments, those with the most dead space first,
+	 * whatever the threshold, until the given number of bytes has been
+	 * reclaimed. Returns the number of bytes reclaimed.
+	 */
+	public long reclaim(long bytes) throws IOException {
+		synchronized (compactLock) {
+			Map<Integer, Long> sealed = store.getSealedSegments();
+			final Map<Integer, Long> dead = new HashMap<Integer, Long>();
+			Map<Integer, Long> live = getLiveBytesBySegment();
+			for (Map.Entry<Integer, Long> s : sealed.entrySet())
+				dead.put(s.getKey(), s.getValue()
+						- getLiveBytes(live, s.getKey()));
+
+			List<Integer> segments = new ArrayList<Integer>(sealed.keySet());
+			Collections.sort(segments, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return dead.get(b).compareTo(dead.get(a));
+				}
+			});
+
+			long reclaimed = 0L;
+			for (int segment : segments) {
+				if (reclaimed >= bytes || dead.get(segment) <= 0L)
+					break;
+				long size = sealed.get(segment);
+				compact(segment, size, size - dead.get(segment));
+				reclaimed += dead.get(segment);
+			}
+			return reclaimed;
+		}
+	}
+
+	/**
+	 * Returns the total size of the segments on the disk.
+	 */
+	public long getStoredBytes() {
+		return store.getTotalBytes();
+	}
+
+	/**
+	 * Returns the bytes of dead records still on the disk, including those
+	 * in the active segment, which cannot be reclaimed yet.
+	 */
+	public long getDeadBytes() {
+		long live = 0L;
+		for (long bytes : getLiveBytesBySegment().values())
+			live += bytes;
+		return Math.max(0L, store.getTotalBytes() - live);
+	}
+
+	private Map<Integer, Long> getLiveBytesBySegment() {
+		Map<Integer, Long> live = new HashMap<Integer, Long>();
+		for (CacheIndex.Entry e : index.getEntries().values()) {
+			int segment = e.getRecord().getSegment();
+			live.put(segment, getLiveBytes(live, segment)
+					+ e.getRecord().getLength());
+		}
+		return live;
+	}
+
+	private static long getLiveBytes(Map<Integer, Long> live, int segment) {
+		Long bytes = live.get(segment);
+		return bytes != null ? bytes : 0L;
+	}
+
+	private void compact(int segment, long size, long liveBytes)
+			throws IOException {
+		for (Map.Entry<ID, CacheIndex.Entry> e : index.getEntries()
+				.entrySet()) {
+			SegmentStore.Record record = e.getValue().getRecord();
+			if (record.getSegment() != segment)
+				continue;
+			// a record stored meanwhile is left as dead space
+			index.relocate(e.getKey(), e.getValue(), store.copy(record));
+		}
+		store.delete(segment);
+		synchronized (this) {
+			compactedSegments++;
+			reclaimedBytes += size - liveBytes;
+		}
+		logger.info("compacted segment {}, {} of {} bytes live",
+				new Object[] { segment, liveBytes, size });
+	}
+
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("segments:").append(store.getSegmentCount());
+		sb.append(",bytes:").append(store.getTotalBytes());
+		sb.append(",compacted:").append(compactedSegments);
+		sb.append(",reclaimed bytes:").append(reclaimedBytes);
+		return sb.toString();
+	}
+}
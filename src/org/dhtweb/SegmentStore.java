@@ -0,0 +1,490 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores cached responses as records in large append-only segment files.
+ * A record is a fixed prefix, a binary header block and the body:
+ * 
+ * <pre>
+ * int magic, int header block length, long body length, header block, body
+ * </pre>
+ * 
+ * Records are never modified. Storing a response again appends a new
+ * record, and the old one becomes dead space, which
+ * {@link SegmentCompactor} reclaims. A small record is read into a heap
+ * buffer, and a larger one is read through a read-only buffer mapped for
+ * that record alone. Such a mapping is kept only as long as the buffer is
+ * reachable, which is while the body is being sent or is held by
+ * {@link MemoryCache}, whose capacity bounds it.
+ * <p>
+ * Space for a record is reserved in the active segment under the lock of
+ * the store, and the record is written outside it, so appends of large
+ * bodies proceed in parallel and reads never wait for them. A record is
+ * forced to the disk before its location is returned, so that
+ * {@link CacheIndex} never logs a location whose content may be lost.
+ * Appends which finish while a segment is being forced are covered by a
+ * single force that follows it, so concurrent appends share fsyncs.
+ * 
+ * @author syuu
+ */
+public class SegmentStore {
+	private final static Logger logger = LoggerFactory
+			.getLogger(SegmentStore.class);
+
+	public final static long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	/** records up to this length are read into heap buffers */
+	private final static int MAP_THRESHOLD = 64 * 1024;
+
+	private final static int MAGIC = 0x44484652;
+	private final static int PREFIX_LENGTH = 4 + 4 + 8;
+
+	private final File dir;
+	private final long segmentSize;
+	private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+	private volatile Segment active = null;
+
+	public SegmentStore(File dir, long segmentSize) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Opens the existing segments. New records are appended to the last
+	 * one.
+	 */
+	public synchronized void open() throws IOException {
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("failed to create " + dir);
+		for (File file : dir.listFiles()) {
+			int number;
+			try {
+				number = Integer.parseInt(file.getName());
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			segments.put(number, new Segment(number, file));
+		}
+		if (!segments.isEmpty())
+			active = segments.lastEntry().getValue();
+	}
+
+	public synchronized void close() {
+		for (Segment segment : segments.values())
+			segment.close();
+		segments.clear();
+		active = null;
+	}
+
+	/**
+	 * Appends a record whose body is the whole content of a file.
+	 */
+	public Record append(Map<String, List<String>> headers, File body)
+			throws IOException {
+		byte[] block = encodeHeaders(headers);
+		FileInputStream in = new FileInputStream(body);
+		try {
+			FileChannel src = in.getChannel();
+			long length = src.size();
+			Segment segment;
+			long offset;
+			synchronized (this) {
+				segment = reserve(PREFIX_LENGTH + block.length + length);
+				offset = segment.allocate(PREFIX_LENGTH + block.length + length);
+			}
+			try {
+				segment.write(prefix(block, length), offset);
+				segment.write(ByteBuffer.wrap(block), offset + PREFIX_LENGTH);
+				segment.transferFrom(src, offset + PREFIX_LENGTH
+						+ block.length, length);
+				segment.force();
+			} finally {
+				segment.written();
+			}
+			return new Record(segment.number, offset, block.length, length);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Appends a record whose body is read from a buffer.
+	 */
+	public Record append(Map<String, List<String>> headers, ByteBuffer body)
+			throws IOException {
+		byte[] block = encodeHeaders(headers);
+		long length = body.remaining();
+		Segment segment;
+		long offset;
+		synchronized (this) {
+			segment = reserve(PREFIX_LENGTH + block.length + length);
+			offset = segment.allocate(PREFIX_LENGTH + block.length + length);
+		}
+		try {
+			segment.write(prefix(block, length), offset);
+			segment.write(ByteBuffer.wrap(block), offset + PREFIX_LENGTH);
+			segment.write(body.duplicate(), offset + PREFIX_LENGTH
+					+ block.length);
+			segment.force();
+		} finally {
+			segment.written();
+		}
+		return new Record(segment.number, offset, block.length, length);
+	}
+
+	/**
+	 * Copies a record as it is to the active segment, and returns the new
+	 * location.
+	 */
+	public Record copy(Record record) throws IOException {
+		ByteBuffer src = map(record.getSegment(), record.getOffset(), record
+				.getLength());
+		Segment segment;
+		long offset;
+		synchronized (this) {
+			segment = reserve(record.getLength());
+			offset = segment.allocate(record.getLength());
+		}
+		try {
+			segment.write(src, offset);
+			segment.force();
+		} finally {
+			segment.written();
+		}
+		return new Record(segment.number, offset, record.getHeaderLength(),
+				record.getBodyLength());
+	}
+
+	private static ByteBuffer prefix(byte[] block, long bodyLength) {
+		ByteBuffer prefix = ByteBuffer.allocate(PREFIX_LENGTH);
+		prefix.putInt(MAGIC).putInt(block.length).putLong(bodyLength);
+		prefix.flip();
+		return prefix;
+	}
+
+	/**
+	 * Returns the segment to append a record of the given length to. A new
+	 * segment is started when the active one would grow over the segment
+	 * size, so a record larger than that gets a segment of its own. Called
+	 * with the lock held.
+	 */
+	private Segment reserve(long length) throws IOException {
+		if (active == null
+				|| (active.size > 0 && active.size + length > segmentSize)) {
+			int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+			active = new Segment(number, new File(dir, String.format("%08d",
+					number)));
+			segments.put(number, active);
+		}
+		return active;
+	}
+
+	/**
+	 * Returns the headers of a record.
+	 */
+	public Map<String, List<String>> readHeaders(Record record)
+			throws IOException {
+		return decodeHeaders(map(record.getSegment(), record.getOffset()
+				+ PREFIX_LENGTH, record.getHeaderLength()));
+	}
+
+	/**
+	 * Returns a buffer of the body of a record, which is read-only if it is
+	 * mapped.
+	 */
+	public ByteBuffer readBody(Record record) throws IOException {
+		return map(record.getSegment(), record.getBodyOffset(), record
+				.getBodyLength());
+	}
+
+	private ByteBuffer map(int number, long offset, long length)
+			throws IOException {
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("record too large to map: " + length);
+		Segment segment = segments.get(number);
+		if (segment == null)
+			throw new IOException("no such segment: " + number);
+		return segment.read(offset, (int) length);
+	}
+
+	/**
+	 * Deletes a sealed segment. Buffers already mapped from it stay valid,
+	 * and its disk space is freed when they are garbage collected.
+	 */
+	public void delete(int number) {
+		Segment segment;
+		synchronized (this) {
+			if (active != null && active.number == number)
+				return;
+			segment = segments.remove(number);
+		}
+		if (segment == null)
+			return;
+		segment.close();
+		if (!segment.file.delete())
+			logger.warn("failed to delete {}", segment.file);
+	}
+
+	/**
+	 * Returns the size of each segment but the active one. A segment still
+	 * being written to is left out.
+	 */
+	public Map<Integer, Long> getSealedSegments() {
+		Map<Integer, Long> sizes = new LinkedHashMap<Integer, Long>();
+		for (Segment segment : segments.values())
+			if (segment != active && segment.writers.get() == 0)
+				sizes.put(segment.number, segment.size);
+		return sizes;
+	}
+
+	public long getTotalBytes() {
+		long total = 0L;
+		for (Segment segment : segments.values())
+			total += segment.size;
+		return total;
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Encodes headers into a header block. The status line, whose name is
+	 * null, is kept as well.
+	 */
+	static byte[] encodeHeaders(Map<String, List<String>> headers)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(headers.size());
+		for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+			out.writeBoolean(e.getKey() != null);
+			if (e.getKey() != null)
+				out.writeUTF(e.getKey());
+			List<String> values = e.getValue();
+			out.writeInt(values.size());
+			for (String value : values)
+				out.writeUTF(value);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	static Map<String, List<String>> decodeHeaders(ByteBuffer block)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteBufferInputStream(
+				block));
+		int size = in.readInt();
+		Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+		for (int i = 0; i < size; i++) {
+			String name = in.readBoolean() ? in.readUTF() : null;
+			int count = in.readInt();
+			List<String> values = new ArrayList<String>(count);
+			for (int j = 0; j < count; j++)
+				values.add(in.readUTF());
+			headers.put(name, values);
+		}
+		return headers;
+	}
+
+	/**
+	 * The location of a record.
+	 */
+	public static class Record {
+		private final int segment;
+		private final long offset;
+		private final int headerLength;
+		private final long bodyLength;
+
+		public Record(int segment, long offset, int headerLength,
+				long bodyLength) {
+			this.segment = segment;
+			this.offset = offset;
+			this.headerLength = headerLength;
+			this.bodyLength = bodyLength;
+		}
+
+		public int getSegment() {
+			return segment;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getHeaderLength() {
+			return headerLength;
+		}
+
+		public long getBodyOffset() {
+			return offset + PREFIX_LENGTH + headerLength;
+		}
+
+		public long getBodyLength() {
+			return bodyLength;
+		}
+
+		/**
+		 * Returns the length of the whole record.
+		 */
+		public long getLength() {
+			return PREFIX_LENGTH + headerLength + bodyLength;
+		}
+	}
+
+	/**
+	 * A segment file.
+	 * <p>
+	 * The channel is closed when a thread using it is interrupted, as by
+	 * {@link java.util.concurrent.Future#cancel(boolean)}, so it is opened
+	 * again if needed. A record partially written then is left as dead
+	 * space.
+	 * <p>
+	 * The size is the end of the space allocated so far, which is ahead of
+	 * the records still being written.
+	 */
+	private static class Segment {
+		private final int number;
+		private final File file;
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private volatile long size;
+		private final AtomicInteger writers = new AtomicInteger();
+		private boolean closed = false;
+
+		/** counts the writes which have completed and which have been forced */
+		private final AtomicLong numWritten = new AtomicLong();
+		private long numForced = 0L;
+		private final Object forceLock = new Object();
+
+		private Segment(int number, File file) throws IOException {
+			this.number = number;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+			this.size = channel.size();
+		}
+
+		private synchronized FileChannel channel() throws IOException {
+			if (closed)
+				throw new IOException("segment " + number + " is closed");
+			if (!channel.isOpen()) {
+				raf.close();
+				raf = new RandomAccessFile(file, "rw");
+				channel = raf.getChannel();
+			}
+			return channel;
+		}
+
+		/**
+		 * Allocates space at the end, and returns its offset. Called with the
+		 * lock of the store held, and followed by {@link #written()}.
+		 */
+		private long allocate(long length) {
+			writers.incrementAndGet();
+			long offset = size;
+			size = offset + length;
+			return offset;
+		}
+
+		private void written() {
+			writers.decrementAndGet();
+		}
+
+		private void write(ByteBuffer src, long position) throws IOException {
+			FileChannel ch = channel();
+			while (src.hasRemaining())
+				position += ch.write(src, position);
+			numWritten.incrementAndGet();
+		}
+
+		private void transferFrom(FileChannel src, long position, long count)
+				throws IOException {
+			FileChannel ch = channel();
+			long end = position + count;
+			while (position < end) {
+				long n = ch.transferFrom(src, position, end - position);
+				if (n <= 0)
+					throw new IOException("body is shorter than " + count
+							+ " bytes");
+				position += n;
+			}
+			numWritten.incrementAndGet();
+		}
+
+		/**
+		 * Forces the writes completed so far to the disk. Returns without
+		 * forcing again if a force started after them has done so while
+		 * waiting for the lock.
+		 */
+		private void force() throws IOException {
+			long target = numWritten.get();
+			synchronized (forceLock) {
+				if (numForced >= target)
+					return;
+				long upTo = numWritten.get();
+				channel().force(false);
+				numForced = upTo;
+			}
+		}
+
+		private ByteBuffer read(long offset, int length) throws IOException {
+			if (offset + length > size)
+				throw new IOException("record out of segment " + number);
+			if (length > MAP_THRESHOLD)
+				return channel().map(FileChannel.MapMode.READ_ONLY, offset,
+						length);
+			ByteBuffer dst = ByteBuffer.allocate(length);
+			FileChannel ch = channel();
+			while (dst.hasRemaining())
+				if (ch.read(dst, offset + dst.position()) < 0)
+					throw new IOException("record out of segment " + number);
+			dst.flip();
+			return dst;
+		}
+
+		private synchronized void close() {
+			closed = true;
+			try {
+				channel.close();
+				raf.close();
+			} catch (IOException e) {
+				logger.warn(e.getMessage(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Wraps the handler of a context and counts requests. It also keeps a
+ * histogram of how long requests waited for an {@link HTTPExecutor} worker.
+ * 
+ * @author syuu
+ */
+public class StatisticsHandler implements HttpHandler {
+	/** upper bounds of histogram buckets in milliseconds */
+	private final static long[] BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };
+
+	private final String context;
+	private final HttpHandler handler;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong handlingNanos = new AtomicLong();
+	private final AtomicLong queueWaitNanos = new AtomicLong();
+	private final AtomicLongArray queueWaitHistogram = new AtomicLongArray(BUCKETS.length + 1);
+
+	public StatisticsHandler(String context, HttpHandler handler) {
+		this.context = context;
+		this.handler = handler;
+	}
+
+	@Override
+	public void handle(HttpExchange he) throws IOException {
+		requests.incrementAndGet();
+
+		long wait = HTTPExecutor.getQueueWaitNanos();
+		if (wait >= 0) {
+			queueWaitNanos.addAndGet(wait);
+			queueWaitHistogram.incrementAndGet(bucketOf(wait / 1000000L));
+		}
+
+		if (HTTPExecutor.isRejected()) {
+			rejected.incrementAndGet();
+			try {
+				he.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+			} finally {
+				he.close();
+			}
+			return;
+		}
+
+		active.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			handler.handle(he);
+		} catch (IOException e) {
+			errors.incrementAndGet();
+			throw e;
+		} catch (RuntimeException e) {
+			errors.incrementAndGet();
+			throw e;
+		} finally {
+			handlingNanos.addAndGet(System.nanoTime() - start);
+			active.decrementAndGet();
+		}
+	}
+
+	private static int bucketOf(long millis) {
+		for (int i = 0; i < BUCKETS.length; i++)
+			if (millis < BUCKETS[i])
+				return i;
+		return BUCKETS.length;
+	}
+
+	public String getContext() {
+		return context;
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	/**
+	 * Returns counts of requests by queue wait. The i-th count is for waits
+	 * shorter than {@link #getHistogramBounds()}[i] msec, and the last one
+	 * is for the longer waits.
+	 */
+	public long[] getQueueWaitHistogram() {
+		long[] h = new long[queueWaitHistogram.length()];
+		for (int i = 0; i < h.length; i++)
+			h[i] = queueWaitHistogram.get(i);
+		return h;
+	}
+
+	public static long[] getHistogramBounds() {
+		return BUCKETS.clone();
+	}
+
+	public String toString() {
+		long n = requests.get();
+		long handled = n - rejected.get();
+		StringBuilder sb = new StringBuilder();
+		sb.append(context).append(" requests:").append(n);
+		sb.append(",active:").append(active.get());
+		sb.append(",rejected:").append(rejected.get());
+		sb.append(",errors:").append(errors.get());
+		if (handled > 0)
+			sb.append(",avg msec:").append(handlingNanos.get() / handled / 1000000L);
+		if (n > 0)
+			sb.append(",avg wait msec:").append(queueWaitNanos.get() / n / 1000000L);
+		sb.append(",wait histogram:");
+		for (int i = 0; i < BUCKETS.length; i++)
+			sb.append(" <").append(BUCKETS[i]).append(':').append(queueWaitHistogram.get(i));
+		sb.append(" >=").append(BUCKETS[BUCKETS.length - 1]).append(':')
+				.append(queueWaitHistogram.get(BUCKETS.length));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.PrintStream;
+
+import ow.dht.DHT;
+import ow.tool.util.shellframework.Command;
+import ow.tool.util.shellframework.CommandUtil;
+import ow.tool.util.shellframework.Shell;
+import ow.tool.util.shellframework.ShellContext;
+
+/**
+ * The status command of DHTFox, which reports the disk cache as well as the
+ * DHT.
+ * 
+ * @author syuu
+ */
+public final class StatusCommand implements Command<DHT<String>> {
+	private final static String[] NAMES = { "status" };
+
+	public String[] getNames() {
+		return NAMES;
+	}
+
+	public String getHelp() {
+		return "status [<verbose level>]";
+	}
+
+	public boolean execute(ShellContext<DHT<String>> context) {
+		// parse arguments
+		int verboseLevel = 0;
+
+		String[] args = context.getArguments();
+		if (args.length > 0) {
+			verboseLevel = Integer.parseInt(args[0]);
+		}
+
+		// build message
+		StringBuilder sb = CommandUtil.buildStatusMessage(context
+				.getOpaqueData(), verboseLevel);
+
+		CacheManager cacheManager = LocalResponseCache.getCacheManager();
+		if (cacheManager != null) {
+			sb.append("Disk cache: ").append(cacheManager).append(Shell.CRLF);
+		}
+		BulkAnnouncer announcer = LocalResponseCache.getAnnouncer();
+		if (announcer != null) {
+			sb.append("Announcer: ").append(announcer).append(Shell.CRLF);
+		}
+		sb.append("Announcements: ").append(LocalResponseCache.ANNOUNCEMENTS)
+				.append(Shell.CRLF);
+		sb.append("Memory cache: ").append(LocalResponseCache.MEMORY_CACHE)
+				.append(Shell.CRLF);
+
+		PrintStream out = context.getOutputStream();
+		out.print(sb);
+		out.flush();
+
+		return false;
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2010 syuu, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dhtweb;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.CacheRequest;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads a large object in chunks from several holders at once.
+ * The first chunk is read from the response which is already open, and the
+ * rest are requested with Range requests, a few chunks ahead of the one
+ * being written. Chunks are written to the client in order. A chunk is
+ * requested from the next holder if a holder fails. A chunk which finds
+ * the executor saturated is requested on the writing thread when its turn
+ * comes.
+ * 
+ * @author syuu
+ */
+public class SwarmDownload {
+	private final static Logger logger = LoggerFactory.getLogger(SwarmDownload.class);
+
+	public final static long DEFAULT_THRESHOLD = 4L * 1024 * 1024;
+	public final static int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	public final static int DEFAULT_WINDOW = 4;
+
+	private final ExecutorService executor;
+	private final PeerClient peerClient;
+	private final URI uri;
+	private final List<String> holders;
+	private final long length;
+	private final int chunkSize, window;
+
+	/** holders which answered a Range request without a partial content */
+	private final Set<String> noRangeHolders = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private CacheRequest cache;
+
+	public SwarmDownload(ExecutorService executor, PeerClient peerClient,
+			URI uri, List<String> holders, long length, int chunkSize,
+			int window) {
+		this.executor = executor;
+		this.peerClient = peerClient;
+		this.uri = uri;
+		this.holders = holders;
+		this.length = length;
+		this.chunkSize = chunkSize;
+		this.window = window;
+	}
+
+	/**
+	 * Writes the object to out. The first chunk is read from first. If cache
+	 * is not null, the object is also written to it, and it is aborted if
+	 * the download fails.
+	 */
+	public void transfer(InputStream first, OutputStream out,
+			CacheRequest cache) throws IOException {
+		this.cache = cache;
+		int chunks = (int) ((length + chunkSize - 1) / chunkSize);
+		Map<Integer, Future<byte[]>> futures = new HashMap<Integer, Future<byte[]>>();
+		int next = 1;
+		boolean completed = false;
+		try {
+			for (; next < chunks && next <= window; next++)
+				submit(futures, next);
+
+			byte[] buf = new byte[64 * 1024];
+			long remaining = Math.min(chunkSize, length);
+			while (remaining > 0) {
+				int n = first.read(buf, 0, (int) Math.min(buf.length, remaining));
+				if (n < 0)
+					throw new IOException("connection closed in the first chunk: " + uri);
+				write(out, buf, n);
+				remaining -= n;
+			}
+
+			for (int i = 1; i < chunks; i++) {
+				Future<byte[]> f = futures.remove(i);
+				byte[] data = f != null ? get(f) : fetchChunk(i);
+				write(out, data, data.length);
+				if (next < chunks) {
+					submit(futures, next);
+					next++;
+				}
+			}
+			out.flush();
+			completed = true;
+		} finally {
+			for (Future<byte[]> f : futures.values())
+				f.cancel(true);
+			if (this.cache != null) {
+				if (completed)
+					this.cache.getBody().close();
+				else
+					this.cache.abort();
+			}
+		}
+	}
+
+	private void write(OutputStream out, byte[] data, int len)
+			throws IOException {
+		out.write(data, 0, len);
+		if (cache != null) {
+			try {
+				cache.getBody().write(data, 0, len);
+			} catch (IOException e) {
+				logger.warn(e.getMessage(), e);
+				cache.abort();
+				cache = null;
+			}
+		}
+	}
+
+	private void submit(Map<Integer, Future<byte[]>> futures, final int index) {
+		try {
+			futures.put(index, executor.submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					return fetchChunk(index);
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			logger.info("no thread for chunk {} of {}", index, uri);
+		}
+	}
+
+	private byte[] get(Future<byte[]> f) throws IOException {
+		try {
+			return f.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause.toString());
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Requests a chunk from the holders in turn, starting from a different
+	 * holder for each chunk.
+	 */
+	private byte[] fetchChunk(int index) throws IOException {
+		long start = (long) index * chunkSize;
+		int len = (int) Math.min(chunkSize, length - start);
+		String range = "bytes " + start + "-" + (start + len - 1) + "/";
+		IOException last = null;
+
+		for (int i = 0; i < holders.size(); i++) {
+			String holder = holders.get((index + i) % holders.size());
+			if (noRangeHolders.contains(holder))
+				continue;
+
+			PeerRequest c = peerClient.request(holder, uri);
+			try {
+				c.setRequestProperty("Range", "bytes=" + start + "-"
+						+ (start + len - 1));
+				int response = c.execute();
+				String contentRange = c.getHeaderField("Content-Range");
+				if (response != HttpURLConnection.HTTP_PARTIAL
+						|| contentRange == null
+						|| !contentRange.startsWith(range)) {
+					noRangeHolders.add(holder);
+					throw new IOException("no range support: " + holder
+							+ " responded " + response);
+				}
+
+				byte[] data = new byte[len];
+				DataInputStream in = new DataInputStream(c.getInputStream());
+				try {
+					in.readFully(data);
+				} finally {
+					in.close();
+				}
+				logger.debug("chunk {} of {} from {}", new Object[] { index,
+						uri, holder });
+				return data;
+			} catch (IOException e) {
+				logger.info("chunk {} failed: {}", index, e.toString());
+				last = e;
+			} finally {
+				c.disconnect();
+			}
+		}
+		throw last != null ? last : new IOException(
+				"no holder supports range requests: " + uri);
+	}
+}